@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static android.provider.Telephony.Carriers.BEARER_BITMASK;
+import static android.provider.Telephony.Carriers.EDITED_STATUS;
+import static android.provider.Telephony.Carriers.MCC;
+import static android.provider.Telephony.Carriers.MNC;
+import static android.provider.Telephony.Carriers.NETWORK_TYPE_BITMASK;
+import static android.provider.Telephony.Carriers.NUMERIC;
+import static android.provider.Telephony.Carriers.PROFILE_ID;
+import static android.provider.Telephony.Carriers.TYPE;
+import static android.provider.Telephony.Carriers._ID;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes the rows loaded from the APN xml to the carriers table without going through an insert,
+ * a failed constraint, a query and an update for every row which already exists.
+ *
+ * The unique key of every existing row is loaded into memory on the first write, so conflicts and
+ * the {@code EDITED_STATUS} transitions are resolved without touching the database. New rows are
+ * written through compiled insert statements which are reused for rows with the same columns.
+ * The caller is expected to hold a transaction for the whole load and to {@link #close()} the
+ * loader when done.
+ *
+ * Anything the in-memory state can't answer for sure falls back to the row by row path, e.g. a
+ * value which SQLite would convert before comparing it.
+ */
+public class ApnBulkLoader implements ApnConfHashes.RowWriter, AutoCloseable {
+    private static final String TAG = "ApnBulkLoader";
+    private static final boolean DBG = false;
+
+    /** The columns of a conflicting row used to merge a new row into it. */
+    private static final String[] CONFLICT_COLUMNS = {
+            _ID, TYPE, EDITED_STATUS, BEARER_BITMASK, NETWORK_TYPE_BITMASK, PROFILE_ID };
+
+    private final Context mContext;
+    private final String mTable;
+    private final ApnConfHashes.RowWriter mFallback;
+
+    // Unique key -> values of CONFLICT_COLUMNS, or null until the first write.
+    private HashMap<String, Object[]> mRows;
+    // Column list -> compiled insert statement.
+    private final ArrayMap<String, SQLiteStatement> mInsertStatements = new ArrayMap<>();
+
+    private int mWritten;
+    private int mInserted;
+    private int mMerged;
+    private int mFallbacks;
+    private long mElapsedNanos;
+
+    /**
+     * @param context the context, used to merge rows.
+     * @param table the carriers table.
+     * @param fallback writes a row the loader can't resolve in memory.
+     */
+    public ApnBulkLoader(@NonNull Context context, @NonNull String table,
+            @NonNull ApnConfHashes.RowWriter fallback) {
+        mContext = context;
+        mTable = table;
+        mFallback = fallback;
+    }
+
+    /**
+     * Write a row loaded from xml, merging it into a conflicting row if there is one. The row must
+     * already hold its default values.
+     *
+     * @return the id of the row the values ended up in, or -1 if that is not a single row.
+     */
+    @Override
+    public long write(@NonNull SQLiteDatabase db, @NonNull ContentValues row) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            mWritten++;
+            return writeInternal(db, row);
+        } finally {
+            mElapsedNanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+    }
+
+    private long writeInternal(SQLiteDatabase db, ContentValues row) {
+        // Only rows with a numeric, mcc and mnc can be merged, see selectConflictingRow.
+        if (!row.containsKey(NUMERIC) || !row.containsKey(MCC) || !row.containsKey(MNC)) {
+            return fallback(db, row);
+        }
+        if (mRows == null) {
+            // Loaded on the first write, after rows removed from the xml have been deleted.
+            loadRows(db);
+        }
+
+        String key = getKey(TelephonyProvider.getUniqueFieldValues(row));
+        Object[] oldValues = key == null ? null : mRows.get(key);
+        if (oldValues == null) {
+            long rowId;
+            try {
+                rowId = insert(db, row);
+            } catch (SQLiteConstraintException e) {
+                // The key compares equal in SQLite but not as a string.
+                if (DBG) Log.d(TAG, "write: conflict not found in memory " + e);
+                return fallback(db, row);
+            }
+            mInserted++;
+            if (key != null) {
+                // Missing columns take the table defaults.
+                String type = row.containsKey(TYPE) ? row.getAsString(TYPE) : "";
+                mRows.put(key, new Object[] {rowId, type,
+                        valueOrZero(row, EDITED_STATUS), valueOrZero(row, BEARER_BITMASK),
+                        valueOrZero(row, NETWORK_TYPE_BITMASK), valueOrZero(row, PROFILE_ID)});
+            }
+            return rowId;
+        }
+
+        MatrixCursor oldRow = new MatrixCursor(CONFLICT_COLUMNS, 1);
+        oldRow.addRow(oldValues);
+        oldRow.moveToFirst();
+        ContentValues mergedValues = TelephonyProvider.mergeXmlRowIntoConflictingRow(db, oldRow,
+                row, mContext);
+        oldRow.close();
+        if (mergedValues == null) {
+            // The rows were kept apart and the old row may have changed, read the table again
+            // the next time it is needed.
+            mRows = null;
+            return -1;
+        }
+        mMerged++;
+        for (int i = 1; i < CONFLICT_COLUMNS.length; i++) {
+            if (mergedValues.containsKey(CONFLICT_COLUMNS[i])) {
+                oldValues[i] = mergedValues.get(CONFLICT_COLUMNS[i]);
+            }
+        }
+        return (long) oldValues[0];
+    }
+
+    private long fallback(SQLiteDatabase db, ContentValues row) {
+        mFallbacks++;
+        // The fallback may have written anything, start over from the table.
+        mRows = null;
+        return mFallback.write(db, row);
+    }
+
+    private void loadRows(SQLiteDatabase db) {
+        List<String> uniqueFields = TelephonyProvider.CARRIERS_UNIQUE_FIELDS;
+        String[] projection = new String[CONFLICT_COLUMNS.length + uniqueFields.size()];
+        System.arraycopy(CONFLICT_COLUMNS, 0, projection, 0, CONFLICT_COLUMNS.length);
+        for (int i = 0; i < uniqueFields.size(); i++) {
+            projection[CONFLICT_COLUMNS.length + i] = uniqueFields.get(i);
+        }
+
+        mRows = new HashMap<>();
+        String[] keyValues = new String[uniqueFields.size()];
+        try (Cursor c = db.query(mTable, projection, null, null, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                for (int i = 0; i < keyValues.length; i++) {
+                    keyValues[i] = c.getString(CONFLICT_COLUMNS.length + i);
+                }
+                String key = getKey(keyValues);
+                if (key != null) {
+                    mRows.put(key, new Object[] {c.getLong(0), c.getString(1), c.getLong(2),
+                            c.getLong(3), c.getLong(4), c.getLong(5)});
+                }
+            }
+        }
+        if (DBG) Log.d(TAG, "loadRows: " + mRows.size() + " rows");
+    }
+
+    private long insert(SQLiteDatabase db, ContentValues row) {
+        List<String> columns = new ArrayList<>(row.keySet());
+        Collections.sort(columns);
+        String signature = String.join(",", columns);
+        SQLiteStatement statement = mInsertStatements.get(signature);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(mTable).append('(')
+                    .append(signature).append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            statement = db.compileStatement(sql.append(')').toString());
+            mInsertStatements.put(signature, statement);
+        }
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns.get(i)));
+        }
+        return statement.executeInsert();
+    }
+
+    /**
+     * @return the map key for the values of the unique fields, or {@code null} if one of them is
+     * null, in which case the row never conflicts.
+     */
+    private static String getKey(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (value == null) {
+                return null;
+            }
+            sb.append(value).append('\u0000');
+        }
+        return sb.toString();
+    }
+
+    private static Object valueOrZero(ContentValues row, String column) {
+        Long value = row.getAsLong(column);
+        return value == null ? 0L : value;
+    }
+
+    /** @return the throughput of the load, e.g. for the local log. */
+    @Override
+    public String toString() {
+        long elapsedMs = mElapsedNanos / 1000000;
+        long rowsPerSecond = mElapsedNanos == 0 ? 0 : mWritten * 1000000000L / mElapsedNanos;
+        return "bulk load: rows=" + mWritten + " inserted=" + mInserted + " merged=" + mMerged
+                + " fallbacks=" + mFallbacks + " took " + elapsedMs + "ms (" + rowsPerSecond
+                + " rows/s) statements=" + mInsertStatements.size();
+    }
+
+    /** Release the compiled statements. */
+    @Override
+    public void close() {
+        for (int i = 0; i < mInsertStatements.size(); i++) {
+            mInsertStatements.valueAt(i).close();
+        }
+        mInsertStatements.clear();
+        mRows = null;
+    }
+}
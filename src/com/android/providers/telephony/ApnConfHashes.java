@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static android.provider.Telephony.Carriers.APN;
+import static android.provider.Telephony.Carriers.NUMERIC;
+import static android.provider.Telephony.Carriers._ID;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps a content hash of every {@code <apn>} entry loaded from the APN xml files together with
+ * the carriers row it was written to, so that reloading the xml only writes the entries that
+ * were added or changed since the previous load.
+ *
+ * An entry is skipped when the previous load wrote it to a row which still exists, has not been
+ * edited and still has the same numeric and apn. Every other entry goes through the usual
+ * insert and conflict handling. Unedited rows which no longer come from the xml can optionally
+ * be deleted. The defaults the writer adds to an entry, such as the default subscription, aren't
+ * part of its hash, so they are written again to the rows of skipped entries.
+ */
+public class ApnConfHashes {
+    private static final String TAG = "ApnConfHashes";
+    private static final boolean DBG = false;
+
+    @VisibleForTesting
+    public static final String TABLE = "apn_conf_hashes";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_APN_ID = "apn_id";
+
+    /** Writes a single row loaded from the xml and returns its row id, or -1 if unknown. */
+    public interface RowWriter {
+        long write(@NonNull SQLiteDatabase db, @NonNull ContentValues row);
+    }
+
+    /** The number of entries skipped and rows written by a load. */
+    public static final class Result {
+        public final int entries;
+        public final int unchanged;
+        public final int written;
+        public final int deleted;
+
+        Result(int entries, int unchanged, int written, int deleted) {
+            this.entries = entries;
+            this.unchanged = unchanged;
+            this.written = written;
+            this.deleted = deleted;
+        }
+
+        @Override
+        public String toString() {
+            return "entries=" + entries + " unchanged=" + unchanged + " written=" + written
+                    + " deleted=" + deleted;
+        }
+    }
+
+    /**
+     * @return the statement creating the hash table if it doesn't exist.
+     */
+    public static String getStringForTableCreation() {
+        return "CREATE TABLE IF NOT EXISTS " + TABLE + "("
+                + COLUMN_HASH + " TEXT PRIMARY KEY,"
+                + COLUMN_APN_ID + " INTEGER);";
+    }
+
+    /**
+     * Drop every stored hash, e.g. after the carriers table has been rebuilt and the row ids the
+     * hashes point to are no longer meaningful. The next load writes every entry.
+     */
+    public static void reset(@NonNull SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        db.execSQL(getStringForTableCreation());
+    }
+
+    /**
+     * Compute the content hash of an entry as returned by the xml parser, before defaults are
+     * added.
+     */
+    @VisibleForTesting
+    @NonNull
+    public static String computeHash(@NonNull ContentValues row) {
+        List<String> keys = new ArrayList<>(row.keySet());
+        Collections.sort(keys);
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            Object value = row.get(key);
+            // Keep the type so that e.g. "1" and 1 hash differently.
+            sb.append(key).append('=')
+                    .append(value == null ? "null" : value.getClass().getSimpleName())
+                    .append(':').append(value).append('\n');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available, fall back to the content itself just in case.
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Write the entries loaded from the xml to the carriers table and store their hashes. The
+     * caller is expected to hold a transaction.
+     *
+     * @param db the database.
+     * @param carriersTable the carriers table name.
+     * @param reusableSelection selects the carriers rows that may be kept as is, i.e. unedited
+     *                          rows which are not owned by DPC.
+     * @param rows the entries in xml order.
+     * @param defaults the values {@code writer} adds to an entry which doesn't set them. They are
+     *                 also written to the rows of skipped entries.
+     * @param deleteRemoved whether rows selected by {@code reusableSelection} which do not come
+     *                      from an entry in {@code rows} should be deleted.
+     * @param writer writes an entry which can't be skipped.
+     * @return the number of entries skipped and rows written.
+     */
+    @NonNull
+    public static Result apply(@NonNull SQLiteDatabase db, @NonNull String carriersTable,
+            @NonNull String reusableSelection, @NonNull List<ContentValues> rows,
+            @NonNull ContentValues defaults, boolean deleteRemoved, @NonNull RowWriter writer) {
+        db.execSQL(getStringForTableCreation());
+
+        // Hashes and row ids from the previous load.
+        ArrayMap<String, Long> stored = new ArrayMap<>();
+        try (Cursor c = db.query(TABLE, new String[] {COLUMN_HASH, COLUMN_APN_ID}, null, null,
+                null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                stored.put(c.getString(0), c.getLong(1));
+            }
+        }
+
+        // Rows which could be kept, with the key they must still have.
+        LongSparseArray<String> reusable = new LongSparseArray<>();
+        try (Cursor c = db.query(carriersTable, new String[] {_ID, NUMERIC, APN},
+                reusableSelection, null, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                reusable.put(c.getLong(0), rowKey(c.getString(1), c.getString(2)));
+            }
+        }
+
+        List<String> hashes = new ArrayList<>(rows.size());
+        ArraySet<String> current = new ArraySet<>();
+        for (ContentValues row : rows) {
+            String hash = computeHash(row);
+            hashes.add(hash);
+            current.add(hash);
+        }
+
+        // Rows written for an entry which has been removed or changed may also hold other,
+        // merged entries. Those entries have to be written again.
+        ArraySet<Long> dirtyIds = new ArraySet<>();
+        for (int i = 0; i < stored.size(); i++) {
+            if (!current.contains(stored.keyAt(i))) {
+                dirtyIds.add(stored.valueAt(i));
+            }
+        }
+
+        ArrayMap<String, Long> next = new ArrayMap<>();
+        ArraySet<Long> keptIds = new ArraySet<>();
+        List<Integer> toWrite = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            String hash = hashes.get(i);
+            if (next.containsKey(hash)) {
+                // Duplicate of an earlier entry, it ends up in the same row.
+                continue;
+            }
+            Long id = stored.get(hash);
+            ContentValues row = rows.get(i);
+            if (id != null && !dirtyIds.contains(id)
+                    && Objects.equals(reusable.get(id),
+                            rowKey(row.getAsString(NUMERIC), row.getAsString(APN)))) {
+                next.put(hash, id);
+                keptIds.add(id);
+            } else {
+                toWrite.add(i);
+            }
+        }
+        int unchanged = next.size();
+        updateDefaults(db, carriersTable, rows, hashes, next, defaults);
+
+        int deleted = 0;
+        if (deleteRemoved) {
+            for (int i = 0; i < reusable.size(); i++) {
+                long id = reusable.keyAt(i);
+                if (!keptIds.contains(id)) {
+                    deleted += db.delete(carriersTable, _ID + "=?",
+                            new String[] {String.valueOf(id)});
+                }
+            }
+        }
+
+        for (int i : toWrite) {
+            String hash = hashes.get(i);
+            long id = writer.write(db, rows.get(i));
+            // Entries split into several rows on merge have no single row to point to. They will
+            // be written again on the next load.
+            if (id >= 0 && !next.containsKey(hash)) {
+                next.put(hash, id);
+            }
+        }
+
+        db.delete(TABLE, null, null);
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+                + "(" + COLUMN_HASH + "," + COLUMN_APN_ID + ") VALUES (?,?)");
+        try {
+            for (int i = 0; i < next.size(); i++) {
+                insert.bindString(1, next.keyAt(i));
+                insert.bindLong(2, next.valueAt(i));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+
+        Result result = new Result(rows.size(), unchanged, toWrite.size(), deleted);
+        if (DBG) Log.d(TAG, "apply: " + result);
+        return result;
+    }
+
+    /**
+     * Write {@code defaults} to the rows of the skipped entries which don't set them, as the
+     * writer would have.
+     */
+    private static void updateDefaults(SQLiteDatabase db, String carriersTable,
+            List<ContentValues> rows, List<String> hashes, ArrayMap<String, Long> kept,
+            ContentValues defaults) {
+        if (defaults.isEmpty() || kept.isEmpty()) {
+            return;
+        }
+        // Most entries set none of the defaults, their rows are updated at once.
+        StringBuilder allDefaultsIds = new StringBuilder();
+        ArraySet<String> done = new ArraySet<>();
+        for (int i = 0; i < rows.size(); i++) {
+            String hash = hashes.get(i);
+            Long id = kept.get(hash);
+            if (id == null || !done.add(hash)) {
+                continue;
+            }
+            ContentValues row = rows.get(i);
+            ContentValues values = new ContentValues();
+            for (String key : defaults.keySet()) {
+                if (!row.containsKey(key)) {
+                    values.putObject(key, defaults.get(key));
+                }
+            }
+            if (values.size() == defaults.size()) {
+                allDefaultsIds.append(allDefaultsIds.length() == 0 ? "" : ",").append(id);
+            } else if (!values.isEmpty()) {
+                db.update(carriersTable, values, _ID + "=?", new String[] {String.valueOf(id)});
+            }
+        }
+        if (allDefaultsIds.length() > 0) {
+            db.update(carriersTable, defaults, _ID + " IN (" + allDefaultsIds + ")", null);
+        }
+    }
+
+    private static String rowKey(String numeric, String apn) {
+        return (numeric == null ? "" : numeric) + "\n" + (apn == null ? "" : apn);
+    }
+}
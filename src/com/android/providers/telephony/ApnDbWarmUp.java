@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the APN database update of the first boot after an OTA in the background, so the provider
+ * is created without waiting for it.
+ *
+ * The task reports its phases through {@link #phase}, and their timings go to the local log.
+ * Queries arriving while it runs wait for it in {@link #awaitForQuery}, but only up to a
+ * deadline. After that they read the APNs last committed to the database. The task is expected to
+ * write the new APNs in one transaction, so those are either the old or the new APNs, never a mix.
+ */
+public class ApnDbWarmUp {
+    private static final String TAG = "ApnDbWarmUp";
+
+    /** The work done in the background. */
+    public interface Task {
+        /**
+         * Update the database.
+         *
+         * @param warmUp to report the phases to.
+         */
+        void run(@NonNull ApnDbWarmUp warmUp) throws Exception;
+    }
+
+    private final LocalLog mLocalLog;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mStarted;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private String mPhase = "not started";
+    @GuardedBy("mLock")
+    private long mStartMs;
+    @GuardedBy("mLock")
+    private long mPhaseStartMs;
+    @GuardedBy("mLock")
+    private final StringBuilder mTimings = new StringBuilder();
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private int mWaitedQueries;
+    @GuardedBy("mLock")
+    private int mTimedOutQueries;
+    @GuardedBy("mLock")
+    private long mMaxWaitMs;
+
+    /**
+     * @param localLog the log the phase timings are written to.
+     */
+    public ApnDbWarmUp(@NonNull LocalLog localLog) {
+        mLocalLog = localLog;
+    }
+
+    /**
+     * Run {@code task} on {@code executor}. Can only be called once.
+     */
+    public void start(@NonNull Executor executor, @NonNull Task task) {
+        synchronized (mLock) {
+            if (mStarted) {
+                throw new IllegalStateException("warm-up already started");
+            }
+            mStarted = true;
+            mStartMs = SystemClock.elapsedRealtime();
+            mPhaseStartMs = mStartMs;
+            mPhase = "queued";
+        }
+        executor.execute(() -> {
+            try {
+                task.run(this);
+            } catch (Exception e) {
+                Log.e(TAG, "warm-up failed in phase " + getPhase(), e);
+                mLocalLog.log("ApnDbWarmUp: failed in phase " + getPhase() + ": " + e);
+            } finally {
+                finish();
+            }
+        });
+    }
+
+    /**
+     * End the current phase and start the phase {@code name}.
+     */
+    public void phase(@NonNull String name) {
+        synchronized (mLock) {
+            endPhaseLocked();
+            mPhase = name;
+        }
+    }
+
+    private void endPhaseLocked() {
+        long now = SystemClock.elapsedRealtime();
+        mTimings.append(' ').append(mPhase).append('=').append(now - mPhaseStartMs).append("ms");
+        mPhaseStartMs = now;
+    }
+
+    private void finish() {
+        String msg;
+        synchronized (mLock) {
+            endPhaseLocked();
+            mPhase = "done";
+            msg = "ApnDbWarmUp: done in " + (SystemClock.elapsedRealtime() - mStartMs) + "ms"
+                    + mTimings + " waitedQueries=" + mWaitedQueries + " timedOutQueries="
+                    + mTimedOutQueries + " maxWait=" + mMaxWaitMs + "ms";
+        }
+        mDone.countDown();
+        Log.d(TAG, msg);
+        mLocalLog.log(msg);
+    }
+
+    private String getPhase() {
+        synchronized (mLock) {
+            return mPhase;
+        }
+    }
+
+    /**
+     * @return whether the warm-up was started and is not done yet.
+     */
+    public boolean isRunning() {
+        return mStarted && mDone.getCount() > 0;
+    }
+
+    /**
+     * Wait for the warm-up to be done before a query of the APNs. Must not be called with the
+     * carriers lock held, the warm-up needs it.
+     *
+     * @param timeoutMs how long to wait at most.
+     * @return {@code true} if the warm-up is done, {@code false} if the query reads the APNs
+     * committed before it.
+     */
+    public boolean awaitForQuery(long timeoutMs) {
+        if (!isRunning()) {
+            return true;
+        }
+        long start = SystemClock.elapsedRealtime();
+        boolean done;
+        try {
+            done = mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+        long waited = SystemClock.elapsedRealtime() - start;
+        synchronized (mLock) {
+            mWaitedQueries++;
+            if (!done) mTimedOutQueries++;
+            mMaxWaitMs = Math.max(mMaxWaitMs, waited);
+        }
+        if (!done) {
+            Log.w(TAG, "query served from the committed APNs after waiting " + waited
+                    + "ms, phase " + getPhase());
+        }
+        return done;
+    }
+
+    /**
+     * Dump the state of the warm-up.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("ApnDbWarmUp: phase=" + mPhase + " timings=[" + mTimings.toString().trim()
+                    + "] waitedQueries=" + mWaitedQueries + " timedOutQueries="
+                    + mTimedOutQueries + " maxWait=" + mMaxWaitMs + "ms");
+        }
+    }
+}
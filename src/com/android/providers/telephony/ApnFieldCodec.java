@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static android.provider.Telephony.Carriers.BEARER_BITMASK;
+import static android.provider.Telephony.Carriers.NETWORK_TYPE_BITMASK;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.telephony.TelephonyManager;
+import android.telephony.data.ApnSetting;
+import android.util.Log;
+
+/**
+ * Parses and converts the bitmask fields of an APN: the bearer, network type and infrastructure
+ * bitmasks.
+ *
+ * This runs for every APN row read from the xml and for every insert and update, so nothing here
+ * allocates. Lists such as {@code "1|2|14"} are parsed in place, and conversions between the
+ * bearer and the network type bitmasks look each byte of the bitmask up in a table built once
+ * from {@link #rilRadioTechnologyToNetworkTypeBitmask(int)}, instead of looping over every
+ * radio technology.
+ */
+public final class ApnFieldCodec {
+    private static final String TAG = "ApnFieldCodec";
+
+    /**
+     * Available radio technologies for GSM, UMTS and CDMA.
+     * Duplicates the constants from hardware/radio/include/ril.h
+     * This should only be used by agents working with the ril.  Others
+     * should use the equivalent TelephonyManager.NETWORK_TYPE_*
+     */
+    private static final int RIL_RADIO_TECHNOLOGY_UNKNOWN = 0;
+    private static final int RIL_RADIO_TECHNOLOGY_GPRS = 1;
+    private static final int RIL_RADIO_TECHNOLOGY_EDGE = 2;
+    private static final int RIL_RADIO_TECHNOLOGY_UMTS = 3;
+    private static final int RIL_RADIO_TECHNOLOGY_IS95A = 4;
+    private static final int RIL_RADIO_TECHNOLOGY_IS95B = 5;
+    private static final int RIL_RADIO_TECHNOLOGY_1xRTT = 6;
+    private static final int RIL_RADIO_TECHNOLOGY_EVDO_0 = 7;
+    private static final int RIL_RADIO_TECHNOLOGY_EVDO_A = 8;
+    private static final int RIL_RADIO_TECHNOLOGY_HSDPA = 9;
+    private static final int RIL_RADIO_TECHNOLOGY_HSUPA = 10;
+    private static final int RIL_RADIO_TECHNOLOGY_HSPA = 11;
+    private static final int RIL_RADIO_TECHNOLOGY_EVDO_B = 12;
+    private static final int RIL_RADIO_TECHNOLOGY_EHRPD = 13;
+    private static final int RIL_RADIO_TECHNOLOGY_LTE = 14;
+    private static final int RIL_RADIO_TECHNOLOGY_HSPAP = 15;
+
+    /**
+     * GSM radio technology only supports voice. It does not support data.
+     */
+    private static final int RIL_RADIO_TECHNOLOGY_GSM = 16;
+    private static final int RIL_RADIO_TECHNOLOGY_TD_SCDMA = 17;
+
+    /**
+     * IWLAN
+     */
+    private static final int RIL_RADIO_TECHNOLOGY_IWLAN = 18;
+
+    /**
+     * LTE_CA
+     */
+    private static final int RIL_RADIO_TECHNOLOGY_LTE_CA = 19;
+
+    /**
+     * NR(New Radio) 5G.
+     */
+    private static final int RIL_RADIO_TECHNOLOGY_NR = 20;
+
+    /**
+     * The number of the radio technologies.
+     */
+    private static final int NEXT_RIL_RADIO_TECHNOLOGY = 21;
+
+    // The network type bitmask of each radio technology.
+    private static final int[] RAT_TO_NETWORK_TYPE_BITMASK = new int[NEXT_RIL_RADIO_TECHNOLOGY];
+    // Indexed by (byte index << 8) | byte value of a bitmask, the converted bits of that byte.
+    private static final int[] BEARER_TO_NETWORK_TYPE = new int[4 * 256];
+    private static final int[] NETWORK_TYPE_TO_BEARER = new int[4 * 256];
+
+    static {
+        int[] bearerBitToNetworkType = new int[Integer.SIZE];
+        int[] networkTypeBitToBearer = new int[Integer.SIZE];
+        for (int rat = 0; rat < NEXT_RIL_RADIO_TECHNOLOGY; rat++) {
+            int networkTypeBitmask = networkTypeBitmaskOf(rat);
+            RAT_TO_NETWORK_TYPE_BITMASK[rat] = networkTypeBitmask;
+            int bearerBitmask = getBitmaskForTech(rat);
+            if (bearerBitmask == 0 || networkTypeBitmask == 0) {
+                continue;
+            }
+            for (int bit = 0; bit < Integer.SIZE; bit++) {
+                if ((bearerBitmask & (1 << bit)) != 0) {
+                    bearerBitToNetworkType[bit] |= networkTypeBitmask;
+                }
+                // A radio technology is in the bearer bitmask if any of its network types is.
+                if ((networkTypeBitmask & (1 << bit)) != 0) {
+                    networkTypeBitToBearer[bit] |= bearerBitmask;
+                }
+            }
+        }
+        fillByteTable(BEARER_TO_NETWORK_TYPE, bearerBitToNetworkType);
+        fillByteTable(NETWORK_TYPE_TO_BEARER, networkTypeBitToBearer);
+    }
+
+    private ApnFieldCodec() {}
+
+    private static void fillByteTable(int[] table, int[] bitValues) {
+        for (int index = 0; index < 4; index++) {
+            for (int value = 1; value < 256; value++) {
+                int lowestBit = Integer.numberOfTrailingZeros(value);
+                // Every value is its lowest bit plus a smaller value already in the table.
+                table[(index << 8) | value] = bitValues[index * 8 + lowestBit]
+                        | table[(index << 8) | (value & (value - 1))];
+            }
+        }
+    }
+
+    private static int lookUp(int[] table, int bitmask) {
+        return table[bitmask & 0xff]
+                | table[0x100 | ((bitmask >>> 8) & 0xff)]
+                | table[0x200 | ((bitmask >>> 16) & 0xff)]
+                | table[0x300 | (bitmask >>> 24)];
+    }
+
+    /**
+     * Parse a list of radio technologies, e.g. {@code "1|2|14"}, to a bitmask.
+     *
+     * @param list the list, separated by {@code '|'}.
+     * @return the bitmask with the bit of every technology in the list, or 0 if any entry is not
+     *         a number or is 0.
+     */
+    public static int parseBitmask(@NonNull String list) {
+        // Trailing separators are ignored, as String#split drops trailing empty entries.
+        int end = list.length();
+        while (end > 0 && list.charAt(end - 1) == '|') {
+            end--;
+        }
+        if (end == 0) {
+            return 0;
+        }
+
+        int bitmask = 0;
+        int start = 0;
+        while (start <= end) {
+            int separator = list.indexOf('|', start);
+            if (separator < 0 || separator > end) {
+                separator = end;
+            }
+            // Trim the entry the same way as String#trim.
+            int entryStart = start;
+            int entryEnd = separator;
+            while (entryStart < entryEnd && list.charAt(entryStart) <= ' ') {
+                entryStart++;
+            }
+            while (entryEnd > entryStart && list.charAt(entryEnd - 1) <= ' ') {
+                entryEnd--;
+            }
+            int tech;
+            try {
+                tech = Integer.parseInt(list, entryStart, entryEnd, 10);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            if (tech == 0) {
+                return 0;
+            }
+            bitmask |= getBitmaskForTech(tech);
+            start = separator + 1;
+        }
+        return bitmask;
+    }
+
+    /**
+     * Parse an infrastructure list, e.g. {@code "cellular|satellite"}, to a bitmask.
+     *
+     * @param list the list, separated by {@code '|'}. Entries are not case sensitive and unknown
+     *             entries are ignored.
+     * @return the infrastructure bitmask.
+     */
+    public static int parseInfrastructureBitmask(@NonNull String list) {
+        int bitmask = 0;
+        int start = 0;
+        int length = list.length();
+        while (start <= length) {
+            int separator = list.indexOf('|', start);
+            if (separator < 0) {
+                separator = length;
+            }
+            if (equalsIgnoreAsciiCase(list, start, separator, "cellular")) {
+                bitmask |= ApnSetting.INFRASTRUCTURE_CELLULAR;
+            } else if (equalsIgnoreAsciiCase(list, start, separator, "satellite")) {
+                bitmask |= ApnSetting.INFRASTRUCTURE_SATELLITE;
+            }
+            start = separator + 1;
+        }
+        return bitmask;
+    }
+
+    /**
+     * @return whether {@code s} from {@code start} to {@code end} lower cased is
+     *         {@code lowerCase}. Only ASCII letters are lower cased: no other character lower
+     *         cases to a single ASCII letter of the entries matched here.
+     */
+    private static boolean equalsIgnoreAsciiCase(String s, int start, int end,
+            String lowerCase) {
+        if (end - start != lowerCase.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length(); i++) {
+            char c = s.charAt(start + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the bearer bitmask bit of the RIL radio technology {@code radioTech}, 0 if it has
+     *         none.
+     */
+    public static int getBitmaskForTech(int radioTech) {
+        if (radioTech >= 1) {
+            return (1 << (radioTech - 1));
+        }
+        return 0;
+    }
+
+    /**
+     * Transform RIL radio technology value to Network
+     * type bitmask{@link android.telephony.TelephonyManager.NetworkTypeBitMask}.
+     *
+     * @param rat The RIL radio technology.
+     * @return The network type
+     * bitmask{@link android.telephony.TelephonyManager.NetworkTypeBitMask}.
+     */
+    public static int rilRadioTechnologyToNetworkTypeBitmask(int rat) {
+        if (rat < 0 || rat >= NEXT_RIL_RADIO_TECHNOLOGY) {
+            return (int) TelephonyManager.NETWORK_TYPE_BITMASK_UNKNOWN;
+        }
+        return RAT_TO_NETWORK_TYPE_BITMASK[rat];
+    }
+
+    private static int networkTypeBitmaskOf(int rat) {
+        switch (rat) {
+            case RIL_RADIO_TECHNOLOGY_GPRS:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_GPRS;
+            case RIL_RADIO_TECHNOLOGY_EDGE:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EDGE;
+            case RIL_RADIO_TECHNOLOGY_UMTS:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_UMTS;
+            case RIL_RADIO_TECHNOLOGY_HSDPA:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSDPA;
+            case RIL_RADIO_TECHNOLOGY_HSUPA:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSUPA;
+            case RIL_RADIO_TECHNOLOGY_HSPA:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSPA;
+            case RIL_RADIO_TECHNOLOGY_IS95A:
+            case RIL_RADIO_TECHNOLOGY_IS95B:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_CDMA;
+            case RIL_RADIO_TECHNOLOGY_1xRTT:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_1xRTT;
+            case RIL_RADIO_TECHNOLOGY_EVDO_0:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EVDO_0;
+            case RIL_RADIO_TECHNOLOGY_EVDO_A:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EVDO_A;
+            case RIL_RADIO_TECHNOLOGY_EVDO_B:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EVDO_B;
+            case RIL_RADIO_TECHNOLOGY_EHRPD:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EHRPD;
+            case RIL_RADIO_TECHNOLOGY_LTE:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_LTE;
+            case RIL_RADIO_TECHNOLOGY_HSPAP:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSPAP;
+            case RIL_RADIO_TECHNOLOGY_GSM:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_GSM;
+            case RIL_RADIO_TECHNOLOGY_TD_SCDMA:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_TD_SCDMA;
+            case RIL_RADIO_TECHNOLOGY_IWLAN:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_IWLAN;
+            case RIL_RADIO_TECHNOLOGY_LTE_CA:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_LTE_CA;
+            case RIL_RADIO_TECHNOLOGY_NR:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_NR;
+            case RIL_RADIO_TECHNOLOGY_UNKNOWN:
+            default:
+                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_UNKNOWN;
+        }
+    }
+
+    /**
+     * Convert network type bitmask to bearer bitmask.
+     *
+     * @param networkTypeBitmask The network type bitmask value
+     * @return The bearer bitmask value.
+     */
+    public static int convertNetworkTypeBitmaskToBearerBitmask(int networkTypeBitmask) {
+        return lookUp(NETWORK_TYPE_TO_BEARER, networkTypeBitmask);
+    }
+
+    /**
+     * Convert bearer bitmask to network type bitmask.
+     *
+     * @param bearerBitmask The bearer bitmask value.
+     * @return The network type bitmask value.
+     */
+    public static int convertBearerBitmaskToNetworkTypeBitmask(int bearerBitmask) {
+        return lookUp(BEARER_TO_NETWORK_TYPE, bearerBitmask);
+    }
+
+    /**
+     * Sync the bearer bitmask and network type bitmask when inserting and updating.
+     * Since bearerBitmask is deprecating, map the networkTypeBitmask to bearerBitmask if
+     * networkTypeBitmask was provided. But if networkTypeBitmask was not provided, map the
+     * bearerBitmask to networkTypeBitmask.
+     */
+    public static void syncBearerBitmaskAndNetworkTypeBitmask(@NonNull ContentValues values) {
+        if (values.containsKey(NETWORK_TYPE_BITMASK)) {
+            int convertedBitmask = convertNetworkTypeBitmaskToBearerBitmask(
+                    values.getAsInteger(NETWORK_TYPE_BITMASK));
+            if (values.containsKey(BEARER_BITMASK)
+                    && convertedBitmask != values.getAsInteger(BEARER_BITMASK)) {
+                Log.e(TAG, "Network type bitmask and bearer bitmask are not compatible.");
+            }
+            values.put(BEARER_BITMASK, convertedBitmask);
+        } else if (values.containsKey(BEARER_BITMASK)) {
+            values.put(NETWORK_TYPE_BITMASK, convertBearerBitmaskToNetworkTypeBitmask(
+                    values.getAsInteger(BEARER_BITMASK)));
+        }
+    }
+}
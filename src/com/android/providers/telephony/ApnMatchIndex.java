@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static android.provider.Telephony.Carriers.CARRIER_ID;
+import static android.provider.Telephony.Carriers.MVNO_MATCH_DATA;
+import static android.provider.Telephony.Carriers.MVNO_TYPE;
+import static android.provider.Telephony.Carriers.NUMERIC;
+import static android.provider.Telephony.Carriers._ID;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory index of the carriers table keyed by the columns used to match APNs against a SIM:
+ * numeric, carrier_id, mvno_type and mvno_match_data.
+ *
+ * The index only holds those four columns plus the row id. It is built lazily from the
+ * database on first use, updated in place for single row inserts and dropped whenever a write
+ * touches rows the provider can't identify cheaply (e.g. updates and deletes with a where
+ * clause). Every change bumps the generation so callers can tell whether a result computed
+ * from the index is still current.
+ */
+public class ApnMatchIndex {
+    private static final String TAG = "ApnMatchIndex";
+    private static final boolean DBG = false;
+    private static final String CARRIERS_TABLE = "carriers";
+
+    private static final String[] INDEX_PROJECTION =
+            {_ID, NUMERIC, CARRIER_ID, MVNO_TYPE, MVNO_MATCH_DATA};
+
+    /** A single carriers row as seen by the index. */
+    public static final class Entry {
+        public final long id;
+        @NonNull public final String numeric;
+        public final int carrierId;
+        @NonNull public final String mvnoType;
+        @NonNull public final String mvnoMatchData;
+
+        Entry(long id, String numeric, int carrierId, String mvnoType, String mvnoMatchData) {
+            this.id = id;
+            this.numeric = numeric == null ? "" : numeric;
+            this.carrierId = carrierId;
+            this.mvnoType = mvnoType == null ? "" : mvnoType;
+            this.mvnoMatchData = mvnoMatchData == null ? "" : mvnoMatchData;
+        }
+
+        /** @return {@code true} if this row only matches on MCC/MNC, i.e. it is an MNO APN. */
+        public boolean isMno(@NonNull String mccmnc) {
+            return !numeric.isEmpty() && numeric.equals(mccmnc) && mvnoType.isEmpty();
+        }
+
+        /** @return {@code true} if this row carries the given (known) carrier id. */
+        public boolean hasCarrierId(int simCarrierId) {
+            return simCarrierId != TelephonyManager.UNKNOWN_CARRIER_ID
+                    && carrierId == simCarrierId;
+        }
+
+        @Override
+        public String toString() {
+            return "{_id=" + id + " numeric=" + numeric + " carrier_id=" + carrierId
+                    + " mvno_type=" + mvnoType + " mvno_match_data=" + mvnoMatchData + "}";
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private boolean mLoaded;
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private final LongSparseArray<Entry> mById = new LongSparseArray<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, List<Entry>> mByNumeric = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final SparseArray<List<Entry>> mByCarrierId = new SparseArray<>();
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private int mRebuildCount;
+    @GuardedBy("mLock")
+    private int mIncrementalUpdateCount;
+    @GuardedBy("mLock")
+    private int mLookupCount;
+
+    /**
+     * Get every row whose numeric equals {@code mccmnc} or whose carrier id equals a known
+     * {@code carrierId}. Loads the index from {@code db} if it is not loaded yet.
+     *
+     * @param db the database to load from if needed.
+     * @param mccmnc the SIM operator numeric.
+     * @param carrierId the SIM specific carrier id.
+     * @return the matching entries; never {@code null}.
+     */
+    @NonNull
+    public List<Entry> getCandidates(@NonNull SQLiteDatabase db, String mccmnc, int carrierId) {
+        synchronized (mLock) {
+            ensureLoadedLocked(db);
+            mLookupCount++;
+            List<Entry> result = new ArrayList<>();
+            List<Entry> byNumeric = TextUtils.isEmpty(mccmnc) ? null : mByNumeric.get(mccmnc);
+            if (byNumeric != null) {
+                result.addAll(byNumeric);
+            }
+            // Rows with an unknown carrier id never match on carrier id alone.
+            List<Entry> byCarrierId = carrierId == TelephonyManager.UNKNOWN_CARRIER_ID
+                    ? null : mByCarrierId.get(carrierId);
+            if (byCarrierId != null) {
+                for (Entry entry : byCarrierId) {
+                    // Rows matching both keys are already in the list.
+                    if (byNumeric == null || !entry.numeric.equals(mccmnc)) {
+                        result.add(entry);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Get the entry for a row id, loading the index from {@code db} if needed.
+     *
+     * @return the entry or {@code null} if the row is not in the carriers table.
+     */
+    public Entry getEntry(@NonNull SQLiteDatabase db, long id) {
+        synchronized (mLock) {
+            ensureLoadedLocked(db);
+            return mById.get(id);
+        }
+    }
+
+    /**
+     * Record a row that has just been inserted. If the index has not been loaded yet this is a
+     * no-op since the row will be picked up by the next load.
+     */
+    public void onRowInserted(long id, @NonNull ContentValues values) {
+        synchronized (mLock) {
+            mGeneration++;
+            if (!mLoaded) return;
+            Integer carrierId = values.getAsInteger(CARRIER_ID);
+            addLocked(new Entry(id, values.getAsString(NUMERIC),
+                    carrierId == null ? TelephonyManager.UNKNOWN_CARRIER_ID : carrierId,
+                    values.getAsString(MVNO_TYPE), values.getAsString(MVNO_MATCH_DATA)));
+            mIncrementalUpdateCount++;
+        }
+    }
+
+    /**
+     * Re-read a single row after it has been updated or deleted through its id.
+     */
+    public void onRowChanged(@NonNull SQLiteDatabase db, long id) {
+        synchronized (mLock) {
+            mGeneration++;
+            if (!mLoaded) return;
+            removeLocked(id);
+            try (Cursor c = db.query(CARRIERS_TABLE, INDEX_PROJECTION,
+                    _ID + "=?", new String[] {String.valueOf(id)}, null, null, null)) {
+                if (c != null && c.moveToFirst()) {
+                    addLocked(readEntry(c));
+                }
+            }
+            mIncrementalUpdateCount++;
+        }
+    }
+
+    /**
+     * Drop the index. It will be rebuilt from the database on the next lookup.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            if (!mLoaded) return;
+            if (DBG) Log.d(TAG, "invalidate: generation=" + mGeneration);
+            clearLocked();
+        }
+    }
+
+    /** @return the generation of the index, bumped on every change. */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    @VisibleForTesting
+    public boolean isLoaded() {
+        synchronized (mLock) {
+            return mLoaded;
+        }
+    }
+
+    /**
+     * Dump the index statistics.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("ApnMatchIndex: loaded=" + mLoaded + " generation=" + mGeneration
+                    + " rows=" + mById.size() + " numerics=" + mByNumeric.size()
+                    + " carrierIds=" + mByCarrierId.size());
+            pw.increaseIndent();
+            pw.println("rebuilds=" + mRebuildCount + " incrementalUpdates="
+                    + mIncrementalUpdateCount + " lookups=" + mLookupCount);
+            pw.decreaseIndent();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void ensureLoadedLocked(@NonNull SQLiteDatabase db) {
+        if (mLoaded) return;
+        clearLocked();
+        try (Cursor c = db.query(CARRIERS_TABLE, INDEX_PROJECTION, null, null, null, null,
+                null)) {
+            while (c != null && c.moveToNext()) {
+                addLocked(readEntry(c));
+            }
+        }
+        mLoaded = true;
+        mRebuildCount++;
+        if (DBG) Log.d(TAG, "rebuilt index with " + mById.size() + " rows");
+    }
+
+    private static Entry readEntry(Cursor c) {
+        // Columns are in INDEX_PROJECTION order.
+        return new Entry(c.getLong(0), c.getString(1),
+                c.isNull(2) ? TelephonyManager.UNKNOWN_CARRIER_ID : c.getInt(2),
+                c.getString(3), c.getString(4));
+    }
+
+    @GuardedBy("mLock")
+    private void addLocked(@NonNull Entry entry) {
+        removeLocked(entry.id);
+        mById.put(entry.id, entry);
+        if (!entry.numeric.isEmpty()) {
+            List<Entry> list = mByNumeric.get(entry.numeric);
+            if (list == null) {
+                list = new ArrayList<>();
+                mByNumeric.put(entry.numeric, list);
+            }
+            list.add(entry);
+        }
+        List<Entry> list = mByCarrierId.get(entry.carrierId);
+        if (list == null) {
+            list = new ArrayList<>();
+            mByCarrierId.put(entry.carrierId, list);
+        }
+        list.add(entry);
+    }
+
+    @GuardedBy("mLock")
+    private void removeLocked(long id) {
+        Entry old = mById.get(id);
+        if (old == null) return;
+        mById.remove(id);
+        List<Entry> list = mByNumeric.get(old.numeric);
+        if (list != null) {
+            list.remove(old);
+            if (list.isEmpty()) mByNumeric.remove(old.numeric);
+        }
+        list = mByCarrierId.get(old.carrierId);
+        if (list != null) {
+            list.remove(old);
+            if (list.isEmpty()) mByCarrierId.remove(old.carrierId);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void clearLocked() {
+        mById.clear();
+        mByNumeric.clear();
+        mByCarrierId.clear();
+        mLoaded = false;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.IndentingPrintWriter;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches the results of the APN queries the phone process makes over and over, e.g. the APNs
+ * matching a subscription, the preferred APN and the current APNs.
+ *
+ * Results are keyed by the URI match code, the subscription and the query arguments, and are
+ * stamped with the generation of the carriers table they were read from. Results that depend on
+ * the SIM are also stamped with the SIM generation, which the provider bumps whenever the SIM or
+ * its carrier identity changes. A result is only returned while both stamps are current, so
+ * writes and SIM changes invalidate exactly the results they can affect, without the writers
+ * having to know what is cached.
+ */
+public class ApnQueryCache {
+    /** Results with more rows than this are not cached. */
+    @VisibleForTesting
+    public static final int MAX_ROWS = 64;
+    private static final int MAX_ENTRIES = 32;
+
+    private static final class Entry {
+        final long carriersGeneration;
+        // NO_SIM_GENERATION if the result doesn't depend on the SIM.
+        final long simGeneration;
+        final String[] columnNames;
+        final List<Object[]> rows;
+
+        Entry(long carriersGeneration, long simGeneration, String[] columnNames,
+                List<Object[]> rows) {
+            this.carriersGeneration = carriersGeneration;
+            this.simGeneration = simGeneration;
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+    }
+
+    private static final long NO_SIM_GENERATION = -1;
+
+    private final LruCache<String, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mSimGeneration;
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private long mHitCount;
+    @GuardedBy("mLock")
+    private long mMissCount;
+    @GuardedBy("mLock")
+    private long mStaleCount;
+    @GuardedBy("mLock")
+    private long mTooLargeCount;
+
+    /**
+     * Build the key of a query.
+     *
+     * @param match the URI match code.
+     * @param subId the subscription the query was resolved to.
+     * @param extra anything else the result depends on, e.g. the preferred APN id.
+     */
+    @NonNull
+    public static String key(int match, int subId, @Nullable String[] projection,
+            @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sort,
+            long extra) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(match).append('\0').append(subId).append('\0').append(extra);
+        appendAll(sb, projection);
+        append(sb, selection);
+        appendAll(sb, selectionArgs);
+        append(sb, sort);
+        return sb.toString();
+    }
+
+    private static void appendAll(StringBuilder sb, String[] values) {
+        sb.append('\0').append(values == null ? -1 : values.length);
+        if (values != null) {
+            for (String value : values) {
+                append(sb, value);
+            }
+        }
+    }
+
+    private static void append(StringBuilder sb, String value) {
+        // Length prefixed so no two different queries give the same key.
+        sb.append('\0').append(value == null ? -1 : value.length()).append(':');
+        if (value != null) {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * @return the current SIM generation. Read it before reading the SIM and pass it to
+     * {@link #put} so a SIM change that races with the query invalidates its result.
+     */
+    public long getSimGeneration() {
+        synchronized (mLock) {
+            return mSimGeneration;
+        }
+    }
+
+    /**
+     * Invalidate every result that depends on the SIM.
+     */
+    public void onSimChanged() {
+        synchronized (mLock) {
+            mSimGeneration++;
+        }
+    }
+
+    /**
+     * Look a query up.
+     *
+     * @param key the key from {@link #key}.
+     * @param carriersGeneration the current generation of the carriers table.
+     * @return a new cursor over the cached result, or {@code null} if there is no current one.
+     */
+    @Nullable
+    public Cursor get(@NonNull String key, long carriersGeneration) {
+        Entry entry = mEntries.get(key);
+        synchronized (mLock) {
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            if (entry.carriersGeneration != carriersGeneration
+                    || (entry.simGeneration != NO_SIM_GENERATION
+                            && entry.simGeneration != mSimGeneration)) {
+                mStaleCount++;
+                mMissCount++;
+                mEntries.remove(key);
+                return null;
+            }
+            mHitCount++;
+        }
+        return newCursor(entry);
+    }
+
+    /**
+     * Cache the result of a query.
+     *
+     * @param key the key from {@link #key}.
+     * @param carriersGeneration the generation of the carriers table the result was read from.
+     * @param simGeneration the SIM generation read before the SIM, or {@code null} if the result
+     *                      doesn't depend on the SIM.
+     * @param cursor the result; consumed and closed if it is cached.
+     * @return the cursor to give to the caller in place of {@code cursor}.
+     */
+    @Nullable
+    public Cursor put(@NonNull String key, long carriersGeneration, @Nullable Long simGeneration,
+            @Nullable Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        if (cursor.getCount() > MAX_ROWS) {
+            synchronized (mLock) {
+                mTooLargeCount++;
+            }
+            return cursor;
+        }
+
+        String[] columnNames = cursor.getColumnNames();
+        List<Object[]> rows = new ArrayList<>(cursor.getCount());
+        try {
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                rows.add(readRow(cursor, columnNames.length));
+            }
+        } finally {
+            cursor.close();
+        }
+        Entry entry = new Entry(carriersGeneration,
+                simGeneration == null ? NO_SIM_GENERATION : simGeneration, columnNames, rows);
+        mEntries.put(key, entry);
+        return newCursor(entry);
+    }
+
+    private static Object[] readRow(Cursor cursor, int columnCount) {
+        Object[] row = new Object[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            // Keep the column types so callers see the same values as from the database.
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static Cursor newCursor(Entry entry) {
+        MatrixCursor cursor = new MatrixCursor(entry.columnNames, entry.rows.size());
+        for (Object[] row : entry.rows) {
+            // addRow copies the values, the cached row is never handed out.
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Dump the cache statistics.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            long lookups = mHitCount + mMissCount;
+            pw.println("ApnQueryCache: entries=" + mEntries.size() + " hits=" + mHitCount
+                    + " misses=" + mMissCount + " stale=" + mStaleCount
+                    + " hitRate=" + (lookups == 0 ? 0 : mHitCount * 100 / lookups) + "%"
+                    + " tooLarge=" + mTooLargeCount + " evicted=" + mEntries.evictionCount()
+                    + " simGeneration=" + mSimGeneration);
+        }
+    }
+}
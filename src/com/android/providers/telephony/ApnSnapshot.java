@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentValues;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled copy of the APN entries parsed from the APN xml files, so the xml only has to be
+ * parsed again when one of the sources changes.
+ *
+ * The snapshot is a flat file: a header with the fingerprint of the xml sources it was built
+ * from, a table of the column names, then every row as a list of (column, type, value). It is
+ * memory mapped on load. The provider already links the protos of the carrier id table, but a
+ * proto message would need a field for every carriers column and a change with each new column;
+ * the flat format stores whatever columns the parser returned.
+ */
+public class ApnSnapshot {
+    private static final String TAG = "ApnSnapshot";
+
+    @VisibleForTesting
+    public static final String FILE_NAME = "apn_snapshot";
+
+    private static final int MAGIC = 0x41504e53; // "APNS"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+
+    private final AtomicFile mFile;
+
+    /**
+     * @param dir the directory holding the snapshot file.
+     */
+    public ApnSnapshot(@NonNull File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Load the rows of the snapshot.
+     *
+     * @param fingerprint the fingerprint of the current xml sources.
+     * @return the rows, or {@code null} if there is no snapshot, it was built from other sources
+     * or it can't be read.
+     */
+    @Nullable
+    public List<ContentValues> load(@NonNull String fingerprint) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try (FileInputStream fis = mFile.openRead();
+                FileChannel channel = fis.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                Log.w(TAG, "load: unknown snapshot format");
+                return null;
+            }
+            if (!fingerprint.equals(readString(buffer))) {
+                Log.d(TAG, "load: xml sources changed");
+                return null;
+            }
+
+            String[] columns = new String[buffer.getInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = readString(buffer);
+            }
+
+            int rowCount = buffer.getInt();
+            List<ContentValues> rows = new ArrayList<>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                int valueCount = buffer.getShort();
+                ContentValues row = new ContentValues(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    String column = columns[buffer.getShort()];
+                    byte type = buffer.get();
+                    switch (type) {
+                        case TYPE_NULL:
+                            row.putNull(column);
+                            break;
+                        case TYPE_STRING:
+                            row.put(column, readString(buffer));
+                            break;
+                        case TYPE_INTEGER:
+                            row.put(column, buffer.getInt());
+                            break;
+                        case TYPE_LONG:
+                            row.put(column, buffer.getLong());
+                            break;
+                        case TYPE_BOOLEAN:
+                            row.put(column, buffer.get() != 0);
+                            break;
+                        default:
+                            Log.w(TAG, "load: unknown value type " + type);
+                            return null;
+                    }
+                }
+                rows.add(row);
+            }
+            return rows;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "load: failed to read snapshot " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Replace the snapshot with {@code rows}.
+     *
+     * @param fingerprint the fingerprint of the xml sources the rows were parsed from.
+     * @param rows the rows; values must be strings, integers, longs, booleans or null.
+     * @return {@code true} if the snapshot was written.
+     */
+    public boolean save(@NonNull String fingerprint, @NonNull List<ContentValues> rows) {
+        // Column names are shared by all rows, write them once.
+        ArrayMap<String, Integer> columns = new ArrayMap<>();
+        for (ContentValues row : rows) {
+            for (String column : row.keySet()) {
+                if (!columns.containsKey(column)) {
+                    columns.put(column, columns.size());
+                }
+            }
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, fingerprint);
+            out.writeInt(columns.size());
+            for (int i = 0; i < columns.size(); i++) {
+                writeString(out, columns.keyAt(i));
+            }
+            out.writeInt(rows.size());
+            for (ContentValues row : rows) {
+                out.writeShort(row.size());
+                for (Map.Entry<String, Object> value : row.valueSet()) {
+                    out.writeShort(columns.get(value.getKey()));
+                    writeValue(out, value.getValue());
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            Log.e(TAG, "save: failed to write snapshot " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Delete the snapshot.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
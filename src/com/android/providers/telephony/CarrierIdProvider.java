@@ -30,6 +30,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.FileUtils;
 import android.os.SystemProperties;
@@ -37,6 +38,7 @@ import android.provider.Telephony.CarrierId;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -45,9 +47,11 @@ import com.android.providers.telephony.nano.CarrierIdProto;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -157,6 +161,8 @@ public class CarrierIdProvider extends ContentProvider {
 
     private CarrierIdDatabaseHelper mDbHelper;
 
+    private final ProviderMetrics mMetrics = new ProviderMetrics(TAG);
+
     /**
      * Stores carrier id information for the current active subscriptions.
      * Key is the active subId and entryValue is carrier id(int), mno carrier id (int) and
@@ -214,6 +220,20 @@ public class CarrierIdProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projectionIn, String selection,
                         String[] selectionArgs, String sortOrder) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Cursor c = queryInternal(uri, projectionIn, selection, selectionArgs, sortOrder);
+            rows = ProviderMetrics.count(c);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY, s_urlMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projectionIn, String selection,
+                        String[] selectionArgs, String sortOrder) {
         if (VDBG) {
             Log.d(TAG, "query:"
                     + " uri=" + uri
@@ -243,6 +263,19 @@ public class CarrierIdProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Uri insertUri = insertInternal(uri, values);
+            rows = insertUri != null ? 1 : 0;
+            return insertUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, s_urlMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Uri insertInternal(Uri uri, ContentValues values) {
         checkWritePermission();
         final int match = s_urlMatcher.match(uri);
         switch (match) {
@@ -264,6 +297,18 @@ public class CarrierIdProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = deleteInternal(uri, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, s_urlMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int deleteInternal(Uri uri, String selection, String[] selectionArgs) {
         checkWritePermission();
         if (VDBG) {
             Log.d(TAG, "delete:"
@@ -290,6 +335,19 @@ public class CarrierIdProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = updateInternal(uri, values, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_UPDATE, s_urlMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int updateInternal(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         checkWritePermission();
         if (VDBG) {
             Log.d(TAG, "update:"
@@ -317,6 +375,19 @@ public class CarrierIdProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ProviderMetrics.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.call(getContext());
+        }
+        return super.call(method, arg, extras);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(new IndentingPrintWriter(writer, "  "));
+    }
+
     /**
      * These methods can be overridden in a subclass for testing CarrierIdProvider using an
      * in-memory database.
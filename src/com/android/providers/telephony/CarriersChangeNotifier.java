@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.net.Uri;
+import android.os.Handler;
+import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
+import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Coalesces the change notifications of the carriers table and tells observers which rows and
+ * subscriptions changed.
+ *
+ * Changes are collected for a short window, or until the end of the batch being applied, and
+ * then sent as a single notification of the carriers URI. The notified URI carries the ids of
+ * the changed rows and the changed subscriptions as query parameters, e.g.
+ * {@code content://telephony/carriers?row_ids=3,4&sub_ids=1}. A parameter is left out when it
+ * is not known for every change, in which case observers must assume anything changed. Query
+ * parameters don't take part in observer matching, so observers of the carriers URI are notified
+ * exactly as before.
+ */
+public class CarriersChangeNotifier {
+    /** Comma separated ids of the changed rows. */
+    public static final String QUERY_PARAMETER_ROW_IDS = "row_ids";
+    /** Comma separated ids of the subscriptions whose APNs changed. */
+    public static final String QUERY_PARAMETER_SUB_IDS = "sub_ids";
+
+    /** Past this many rows a notification no longer lists them. */
+    @VisibleForTesting
+    public static final int MAX_ROW_IDS = 32;
+
+    /** Sends a notification. */
+    public interface Sender {
+        void send(@NonNull Uri uri);
+    }
+
+    private final Uri mBaseUri;
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final Runnable mFlushRunnable = this::flush;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mWindowMs;
+    // Changes recorded since the last notification.
+    @GuardedBy("mLock")
+    private int mPendingCount;
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+    // Null once a change with an unknown row or subscription is pending.
+    @GuardedBy("mLock")
+    private ArraySet<Long> mRowIds = new ArraySet<>();
+    @GuardedBy("mLock")
+    private ArraySet<Integer> mSubIds = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private long mChangeCount;
+    @GuardedBy("mLock")
+    private long mSentCount;
+    @GuardedBy("mLock")
+    private long mCoalescedCount;
+    @GuardedBy("mLock")
+    private long mSentWithRowsCount;
+
+    /**
+     * @param baseUri the URI notified.
+     * @param handler runs the notification at the end of the window.
+     * @param windowMs how long changes are collected before notifying, 0 to notify right away.
+     * @param sender sends the notifications.
+     */
+    public CarriersChangeNotifier(@NonNull Uri baseUri, @NonNull Handler handler, long windowMs,
+            @NonNull Sender sender) {
+        mBaseUri = baseUri;
+        mHandler = handler;
+        mWindowMs = windowMs;
+        mSender = sender;
+    }
+
+    /**
+     * Change how long changes are collected before notifying, 0 to notify right away.
+     */
+    @VisibleForTesting
+    public void setWindowMs(long windowMs) {
+        synchronized (mLock) {
+            mWindowMs = windowMs;
+        }
+    }
+
+    /**
+     * Record a change and notify at the end of the window.
+     *
+     * @param rowId the changed row, or -1 if not known.
+     * @param subId the changed subscription, or
+     *              {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if not known.
+     */
+    public void onChange(long rowId, int subId) {
+        boolean flushNow;
+        synchronized (mLock) {
+            recordLocked(rowId, subId);
+            flushNow = mWindowMs <= 0;
+            if (!flushNow && !mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mWindowMs);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Record a change without notifying. The caller must call {@link #flush()}, e.g. at the end
+     * of a transaction.
+     */
+    public void onChangeDeferred(long rowId, int subId) {
+        synchronized (mLock) {
+            recordLocked(rowId, subId);
+        }
+    }
+
+    /**
+     * Send the pending changes, if any, as one notification.
+     */
+    public void flush() {
+        Uri uri;
+        synchronized (mLock) {
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+            }
+            if (mPendingCount == 0) {
+                return;
+            }
+            Uri.Builder builder = mBaseUri.buildUpon();
+            if (mRowIds != null && !mRowIds.isEmpty()) {
+                builder.appendQueryParameter(QUERY_PARAMETER_ROW_IDS, join(mRowIds.toArray()));
+                mSentWithRowsCount++;
+            }
+            if (mSubIds != null && !mSubIds.isEmpty()) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SUB_IDS, join(mSubIds.toArray()));
+            }
+            uri = builder.build();
+            mCoalescedCount += mPendingCount - 1;
+            mPendingCount = 0;
+            mRowIds = new ArraySet<>();
+            mSubIds = new ArraySet<>();
+            mSentCount++;
+        }
+        mSender.send(uri);
+    }
+
+    @GuardedBy("mLock")
+    private void recordLocked(long rowId, int subId) {
+        mChangeCount++;
+        mPendingCount++;
+        if (mRowIds != null) {
+            if (rowId < 0 || mRowIds.size() >= MAX_ROW_IDS) {
+                mRowIds = null;
+            } else {
+                mRowIds.add(rowId);
+            }
+        }
+        if (mSubIds != null) {
+            if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+                mSubIds = null;
+            } else {
+                mSubIds.add(subId);
+            }
+        }
+    }
+
+    private static String join(Object[] ids) {
+        Arrays.sort(ids);
+        return TextUtils.join(",", ids);
+    }
+
+    /**
+     * Dump the notification counters.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("CarriersChangeNotifier: windowMs=" + mWindowMs + " changes="
+                    + mChangeCount + " sent=" + mSentCount + " coalesced=" + mCoalescedCount
+                    + " sentWithRows=" + mSentWithRowsCount + " pending=" + mPendingCount);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * A fixed-size ring of diagnostic events, the structured counterpart of {@link
+ * android.util.LocalLog}.
+ *
+ * An event is a constant {@link Event} plus a sub id, a row id, a value and an optional detail
+ * object, all kept as they are passed. Nothing is formatted until the buffer is dumped, so logging
+ * an event allocates nothing. A detail object is only turned into a string at dump time, so it
+ * must be immutable, or at least not change in a way that matters, once logged.
+ *
+ * Events are also written to logcat when the tag is loggable at debug level, so the buffer is
+ * meant for frequent events. Rare lifecycle events go to a {@link android.util.LocalLog} and are
+ * always written to logcat.
+ */
+public class EventBuffer {
+    /** What happened. Events are meant to be constants. */
+    public static final class Event {
+        private final String mName;
+        @Nullable
+        private final String mRowLabel;
+        @Nullable
+        private final String mValueLabel;
+
+        /**
+         * @param name the name of the event.
+         * @param rowLabel how to print the row id, or {@code null} if the event has none.
+         * @param valueLabel how to print the value, or {@code null} if the event has none.
+         */
+        public Event(@NonNull String name, @Nullable String rowLabel,
+                @Nullable String valueLabel) {
+            mName = name;
+            mRowLabel = rowLabel;
+            mValueLabel = valueLabel;
+        }
+
+        /**
+         * @param name the name of the event, which has no row id nor value.
+         */
+        public Event(@NonNull String name) {
+            this(name, null, null);
+        }
+    }
+
+    private final String mTag;
+    private final int mCapacity;
+
+    @GuardedBy("this")
+    private final Event[] mEvents;
+    @GuardedBy("this")
+    private final long[] mTimesMs;
+    @GuardedBy("this")
+    private final int[] mSubIds;
+    @GuardedBy("this")
+    private final long[] mRowIds;
+    @GuardedBy("this")
+    private final long[] mValues;
+    @GuardedBy("this")
+    private final Object[] mDetails;
+    // The slot the next event goes to.
+    @GuardedBy("this")
+    private int mNext;
+    @GuardedBy("this")
+    private int mCount;
+    // The number of events overwritten by newer ones.
+    @GuardedBy("this")
+    private long mDropped;
+
+    /**
+     * @param capacity the number of events kept.
+     * @param tag the logcat tag.
+     */
+    public EventBuffer(int capacity, @NonNull String tag) {
+        mTag = tag;
+        mCapacity = capacity;
+        mEvents = new Event[capacity];
+        mTimesMs = new long[capacity];
+        mSubIds = new int[capacity];
+        mRowIds = new long[capacity];
+        mValues = new long[capacity];
+        mDetails = new Object[capacity];
+    }
+
+    /**
+     * Log an event without sub id, row id nor value.
+     */
+    public void log(@NonNull Event event) {
+        log(event, SubscriptionManager.INVALID_SUBSCRIPTION_ID, 0, 0, null);
+    }
+
+    /**
+     * Log an event with only a detail.
+     */
+    public void log(@NonNull Event event, @Nullable Object detail) {
+        log(event, SubscriptionManager.INVALID_SUBSCRIPTION_ID, 0, 0, detail);
+    }
+
+    /**
+     * Log an event.
+     *
+     * @param subId the subscription, or {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     * @param rowId printed if the event has a row label.
+     * @param value printed if the event has a value label.
+     */
+    public void log(@NonNull Event event, int subId, long rowId, long value) {
+        log(event, subId, rowId, value, null);
+    }
+
+    /**
+     * Log an event.
+     *
+     * @param subId the subscription, or {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     * @param rowId printed if the event has a row label.
+     * @param value printed if the event has a value label.
+     * @param detail formatted with {@link String#valueOf(Object)} at dump time, can be null.
+     */
+    public void log(@NonNull Event event, int subId, long rowId, long value,
+            @Nullable Object detail) {
+        long nowMs = System.currentTimeMillis();
+        synchronized (this) {
+            int i = mNext;
+            mEvents[i] = event;
+            mTimesMs[i] = nowMs;
+            mSubIds[i] = subId;
+            mRowIds[i] = rowId;
+            mValues[i] = value;
+            mDetails[i] = detail;
+            mNext = (i + 1) % mCapacity;
+            if (mCount < mCapacity) {
+                mCount++;
+            } else {
+                mDropped++;
+            }
+        }
+        if (Log.isLoggable(mTag, Log.DEBUG)) {
+            Log.d(mTag, format(new StringBuilder(), event, subId, rowId, value, detail)
+                    .toString());
+        }
+    }
+
+    private static StringBuilder format(StringBuilder sb, Event event, int subId, long rowId,
+            long value, Object detail) {
+        sb.append(event.mName);
+        if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            sb.append(" subId=").append(subId);
+        }
+        if (event.mRowLabel != null) {
+            sb.append(' ').append(event.mRowLabel).append('=').append(rowId);
+        }
+        if (event.mValueLabel != null) {
+            sb.append(' ').append(event.mValueLabel).append('=').append(value);
+        }
+        if (detail != null) {
+            sb.append(' ').append(detail);
+        }
+        return sb;
+    }
+
+    /**
+     * @return the number of events kept.
+     */
+    @VisibleForTesting
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Dump the events, oldest first, in the format of {@link android.util.LocalLog}.
+     */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        if (mDropped > 0) {
+            pw.println("(" + mDropped + " older events dropped)");
+        }
+        StringBuilder sb = new StringBuilder();
+        ZoneId zone = ZoneId.systemDefault();
+        int start = (mNext - mCount + mCapacity) % mCapacity;
+        for (int n = 0; n < mCount; n++) {
+            int i = (start + n) % mCapacity;
+            sb.setLength(0);
+            sb.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(mTimesMs[i]), zone))
+                    .append(" - ");
+            String line;
+            try {
+                line = format(sb, mEvents[i], mSubIds[i], mRowIds[i], mValues[i], mDetails[i])
+                        .toString();
+            } catch (Exception e) {
+                // A detail that can't be formatted must not end the dump.
+                line = sb.append(" [").append(e).append(']').toString();
+            }
+            pw.println(line);
+        }
+    }
+}
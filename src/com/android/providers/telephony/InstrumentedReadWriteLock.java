@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A reentrant read/write lock that records how often and for how long callers had to wait for
+ * it, so lock contention in the providers shows up in dumpsys.
+ *
+ * Usage follows the usual lock idiom:
+ * <pre>
+ *     mLock.lockRead();
+ *     try {
+ *         ...
+ *     } finally {
+ *         mLock.unlockRead();
+ *     }
+ * </pre>
+ * A thread holding the write lock may also take the read lock, but not the other way around.
+ */
+public class InstrumentedReadWriteLock {
+    private final String mName;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private final Stats mReadStats = new Stats();
+    private final Stats mWriteStats = new Stats();
+    // Bumped each time a thread gives up its outermost hold of the write lock.
+    private final AtomicLong mWriteGeneration = new AtomicLong();
+
+    /**
+     * @param name the name of the lock, used in dumpsys.
+     */
+    public InstrumentedReadWriteLock(@NonNull String name) {
+        mName = name;
+    }
+
+    /** Acquire the shared read lock. */
+    public void lockRead() {
+        acquire(mLock.readLock(), mReadStats);
+    }
+
+    /** Release the shared read lock. */
+    public void unlockRead() {
+        mLock.readLock().unlock();
+    }
+
+    /** Acquire the exclusive write lock. */
+    public void lockWrite() {
+        acquire(mLock.writeLock(), mWriteStats);
+    }
+
+    /** Release the exclusive write lock. */
+    public void unlockWrite() {
+        if (mLock.getWriteHoldCount() == 1) {
+            mWriteGeneration.incrementAndGet();
+        }
+        mLock.writeLock().unlock();
+    }
+
+    /**
+     * @return how many times the write lock was released. The value read while holding the read
+     * lock identifies the state of the guarded data: it changes after any write to it.
+     */
+    public long getWriteGeneration() {
+        return mWriteGeneration.get();
+    }
+
+    /** @return {@code true} if the current thread holds the write lock. */
+    public boolean isWriteLockedByCurrentThread() {
+        return mLock.isWriteLockedByCurrentThread();
+    }
+
+    private static void acquire(Lock lock, Stats stats) {
+        stats.acquired.incrementAndGet();
+        if (lock.tryLock()) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        lock.lock();
+        long waitedNanos = SystemClock.elapsedRealtimeNanos() - start;
+        stats.contended.incrementAndGet();
+        stats.totalWaitNanos.addAndGet(waitedNanos);
+        stats.maxWaitNanos.accumulateAndGet(waitedNanos, Math::max);
+    }
+
+    /**
+     * Dump the lock statistics.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println(mName + " lock: readers=" + mLock.getReadLockCount()
+                + " writeLocked=" + mLock.isWriteLocked()
+                + " queued=" + mLock.getQueueLength()
+                + " writeGeneration=" + mWriteGeneration.get());
+        pw.increaseIndent();
+        mReadStats.dump("read", pw);
+        mWriteStats.dump("write", pw);
+        pw.decreaseIndent();
+    }
+
+    private static class Stats {
+        final AtomicLong acquired = new AtomicLong();
+        final AtomicLong contended = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void dump(String name, IndentingPrintWriter pw) {
+            long contendedCount = contended.get();
+            pw.println(name + ": acquired=" + acquired.get() + " contended=" + contendedCount
+                    + " avgWaitUs=" + (contendedCount == 0
+                            ? 0 : totalWaitNanos.get() / contendedCount / 1000)
+                    + " maxWaitUs=" + maxWaitNanos.get() / 1000);
+        }
+    }
+}
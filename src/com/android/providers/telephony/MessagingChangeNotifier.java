@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+/**
+ * Coalesces the change notifications of the sms, mms and mms-sms providers.
+ *
+ * Changes are collected for a short window, and then each distinct URI is notified once. The
+ * changes of a thread applying a batch are kept apart until the end of its batch, so they are
+ * never sent half applied. The default SMS app gets at most one
+ * {@link android.provider.Telephony.Sms.Intents#ACTION_EXTERNAL_PROVIDER_CHANGE} broadcast per
+ * burst, carrying the changed URI if all the changes of the burst were to the same one.
+ *
+ * There is one notifier per process, shared by the providers so the mms-sms URIs they all
+ * notify are merged. Changes are kept apart by the context notifying them. The notifications
+ * collected for a window are sent from the {@link NotificationThread}.
+ */
+public class MessagingChangeNotifier {
+    /** How long changes are collected before notifying. */
+    private static final long WINDOW_MS = 50;
+
+    private static final MessagingChangeNotifier sInstance = new MessagingChangeNotifier(
+            NotificationThread.getHandler(), WINDOW_MS, new Sender() {
+                @Override
+                public void notifyChange(@NonNull Context context, @NonNull Uri uri) {
+                    context.getContentResolver().notifyChange(uri, null, true,
+                            UserHandle.USER_ALL);
+                }
+
+                @Override
+                public void notifyDefaultSmsApp(@NonNull Context context, @Nullable Uri uri,
+                        @NonNull Collection<String> callingPackages) {
+                    ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackages, context);
+                }
+            });
+
+    /** Sends the notifications. */
+    public interface Sender {
+        /** Notify the observers of {@code uri}. */
+        void notifyChange(@NonNull Context context, @NonNull Uri uri);
+
+        /**
+         * Tell the default SMS app about changes, unless it made them all.
+         *
+         * @param uri the changed URI, or {@code null} if the changes don't share one.
+         * @param callingPackages the packages which made the changes.
+         */
+        void notifyDefaultSmsApp(@NonNull Context context, @Nullable Uri uri,
+                @NonNull Collection<String> callingPackages);
+    }
+
+    /** The changes of a context waiting to be notified. */
+    private static class Pending {
+        final LinkedHashSet<Uri> mUris = new LinkedHashSet<>();
+        int mChangeCount;
+        // Null while no change asked for the default SMS app to be told.
+        ArraySet<String> mCallingPackages;
+        Uri mBroadcastUri;
+        boolean mMixedBroadcastUris;
+        int mBroadcastCount;
+
+        void addUri(Uri uri) {
+            mUris.add(uri);
+            mChangeCount++;
+        }
+
+        void addBroadcast(@Nullable Uri uri, @Nullable String callingPackage) {
+            addBroadcastUri(uri);
+            mCallingPackages.add(callingPackage);
+            mBroadcastCount++;
+        }
+
+        void addAll(Pending other) {
+            mUris.addAll(other.mUris);
+            mChangeCount += other.mChangeCount;
+            if (other.mCallingPackages != null) {
+                addBroadcastUri(other.mBroadcastUri);
+                mMixedBroadcastUris |= other.mMixedBroadcastUris;
+                mCallingPackages.addAll(other.mCallingPackages);
+                mBroadcastCount += other.mBroadcastCount;
+            }
+        }
+
+        private void addBroadcastUri(Uri uri) {
+            if (mCallingPackages == null) {
+                mCallingPackages = new ArraySet<>();
+                mBroadcastUri = uri;
+            } else if (!Objects.equals(mBroadcastUri, uri)) {
+                mMixedBroadcastUris = true;
+            }
+        }
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final Runnable mFlushRunnable = this::flush;
+    // The changes the current thread holds back until the end of its batch, null outside of one.
+    private final ThreadLocal<ArrayMap<Context, Pending>> mBatchPending = new ThreadLocal<>();
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mWindowMs;
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+    @GuardedBy("mLock")
+    private final ArrayMap<Context, Pending> mPending = new ArrayMap<>();
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private long mChangeCount;
+    @GuardedBy("mLock")
+    private long mSentCount;
+    @GuardedBy("mLock")
+    private long mSuppressedCount;
+    @GuardedBy("mLock")
+    private long mBroadcastRequestCount;
+    @GuardedBy("mLock")
+    private long mBroadcastSentCount;
+    @GuardedBy("mLock")
+    private long mBroadcastSuppressedCount;
+
+    /**
+     * @param handler runs the notifications at the end of the window.
+     * @param windowMs how long changes are collected before notifying, 0 to notify right away.
+     * @param sender sends the notifications.
+     */
+    @VisibleForTesting
+    public MessagingChangeNotifier(@NonNull Handler handler, long windowMs,
+            @NonNull Sender sender) {
+        mHandler = handler;
+        mWindowMs = windowMs;
+        mSender = sender;
+    }
+
+    /**
+     * @return the notifier of the process.
+     */
+    @NonNull
+    public static MessagingChangeNotifier getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Change how long changes are collected before notifying, 0 to notify right away.
+     */
+    @VisibleForTesting
+    public void setWindowMs(long windowMs) {
+        synchronized (mLock) {
+            mWindowMs = windowMs;
+        }
+    }
+
+    /**
+     * Notify the observers of {@code uri}, coalesced with the other changes.
+     */
+    public void notifyChange(@NonNull Context context, @NonNull Uri uri) {
+        ArrayMap<Context, Pending> batchPending = mBatchPending.get();
+        synchronized (mLock) {
+            getPending(batchPending != null ? batchPending : mPending, context).addUri(uri);
+            mChangeCount++;
+        }
+        if (batchPending == null) {
+            onRecorded();
+        }
+    }
+
+    /**
+     * Tell the default SMS app about a change unless it made it, coalesced with the other
+     * changes.
+     *
+     * @param uri the changed URI.
+     * @param callingPackage the package which made the change.
+     */
+    public void notifyDefaultSmsApp(@NonNull Context context, @Nullable Uri uri,
+            @Nullable String callingPackage) {
+        ArrayMap<Context, Pending> batchPending = mBatchPending.get();
+        synchronized (mLock) {
+            getPending(batchPending != null ? batchPending : mPending, context)
+                    .addBroadcast(uri, callingPackage);
+            mBroadcastRequestCount++;
+        }
+        if (batchPending == null) {
+            onRecorded();
+        }
+    }
+
+    /**
+     * Hold back the notifications of this thread until {@link #endBatch()}.
+     *
+     * @return {@code false} if a batch was already started, in which case the caller must not end
+     * it.
+     */
+    public boolean beginBatch() {
+        if (mBatchPending.get() != null) {
+            return false;
+        }
+        mBatchPending.set(new ArrayMap<>());
+        return true;
+    }
+
+    /**
+     * Send the notifications held back since {@link #beginBatch()}.
+     */
+    public void endBatch() {
+        ArrayMap<Context, Pending> batchPending = mBatchPending.get();
+        mBatchPending.remove();
+        if (batchPending == null) {
+            return;
+        }
+        synchronized (mLock) {
+            for (int i = 0; i < batchPending.size(); i++) {
+                getPending(mPending, batchPending.keyAt(i)).addAll(batchPending.valueAt(i));
+            }
+        }
+        flush();
+    }
+
+    private static Pending getPending(ArrayMap<Context, Pending> pendingByContext,
+            Context context) {
+        Pending pending = pendingByContext.get(context);
+        if (pending == null) {
+            pending = new Pending();
+            pendingByContext.put(context, pending);
+        }
+        return pending;
+    }
+
+    private void onRecorded() {
+        synchronized (mLock) {
+            if (mWindowMs > 0) {
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlushRunnable, mWindowMs);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Send the pending changes, if any.
+     */
+    public void flush() {
+        ArrayMap<Context, Pending> pendingByContext;
+        synchronized (mLock) {
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+            }
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pendingByContext = new ArrayMap<>(mPending);
+            mPending.clear();
+            for (int i = 0; i < pendingByContext.size(); i++) {
+                Pending pending = pendingByContext.valueAt(i);
+                mSentCount += pending.mUris.size();
+                mSuppressedCount += pending.mChangeCount - pending.mUris.size();
+                if (pending.mCallingPackages != null) {
+                    mBroadcastSentCount++;
+                    mBroadcastSuppressedCount += pending.mBroadcastCount - 1;
+                }
+            }
+        }
+        for (int i = 0; i < pendingByContext.size(); i++) {
+            Context context = pendingByContext.keyAt(i);
+            Pending pending = pendingByContext.valueAt(i);
+            for (Uri uri : pending.mUris) {
+                mSender.notifyChange(context, uri);
+            }
+            if (pending.mCallingPackages != null) {
+                mSender.notifyDefaultSmsApp(context,
+                        pending.mMixedBroadcastUris ? null : pending.mBroadcastUri,
+                        pending.mCallingPackages);
+            }
+        }
+    }
+
+    /**
+     * Dump the notification counters.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("MessagingChangeNotifier: windowMs=" + mWindowMs + " changes="
+                    + mChangeCount + " sent=" + mSentCount + " suppressed=" + mSuppressedCount
+                    + " broadcastRequests=" + mBroadcastRequestCount + " broadcasts="
+                    + mBroadcastSentCount + " broadcastsSuppressed=" + mBroadcastSuppressedCount
+                    + " pendingContexts=" + mPending.size());
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the table copies of a database upgrade as set based SQL and times the upgrade steps.
+ *
+ * A {@link TableCopy} describes a copy the way the row by row Java code does it: string, int and
+ * blob columns are copied when present, and a null (or, for ints, empty) value leaves the column
+ * to its default. {@link #copy} runs it as one {@code INSERT INTO ... SELECT} with the same rules
+ * written in SQL, unless the old table holds a value the Java code would treat differently, e.g.
+ * text that doesn't parse as an int. The caller then falls back to its Java copy, so the result is
+ * the same either way.
+ */
+public class MigrationEngine {
+    private static final String TAG = "MigrationEngine";
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final List<String> KEYWORD_DEFAULTS = Arrays.asList(
+            "NULL", "TRUE", "FALSE", "CURRENT_TIME", "CURRENT_DATE", "CURRENT_TIMESTAMP");
+
+    /**
+     * A copy of the rows of one table into another, e.g. into the new table of a table rebuild.
+     */
+    public static final class TableCopy {
+        private final String mFrom;
+        private final String mTo;
+        private final List<String> mStringColumns = new ArrayList<>();
+        private final List<String> mIntColumns = new ArrayList<>();
+        private final List<String> mBlobColumns = new ArrayList<>();
+        // Target column -> source column.
+        private final Map<String, String> mNonEmptyStringColumns = new LinkedHashMap<>();
+        private String mOrderBy;
+
+        public TableCopy(@NonNull String from, @NonNull String to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        /** Copy text columns; a null value leaves the column to its default. */
+        public TableCopy strings(@NonNull String... columns) {
+            mStringColumns.addAll(Arrays.asList(columns));
+            return this;
+        }
+
+        /** Copy int columns; a null or empty value leaves the column to its default. */
+        public TableCopy ints(@NonNull String... columns) {
+            mIntColumns.addAll(Arrays.asList(columns));
+            return this;
+        }
+
+        /** Copy blob columns; a null value leaves the column to its default. */
+        public TableCopy blobs(@NonNull String... columns) {
+            mBlobColumns.addAll(Arrays.asList(columns));
+            return this;
+        }
+
+        /**
+         * Fill a column of the new table from another column of the old one; a null or empty
+         * value leaves the column to its default.
+         */
+        public TableCopy nonEmptyString(@NonNull String to, @NonNull String from) {
+            mNonEmptyStringColumns.put(to, from);
+            return this;
+        }
+
+        /** Insert the rows in this order, so they get their new row ids in it. */
+        public TableCopy orderBy(@NonNull String orderBy) {
+            mOrderBy = orderBy;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return mFrom + "->" + mTo;
+        }
+    }
+
+    private final long mUpgradeStartMs;
+    private long mStepStartMs;
+    private int mVersion;
+    // The copies of the current step, e.g. " carriers->carriers_tmp=sql".
+    private final StringBuilder mStepCopies = new StringBuilder();
+    private final List<String> mSteps = new ArrayList<>();
+
+    /**
+     * @param oldVersion the version the database is upgraded from.
+     */
+    public MigrationEngine(int oldVersion) {
+        mVersion = oldVersion;
+        mUpgradeStartMs = SystemClock.elapsedRealtime();
+        mStepStartMs = mUpgradeStartMs;
+    }
+
+    /**
+     * Note the end of the upgrade step to {@code version}.
+     *
+     * @return {@code version}, so the step can end with {@code oldVersion = stepDone(...)}.
+     */
+    public int stepDone(int version) {
+        long now = SystemClock.elapsedRealtime();
+        String step = (mVersion >> 16) + "->" + (version >> 16) + " " + (now - mStepStartMs)
+                + "ms" + mStepCopies;
+        mSteps.add(step);
+        Log.d(TAG, "upgrade step " + step);
+        mStepCopies.setLength(0);
+        mStepStartMs = now;
+        mVersion = version;
+        return version;
+    }
+
+    /**
+     * Note that a copy of the current step was done row by row.
+     */
+    public void noteJavaCopy(@NonNull TableCopy copy) {
+        mStepCopies.append(' ').append(copy).append("=java");
+    }
+
+    /**
+     * @return the timings of all the steps so far.
+     */
+    @NonNull
+    public String summary() {
+        return "upgrade " + (SystemClock.elapsedRealtime() - mUpgradeStartMs) + "ms steps="
+                + mSteps;
+    }
+
+    /**
+     * Copy the rows in one statement.
+     *
+     * @return {@code true} if the rows were copied, {@code false} if nothing was done and the
+     * caller has to copy them row by row.
+     */
+    public boolean copy(@NonNull SQLiteDatabase db, @NonNull TableCopy copy) {
+        long start = SystemClock.elapsedRealtime();
+        String[] statements = buildStatements(db, copy);
+        if (statements == null) {
+            noteJavaCopy(copy);
+            return false;
+        }
+        try (Cursor c = db.rawQuery(statements[0], null)) {
+            if (c.moveToFirst() && c.getInt(0) != 0) {
+                Log.d(TAG, copy + ": values that only the row by row copy converts");
+                noteJavaCopy(copy);
+                return false;
+            }
+        }
+        try {
+            db.execSQL(statements[1]);
+        } catch (SQLException e) {
+            // Nothing was inserted, the statement is atomic.
+            Log.e(TAG, copy + ": " + e);
+            noteJavaCopy(copy);
+            return false;
+        }
+        mStepCopies.append(' ').append(copy).append("=sql(")
+                .append(SystemClock.elapsedRealtime() - start).append("ms)");
+        return true;
+    }
+
+    /**
+     * @return the query finding the values the SQL copy can't handle and the copy statement, or
+     * {@code null} if the copy can't be done in SQL.
+     */
+    @VisibleForTesting
+    @Nullable
+    public static String[] buildStatements(@NonNull SQLiteDatabase db, @NonNull TableCopy copy) {
+        Map<String, String> source = getColumnDefaults(db, copy.mFrom);
+        Map<String, String> target = getColumnDefaults(db, copy.mTo);
+        if (source.isEmpty() || target.isEmpty()) {
+            return null;
+        }
+
+        List<String> columns = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<String> anomalies = new ArrayList<>();
+        for (String column : copy.mStringColumns) {
+            if (!source.containsKey(column)) continue;
+            if (!target.containsKey(column)) return null;
+            String q = quote(column);
+            columns.add(q);
+            values.add("COALESCE(" + q + ", " + defaultValue(target.get(column)) + ")");
+            anomalies.add("typeof(" + q + ") NOT IN ('text', 'null')");
+        }
+        for (String column : copy.mIntColumns) {
+            if (!source.containsKey(column)) continue;
+            if (!target.containsKey(column)) return null;
+            String q = quote(column);
+            columns.add(q);
+            values.add("CASE WHEN " + q + " IS NULL OR " + q + " = '' THEN "
+                    + defaultValue(target.get(column)) + " ELSE " + q + " END");
+            // Anything but an int is either dropped or converted by the row by row copy.
+            anomalies.add("NOT (" + q + " IS NULL OR " + q + " = '' OR (typeof(" + q
+                    + ") = 'integer' AND " + q + " BETWEEN " + Integer.MIN_VALUE + " AND "
+                    + Integer.MAX_VALUE + "))");
+        }
+        for (String column : copy.mBlobColumns) {
+            if (!source.containsKey(column)) continue;
+            if (!target.containsKey(column)) return null;
+            String q = quote(column);
+            columns.add(q);
+            values.add("COALESCE(" + q + ", " + defaultValue(target.get(column)) + ")");
+            anomalies.add("typeof(" + q + ") NOT IN ('blob', 'null')");
+        }
+        for (Map.Entry<String, String> column : copy.mNonEmptyStringColumns.entrySet()) {
+            if (!source.containsKey(column.getValue())) continue;
+            if (!target.containsKey(column.getKey())) return null;
+            String q = quote(column.getValue());
+            columns.add(quote(column.getKey()));
+            values.add("CASE WHEN " + q + " IS NULL OR " + q + " = '' THEN "
+                    + defaultValue(target.get(column.getKey())) + " ELSE " + q + " END");
+            anomalies.add("typeof(" + q + ") NOT IN ('text', 'null')");
+        }
+        if (columns.isEmpty()) {
+            return null;
+        }
+
+        String check = "SELECT EXISTS (SELECT 1 FROM " + quote(copy.mFrom) + " WHERE "
+                + String.join(" OR ", anomalies) + ")";
+        // A row the row by row copy fails to insert is skipped, and so is it here.
+        String insert = "INSERT OR IGNORE INTO " + quote(copy.mTo) + " ("
+                + String.join(", ", columns) + ") SELECT " + String.join(", ", values)
+                + " FROM " + quote(copy.mFrom)
+                + (copy.mOrderBy == null ? "" : " ORDER BY " + copy.mOrderBy);
+        return new String[] {check, insert};
+    }
+
+    /**
+     * @return the columns of a table and their default values, with case insensitive names like
+     * SQLite's.
+     */
+    private static Map<String, String> getColumnDefaults(SQLiteDatabase db, String table) {
+        Map<String, String> columns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        try (Cursor c = db.rawQuery("PRAGMA table_info(" + quote(table) + ")", null)) {
+            int name = c.getColumnIndexOrThrow("name");
+            int dflt = c.getColumnIndexOrThrow("dflt_value");
+            while (c.moveToNext()) {
+                columns.put(c.getString(name), c.getString(dflt));
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return the SQL expression of a column default as returned by {@code PRAGMA table_info}.
+     */
+    @VisibleForTesting
+    @NonNull
+    public static String defaultValue(@Nullable String dflt) {
+        if (dflt == null) {
+            return "NULL";
+        }
+        if (IDENTIFIER.matcher(dflt).matches()
+                && !KEYWORD_DEFAULTS.contains(dflt.toUpperCase(Locale.ROOT))) {
+            // e.g. DEFAULT IP, which SQLite takes as the string 'IP'.
+            return DatabaseUtils.sqlEscapeString(dflt);
+        }
+        return "(" + dflt + ")";
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
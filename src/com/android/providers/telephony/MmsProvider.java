@@ -20,11 +20,14 @@ import android.annotation.NonNull;
 import android.app.AppOpsManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -35,6 +38,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -53,6 +57,7 @@ import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.EventLog;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -62,8 +67,10 @@ import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.util.DownloadDrmHelper;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -130,6 +137,20 @@ public class MmsProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Cursor c = queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+            rows = ProviderMetrics.count(c);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY, sURLMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         String callingPackage = getCallingPackage();
@@ -379,8 +400,36 @@ public class MmsProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Notify the changes of the batch once it is applied.
+        MessagingChangeNotifier notifier = MessagingChangeNotifier.getInstance();
+        boolean batchStarted = notifier.beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            if (batchStarted) {
+                notifier.endBatch();
+            }
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Uri insertUri = insertInternal(uri, values);
+            rows = insertUri != null ? 1 : 0;
+            return insertUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, sURLMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Uri insertInternal(Uri uri, ContentValues values) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final String callerPkg = getCallingPackage();
@@ -747,6 +796,19 @@ public class MmsProvider extends ContentProvider {
     @Override
     public int delete(Uri uri, String selection,
             String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = deleteInternal(uri, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, sURLMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int deleteInternal(Uri uri, String selection,
+            String[] selectionArgs) {
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         int match = sURLMatcher.match(uri);
         if (LOCAL_LOGV) {
@@ -953,6 +1015,19 @@ public class MmsProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = updateInternal(uri, values, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_UPDATE, sURLMatcher.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int updateInternal(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         // The _data column is filled internally in MmsProvider, so this check is just to avoid
         // it from being inadvertently set. This is not supposed to be a protection against
         // malicious attack, since sql injection could still be attempted to bypass the check. On
@@ -1083,6 +1158,19 @@ public class MmsProvider extends ContentProvider {
         return count;
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ProviderMetrics.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.call(getContext());
+        }
+        return super.call(method, arg, extras);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(new IndentingPrintWriter(writer, "  "));
+    }
+
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
         int match = sURLMatcher.match(uri);
@@ -1197,14 +1285,13 @@ public class MmsProvider extends ContentProvider {
 
     private void notifyChange(final Uri uri, final Uri caseSpecificUri) {
         final Context context = getContext();
+        MessagingChangeNotifier notifier = MessagingChangeNotifier.getInstance();
         if (caseSpecificUri != null) {
-            context.getContentResolver().notifyChange(
-                caseSpecificUri, null, true, UserHandle.USER_ALL);
+            notifier.notifyChange(context, caseSpecificUri);
         }
-        context.getContentResolver().notifyChange(
-                MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        ProviderUtil.notifyIfNotDefaultSmsApp(caseSpecificUri == null ? uri : caseSpecificUri,
-                getCallingPackage(), context);
+        notifier.notifyChange(context, MmsSms.CONTENT_URI);
+        notifier.notifyDefaultSmsApp(context, caseSpecificUri == null ? uri : caseSpecificUri,
+                getCallingPackage());
     }
 
     private final static String TAG = "MmsProvider";
@@ -1265,6 +1352,8 @@ public class MmsProvider extends ContentProvider {
     @VisibleForTesting
     public SQLiteOpenHelper mOpenHelper;
 
+    private final ProviderMetrics mMetrics = new ProviderMetrics(TAG);
+
     private static String concatSelections(String selection1, String selection2) {
         if (TextUtils.isEmpty(selection1)) {
             return selection2;
@@ -49,10 +49,10 @@ import android.provider.Telephony.Threads;
 import android.telephony.AnomalyReporter;
 import android.telephony.SubscriptionManager;
 import android.text.format.DateFormat;
+import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyStatsLog;
 
 import com.google.android.mms.pdu.EncodedStringValue;
@@ -87,6 +87,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "MmsSmsDatabaseHelper";
+
+    /**
+     * The lifecycle events of the SMS and MMS database, dumped by {@link MmsSmsProvider}. They are
+     * rare, so they are also always written to logcat.
+     */
+    static final LocalLog LOCAL_LOG = new LocalLog(64);
     private static final int SECURITY_EXCEPTION = TelephonyStatsLog
             .MMS_SMS_DATABASE_HELPER_ON_UPGRADE_FAILED__FAILURE_CODE__FAILURE_SECURITY_EXCEPTION;
     private static final int FAILURE_UNKNOWN = TelephonyStatsLog
@@ -266,7 +272,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private static boolean sFakeLowStorageTest = false;     // for testing only
 
     static final String DATABASE_NAME = "mmssms.db";
-    static final int DATABASE_VERSION = 70;
+    static final int DATABASE_VERSION = 71;
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
 
     private final Context mContext;
@@ -317,11 +323,6 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         // Memory optimization - close idle connections after 30s of inactivity
         setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
         setWriteAheadLoggingEnabled(false);
-        try {
-            PhoneFactory.addLocalLog(TAG, 64);
-        } catch (IllegalArgumentException e) {
-            // ignore
-        }
     }
 
     private static synchronized MmsSmsDatabaseErrorHandler getDbErrorHandler(Context context) {
@@ -442,6 +443,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         " SELECT DISTINCT thread_id FROM pdu WHERE thread_id IS NOT NULL)",
                         null);
             if (rows > 0) {
+                // The addresses of the deleted threads must not resolve to them anymore.
+                ThreadIdCache.getInstance().invalidate();
                 // If this deleted a row, let's remove orphaned canonical_addresses
                 removeUnferencedCanonicalAddresses(db);
             }
@@ -601,12 +604,12 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
     private static void localLog(String logMsg) {
         Log.d(TAG, logMsg);
-        PhoneFactory.localLog(TAG, logMsg);
+        LOCAL_LOG.log(logMsg);
     }
 
     private static void localLogWtf(String logMsg) {
         Log.wtf(TAG, logMsg);
-        PhoneFactory.localLog(TAG, logMsg);
+        LOCAL_LOG.log(logMsg);
     }
 
     private boolean isInitialCreateDone() {
@@ -732,6 +735,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         createThreadIdDateIndex(db);
         createPartMidIndex(db);
         createAddrMsgIdIndex(db);
+        createOtpExpiryIndex(db);
     }
 
     private void createThreadIdIndex(SQLiteDatabase db) {
@@ -792,6 +796,23 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void createOtpExpiryIndex(SQLiteDatabase db) {
+        createOtpExpiryIndex(db, -1, -1, -1);
+    }
+
+    private void createOtpExpiryIndex(
+            SQLiteDatabase db, int oldVersion, int currentVersion, int upgradeVersion) {
+        try {
+            // Only the OTP messages have an expiry, so only they are indexed.
+            db.execSQL("CREATE INDEX IF NOT EXISTS smsOtpExpiryIndex ON sms ("
+                    + SmsProvider.COLUMN_OTP_EXPIRY + ") WHERE "
+                    + SmsProvider.COLUMN_OTP_EXPIRY + " IS NOT NULL");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+            logException(ex, oldVersion, currentVersion, upgradeVersion);
+        }
+    }
+
 
     @VisibleForTesting
     public static String CREATE_ADDR_TABLE_STR =
@@ -1117,7 +1138,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             "error_code INTEGER DEFAULT " + NO_ERROR_CODE + ", " +
             "creator TEXT," +
             "seen INTEGER DEFAULT 0," +
-            "contains_otp INTEGER DEFAULT 0" +
+            "contains_otp INTEGER DEFAULT 0," +
+            SmsProvider.COLUMN_OTP_EXPIRY + " INTEGER" +
             ");";
 
     @VisibleForTesting
@@ -1855,6 +1877,22 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             } finally {
                 db.endTransaction();
             }
+            // fall through
+        case 70:
+            if (currentVersion <= 70) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion71(db, oldVersion, currentVersion);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                logException(ex, oldVersion, currentVersion, 71);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
             return;
         }
 
@@ -2239,6 +2277,19 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void upgradeDatabaseToVersion71(SQLiteDatabase db, int oldVersion, int currentVersion) {
+        if (!isColumnExists(db, SmsProvider.TABLE_SMS, SmsProvider.COLUMN_OTP_EXPIRY)) {
+            db.execSQL("ALTER TABLE " + SmsProvider.TABLE_SMS
+                    + " ADD COLUMN " + SmsProvider.COLUMN_OTP_EXPIRY + " INTEGER");
+        }
+        // The OTP messages classified before used to expire in memory only. Their expiry is
+        // approximated from their date, like the redaction of the queries does.
+        db.execSQL("UPDATE " + SmsProvider.TABLE_SMS + " SET " + SmsProvider.COLUMN_OTP_EXPIRY
+                + " = " + Sms.DATE + " + " + SmsProvider.OTP_HIDING_TIME_MS + " WHERE "
+                + Sms.CONTAINS_OTP + " = " + Sms.OTP_TYPE_CONTAINS_OTP);
+        createOtpExpiryIndex(db, oldVersion, currentVersion, 71);
+    }
+
     @Override
     public synchronized  SQLiteDatabase getReadableDatabase() {
         SQLiteDatabase db;
@@ -2280,13 +2331,11 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             boolean hasAutoIncrementAddresses = hasAutoIncrement(db, "canonical_addresses");
             boolean hasAutoIncrementPart = hasAutoIncrement(db, "part");
             boolean hasAutoIncrementPdu = hasAutoIncrement(db, "pdu");
-            String logMsg = "[getWritableDatabase]" +
+            localLog("[getWritableDatabase]" +
                     " hasAutoIncrementThreads: " + hasAutoIncrementThreads +
                     " hasAutoIncrementAddresses: " + hasAutoIncrementAddresses +
                     " hasAutoIncrementPart: " + hasAutoIncrementPart +
-                    " hasAutoIncrementPdu: " + hasAutoIncrementPdu;
-            Log.d(TAG, logMsg);
-            localLog(logMsg);
+                    " hasAutoIncrementPdu: " + hasAutoIncrementPdu);
             boolean autoIncrementThreadsSuccess = true;
             boolean autoIncrementAddressesSuccess = true;
             boolean autoIncrementPartSuccess = true;
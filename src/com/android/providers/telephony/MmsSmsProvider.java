@@ -44,6 +44,7 @@ import android.provider.Telephony.ThreadsColumns;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 
 import com.android.internal.telephony.TelephonyStatsLog;
@@ -317,6 +318,8 @@ public class MmsSmsProvider extends ContentProvider {
 
     private boolean mUseStrictPhoneNumberComparation;
 
+    private final ProviderMetrics mMetrics = new ProviderMetrics(LOG_TAG);
+
     // Call() methods and parameters
     private static final String METHOD_IS_RESTORING = "is_restoring";
     private static final String IS_RESTORING_KEY = "restoring";
@@ -337,6 +340,20 @@ public class MmsSmsProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Cursor c = queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+            rows = ProviderMetrics.count(c);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY, URI_MATCHER.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         String callingPackage = getCallingPackage();
@@ -796,8 +813,7 @@ public class MmsSmsProvider extends ContentProvider {
         Log.d(LOG_TAG, "insertThread: created new thread_id " + result +
                 " for recipientIds " + /*recipientIds*/ "xxxxxxx");
 
-        getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                UserHandle.USER_ALL);
+        MessagingChangeNotifier.getInstance().notifyChange(getContext(), MmsSms.CONTENT_URI);
     }
 
     private static final String THREAD_QUERY =
@@ -1373,6 +1389,18 @@ public class MmsSmsProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = deleteInternal(uri, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, URI_MATCHER.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int deleteInternal(Uri uri, String selection, String[] selectionArgs) {
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         String selectionBySubIds;
         final long token = Binder.clearCallingIdentity();
@@ -1432,14 +1460,16 @@ public class MmsSmsProvider extends ContentProvider {
                 affectedRows = db.delete(TABLE_THREADS,
                         "_id NOT IN (SELECT DISTINCT thread_id FROM sms where thread_id NOT NULL " +
                         "UNION SELECT DISTINCT thread_id FROM pdu where thread_id NOT NULL)", null);
+                if (affectedRows > 0) {
+                    ThreadIdCache.getInstance().invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
         }
 
         if (affectedRows > 0) {
-            context.getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                    UserHandle.USER_ALL);
+            MessagingChangeNotifier.getInstance().notifyChange(context, MmsSms.CONTENT_URI);
         }
         return affectedRows;
     }
@@ -1459,6 +1489,19 @@ public class MmsSmsProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Uri insertUri = insertInternal(uri, values);
+            rows = insertUri != null ? 1 : 0;
+            return insertUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, URI_MATCHER.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Uri insertInternal(Uri uri, ContentValues values) {
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final int callerUid = Binder.getCallingUid();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -1508,6 +1551,19 @@ public class MmsSmsProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues values,
             String selection, String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = updateInternal(uri, values, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_UPDATE, URI_MATCHER.match(uri),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int updateInternal(Uri uri, ContentValues values,
+            String selection, String[] selectionArgs) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final String callerPkg = getCallingPackage();
@@ -1565,6 +1621,10 @@ public class MmsSmsProvider extends ContentProvider {
                         ? extraSelection : extraSelection + " AND " + selection;
 
                 affectedRows = db.update(TABLE_CANONICAL_ADDRESSES, values, finalSelection, null);
+                if (affectedRows > 0) {
+                    // The address may now have another thread.
+                    ThreadIdCache.getInstance().invalidate();
+                }
                 break;
             }
 
@@ -1590,8 +1650,8 @@ public class MmsSmsProvider extends ContentProvider {
         }
 
         if (affectedRows > 0) {
-            getContext().getContentResolver().notifyChange(
-                    MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
+            MessagingChangeNotifier.getInstance().notifyChange(getContext(),
+                    MmsSms.CONTENT_URI);
         }
         return affectedRows;
     }
@@ -1659,10 +1719,25 @@ public class MmsSmsProvider extends ContentProvider {
             defaultSmsApp = "None";
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        mMetrics.dump(pw);
+        pw.println("Database events:");
+        pw.increaseIndent();
+        MmsSmsDatabaseHelper.LOCAL_LOG.dump(pw);
+        pw.decreaseIndent();
+        pw.println("Restore events:");
+        pw.increaseIndent();
+        TelephonyBackupAgent.DeferredSmsMmsRestoreService.LOCAL_LOG.dump(pw);
+        TelephonyBackupAgent.DeferredSmsMmsRestoreService.EVENTS.dump(pw);
+        pw.decreaseIndent();
     }
 
     @Override
     public Bundle call(String method, String arg, Bundle extras) {
+        if (ProviderMetrics.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.call(getContext());
+        }
         if (ProviderUtil.isAccessRestricted(
                 getContext(), getCallingPackage(), Binder.getCallingUid())) {
             return null;
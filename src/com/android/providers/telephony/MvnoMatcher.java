@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Binder;
+import android.telephony.TelephonyManager;
+import android.telephony.data.ApnSetting;
+import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Matches APN MVNO rules against the SIM without calling into the phone process for every row.
+ *
+ * The SIM records used by the rules (SPN, IMSI, GID1 and ICCID) are read once per subscription
+ * and kept in a {@link SimSnapshot} until {@link #invalidate()} is called, which the provider
+ * does whenever the SIM state changes. The rules themselves follow
+ * {@link TelephonyManager#matchesCurrentSimOperator(String, int, String)}.
+ */
+public class MvnoMatcher {
+    private static final String TAG = "MvnoMatcher";
+    private static final boolean DBG = false;
+
+    /** The SIM records MVNO rules are evaluated against. */
+    public static final class SimSnapshot {
+        @NonNull public final String mccmnc;
+        @Nullable public final String spn;
+        @Nullable public final String imsi;
+        @Nullable public final String gid1;
+        @Nullable public final String iccid;
+
+        @VisibleForTesting
+        public SimSnapshot(String mccmnc, String spn, String imsi, String gid1, String iccid) {
+            this.mccmnc = mccmnc == null ? "" : mccmnc;
+            this.spn = spn;
+            this.imsi = imsi;
+            this.gid1 = gid1;
+            this.iccid = iccid;
+        }
+
+        @Override
+        public String toString() {
+            // Only say which records are present, they are PII.
+            return "{mccmnc=" + mccmnc + " hasSpn=" + (spn != null) + " hasImsi="
+                    + (imsi != null) + " hasGid1=" + (gid1 != null) + " hasIccid="
+                    + (iccid != null) + "}";
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<SimSnapshot> mSnapshots = new SparseArray<>();
+    // Bumped by each invalidation, so records read across one aren't cached.
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private int mSnapshotLoadCount;
+    @GuardedBy("mLock")
+    private int mSnapshotHitCount;
+    @GuardedBy("mLock")
+    private int mInvalidateCount;
+
+    /**
+     * Get the SIM records of a subscription, reading them from {@code tm} if they are not cached
+     * or if the cached records were taken for a different MCC/MNC.
+     *
+     * @param tm the {@link TelephonyManager} for {@code subId}.
+     * @param subId the subscription id.
+     * @param mccmnc the current SIM operator numeric of the subscription.
+     * @return the SIM records; never {@code null}.
+     */
+    @NonNull
+    public SimSnapshot getSnapshot(@NonNull TelephonyManager tm, int subId, String mccmnc) {
+        long generation;
+        synchronized (mLock) {
+            SimSnapshot snapshot = mSnapshots.get(subId);
+            if (snapshot != null && snapshot.mccmnc.equals(mccmnc == null ? "" : mccmnc)) {
+                mSnapshotHitCount++;
+                return snapshot;
+            }
+            generation = mGeneration;
+        }
+
+        // Read the records outside of the lock, they are binder calls into the phone process.
+        SimSnapshot snapshot;
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            snapshot = new SimSnapshot(mccmnc, tm.getSimOperatorName(), tm.getSubscriberId(),
+                    tm.getGroupIdLevel1(), tm.getSimSerialNumber());
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+        if (DBG) Log.d(TAG, "getSnapshot: subId=" + subId + " snapshot=" + snapshot);
+
+        synchronized (mLock) {
+            // Records read while the SIM changed may be from the previous SIM.
+            if (generation == mGeneration) {
+                mSnapshots.put(subId, snapshot);
+            }
+            mSnapshotLoadCount++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drop all cached SIM records. They will be read again on the next lookup.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mSnapshots.clear();
+            mGeneration++;
+            mInvalidateCount++;
+        }
+    }
+
+    /**
+     * Check whether an APN's operator and MVNO rule match the SIM.
+     *
+     * @param sim the SIM records.
+     * @param numeric the APN numeric.
+     * @param mvnoType the APN MVNO type, one of {@code ApnSetting.MVNO_TYPE_*}.
+     * @param mvnoMatchData the APN MVNO match data.
+     * @return {@code true} if the APN is for the SIM operator and the MVNO rule matches.
+     */
+    public static boolean matches(@NonNull SimSnapshot sim, String numeric, int mvnoType,
+            String mvnoMatchData) {
+        if (TextUtils.isEmpty(numeric) || !numeric.equals(sim.mccmnc)) {
+            return false;
+        }
+        if (mvnoMatchData == null) {
+            return false;
+        }
+        switch (mvnoType) {
+            case ApnSetting.MVNO_TYPE_SPN:
+                return sim.spn != null && sim.spn.equalsIgnoreCase(mvnoMatchData);
+            case ApnSetting.MVNO_TYPE_IMSI:
+                return sim.imsi != null && imsiMatches(mvnoMatchData, sim.imsi);
+            case ApnSetting.MVNO_TYPE_GID:
+                return sim.gid1 != null && sim.gid1.length() >= mvnoMatchData.length()
+                        && sim.gid1.regionMatches(true, 0, mvnoMatchData, 0,
+                                mvnoMatchData.length());
+            case ApnSetting.MVNO_TYPE_ICCID:
+                return sim.iccid != null && iccidMatches(mvnoMatchData, sim.iccid);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Match an IMSI pattern against the SIM IMSI. The pattern holds digits which must be equal
+     * to the IMSI digit at the same position, or 'x' which matches any digit. e.g. the pattern
+     * "310260x10xxxxxx" requires the first six digits and the 8th and 9th digits to match.
+     */
+    @VisibleForTesting
+    public static boolean imsiMatches(@NonNull String pattern, @NonNull String imsi) {
+        int len = pattern.length();
+        if (len <= 0 || len > imsi.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = pattern.charAt(i);
+            if (c != 'x' && c != 'X' && c != imsi.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Match a comma separated list of ICCID prefixes against the SIM ICCID.
+     */
+    @VisibleForTesting
+    public static boolean iccidMatches(@NonNull String prefixes, @NonNull String iccid) {
+        for (String prefix : prefixes.split(",")) {
+            if (iccid.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dump the matcher statistics.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("MvnoMatcher: cachedSubs=" + mSnapshots.size() + " loads="
+                    + mSnapshotLoadCount + " hits=" + mSnapshotHitCount + " invalidations="
+                    + mInvalidateCount);
+            pw.increaseIndent();
+            for (int i = 0; i < mSnapshots.size(); i++) {
+                pw.println("subId=" + mSnapshots.keyAt(i) + " " + mSnapshots.valueAt(i));
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
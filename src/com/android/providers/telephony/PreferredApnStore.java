@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * The preferred APN of every subscription, kept in memory and persisted in a small table of the
+ * telephony database.
+ *
+ * For each subscription the store keeps the id of the preferred APN row and the values of the
+ * unique fields of that row. The values are used to find the row again when its id is no longer
+ * valid, e.g. after a database upgrade. The id itself is kept across APN reloads as long as the
+ * row it points to still has the same values, see {@link #verifyApnIds}.
+ *
+ * The preferred APNs used to be kept in SharedPreferences. Those are moved into the table the
+ * first time the store is loaded.
+ */
+public class PreferredApnStore {
+    private static final String TAG = "PreferredApnStore";
+    private static final boolean DBG = false;
+
+    @VisibleForTesting
+    public static final String TABLE = "preferred_apn";
+    private static final String COLUMN_SUB_ID = "sub_id";
+    private static final String COLUMN_APN_ID = "apn_id";
+    private static final String COLUMN_EXPLICIT_SET = "explicit_set";
+    private static final String COLUMN_APN = "apn";
+    private static final String COLUMN_DB_VERSION = "db_version";
+
+    public static final long INVALID_APN_ID = -1;
+
+    // The SharedPreferences the preferred APNs used to be kept in.
+    @VisibleForTesting
+    public static final String PREF_FILE_APN = "preferred-apn";
+    @VisibleForTesting
+    public static final String PREF_FILE_FULL_APN = "preferred-full-apn";
+    @VisibleForTesting
+    public static final String PREF_KEY_APN_ID = "apn_id";
+    private static final String PREF_KEY_EXPLICIT_SET_CALLED = "explicit_set_called";
+    private static final String PREF_KEY_DB_VERSION = "version";
+
+    private static final class Entry {
+        long apnId = INVALID_APN_ID;
+        // Whether the id was set by the framework or user, as opposed to found from the values.
+        boolean explicitSet;
+        // The values of the unique fields of the preferred APN, or null if not known.
+        @Nullable ArrayMap<String, String> apn;
+        int dbVersion;
+
+        boolean isEmpty() {
+            return apnId == INVALID_APN_ID && apn == null;
+        }
+
+        @Override
+        public String toString() {
+            return "apnId=" + apnId + " explicitSet=" + explicitSet + " dbVersion=" + dbVersion
+                    + " apn=" + apn;
+        }
+    }
+
+    private final Supplier<Context> mContextSupplier;
+    private final List<String> mUniqueFields;
+
+    // Guards the entries in memory only, the table is never read or written while holding it.
+    // The callers order the writes: every method changing the store must be called with the
+    // write lock of the carriers table held.
+    private final Object mLock = new Object();
+    // Entries by subId, or null until loaded.
+    @GuardedBy("mLock")
+    private SparseArray<Entry> mEntries;
+    @GuardedBy("mLock")
+    private int mMigratedCount;
+
+    /**
+     * @param contextSupplier supplies the context holding the legacy SharedPreferences.
+     * @param uniqueFields the unique fields of the carriers table saved for each APN.
+     */
+    public PreferredApnStore(@NonNull Supplier<Context> contextSupplier,
+            @NonNull List<String> uniqueFields) {
+        mContextSupplier = contextSupplier;
+        mUniqueFields = uniqueFields;
+    }
+
+    /**
+     * @return the statement creating the table if it doesn't exist.
+     */
+    public static String getStringForTableCreation() {
+        return "CREATE TABLE IF NOT EXISTS " + TABLE + "("
+                + COLUMN_SUB_ID + " INTEGER PRIMARY KEY,"
+                + COLUMN_APN_ID + " INTEGER DEFAULT " + INVALID_APN_ID + ","
+                + COLUMN_EXPLICIT_SET + " INTEGER DEFAULT 0,"
+                + COLUMN_APN + " TEXT,"
+                + COLUMN_DB_VERSION + " INTEGER DEFAULT 0);";
+    }
+
+    /**
+     * Load the entries if they aren't loaded yet, moving the legacy SharedPreferences into the
+     * table. The provider calls this when the database is opened, before anything else can use
+     * the store, so the other methods find the entries loaded.
+     */
+    public void load(@NonNull SQLiteDatabase db) {
+        synchronized (mLock) {
+            if (mEntries != null) {
+                return;
+            }
+        }
+        db.execSQL(getStringForTableCreation());
+        SparseArray<Entry> entries = readEntries(db);
+        int migrated = entries.size() == 0 ? migrateFromSharedPreferences(db, entries) : 0;
+        synchronized (mLock) {
+            if (mEntries == null) {
+                mEntries = entries;
+                mMigratedCount += migrated;
+            }
+        }
+    }
+
+    /**
+     * Load the entries again, e.g. after a transaction changing the table was rolled back.
+     */
+    public void reload(@NonNull SQLiteDatabase db) {
+        synchronized (mLock) {
+            mEntries = null;
+        }
+        load(db);
+    }
+
+    /**
+     * @return the id of the preferred APN, or {@link #INVALID_APN_ID} if not set.
+     */
+    public long getApnId(@NonNull SQLiteDatabase db, int subId) {
+        load(db);
+        synchronized (mLock) {
+            Entry entry = mEntries.get(subId);
+            return entry == null ? INVALID_APN_ID : entry.apnId;
+        }
+    }
+
+    /**
+     * Set the id of the preferred APN.
+     *
+     * @param explicitSet whether the id was set by the framework or user, as opposed to restored
+     *                    from the saved values. This is for debugging only.
+     */
+    public void setApnId(@NonNull SQLiteDatabase db, int subId, long apnId, boolean explicitSet) {
+        load(db);
+        ContentValues row;
+        synchronized (mLock) {
+            Entry entry = getOrCreateEntry(mEntries, subId);
+            entry.apnId = apnId;
+            entry.explicitSet = explicitSet;
+            row = updateEntryLocked(subId, entry);
+        }
+        writeEntry(db, subId, row);
+    }
+
+    /**
+     * @return a copy of the saved values of the unique fields of the preferred APN, or
+     * {@code null} if none are saved.
+     */
+    @Nullable
+    public Map<String, String> getApn(@NonNull SQLiteDatabase db, int subId) {
+        load(db);
+        synchronized (mLock) {
+            Entry entry = mEntries.get(subId);
+            return entry == null || entry.apn == null ? null : new ArrayMap<>(entry.apn);
+        }
+    }
+
+    /**
+     * Save the values of the unique fields of the preferred APN.
+     */
+    public void setApn(@NonNull SQLiteDatabase db, int subId, @NonNull Map<String, String> apn,
+            int dbVersion) {
+        load(db);
+        ContentValues row;
+        synchronized (mLock) {
+            Entry entry = getOrCreateEntry(mEntries, subId);
+            entry.apn = new ArrayMap<>(apn);
+            entry.dbVersion = dbVersion;
+            row = updateEntryLocked(subId, entry);
+        }
+        writeEntry(db, subId, row);
+    }
+
+    /**
+     * Delete the saved values of the preferred APN, keeping its id.
+     */
+    public void deleteApn(@NonNull SQLiteDatabase db, int subId) {
+        load(db);
+        ContentValues row;
+        synchronized (mLock) {
+            Entry entry = mEntries.get(subId);
+            if (entry == null || entry.apn == null) {
+                return;
+            }
+            if (DBG) Log.d(TAG, "deleteApn: deleting stored apn for subId " + subId);
+            entry.apn = null;
+            row = updateEntryLocked(subId, entry);
+        }
+        writeEntry(db, subId, row);
+    }
+
+    /**
+     * Forget the preferred APN ids of every subscription, keeping the saved values so the APNs
+     * can be found again.
+     */
+    public void clearApnIds(@NonNull SQLiteDatabase db) {
+        load(db);
+        synchronized (mLock) {
+            for (int i = mEntries.size() - 1; i >= 0; i--) {
+                Entry entry = mEntries.valueAt(i);
+                entry.apnId = INVALID_APN_ID;
+                if (entry.isEmpty()) {
+                    mEntries.removeAt(i);
+                }
+            }
+        }
+        db.beginTransaction();
+        try {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_APN_ID, INVALID_APN_ID);
+            db.update(TABLE, cv, null, null);
+            db.delete(TABLE, COLUMN_APN + " IS NULL", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Forget the preferred APNs of every subscription.
+     */
+    public void clearAll(@NonNull SQLiteDatabase db) {
+        load(db);
+        synchronized (mLock) {
+            mEntries.clear();
+        }
+        db.delete(TABLE, null, null);
+    }
+
+    /**
+     * @return the subscriptions with a preferred APN id.
+     */
+    @NonNull
+    public int[] getSubIdsWithApnId(@NonNull SQLiteDatabase db) {
+        load(db);
+        synchronized (mLock) {
+            int count = 0;
+            int[] subIds = new int[mEntries.size()];
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (mEntries.valueAt(i).apnId != INVALID_APN_ID) {
+                    subIds[count++] = mEntries.keyAt(i);
+                }
+            }
+            int[] result = new int[count];
+            System.arraycopy(subIds, 0, result, 0, count);
+            return result;
+        }
+    }
+
+    /**
+     * Check that the preferred APN ids still point to rows with the saved values, e.g. after the
+     * APNs have been reloaded from xml, and forget the ids which don't. Rows which were not
+     * changed by the reload keep their id, so their preferred APN doesn't have to be looked up
+     * by its values again.
+     *
+     * @return the number of ids forgotten.
+     */
+    public int verifyApnIds(@NonNull SQLiteDatabase db, @NonNull String carriersTable) {
+        load(db);
+        // Copied so the carriers table is read outside of the lock. The saved values are
+        // replaced rather than changed, so they can be shared.
+        SparseArray<Entry> toCheck = new SparseArray<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                if (entry.apnId != INVALID_APN_ID) {
+                    Entry copy = new Entry();
+                    copy.apnId = entry.apnId;
+                    copy.apn = entry.apn;
+                    toCheck.put(mEntries.keyAt(i), copy);
+                }
+            }
+        }
+
+        String[] projection = mUniqueFields.toArray(new String[0]);
+        SparseArray<ContentValues> rows = new SparseArray<>();
+        for (int i = 0; i < toCheck.size(); i++) {
+            Entry checked = toCheck.valueAt(i);
+            boolean valid = false;
+            if (checked.apn != null) {
+                try (Cursor c = db.query(carriersTable, projection, "_id=" + checked.apnId,
+                        null, null, null, null)) {
+                    if (c != null && c.moveToFirst()) {
+                        valid = true;
+                        for (int j = 0; j < projection.length && valid; j++) {
+                            valid = Objects.equals(checked.apn.get(projection[j]),
+                                    c.getString(j));
+                        }
+                    }
+                }
+            }
+            if (!valid) {
+                int subId = toCheck.keyAt(i);
+                synchronized (mLock) {
+                    Entry entry = mEntries.get(subId);
+                    if (entry != null && entry.apnId == checked.apnId) {
+                        entry.apnId = INVALID_APN_ID;
+                        rows.put(subId, updateEntryLocked(subId, entry));
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            writeEntry(db, rows.keyAt(i), rows.valueAt(i));
+        }
+        if (DBG) Log.d(TAG, "verifyApnIds: invalidated " + rows.size());
+        return rows.size();
+    }
+
+    /**
+     * Dump the entries, loading them if needed.
+     */
+    public void dump(@NonNull SQLiteDatabase db, @NonNull IndentingPrintWriter pw) {
+        load(db);
+        synchronized (mLock) {
+            pw.println("PreferredApnStore: subs=" + mEntries.size() + " migrated="
+                    + mMigratedCount);
+            pw.increaseIndent();
+            for (int i = 0; i < mEntries.size(); i++) {
+                pw.println("subId=" + mEntries.keyAt(i) + " " + mEntries.valueAt(i));
+            }
+            pw.decreaseIndent();
+        }
+    }
+
+    private static Entry getOrCreateEntry(SparseArray<Entry> entries, int subId) {
+        Entry entry = entries.get(subId);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(subId, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop the entry if it became empty.
+     *
+     * @return the row to write for the entry, or {@code null} if its row is to be deleted.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private ContentValues updateEntryLocked(int subId, Entry entry) {
+        if (entry.isEmpty()) {
+            mEntries.remove(subId);
+            return null;
+        }
+        return toRow(subId, entry);
+    }
+
+    private static ContentValues toRow(int subId, Entry entry) {
+        ContentValues cv = new ContentValues();
+        cv.put(COLUMN_SUB_ID, subId);
+        cv.put(COLUMN_APN_ID, entry.apnId);
+        cv.put(COLUMN_EXPLICIT_SET, entry.explicitSet ? 1 : 0);
+        cv.put(COLUMN_APN, encodeApn(entry.apn));
+        cv.put(COLUMN_DB_VERSION, entry.dbVersion);
+        return cv;
+    }
+
+    /**
+     * Write the row of an entry, or delete it if {@code row} is {@code null}.
+     */
+    private static void writeEntry(SQLiteDatabase db, int subId, @Nullable ContentValues row) {
+        if (row == null) {
+            db.delete(TABLE, COLUMN_SUB_ID + "=" + subId, null);
+        } else {
+            db.insertWithOnConflict(TABLE, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    private static SparseArray<Entry> readEntries(SQLiteDatabase db) {
+        SparseArray<Entry> entries = new SparseArray<>();
+        try (Cursor c = db.query(TABLE, new String[] {COLUMN_SUB_ID, COLUMN_APN_ID,
+                COLUMN_EXPLICIT_SET, COLUMN_APN, COLUMN_DB_VERSION}, null, null, null, null,
+                null)) {
+            while (c != null && c.moveToNext()) {
+                Entry entry = new Entry();
+                entry.apnId = c.getLong(1);
+                entry.explicitSet = c.getInt(2) != 0;
+                entry.apn = decodeApn(c.getString(3));
+                entry.dbVersion = c.getInt(4);
+                entries.put(c.getInt(0), entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Move the preferred APNs kept in the legacy SharedPreferences into {@code entries} and the
+     * table.
+     *
+     * @return the number of entries moved.
+     */
+    private int migrateFromSharedPreferences(SQLiteDatabase db, SparseArray<Entry> entries) {
+        Context context = mContextSupplier.get();
+        if (context == null) {
+            return 0;
+        }
+        SharedPreferences spApn = context.getSharedPreferences(PREF_FILE_APN,
+                Context.MODE_PRIVATE);
+        SharedPreferences spFullApn = context.getSharedPreferences(PREF_FILE_FULL_APN,
+                Context.MODE_PRIVATE);
+        Map<String, ?> ids = spApn.getAll();
+        Map<String, ?> fullApns = spFullApn.getAll();
+        if (ids.isEmpty() && fullApns.isEmpty()) {
+            return 0;
+        }
+
+        for (Map.Entry<String, ?> pref : ids.entrySet()) {
+            String key = pref.getKey();
+            if (key.startsWith(PREF_KEY_APN_ID) && pref.getValue() instanceof Long) {
+                int subId = parseSubId(key, PREF_KEY_APN_ID);
+                if (subId < 0) continue;
+                Entry entry = getOrCreateEntry(entries, subId);
+                entry.apnId = (Long) pref.getValue();
+                entry.explicitSet = spApn.getBoolean(PREF_KEY_EXPLICIT_SET_CALLED + subId, false);
+            }
+        }
+        for (Map.Entry<String, ?> pref : fullApns.entrySet()) {
+            String key = pref.getKey();
+            if (key.startsWith(PREF_KEY_DB_VERSION)) {
+                int subId = parseSubId(key, PREF_KEY_DB_VERSION);
+                if (subId < 0) continue;
+                Entry entry = getOrCreateEntry(entries, subId);
+                entry.apn = new ArrayMap<>();
+                for (String field : mUniqueFields) {
+                    entry.apn.put(field, spFullApn.getString(field + subId, null));
+                }
+                try {
+                    entry.dbVersion = Integer.parseInt(spFullApn.getString(key, null));
+                } catch (NumberFormatException e) {
+                    entry.dbVersion = 0;
+                }
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.valueAt(i).isEmpty()) {
+                    entries.removeAt(i);
+                } else {
+                    writeEntry(db, entries.keyAt(i), toRow(entries.keyAt(i), entries.valueAt(i)));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        spApn.edit().clear().apply();
+        spFullApn.edit().clear().apply();
+        Log.d(TAG, "migrated " + entries.size() + " preferred apns from SharedPreferences");
+        return entries.size();
+    }
+
+    private static int parseSubId(String key, String prefix) {
+        try {
+            return Integer.parseInt(key.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "parseSubId: NumberFormatException for key=" + key);
+            return -1;
+        }
+    }
+
+    @Nullable
+    private static String encodeApn(@Nullable ArrayMap<String, String> apn) {
+        if (apn == null) {
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        try {
+            for (int i = 0; i < apn.size(); i++) {
+                json.put(apn.keyAt(i), apn.valueAt(i) == null ? JSONObject.NULL : apn.valueAt(i));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "encodeApn: " + e);
+            return null;
+        }
+        return json.toString();
+    }
+
+    @Nullable
+    private static ArrayMap<String, String> decodeApn(@Nullable String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(encoded);
+            ArrayMap<String, String> apn = new ArrayMap<>(json.length());
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                apn.put(key, json.isNull(key) ? null : json.getString(key));
+            }
+            return apn;
+        } catch (JSONException e) {
+            Log.e(TAG, "decodeApn: " + e);
+            return null;
+        }
+    }
+}
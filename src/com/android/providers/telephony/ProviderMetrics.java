@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and throughput of the operations of a provider, per URI match code and per calling
+ * package, for dumpsys and for on-device collection.
+ *
+ * Latencies go to histograms with buckets a quarter of a power of two wide, so the percentiles
+ * are within 25% of the real values from a microsecond to over an hour. Recording takes no lock.
+ *
+ * {@link #call} returns the metrics in a bundle:
+ * <ul>
+ *     <li>{@code "<op>/<match>"}: {@code long[]} of calls, errors, rows, total, p50, p90, p99 and
+ *     max, the times in microseconds.</li>
+ *     <li>{@code "package/<package>"}: {@code long[]} of calls and total microseconds.</li>
+ *     <li>{@link #KEY_UPTIME_MS}: how long the metrics have been collected for.</li>
+ * </ul>
+ */
+public class ProviderMetrics {
+    /** The {@code call()} method returning the metrics. Needs the DUMP permission. */
+    public static final String METHOD_GET_METRICS = "getProviderMetrics";
+    /** The bundle key of the time since the metrics are collected, in milliseconds. */
+    public static final String KEY_UPTIME_MS = "uptimeMs";
+
+    public static final int OP_QUERY = 0;
+    public static final int OP_INSERT = 1;
+    public static final int OP_BULK_INSERT = 2;
+    public static final int OP_UPDATE = 3;
+    public static final int OP_DELETE = 4;
+    private static final String[] OP_NAMES = {"query", "insert", "bulkInsert", "update", "delete"};
+
+    /** The rows of an operation which threw. */
+    public static final int FAILED = -1;
+
+    // Past this many calling packages, the others are counted together.
+    private static final int MAX_PACKAGES = 64;
+    private static final String OTHER_PACKAGES = "other";
+    private static final String UNKNOWN_PACKAGE = "unknown";
+
+    /**
+     * A lock-free histogram of durations in microseconds. Values below 4 have their own bucket,
+     * then each power of two is split in 4 buckets.
+     */
+    @VisibleForTesting
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Up to 2^32us, over an hour, longer ones go to the last bucket.
+        @VisibleForTesting
+        public static final int BUCKETS = SUB_BUCKETS * 32;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * @return the bucket of {@code us}.
+         */
+        @VisibleForTesting
+        public static int bucketOf(long us) {
+            if (us < SUB_BUCKETS) return (int) Math.max(us, 0);
+            int exp = 63 - Long.numberOfLeadingZeros(us);
+            int sub = (int) (us >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return Math.min((exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+        }
+
+        /**
+         * @return the highest value of {@code bucket}.
+         */
+        @VisibleForTesting
+        public static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long width = 1L << (exp - SUB_BUCKET_BITS);
+            return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+        }
+
+        /** Record a duration. */
+        public void record(long us) {
+            mCounts.incrementAndGet(bucketOf(us));
+            mMax.accumulateAndGet(us, Math::max);
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the {@code percentile}th value, or 0 if
+         * empty.
+         */
+        public long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mCounts.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBoundOf(i), getMax());
+            }
+            return getMax();
+        }
+
+        /**
+         * @return the longest duration recorded.
+         */
+        public long getMax() {
+            return mMax.get();
+        }
+    }
+
+    private static final class OpStats {
+        final Histogram latency = new Histogram();
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder totalUs = new LongAdder();
+    }
+
+    private static final class PackageStats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder totalUs = new LongAdder();
+    }
+
+    private final String mProvider;
+    private final long mStartMs = SystemClock.elapsedRealtime();
+    // Keyed by match code and operation, see key().
+    private final ConcurrentHashMap<Integer, OpStats> mOps = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PackageStats> mPackages = new ConcurrentHashMap<>();
+
+    /**
+     * @param provider the name of the provider, for dumpsys.
+     */
+    public ProviderMetrics(@NonNull String provider) {
+        mProvider = provider;
+    }
+
+    private static int key(int op, int match) {
+        return match << 3 | op;
+    }
+
+    /**
+     * @return the start time to pass to {@link #record}.
+     */
+    public long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @return the rows of a query result.
+     */
+    public static int count(@Nullable Cursor cursor) {
+        return cursor == null ? 0 : cursor.getCount();
+    }
+
+    /**
+     * Record an operation.
+     *
+     * @param op the operation, one of the {@code OP_} constants.
+     * @param match the URI match code.
+     * @param callingPackage the calling package, if known.
+     * @param startNanos the value returned by {@link #start} before the operation.
+     * @param rows the rows returned or written, or {@link #FAILED} if the operation threw.
+     */
+    public void record(int op, int match, @Nullable String callingPackage, long startNanos,
+            int rows) {
+        long us = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        OpStats stats = mOps.get(key(op, match));
+        if (stats == null) {
+            stats = mOps.computeIfAbsent(key(op, match), k -> new OpStats());
+        }
+        stats.latency.record(us);
+        stats.calls.increment();
+        stats.totalUs.add(us);
+        if (rows == FAILED) {
+            stats.errors.increment();
+        } else {
+            stats.rows.add(rows);
+        }
+
+        if (callingPackage == null) callingPackage = UNKNOWN_PACKAGE;
+        PackageStats packageStats = mPackages.get(callingPackage);
+        if (packageStats == null) {
+            packageStats = mPackages.size() < MAX_PACKAGES
+                    ? mPackages.computeIfAbsent(callingPackage, k -> new PackageStats())
+                    : mPackages.computeIfAbsent(OTHER_PACKAGES, k -> new PackageStats());
+        }
+        packageStats.calls.increment();
+        packageStats.totalUs.add(us);
+    }
+
+    /**
+     * Handle {@link #METHOD_GET_METRICS}.
+     *
+     * @return the metrics, see the class documentation for their layout.
+     * @throws SecurityException if the caller doesn't hold the DUMP permission.
+     */
+    @NonNull
+    public Bundle call(@NonNull Context context) {
+        context.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, mProvider);
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_UPTIME_MS, SystemClock.elapsedRealtime() - mStartMs);
+        for (Map.Entry<Integer, OpStats> entry : mOps.entrySet()) {
+            OpStats stats = entry.getValue();
+            bundle.putLongArray(opName(entry.getKey()), new long[] {
+                    stats.calls.sum(), stats.errors.sum(), stats.rows.sum(), stats.totalUs.sum(),
+                    stats.latency.percentile(50), stats.latency.percentile(90),
+                    stats.latency.percentile(99), stats.latency.getMax()});
+        }
+        for (Map.Entry<String, PackageStats> entry : mPackages.entrySet()) {
+            PackageStats stats = entry.getValue();
+            bundle.putLongArray("package/" + entry.getKey(),
+                    new long[] {stats.calls.sum(), stats.totalUs.sum()});
+        }
+        return bundle;
+    }
+
+    private static String opName(int key) {
+        return OP_NAMES[key & 7] + "/" + (key >> 3);
+    }
+
+    /**
+     * Dump the metrics, sorted by operation and match code.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        long uptimeMs = Math.max(SystemClock.elapsedRealtime() - mStartMs, 1);
+        pw.println(mProvider + " metrics (over " + uptimeMs / 1000 + "s):");
+        pw.increaseIndent();
+        Map<String, OpStats> ops = new TreeMap<>();
+        for (Map.Entry<Integer, OpStats> entry : mOps.entrySet()) {
+            ops.put(opName(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<String, OpStats> entry : ops.entrySet()) {
+            OpStats stats = entry.getValue();
+            long calls = stats.calls.sum();
+            long rows = stats.rows.sum();
+            pw.println(entry.getKey() + ": calls=" + calls + " errors=" + stats.errors.sum()
+                    + " rows=" + rows + " rows/s=" + rows * 1000 / uptimeMs
+                    + " avgUs=" + (calls == 0 ? 0 : stats.totalUs.sum() / calls)
+                    + " p50Us=" + stats.latency.percentile(50)
+                    + " p90Us=" + stats.latency.percentile(90)
+                    + " p99Us=" + stats.latency.percentile(99)
+                    + " maxUs=" + stats.latency.getMax());
+        }
+        pw.println("Callers:");
+        pw.increaseIndent();
+        for (Map.Entry<String, PackageStats> entry : new TreeMap<>(mPackages).entrySet()) {
+            PackageStats stats = entry.getValue();
+            pw.println(entry.getKey() + ": calls=" + stats.calls.sum() + " totalUs="
+                    + stats.totalUs.sum());
+        }
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+}
@@ -41,6 +41,8 @@ import com.android.internal.telephony.flags.Flags;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -102,7 +104,28 @@ public class ProviderUtil {
      */
     public static void notifyIfNotDefaultSmsApp(final Uri uri, final String callingPackage,
             final Context context) {
-        if (TextUtils.equals(callingPackage, Telephony.Sms.getDefaultSmsPackage(context))) {
+        notifyIfNotDefaultSmsApp(uri, Collections.singleton(callingPackage), context);
+    }
+
+    /**
+     * Notify the default SMS app of SMS/MMS provider changes if any of them is being made by a
+     * package other than the default SMS app itself. At most one broadcast is sent.
+     *
+     * @param uri The uri the provider changes apply to, or null if they don't share one
+     * @param callingPackages The package names of the provider callers
+     * @param Context
+     */
+    public static void notifyIfNotDefaultSmsApp(final Uri uri,
+            final Collection<String> callingPackages, final Context context) {
+        final String defaultSmsPackage = Telephony.Sms.getDefaultSmsPackage(context);
+        boolean changedByOtherPackage = false;
+        for (String callingPackage : callingPackages) {
+            if (!TextUtils.equals(callingPackage, defaultSmsPackage)) {
+                changedByOtherPackage = true;
+                break;
+            }
+        }
+        if (!changedByOtherPackage) {
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "notifyIfNotDefaultSmsApp - called from default sms app");
             }
@@ -124,7 +147,8 @@ public class ProviderUtil {
             intent.setData(uri);
         }
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.d(TAG, "notifyIfNotDefaultSmsApp - called from " + callingPackage + ", notifying");
+            Log.d(TAG, "notifyIfNotDefaultSmsApp - called from " + callingPackages
+                    + ", notifying");
         }
         intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         context.sendBroadcast(intent);
@@ -23,9 +23,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.Telephony;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 public class SatelliteProvider extends ContentProvider {
@@ -34,6 +38,9 @@ public class SatelliteProvider extends ContentProvider {
 
     private SatelliteDatabaseHelper mDbHelper;
 
+    // Every URI is the datagrams table, recorded as match code 0.
+    private final ProviderMetrics mMetrics = new ProviderMetrics(TAG);
+
     @Override
     public boolean onCreate() {
         Log.d(TAG, "onCreate");
@@ -44,6 +51,20 @@ public class SatelliteProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Cursor c = queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+            rows = ProviderMetrics.count(c);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY, 0, getCallingPackageUnchecked(), start,
+                    rows);
+        }
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         if (VDBG) {
             Log.d(TAG, "query:"
                     + " uri=" + uri
@@ -66,6 +87,19 @@ public class SatelliteProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Uri insertUri = insertInternal(uri, values);
+            rows = insertUri != null ? 1 : 0;
+            return insertUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, 0, getCallingPackageUnchecked(), start,
+                    rows);
+        }
+    }
+
+    private Uri insertInternal(Uri uri, ContentValues values) {
         if (VDBG) {
             Log.d(TAG, "insert:"
                     + " uri=" + uri
@@ -83,6 +117,18 @@ public class SatelliteProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = deleteInternal(uri, selection, selectionArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, 0, getCallingPackageUnchecked(), start,
+                    rows);
+        }
+    }
+
+    private int deleteInternal(Uri uri, String selection, String[] selectionArgs) {
         if (VDBG) {
             Log.d(TAG, "delete:"
                     + " uri=" + uri
@@ -101,6 +147,19 @@ public class SatelliteProvider extends ContentProvider {
        return 0;
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ProviderMetrics.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.call(getContext());
+        }
+        return super.call(method, arg, extras);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(new IndentingPrintWriter(writer, "  "));
+    }
+
     /**
      * These methods can be overridden in a subclass for testing SatelliteProvider using an
      * in-memory database.
@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable copy of the siminfo table, which serves the queries of the whole table without
+ * SQLite.
+ *
+ * The table has a few dozen rows at most but is read all the time. A query is answered from the
+ * snapshot when its projection only names columns, its selection is a conjunction of comparisons
+ * of a column with a literal or a {@code ?} argument, or {@code IS [NOT] NULL}, and its order is
+ * a list of columns. The comparisons follow the SQLite rules, column affinity included, and the
+ * result is a cursor over a {@link CursorWindow}, converting values like a SQLite cursor does.
+ * Any other query returns {@code null} and goes to SQLite.
+ *
+ * {@link Cache} holds the current snapshot: it is dropped at each write and built again by the
+ * next query.
+ */
+public final class SimInfoSnapshot {
+    private static final String TAG = "SimInfoSnapshot";
+
+    // Column affinities, see https://www.sqlite.org/datatype3.html
+    private static final int AFFINITY_BLOB = 0;
+    private static final int AFFINITY_TEXT = 1;
+    private static final int AFFINITY_NUMERIC = 2;
+
+    // Operators of a term of the selection.
+    private static final int OP_EQ = 0;
+    private static final int OP_NE = 1;
+    private static final int OP_LT = 2;
+    private static final int OP_LE = 3;
+    private static final int OP_GT = 4;
+    private static final int OP_GE = 5;
+    private static final int OP_IS_NULL = 6;
+    private static final int OP_IS_NOT_NULL = 7;
+
+    // A name, an integer, a string, a placeholder, a comparison operator or a comma.
+    private static final Pattern TOKEN = Pattern.compile("\\s*(?:[A-Za-z_][A-Za-z0-9_]*"
+            + "|-?[0-9]+|'(?:[^']|'')*'|\\?|==|=|!=|<>|<=|>=|<|>|,)");
+    private static final Pattern INTEGER = Pattern.compile("[+-]?[0-9]+");
+    private static final Pattern REAL =
+            Pattern.compile("[+-]?(?:[0-9]+(?:\\.[0-9]*)?|\\.[0-9]+)(?:[eE][+-]?[0-9]+)?");
+
+    // Bumped by writes to siminfo done outside of the provider methods, see noteDirectWrite().
+    private static final AtomicLong sDirectWrites = new AtomicLong();
+
+    private final String[] mColumns;
+    // Lower case column name to index, column names are case insensitive in SQLite.
+    private final Map<String, Integer> mColumnIndexes;
+    private final int[] mAffinities;
+    // Each row holds Long, Double, String, byte[] or null values, in _id order.
+    private final List<Object[]> mRows;
+    private final long mDirectWrites;
+
+    private SimInfoSnapshot(String[] columns, int[] affinities, List<Object[]> rows,
+            long directWrites) {
+        mColumns = columns;
+        mAffinities = affinities;
+        mRows = rows;
+        mDirectWrites = directWrites;
+        mColumnIndexes = new TreeMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            mColumnIndexes.put(columns[i].toLowerCase(Locale.ROOT), i);
+        }
+    }
+
+    /**
+     * Note a write to the siminfo table that doesn't go through the provider, like the column
+     * fill-ins of the database upgrade, so the snapshots taken before it are not used anymore.
+     */
+    public static void noteDirectWrite() {
+        sDirectWrites.incrementAndGet();
+    }
+
+    /**
+     * Read the whole table. Must be called with the table read lock held.
+     */
+    @NonNull
+    public static SimInfoSnapshot load(@NonNull SQLiteDatabase db, @NonNull String table) {
+        long directWrites = sDirectWrites.get();
+        Map<String, Integer> declaredAffinities = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        try (Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int name = c.getColumnIndexOrThrow("name");
+            int type = c.getColumnIndexOrThrow("type");
+            while (c.moveToNext()) {
+                declaredAffinities.put(c.getString(name), affinityOf(c.getString(type)));
+            }
+        }
+        List<Object[]> rows = new ArrayList<>();
+        String[] columns;
+        int[] affinities;
+        try (Cursor c = db.query(table, null, null, null, null, null, "_id")) {
+            columns = c.getColumnNames();
+            affinities = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                Integer affinity = declaredAffinities.get(columns[i]);
+                affinities[i] = affinity != null ? affinity : AFFINITY_BLOB;
+            }
+            while (c.moveToNext()) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    switch (c.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = c.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = c.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = c.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = c.getBlob(i);
+                            break;
+                        default:
+                            row[i] = null;
+                            break;
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        return new SimInfoSnapshot(columns, affinities, rows, directWrites);
+    }
+
+    /**
+     * @return the affinity of a column of declared type {@code type}.
+     */
+    private static int affinityOf(@Nullable String type) {
+        String upper = type == null ? "" : type.toUpperCase(Locale.ROOT);
+        if (upper.contains("INT")) return AFFINITY_NUMERIC;
+        if (upper.contains("CHAR") || upper.contains("CLOB") || upper.contains("TEXT")) {
+            return AFFINITY_TEXT;
+        }
+        if (upper.isEmpty() || upper.contains("BLOB")) return AFFINITY_BLOB;
+        // REAL and NUMERIC compare the same way.
+        return AFFINITY_NUMERIC;
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public int size() {
+        return mRows.size();
+    }
+
+    private boolean isCurrent() {
+        return mDirectWrites == sDirectWrites.get();
+    }
+
+    /** A term of the selection. */
+    private static final class Term {
+        final int column;
+        final int op;
+        // The literal or argument compared with, with the column affinity applied.
+        final Object operand;
+
+        Term(int column, int op, Object operand) {
+            this.column = column;
+            this.op = op;
+            this.operand = operand;
+        }
+    }
+
+    /**
+     * Answer a query.
+     *
+     * @return the result, or {@code null} if the query must go to SQLite.
+     */
+    @Nullable
+    public Cursor query(@Nullable String[] projection, @Nullable String selection,
+            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        int[] projected = parseProjection(projection);
+        if (projected == null) return null;
+        List<Term> terms = parseSelection(selection, selectionArgs);
+        if (terms == null) return null;
+        Comparator<Object[]> order = parseOrder(sortOrder);
+        if (order == null) return null;
+
+        List<Object[]> rows = new ArrayList<>();
+        for (Object[] row : mRows) {
+            if (matches(row, terms)) rows.add(row);
+        }
+        // A stable sort, rows of the same rank stay in _id order.
+        rows.sort(order);
+
+        String[] columns = new String[projected.length];
+        for (int i = 0; i < projected.length; i++) {
+            columns[i] = projection == null ? mColumns[i] : projection[i];
+        }
+        return SnapshotCursor.create(columns, projected, rows);
+    }
+
+    @Nullable
+    private int[] parseProjection(@Nullable String[] projection) {
+        if (projection == null) {
+            int[] all = new int[mColumns.length];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            return all;
+        }
+        int[] projected = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            Integer index = projection[i] == null
+                    ? null : mColumnIndexes.get(projection[i].toLowerCase(Locale.ROOT));
+            // Expressions, aliases and "*" go to SQLite.
+            if (index == null) return null;
+            projected[i] = index;
+        }
+        return projected;
+    }
+
+    /**
+     * @return the terms of {@code selection}, all of which must hold, or {@code null} if it is
+     * not a conjunction of comparisons.
+     */
+    @Nullable
+    private List<Term> parseSelection(@Nullable String selection,
+            @Nullable String[] selectionArgs) {
+        List<Term> terms = new ArrayList<>();
+        if (TextUtils.isEmpty(selection)) {
+            // SQLite rejects arguments without placeholders.
+            return selectionArgs == null || selectionArgs.length == 0 ? terms : null;
+        }
+        List<String> tokens = tokenize(selection);
+        if (tokens == null) return null;
+        int nextArg = 0;
+        int i = 0;
+        while (true) {
+            if (i + 1 >= tokens.size()) return null;
+            Integer column = mColumnIndexes.get(tokens.get(i).toLowerCase(Locale.ROOT));
+            if (column == null) return null;
+            String opToken = tokens.get(i + 1);
+            if (opToken.equalsIgnoreCase("IS")) {
+                // column IS [NOT] NULL
+                if (i + 2 < tokens.size() && tokens.get(i + 2).equalsIgnoreCase("NULL")) {
+                    terms.add(new Term(column, OP_IS_NULL, null));
+                    i += 3;
+                } else if (i + 3 < tokens.size() && tokens.get(i + 2).equalsIgnoreCase("NOT")
+                        && tokens.get(i + 3).equalsIgnoreCase("NULL")) {
+                    terms.add(new Term(column, OP_IS_NOT_NULL, null));
+                    i += 4;
+                } else {
+                    return null;
+                }
+            } else {
+                int op = operatorOf(opToken);
+                if (op < 0 || i + 2 >= tokens.size()) return null;
+                String operandToken = tokens.get(i + 2);
+                Object operand;
+                if (operandToken.equals("?")) {
+                    if (selectionArgs == null || nextArg >= selectionArgs.length) return null;
+                    operand = selectionArgs[nextArg++];
+                    // A null argument binds NULL.
+                } else if (operandToken.startsWith("'")) {
+                    operand = operandToken.substring(1, operandToken.length() - 1)
+                            .replace("''", "'");
+                } else if (INTEGER.matcher(operandToken).matches()) {
+                    try {
+                        operand = Long.parseLong(operandToken);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                } else {
+                    // Another column, a keyword or an expression.
+                    return null;
+                }
+                terms.add(new Term(column, op, applyAffinity(mAffinities[column], operand)));
+                i += 3;
+            }
+            if (i == tokens.size()) break;
+            if (!tokens.get(i).equalsIgnoreCase("AND")) return null;
+            i++;
+        }
+        // Unused arguments are an error for SQLite.
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        return nextArg == argCount ? terms : null;
+    }
+
+    /**
+     * @return the tokens of {@code sql}, string literals with their quotes, or {@code null} if it
+     * holds anything else than names, integers, strings, placeholders and comparison operators.
+     */
+    @Nullable
+    private static List<String> tokenize(String sql) {
+        List<String> tokens = new ArrayList<>();
+        Matcher m = TOKEN.matcher(sql);
+        int pos = 0;
+        while (pos < sql.length()) {
+            if (sql.substring(pos).trim().isEmpty()) break;
+            m.region(pos, sql.length());
+            if (!m.lookingAt()) return null;
+            String token = m.group().trim();
+            tokens.add(token);
+            pos = m.end();
+        }
+        return tokens;
+    }
+
+    private static int operatorOf(String token) {
+        switch (token) {
+            case "=":
+            case "==":
+                return OP_EQ;
+            case "!=":
+            case "<>":
+                return OP_NE;
+            case "<":
+                return OP_LT;
+            case "<=":
+                return OP_LE;
+            case ">":
+                return OP_GT;
+            case ">=":
+                return OP_GE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the comparator of {@code sortOrder}, or {@code null} if it is not a list of columns.
+     */
+    @Nullable
+    private Comparator<Object[]> parseOrder(@Nullable String sortOrder) {
+        if (TextUtils.isEmpty(sortOrder)) return (a, b) -> 0;
+        List<String> tokens = tokenize(sortOrder);
+        if (tokens == null || tokens.isEmpty()) return null;
+        Comparator<Object[]> order = null;
+        int i = 0;
+        while (i < tokens.size()) {
+            Integer column = mColumnIndexes.get(tokens.get(i).toLowerCase(Locale.ROOT));
+            if (column == null) return null;
+            i++;
+            boolean descending = false;
+            if (i < tokens.size() && (tokens.get(i).equalsIgnoreCase("ASC")
+                    || tokens.get(i).equalsIgnoreCase("DESC"))) {
+                descending = tokens.get(i).equalsIgnoreCase("DESC");
+                i++;
+            }
+            final int index = column;
+            Comparator<Object[]> byColumn = (a, b) -> compareValues(a[index], b[index]);
+            if (descending) byColumn = byColumn.reversed();
+            order = order == null ? byColumn : order.thenComparing(byColumn);
+            if (i < tokens.size()) {
+                if (!tokens.get(i).equals(",")) return null;
+                i++;
+                if (i == tokens.size()) return null;
+            }
+        }
+        return order;
+    }
+
+    private static boolean matches(Object[] row, List<Term> terms) {
+        for (Term term : terms) {
+            Object value = row[term.column];
+            switch (term.op) {
+                case OP_IS_NULL:
+                    if (value != null) return false;
+                    continue;
+                case OP_IS_NOT_NULL:
+                    if (value == null) return false;
+                    continue;
+                default:
+                    // Comparing with NULL is never true.
+                    if (value == null || term.operand == null) return false;
+                    int cmp = compareValues(value, term.operand);
+                    boolean holds;
+                    switch (term.op) {
+                        case OP_EQ: holds = cmp == 0; break;
+                        case OP_NE: holds = cmp != 0; break;
+                        case OP_LT: holds = cmp < 0; break;
+                        case OP_LE: holds = cmp <= 0; break;
+                        case OP_GT: holds = cmp > 0; break;
+                        default: holds = cmp >= 0; break;
+                    }
+                    if (!holds) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the affinity of a column to the value it is compared with, as SQLite does for a
+     * literal or a bound argument.
+     */
+    private static Object applyAffinity(int affinity, @Nullable Object value) {
+        if (affinity == AFFINITY_NUMERIC && value instanceof String) {
+            String text = ((String) value).trim();
+            if (INTEGER.matcher(text).matches()) {
+                try {
+                    return Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(text);
+                }
+            }
+            if (REAL.matcher(text).matches()) {
+                return Double.parseDouble(text);
+            }
+        } else if (affinity == AFFINITY_TEXT && value instanceof Long) {
+            return value.toString();
+        }
+        return value;
+    }
+
+    private static int storageClassRank(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Number) return 1;
+        if (value instanceof String) return 2;
+        return 3;
+    }
+
+    /**
+     * Compare two values like SQLite: NULL, then numbers, then text in BINARY collation, then
+     * blobs.
+     */
+    private static int compareValues(@Nullable Object a, @Nullable Object b) {
+        int rankA = storageClassRank(a);
+        int rankB = storageClassRank(b);
+        if (rankA != rankB) return Integer.compare(rankA, rankB);
+        switch (rankA) {
+            case 0:
+                return 0;
+            case 1:
+                if (a instanceof Long && b instanceof Long) {
+                    return Long.compare((Long) a, (Long) b);
+                }
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            case 2:
+                // UTF-8 byte order is code point order.
+                return compareCodePoints((String) a, (String) b);
+            default:
+                return compareBytes((byte[]) a, (byte[]) b);
+        }
+    }
+
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) return Integer.compare(ca, cb);
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * A cursor over a window filled from the snapshot, so values convert between types like they
+     * do in the cursors of SQLite.
+     */
+    private static final class SnapshotCursor extends AbstractWindowedCursor {
+        private final String[] mColumnNames;
+        private final int mCount;
+
+        private SnapshotCursor(String[] columnNames, CursorWindow window, int count) {
+            mColumnNames = columnNames;
+            mCount = count;
+            setWindow(window);
+        }
+
+        @Nullable
+        static Cursor create(String[] columnNames, int[] projected, List<Object[]> rows) {
+            CursorWindow window = new CursorWindow(TAG);
+            boolean filled = false;
+            try {
+                if (!window.setNumColumns(projected.length)) return null;
+                for (Object[] row : rows) {
+                    if (!window.allocRow()) return null;
+                    int r = window.getNumRows() - 1;
+                    for (int i = 0; i < projected.length; i++) {
+                        if (!putValue(window, row[projected[i]], r, i)) return null;
+                    }
+                }
+                filled = true;
+                return new SnapshotCursor(columnNames, window, rows.size());
+            } finally {
+                if (!filled) window.close();
+            }
+        }
+
+        private static boolean putValue(CursorWindow window, Object value, int row, int column) {
+            if (value == null) return window.putNull(row, column);
+            if (value instanceof Long) return window.putLong((Long) value, row, column);
+            if (value instanceof Double) return window.putDouble((Double) value, row, column);
+            if (value instanceof String) return window.putString((String) value, row, column);
+            return window.putBlob((byte[]) value, row, column);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+    }
+
+    /**
+     * Holds the current snapshot of the table.
+     */
+    public static final class Cache {
+        private final String mTable;
+        private final InstrumentedReadWriteLock mLock;
+
+        // Dropped by every write, under the write lock, and only set under the read lock.
+        private volatile SimInfoSnapshot mSnapshot;
+
+        private final AtomicLong mHits = new AtomicLong();
+        private final AtomicLong mFallbacks = new AtomicLong();
+        private final AtomicLong mLoads = new AtomicLong();
+
+        /**
+         * @param table the table.
+         * @param lock the lock guarding the table.
+         */
+        public Cache(@NonNull String table, @NonNull InstrumentedReadWriteLock lock) {
+            mTable = table;
+            mLock = lock;
+        }
+
+        /**
+         * Drop the snapshot. Must be called with the write lock held, before writing to the
+         * table, so a query after the write can't be answered from the rows before it.
+         */
+        public void invalidate() {
+            mSnapshot = null;
+        }
+
+        /**
+         * Answer a query from the snapshot, building it first if needed.
+         *
+         * @param db gives the database, only called with the read lock held.
+         * @return the result, or {@code null} if the query must go to SQLite.
+         */
+        @Nullable
+        public Cursor query(@NonNull Supplier<SQLiteDatabase> db, @Nullable String[] projection,
+                @Nullable String selection, @Nullable String[] selectionArgs,
+                @Nullable String sortOrder) {
+            // The writer may read the rows it just wrote, which the snapshot may not have.
+            if (mLock.isWriteLockedByCurrentThread()) return null;
+            SimInfoSnapshot snapshot = mSnapshot;
+            if (snapshot == null || !snapshot.isCurrent()) {
+                mLock.lockRead();
+                try {
+                    snapshot = SimInfoSnapshot.load(db.get(), mTable);
+                    mSnapshot = snapshot;
+                    mLoads.incrementAndGet();
+                } catch (SQLException e) {
+                    Log.w(TAG, "load failed: " + e);
+                    return null;
+                } finally {
+                    mLock.unlockRead();
+                }
+            }
+            Cursor cursor = snapshot.query(projection, selection, selectionArgs, sortOrder);
+            (cursor != null ? mHits : mFallbacks).incrementAndGet();
+            return cursor;
+        }
+
+        /**
+         * Dump the cache statistics.
+         */
+        public void dump(@NonNull IndentingPrintWriter pw) {
+            SimInfoSnapshot snapshot = mSnapshot;
+            pw.println("SimInfoSnapshot: rows=" + (snapshot == null ? "none" : snapshot.size())
+                    + " hits=" + mHits.get() + " fallbacks=" + mFallbacks.get()
+                    + " loads=" + mLoads.get());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimInfoSnapshot{columns=" + Arrays.toString(mColumns) + " rows=" + mRows.size()
+                + "}";
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.provider.Telephony;
+import android.telephony.TelephonyManager;
+import android.util.AtomicFile;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * The backed up SIM specific settings, parsed once and indexed by iccid and carrier id.
+ *
+ * Every SIM inserted during setup asks for a restore. Instead of parsing the backup file and
+ * comparing each of its rows with the SIM each time, the parsed backup is kept along with the
+ * size and modification time of the file, and parsed again only once the file has changed.
+ */
+public class SimSettingsBackupStore {
+    private static final String TAG = "SimSettingsBackupStore";
+
+    /**
+     * A parsed backup.
+     */
+    public static final class Backup {
+        private final PersistableBundle mBundle;
+        private final List<PersistableBundle> mRows = new ArrayList<>();
+        private final Map<String, List<Integer>> mRowsByIccId = new HashMap<>();
+        private final SparseArray<List<Integer>> mRowsByCarrierId = new SparseArray<>();
+
+        @VisibleForTesting
+        Backup(@NonNull PersistableBundle bundle, @NonNull String rowPrefix) {
+            mBundle = bundle;
+            for (int rowNum = 0; true; rowNum++) {
+                PersistableBundle row = bundle.getPersistableBundle(rowPrefix + rowNum);
+                if (row == null) {
+                    break;
+                }
+                mRows.add(row);
+                String iccId = row.getString(Telephony.SimInfo.COLUMN_ICC_ID, "");
+                if (!iccId.isEmpty()) {
+                    mRowsByIccId.computeIfAbsent(iccId, k -> new ArrayList<>()).add(rowNum);
+                }
+                int carrierId = row.getInt(Telephony.SimInfo.COLUMN_CARRIER_ID,
+                        TelephonyManager.UNKNOWN_CARRIER_ID);
+                if (carrierId != TelephonyManager.UNKNOWN_CARRIER_ID) {
+                    List<Integer> rows = mRowsByCarrierId.get(carrierId);
+                    if (rows == null) {
+                        rows = new ArrayList<>();
+                        mRowsByCarrierId.put(carrierId, rows);
+                    }
+                    rows.add(rowNum);
+                }
+            }
+        }
+
+        /**
+         * @return the whole backup. Changes to it are only kept in memory.
+         */
+        @NonNull
+        public PersistableBundle getBundle() {
+            return mBundle;
+        }
+
+        /**
+         * @return the number of backed up siminfo rows.
+         */
+        public int getRowCount() {
+            return mRows.size();
+        }
+
+        /**
+         * @return the backed up siminfo row {@code rowNum}.
+         */
+        @NonNull
+        public PersistableBundle getRow(int rowNum) {
+            return mRows.get(rowNum);
+        }
+
+        /**
+         * @return in ascending order, the rows which may match a SIM: those of the same iccid or
+         * of the same carrier id, plus the first row. Every other row has the same match score
+         * as the first row or a lower one, so is never preferred to the rows returned.
+         */
+        @NonNull
+        public int[] getCandidateRows(@Nullable String iccId, int carrierId) {
+            if (mRows.isEmpty()) {
+                return new int[0];
+            }
+            TreeSet<Integer> candidates = new TreeSet<>();
+            candidates.add(0);
+            if (iccId != null) {
+                List<Integer> rows = mRowsByIccId.get(iccId);
+                if (rows != null) candidates.addAll(rows);
+            }
+            if (carrierId != TelephonyManager.UNKNOWN_CARRIER_ID) {
+                List<Integer> rows = mRowsByCarrierId.get(carrierId);
+                if (rows != null) candidates.addAll(rows);
+            }
+            return candidates.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private final Supplier<File> mFile;
+    private final String mRowPrefix;
+
+    @GuardedBy("this")
+    @Nullable
+    private Backup mBackup;
+    // The length and modification time of the file mBackup was read from.
+    @GuardedBy("this")
+    private long mLength;
+    @GuardedBy("this")
+    private long mLastModified;
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("this")
+    private long mHitCount;
+    @GuardedBy("this")
+    private long mParseCount;
+
+    /**
+     * @param file gives the backup file.
+     * @param rowPrefix the bundle key of each siminfo row, followed by its number.
+     */
+    public SimSettingsBackupStore(@NonNull Supplier<File> file, @NonNull String rowPrefix) {
+        mFile = file;
+        mRowPrefix = rowPrefix;
+    }
+
+    /**
+     * @return the backup, parsed again if the file changed, or {@code null} if there is none or
+     * it can't be read.
+     */
+    @Nullable
+    public synchronized Backup get() {
+        File file = mFile.get();
+        if (!file.exists()) {
+            Log.e(TAG, "internal sim-specific settings backup data file does not exist. "
+                    + "Aborting restore");
+            mBackup = null;
+            return null;
+        }
+        if (mBackup != null && file.length() == mLength && file.lastModified() == mLastModified) {
+            mHitCount++;
+            return mBackup;
+        }
+        mBackup = null;
+        long length = file.length();
+        long lastModified = file.lastModified();
+        PersistableBundle bundle;
+        try (FileInputStream fis = new AtomicFile(file).openRead()) {
+            bundle = PersistableBundle.readFromStream(fis);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to convert backed up per-sim configs to bundle. Stopping restore. "
+                    + "Failed with error " + e);
+            return null;
+        }
+        mParseCount++;
+        mBackup = new Backup(bundle, mRowPrefix);
+        mLength = length;
+        mLastModified = lastModified;
+        return mBackup;
+    }
+
+    /**
+     * Note that {@code backup} was just written to the file, so it doesn't need to be parsed
+     * again.
+     */
+    public synchronized void written(@NonNull Backup backup) {
+        File file = mFile.get();
+        mBackup = backup;
+        mLength = file.length();
+        mLastModified = file.lastModified();
+    }
+
+    /**
+     * Drop the parsed backup, e.g. because a new one is about to be written.
+     */
+    public synchronized void invalidate() {
+        mBackup = null;
+    }
+
+    /**
+     * Dump the state of the store.
+     */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("SimSettingsBackupStore: rows="
+                + (mBackup == null ? "none" : mBackup.getRowCount())
+                + " hits=" + mHitCount + " parses=" + mParseCount);
+    }
+}
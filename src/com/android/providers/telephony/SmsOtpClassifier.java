@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Trace;
+import android.provider.Telephony.Sms;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.view.textclassifier.TextClassifier;
+import android.view.textclassifier.TextLinks;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Classifies the messages inserted as {@link Sms#OTP_TYPE_PENDING}, and clears
+ * {@link Sms#CONTAINS_OTP} again once their hiding time expired.
+ *
+ * Messages are queued by {@link #enqueue} and classified in batches on the executor: the bodies
+ * of a batch are joined into one text for the classifier, up to its maximum length, and the
+ * results are written with one update per outcome. The queue is bounded; a message which doesn't
+ * fit stays pending, so it is shown once the classification timeout passed, like a message whose
+ * classification failed.
+ *
+ * The expiry of each OTP message is stored in {@link SmsProvider#COLUMN_OTP_EXPIRY}, and a single
+ * sweep is scheduled for the earliest one, so the expiries survive the process. {@link #start}
+ * must be called once the database can be opened to clear what expired meanwhile.
+ */
+public class SmsOtpClassifier {
+    private static final String TAG = "SmsOtpClassifier";
+
+    private static final int MAX_PENDING = 256;
+    private static final int MAX_BATCH_MESSAGES = 32;
+    // Keeps the messages of a batch apart for the classifier.
+    private static final String SEPARATOR = "\n\n";
+
+    private static final TextClassifier.EntityConfig TC_REQUEST_CONFIG =
+            new TextClassifier.EntityConfig.Builder()
+                    .setIncludedTypes(List.of(TextClassifier.TYPE_SMS_RETRIEVER_OTP))
+                    .includeTypesFromTextClassifier(false)
+                    .build();
+
+    private static final String EXPIRED = SmsProvider.COLUMN_OTP_EXPIRY + " <= ?";
+    private static final String NEXT_EXPIRY = "SELECT MIN(" + SmsProvider.COLUMN_OTP_EXPIRY
+            + ") FROM " + SmsProvider.TABLE_SMS + " WHERE " + SmsProvider.COLUMN_OTP_EXPIRY
+            + " IS NOT NULL";
+
+    /** A message waiting for its classification. */
+    private static class Message {
+        final long mRowId;
+        final String mText;
+
+        Message(long rowId, String text) {
+            mRowId = rowId;
+            mText = text;
+        }
+    }
+
+    private final Supplier<SQLiteDatabase> mDb;
+    private final Supplier<TextClassifier> mClassifier;
+    private final Executor mExecutor;
+    private final Handler mHandler;
+    private final long mHidingTimeMs;
+    private final Runnable mOnUpdated;
+    private final Runnable mSweep = () -> mExecutor.execute(this::sweep);
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<Message> mPending = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private boolean mScheduled;
+    // The time of the scheduled sweep, or Long.MAX_VALUE if none is.
+    @GuardedBy("mLock")
+    private long mNextSweepMillis = Long.MAX_VALUE;
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private long mBatchCount;
+    @GuardedBy("mLock")
+    private long mClassifierCallCount;
+    @GuardedBy("mLock")
+    private long mMessageCount;
+    @GuardedBy("mLock")
+    private long mOtpCount;
+    @GuardedBy("mLock")
+    private long mDroppedCount;
+    @GuardedBy("mLock")
+    private long mFailedCount;
+    @GuardedBy("mLock")
+    private long mExpiredCount;
+
+    /**
+     * @param db gives the database holding the sms table.
+     * @param classifier gives the text classifier, only called on {@code executor}.
+     * @param executor classifies the messages and sweeps the expired ones.
+     * @param handler schedules the sweeps.
+     * @param hidingTimeMs how long a message stays an OTP message once classified.
+     * @param onUpdated called after messages were updated.
+     */
+    public SmsOtpClassifier(@NonNull Supplier<SQLiteDatabase> db,
+            @NonNull Supplier<TextClassifier> classifier, @NonNull Executor executor,
+            @NonNull Handler handler, long hidingTimeMs, @NonNull Runnable onUpdated) {
+        mDb = db;
+        mClassifier = classifier;
+        mExecutor = executor;
+        mHandler = handler;
+        mHidingTimeMs = hidingTimeMs;
+        mOnUpdated = onUpdated;
+    }
+
+    /**
+     * Clear the messages whose hiding time expired, and schedule the sweep of the next one.
+     */
+    public void start() {
+        mExecutor.execute(this::sweep);
+    }
+
+    /**
+     * Queue a message for its classification.
+     *
+     * @param rowId the id of the message in the sms table.
+     * @param text its body.
+     * @return {@code false} if the queue is full, the message then stays pending.
+     */
+    public boolean enqueue(long rowId, @NonNull String text) {
+        synchronized (mLock) {
+            if (mPending.size() >= MAX_PENDING) {
+                mDroppedCount++;
+                Log.w(TAG, "enqueue: queue full, not classifying " + rowId);
+                return false;
+            }
+            mPending.add(new Message(rowId, text));
+            if (mScheduled) {
+                return true;
+            }
+            mScheduled = true;
+        }
+        mExecutor.execute(this::runBatch);
+        return true;
+    }
+
+    @VisibleForTesting
+    void runBatch() {
+        List<Message> batch = new ArrayList<>();
+        boolean more;
+        TextClassifier classifier;
+        int maxLength;
+        try {
+            classifier = mClassifier.get();
+            maxLength = classifier.getMaxGenerateLinksTextLength();
+        } catch (RuntimeException e) {
+            // The messages stay pending, and are tried again once another one is enqueued.
+            Log.e(TAG, "runBatch: no text classifier", e);
+            synchronized (mLock) {
+                mScheduled = false;
+            }
+            return;
+        }
+        synchronized (mLock) {
+            int length = 0;
+            while (!mPending.isEmpty() && batch.size() < MAX_BATCH_MESSAGES) {
+                int next = mPending.peek().mText.length() + (batch.isEmpty() ? 0
+                        : SEPARATOR.length());
+                // A message too long for the classifier still goes alone, and fails alone.
+                if (!batch.isEmpty() && length + next > maxLength) {
+                    break;
+                }
+                batch.add(mPending.poll());
+                length += next;
+            }
+            more = !mPending.isEmpty();
+            mScheduled = more;
+        }
+        if (more) {
+            mExecutor.execute(this::runBatch);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<Long> otpRowIds = new ArrayList<>();
+        List<Long> otherRowIds = new ArrayList<>();
+        try {
+            Trace.beginSection("SmsOtpClassifier_classify");
+            boolean[] containsOtp = classify(classifier, batch);
+            for (int i = 0; i < batch.size(); i++) {
+                (containsOtp[i] ? otpRowIds : otherRowIds).add(batch.get(i).mRowId);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "runBatch: failed to classify " + batch.size() + " messages", e);
+            synchronized (mLock) {
+                mFailedCount += batch.size();
+            }
+            return;
+        } finally {
+            Trace.endSection();
+        }
+
+        long expiry = System.currentTimeMillis() + mHidingTimeMs;
+        int updated = 0;
+        boolean written = false;
+        try {
+            SQLiteDatabase db = mDb.get();
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put(Sms.CONTAINS_OTP, Sms.OTP_TYPE_CONTAINS_OTP);
+                values.put(SmsProvider.COLUMN_OTP_EXPIRY, expiry);
+                updated += updateRows(db, values, otpRowIds);
+                values = new ContentValues();
+                values.put(Sms.CONTAINS_OTP, Sms.OTP_TYPE_NONE);
+                updated += updateRows(db, values, otherRowIds);
+                db.setTransactionSuccessful();
+                written = true;
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException | IllegalStateException e) {
+            // The messages stay pending, so they are shown after the classification timeout.
+            Log.e(TAG, "runBatch: failed to update " + batch.size() + " messages", e);
+        }
+
+        synchronized (mLock) {
+            mBatchCount++;
+            mMessageCount += batch.size();
+            if (written) {
+                mOtpCount += otpRowIds.size();
+                if (!otpRowIds.isEmpty()) {
+                    scheduleSweepLocked(expiry);
+                }
+            } else {
+                mFailedCount += batch.size();
+            }
+        }
+        if (updated > 0) {
+            mOnUpdated.run();
+        }
+    }
+
+    /**
+     * @return whether each message of {@code batch} contains an OTP.
+     */
+    private boolean[] classify(TextClassifier classifier, List<Message> batch) {
+        // Where each message starts in the text given to the classifier.
+        int[] starts = new int[batch.size()];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                text.append(SEPARATOR);
+            }
+            starts[i] = text.length();
+            text.append(batch.get(i).mText);
+        }
+        synchronized (mLock) {
+            mClassifierCallCount++;
+        }
+        TextLinks links = classifier.generateLinks(new TextLinks.Request.Builder(text)
+                .setEntityConfig(TC_REQUEST_CONFIG).build());
+
+        boolean[] containsOtp = new boolean[batch.size()];
+        for (TextLinks.TextLink link : links.getLinks()) {
+            for (int i = 0; i < link.getEntityCount(); i++) {
+                if (link.getEntity(i).equals(TextClassifier.TYPE_SMS_RETRIEVER_OTP)) {
+                    int message = messageAt(starts, link.getStart());
+                    // A link running past the end of its message was found in the text of
+                    // several messages, so holds no OTP of any of them.
+                    if (link.getEnd() <= starts[message] + batch.get(message).mText.length()) {
+                        containsOtp[message] = true;
+                    }
+                    break;
+                }
+            }
+        }
+        return containsOtp;
+    }
+
+    /**
+     * @return the index of the message holding the character at {@code offset}.
+     */
+    private static int messageAt(int[] starts, int offset) {
+        int index = 0;
+        while (index + 1 < starts.length && starts[index + 1] <= offset) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int updateRows(SQLiteDatabase db, ContentValues values, List<Long> rowIds) {
+        if (rowIds.isEmpty()) {
+            return 0;
+        }
+        StringBuilder where = new StringBuilder(Sms._ID + " IN (");
+        for (int i = 0; i < rowIds.size(); i++) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append(rowIds.get(i));
+        }
+        where.append(')');
+        return db.update(SmsProvider.TABLE_SMS, values, where.toString(), null);
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleSweepLocked(long timeMillis) {
+        if (timeMillis >= mNextSweepMillis) {
+            return;
+        }
+        mNextSweepMillis = timeMillis;
+        mHandler.removeCallbacks(mSweep);
+        mHandler.postDelayed(mSweep, Math.max(timeMillis - System.currentTimeMillis(), 0));
+    }
+
+    @VisibleForTesting
+    void sweep() {
+        synchronized (mLock) {
+            mNextSweepMillis = Long.MAX_VALUE;
+        }
+        int cleared;
+        long next;
+        try {
+            SQLiteDatabase db = mDb.get();
+            ContentValues values = new ContentValues();
+            values.put(Sms.CONTAINS_OTP, Sms.OTP_TYPE_NONE);
+            values.putNull(SmsProvider.COLUMN_OTP_EXPIRY);
+            cleared = db.update(SmsProvider.TABLE_SMS, values, EXPIRED,
+                    new String[] {String.valueOf(System.currentTimeMillis())});
+            // Zero when no message has an expiry.
+            next = DatabaseUtils.longForQuery(db, NEXT_EXPIRY, null);
+        } catch (SQLException | IllegalStateException e) {
+            // E.g. the database can't be opened before the user is unlocked.
+            Log.w(TAG, "sweep: failed, " + e);
+            return;
+        }
+
+        synchronized (mLock) {
+            mExpiredCount += cleared;
+            if (next > 0) {
+                scheduleSweepLocked(next);
+            }
+        }
+        if (cleared > 0) {
+            mOnUpdated.run();
+        }
+    }
+
+    /**
+     * Dump the statistics of the classification.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("SmsOtpClassifier: batches=" + mBatchCount + " classifierCalls="
+                    + mClassifierCallCount + " messages=" + mMessageCount + " otps=" + mOtpCount
+                    + " dropped=" + mDroppedCount + " failed=" + mFailedCount + " expired="
+                    + mExpiredCount + " pending=" + mPending.size() + " nextSweep="
+                    + (mNextSweepMillis == Long.MAX_VALUE ? "none" : mNextSweepMillis));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony.Sms;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Fills in the {@link Sms#PERSON} column of the inbox messages once they are inserted, so the
+ * contacts lookup is not on the path of SMS delivery.
+ *
+ * Messages are queued by {@link #enqueue} and handled in batches on the executor: each distinct
+ * address is looked up once, from a cache of the contact of recent addresses, and the batch is
+ * updated in a single transaction. The cache must be cleared by {@link #onContactsChanged}.
+ */
+public class SmsPersonEnricher {
+    private static final String TAG = "SmsPersonEnricher";
+
+    private static final int MAX_CACHED_ADDRESSES = 128;
+    // Cached for the addresses which are no contact.
+    private static final long NO_PERSON = -1;
+
+    private static final String UPDATE_PERSON = "UPDATE " + SmsProvider.TABLE_SMS + " SET "
+            + Sms.PERSON + "=? WHERE " + Sms._ID + "=? AND " + Sms.PERSON + " IS NULL";
+
+    /** Looks up the contact of an address. */
+    public interface PersonLookup {
+        /**
+         * @return the person id of {@code address}, or {@code null} if it is no contact.
+         * @throws RuntimeException if the contacts can't be queried.
+         */
+        @Nullable
+        Long lookUp(@NonNull String address);
+    }
+
+    private final Supplier<SQLiteDatabase> mDb;
+    private final PersonLookup mLookup;
+    private final Executor mExecutor;
+    private final Runnable mOnUpdated;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private List<Long> mPendingRowIds = new ArrayList<>();
+    @GuardedBy("mLock")
+    private List<String> mPendingAddresses = new ArrayList<>();
+    @GuardedBy("mLock")
+    private boolean mScheduled;
+    // Bumped when the contacts change, so a person looked up across a change isn't cached.
+    @GuardedBy("mLock")
+    private long mContactsGeneration;
+    @GuardedBy("mLock")
+    private final LruCache<String, Long> mPersons = new LruCache<>(MAX_CACHED_ADDRESSES);
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private long mBatchCount;
+    @GuardedBy("mLock")
+    private long mMessageCount;
+    @GuardedBy("mLock")
+    private long mLookupCount;
+    @GuardedBy("mLock")
+    private long mCacheHitCount;
+
+    /**
+     * @param db gives the database holding the sms table.
+     * @param lookup looks up the contacts, only called on {@code executor}.
+     * @param executor runs the batches.
+     * @param onUpdated called after a batch updated messages.
+     */
+    public SmsPersonEnricher(@NonNull Supplier<SQLiteDatabase> db, @NonNull PersonLookup lookup,
+            @NonNull Executor executor, @NonNull Runnable onUpdated) {
+        mDb = db;
+        mLookup = lookup;
+        mExecutor = executor;
+        mOnUpdated = onUpdated;
+    }
+
+    /**
+     * Queue a message for its person to be filled in.
+     *
+     * @param rowId the id of the message in the sms table.
+     * @param address its address.
+     */
+    public void enqueue(long rowId, @NonNull String address) {
+        synchronized (mLock) {
+            mPendingRowIds.add(rowId);
+            mPendingAddresses.add(address);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mExecutor.execute(this::runBatch);
+    }
+
+    /**
+     * Forget the contacts of the addresses, since they may have changed.
+     */
+    public void onContactsChanged() {
+        synchronized (mLock) {
+            mContactsGeneration++;
+            mPersons.evictAll();
+        }
+    }
+
+    @VisibleForTesting
+    void runBatch() {
+        List<Long> rowIds;
+        List<String> addresses;
+        long generation;
+        synchronized (mLock) {
+            rowIds = mPendingRowIds;
+            addresses = mPendingAddresses;
+            mPendingRowIds = new ArrayList<>();
+            mPendingAddresses = new ArrayList<>();
+            mScheduled = false;
+            generation = mContactsGeneration;
+        }
+        if (rowIds.isEmpty()) {
+            return;
+        }
+
+        // Each distinct address is looked up once.
+        Map<String, Long> persons = new HashMap<>();
+        int lookups = 0;
+        int hits = 0;
+        for (String address : addresses) {
+            if (persons.containsKey(address)) {
+                continue;
+            }
+            Long person;
+            synchronized (mLock) {
+                person = mPersons.get(address);
+            }
+            if (person != null) {
+                hits++;
+            } else {
+                lookups++;
+                try {
+                    Long found = mLookup.lookUp(address);
+                    person = found != null ? found : NO_PERSON;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "runBatch: contact lookup failed", e);
+                    // Not cached, so the next message of the address tries again.
+                    person = NO_PERSON;
+                    persons.put(address, person);
+                    continue;
+                }
+                synchronized (mLock) {
+                    if (generation == mContactsGeneration) {
+                        mPersons.put(address, person);
+                    }
+                }
+            }
+            persons.put(address, person);
+        }
+
+        int updated = 0;
+        try {
+            SQLiteDatabase db = mDb.get();
+            db.beginTransaction();
+            try (SQLiteStatement update = db.compileStatement(UPDATE_PERSON)) {
+                for (int i = 0; i < rowIds.size(); i++) {
+                    long person = persons.get(addresses.get(i));
+                    if (person == NO_PERSON) {
+                        continue;
+                    }
+                    update.bindLong(1, person);
+                    update.bindLong(2, rowIds.get(i));
+                    updated += update.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException | IllegalStateException e) {
+            // E.g. the database was closed, the messages keep no person like unknown senders.
+            Log.e(TAG, "runBatch: failed to update " + rowIds.size() + " messages", e);
+            updated = 0;
+        }
+
+        synchronized (mLock) {
+            mBatchCount++;
+            mMessageCount += rowIds.size();
+            mLookupCount += lookups;
+            mCacheHitCount += hits;
+        }
+        if (updated > 0) {
+            mOnUpdated.run();
+        }
+    }
+
+    /**
+     * Dump the statistics of the enrichment.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("SmsPersonEnricher: batches=" + mBatchCount + " messages=" + mMessageCount
+                    + " lookups=" + mLookupCount + " cacheHits=" + mCacheHitCount
+                    + " pending=" + mPendingRowIds.size() + " cached=" + mPersons.size());
+        }
+    }
+}
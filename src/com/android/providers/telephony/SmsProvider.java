@@ -17,32 +17,41 @@
 package com.android.providers.telephony;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.SuppressLint;
 import android.app.AppOpsManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Contacts;
+import android.provider.ContactsContract;
 import android.provider.Telephony;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
@@ -51,11 +60,12 @@ import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.view.textclassifier.TextClassificationManager;
 import android.view.textclassifier.TextClassifier;
-import android.view.textclassifier.TextLinks;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PackageBasedTokenUtil;
 import com.android.internal.telephony.SmsApplication;
@@ -63,6 +73,8 @@ import com.android.internal.telephony.TelephonyPermissions;
 import com.android.internal.telephony.flags.Flags;
 import com.android.internal.telephony.util.TelephonyUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -77,6 +89,7 @@ public class SmsProvider extends ContentProvider {
     private static final Uri NOTIFICATION_URI = Uri.parse("content://sms");
     private static final Uri ICC_URI = Uri.parse("content://sms/icc");
     private static final Uri ICC_SUBID_URI = Uri.parse("content://sms/icc_subId");
+    private static final Uri CONVERSATIONS_URI = Uri.parse("content://mms-sms/conversations/");
     static final String TABLE_SMS = "sms";
     static final String TABLE_RAW = "raw";
     static final String TABLE_ATTACHMENTS = "attachments";
@@ -85,6 +98,9 @@ public class SmsProvider extends ContentProvider {
     private static final String TABLE_WORDS = "words";
     static final String VIEW_SMS_RESTRICTED = "sms_restricted";
 
+    /** When a message stops being an OTP message, or null if it isn't one. */
+    static final String COLUMN_OTP_EXPIRY = "otp_expiry";
+
     private static final Integer ONE = Integer.valueOf(1);
 
     private static final String[] CONTACT_QUERY_PROJECTION =
@@ -100,7 +116,7 @@ public class SmsProvider extends ContentProvider {
     private static final long OTP_CLASSIFICATION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
 
     /** OTP messages should be redacted for 3 hours */
-    private static final long OTP_HIDING_TIME_MS = TimeUnit.HOURS.toMillis(3);
+    static final long OTP_HIDING_TIME_MS = TimeUnit.HOURS.toMillis(3);
 
     /**
      * These are the columns that are available when reading SMS
@@ -124,11 +140,6 @@ public class SmsProvider extends ContentProvider {
         "error_code",                   // Always -1 (NO_ERROR_CODE), previously it was 0 always.
         "_id"
     };
-    private static final TextClassifier.EntityConfig TC_REQUEST_CONFIG =
-            new TextClassifier.EntityConfig.Builder()
-                    .setIncludedTypes(List.of(TextClassifier.TYPE_SMS_RETRIEVER_OTP))
-                    .includeTypesFromTextClassifier(false)
-                    .build();
 
     private final List<UserHandle> mUsersRemovedBeforeUnlockList = new ArrayList<>();
 
@@ -138,6 +149,28 @@ public class SmsProvider extends ContentProvider {
 
     private TextClassifier mTextClassifier;
 
+    private final ProviderMetrics mMetrics = new ProviderMetrics(TAG);
+
+    /** Fills in the contact of the inbox messages after they are inserted. */
+    private final SmsPersonEnricher mPersonEnricher = new SmsPersonEnricher(
+            () -> getWritableDatabase(SMS_ALL), this::lookUpPerson, mBackgroundExecutor,
+            () -> notifyChange(false, Sms.CONTENT_URI, null));
+
+    /** Classifies the possible OTP messages after they are inserted, and expires them. */
+    private final SmsOtpClassifier mOtpClassifier = new SmsOtpClassifier(
+            () -> getWritableDatabase(SMS_ALL), () -> mTextClassifier, mBackgroundExecutor,
+            mMainThreadHandler, OTP_HIDING_TIME_MS,
+            () -> notifyChange(true, Sms.CONTENT_URI, null));
+
+    // Bulk insert throughput, for dumpsys only.
+    private final Object mBulkInsertStatsLock = new Object();
+    @GuardedBy("mBulkInsertStatsLock")
+    private long mBulkInsertedMessages;
+    @GuardedBy("mBulkInsertStatsLock")
+    private long mBulkInsertNanos;
+    @GuardedBy("mBulkInsertStatsLock")
+    private long mLastBulkInsertRate;
+
     @Override
     public boolean onCreate() {
         setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
@@ -156,6 +189,18 @@ public class SmsProvider extends ContentProvider {
                 Context.RECEIVER_NOT_EXPORTED);
         mTextClassifier = getContext().getSystemService(TextClassificationManager.class)
                 .getTextClassifier(TextClassifier.CLASSIFIER_TYPE_ANDROID_DEFAULT);
+        getContext().getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true /* notifyForDescendants */,
+                new ContentObserver(mMainThreadHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mPersonEnricher.onContactsChanged();
+                    }
+                });
+        // Otherwise the expired OTP messages are cleared once the user is unlocked.
+        if (getContext().getSystemService(UserManager.class).isUserUnlocked()) {
+            mOtpClassifier.start();
+        }
 
         return true;
     }
@@ -178,6 +223,20 @@ public class SmsProvider extends ContentProvider {
     @Override
     public Cursor query(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Cursor c = queryInternal(url, projectionIn, selection, selectionArgs, sort);
+            rows = ProviderMetrics.count(c);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY, sURLMatcher.match(url),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Cursor queryInternal(Uri url, String[] projectionIn, String selection,
+            String[] selectionArgs, String sort) {
         String callingPackage = getCallingPackage();
         final int callingUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
@@ -676,17 +735,34 @@ public class SmsProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(@NonNull Uri url, @NonNull ContentValues[] values) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = bulkInsertInternal(url, values);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_BULK_INSERT, sURLMatcher.match(url),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int bulkInsertInternal(@NonNull Uri url, @NonNull ContentValues[] values) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
             int messagesInserted = 0;
-            for (ContentValues initialValues : values) {
-                Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
+            if (values.length > 1 && isBatchable(sURLMatcher.match(url))) {
+                messagesInserted = insertBatch(url, values, callerUid, callerPkg,
                         callerUserHandle);
-                if (insertUri != null) {
-                    messagesInserted++;
+            } else {
+                for (ContentValues initialValues : values) {
+                    Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
+                            callerUserHandle, null /* batch */);
+                    if (insertUri != null) {
+                        messagesInserted++;
+                    }
                 }
             }
 
@@ -701,14 +777,208 @@ public class SmsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * @return whether the rows of {@code match} are written to the database, so can be inserted
+     * in a single transaction.
+     */
+    private static boolean isBatchable(int match) {
+        switch (match) {
+            case SMS_ALL:
+            case SMS_INBOX:
+            case SMS_FAILED:
+            case SMS_QUEUED:
+            case SMS_SENT:
+            case SMS_DRAFT:
+            case SMS_OUTBOX:
+            case SMS_RAW_MESSAGE:
+            case SMS_STATUS_PENDING:
+            case SMS_ATTACHMENT:
+            case SMS_NEW_THREAD_ID:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * State shared by the rows of a bulk insert, which are all inserted in one transaction.
+     */
+    private static final class InsertBatch {
+        private static final String WORDS_INSERT = "INSERT INTO " + TABLE_WORDS + " ("
+                + MmsSms.WordsTable.ID + ", " + MmsSms.WordsTable.INDEXED_TEXT + ", "
+                + MmsSms.WordsTable.SOURCE_ROW_ID + ", " + MmsSms.WordsTable.TABLE_ID + ", "
+                + MmsSms.WordsTable.SUBSCRIPTION_ID + ") VALUES (?, ?, ?, ?, ?)";
+
+        // The thread ids resolved before the transaction, by address.
+        final HashMap<String, Long> threadIds = new HashMap<>();
+        // The background work on the inserted rows, queued once the transaction is committed.
+        final List<Runnable> afterCommit = new ArrayList<>();
+        // Compiled once for the batch. The sms rows don't all have the same columns, so their
+        // inserts rely on the statement cache of the connection instead.
+        private SQLiteStatement mWordsInsert;
+        private boolean mWordsInsertFailed;
+
+        /**
+         * Insert the words row of an sms row.
+         *
+         * @return {@code false} if the statement couldn't be compiled, so the row must be
+         * inserted another way.
+         */
+        boolean insertWords(SQLiteDatabase db, long rowId, String body, int subId) {
+            if (mWordsInsertFailed) return false;
+            try {
+                if (mWordsInsert == null) {
+                    mWordsInsert = db.compileStatement(WORDS_INSERT);
+                }
+            } catch (SQLException e) {
+                mWordsInsertFailed = true;
+                return false;
+            }
+            mWordsInsert.bindLong(1, rowId);
+            if (body == null) {
+                mWordsInsert.bindNull(2);
+            } else {
+                mWordsInsert.bindString(2, body);
+            }
+            mWordsInsert.bindLong(3, rowId);
+            mWordsInsert.bindLong(4, 1);
+            mWordsInsert.bindLong(5, subId);
+            try {
+                mWordsInsert.executeInsert();
+            } catch (SQLException e) {
+                // Like SQLiteDatabase.insert(), which the single inserts use.
+                Log.e(TAG, "Error inserting words of sms " + rowId, e);
+            }
+            return true;
+        }
+
+        void close() {
+            if (mWordsInsert != null) {
+                mWordsInsert.close();
+            }
+        }
+    }
+
+    /**
+     * Insert {@code values} like {@link #insertInner} does one by one, in a single transaction,
+     * resolving the thread id of each distinct address only once. If a row throws, none of the
+     * rows are inserted.
+     *
+     * @return the number of rows inserted.
+     */
+    private int insertBatch(Uri url, ContentValues[] values, int callerUid, String callerPkg,
+            UserHandle callerUserHandle) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        int match = sURLMatcher.match(url);
+        InsertBatch batch = new InsertBatch();
+        if (match != SMS_RAW_MESSAGE && match != SMS_STATUS_PENDING && match != SMS_ATTACHMENT
+                && match != SMS_NEW_THREAD_ID) {
+            // Resolved outside of the transaction, since that goes through MmsSmsProvider.
+            for (ContentValues initialValues : values) {
+                if (initialValues == null) continue;
+                Long threadId = initialValues.getAsLong(Sms.THREAD_ID);
+                String address = initialValues.getAsString(Sms.ADDRESS);
+                if ((threadId == null || threadId == 0) && !TextUtils.isEmpty(address)
+                        && !batch.threadIds.containsKey(address)) {
+                    try {
+                        batch.threadIds.put(address, getOrCreateThreadId(address));
+                    } catch (IllegalArgumentException e) {
+                        // Left to the insert of the row, which fails the same way as before.
+                    }
+                }
+            }
+        }
+
+        SQLiteDatabase db = getWritableDatabase(match);
+        int messagesInserted = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues initialValues : values) {
+                Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
+                        callerUserHandle, batch);
+                if (insertUri != null) {
+                    messagesInserted++;
+                }
+            }
+            // A row which threw rolls the whole batch back.
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            batch.close();
+        }
+        batch.afterCommit.forEach(Runnable::run);
+
+        long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        long rate = messagesInserted * TimeUnit.SECONDS.toNanos(1) / Math.max(nanos, 1);
+        synchronized (mBulkInsertStatsLock) {
+            mBulkInsertedMessages += messagesInserted;
+            mBulkInsertNanos += nanos;
+            mLastBulkInsertRate = rate;
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "insertBatch: " + messagesInserted + " of " + values.length
+                    + " messages in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms, " + rate
+                    + " msgs/s");
+        }
+        return messagesInserted;
+    }
+
+    /**
+     * Queue the background work on an inserted sms row.
+     *
+     * @param personAddress the address to fill in the person of the row from, if any.
+     * @param possibleOtpMessage the body to classify, if the row might hold an OTP.
+     */
+    @VisibleForTesting
+    void enqueueBackgroundWork(long rowId, @Nullable String personAddress,
+            @Nullable String possibleOtpMessage) {
+        if (personAddress != null) {
+            mPersonEnricher.enqueue(rowId, personAddress);
+        }
+        // If we might have an OTP, queue the full otp check, which will update the inserted
+        // value when complete.
+        if (possibleOtpMessage != null) {
+            mOtpClassifier.enqueue(rowId, possibleOtpMessage);
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Notify the changes of the batch once it is applied.
+        MessagingChangeNotifier notifier = MessagingChangeNotifier.getInstance();
+        boolean batchStarted = notifier.beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            if (batchStarted) {
+                notifier.endBatch();
+            }
+        }
+    }
+
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Uri insertUri = insertInternal(url, initialValues);
+            rows = insertUri != null ? 1 : 0;
+            return insertUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, sURLMatcher.match(url),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private Uri insertInternal(Uri url, ContentValues initialValues) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
-            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg, callerUserHandle);
+            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg, callerUserHandle,
+                    null /* batch */);
 
             // Skip notifyChange() if insertUri is null
             if (insertUri != null) {
@@ -725,8 +995,37 @@ public class SmsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * @return the thread of the messages from or to {@code address}, from the cache of the
+     * process if it was resolved before.
+     */
+    private long getOrCreateThreadId(String address) {
+        return ThreadIdCache.getInstance().getOrCreateThreadId(address,
+                a -> Threads.getOrCreateThreadId(getContext(), a));
+    }
+
+    /**
+     * @return the contact of {@code address}, or {@code null} if it is none.
+     */
+    private Long lookUpPerson(String address) {
+        Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
+        // A failed query throws, so it isn't taken, and cached, as the address being no contact.
+        try (Cursor cursor = getContext().getContentResolver().query(
+                uri, CONTACT_QUERY_PROJECTION, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(PERSON_ID_COLUMN);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Insert a row.
+     *
+     * @param batch the state of the bulk insert the row is part of, if any.
+     */
     private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg,
-            UserHandle callerUserHandle) {
+            UserHandle callerUserHandle, @Nullable InsertBatch batch) {
         ContentValues values;
         long rowID;
         int type = Sms.MESSAGE_TYPE_ALL;
@@ -846,6 +1145,7 @@ public class SmsProvider extends ContentProvider {
         }
 
         String possibleOtpMessage = null;
+        String personAddress = null;
         if (table.equals(TABLE_SMS)) {
             boolean addDate = false;
             boolean addType = false;
@@ -865,6 +1165,11 @@ public class SmsProvider extends ContentProvider {
                 if (!initialValues.containsKey(Sms.TYPE)) {
                     addType = true;
                 }
+
+                if (callerUid != Process.myUid()) {
+                    // Only the OTP classifier sets when an OTP stops being hidden
+                    values.remove(COLUMN_OTP_EXPIRY);
+                }
             }
 
             if (addDate) {
@@ -880,8 +1185,9 @@ public class SmsProvider extends ContentProvider {
             String address = values.getAsString(Sms.ADDRESS);
 
             if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                values.put(Sms.THREAD_ID, Threads.getOrCreateThreadId(
-                                   getContext(), address));
+                Long resolved = batch != null ? batch.threadIds.get(address) : null;
+                values.put(Sms.THREAD_ID, resolved != null ? resolved
+                        : getOrCreateThreadId(address));
             }
 
             // If this message is going in as a draft, it should replace any
@@ -908,28 +1214,9 @@ public class SmsProvider extends ContentProvider {
                 }
                 values.put(Telephony.Sms.CONTAINS_OTP, otpType);
 
-                // Look up the person if not already filled in.
+                // Look up the person once inserted if not already filled in.
                 if ((values.getAsLong(Sms.PERSON) == null) && (!TextUtils.isEmpty(address))) {
-                    Cursor cursor = null;
-                    Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
-                            Uri.encode(address));
-                    try {
-                        cursor = getContext().getContentResolver().query(
-                                uri,
-                                CONTACT_QUERY_PROJECTION,
-                                null, null, null);
-
-                        if (cursor != null && cursor.moveToFirst()) {
-                            Long id = Long.valueOf(cursor.getLong(PERSON_ID_COLUMN));
-                            values.put(Sms.PERSON, id);
-                        }
-                    } catch (Exception ex) {
-                        Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
+                    personAddress = address;
                 }
             } else {
                 // Mark all non-inbox messages read.
@@ -989,13 +1276,16 @@ public class SmsProvider extends ContentProvider {
             // Update the words table with a corresponding row.  The words table
             // allows us to search for words quickly, without scanning the whole
             // table;
-            ContentValues cv = new ContentValues();
-            cv.put(Telephony.MmsSms.WordsTable.ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("body"));
-            cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-            cv.put(MmsSms.WordsTable.SUBSCRIPTION_ID, subId);
-            db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+            if (batch == null
+                    || !batch.insertWords(db, rowID, values.getAsString("body"), subId)) {
+                ContentValues cv = new ContentValues();
+                cv.put(Telephony.MmsSms.WordsTable.ID, rowID);
+                cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("body"));
+                cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowID);
+                cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
+                cv.put(MmsSms.WordsTable.SUBSCRIPTION_ID, subId);
+                db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+            }
         }
         if (rowID > 0) {
             Uri uri = null;
@@ -1007,10 +1297,16 @@ public class SmsProvider extends ContentProvider {
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "insert " + uri + " succeeded");
             }
-            // If we might have an OTP, schedule the full otp check, which will update the inserted
-            // value when complete.
-            if (possibleOtpMessage != null) {
-                scheduleOtpCheck(uri, possibleOtpMessage);
+            if (personAddress != null || possibleOtpMessage != null) {
+                final long id = rowID;
+                final String address = personAddress;
+                final String otpMessage = possibleOtpMessage;
+                if (batch != null) {
+                    // The row may still be rolled back, and its id reused by another row.
+                    batch.afterCommit.add(() -> enqueueBackgroundWork(id, address, otpMessage));
+                } else {
+                    enqueueBackgroundWork(id, address, otpMessage);
+                }
             }
             return uri;
         } else {
@@ -1043,43 +1339,6 @@ public class SmsProvider extends ContentProvider {
         }
     }
 
-    private void scheduleOtpCheck(Uri uri, String text) {
-        mBackgroundExecutor.execute(() -> {
-            try {
-                Trace.beginSection("scheduleOtpCheck");
-                TextLinks.Request request =
-                        new TextLinks.Request.Builder(text).setEntityConfig(
-                                TC_REQUEST_CONFIG).build();
-
-                TextLinks links = mTextClassifier.generateLinks(request);
-
-                int otpType = Sms.OTP_TYPE_NONE;
-                for (TextLinks.TextLink link : links.getLinks()) {
-                    for (int i = 0; i < link.getEntityCount(); i++) {
-                        if (link.getEntity(i).equals(TextClassifier.TYPE_SMS_RETRIEVER_OTP)) {
-                            otpType = Sms.OTP_TYPE_CONTAINS_OTP;
-                            break;
-                        }
-                    }
-                }
-                ContentValues values = new ContentValues();
-                values.put(Sms.CONTAINS_OTP, otpType);
-                update(uri, values, null);
-                if (otpType == Sms.OTP_TYPE_CONTAINS_OTP) {
-                    // Schedule an update for when the OTP hiding time expires, to remove the "has
-                    // otp" value. This is best-effort, not guaranteed.
-                    mMainThreadHandler.postDelayed(() -> {
-                        ContentValues unredacted = new ContentValues();
-                        unredacted.put(Sms.CONTAINS_OTP, Sms.OTP_TYPE_NONE);
-                        update(uri, unredacted, null);
-                    }, OTP_HIDING_TIME_MS);
-                }
-            } finally {
-                Trace.endSection();
-            }
-        });
-    }
-
     @SuppressLint("MissingPermission")
     protected boolean canReadOtpSms(int uid, String packageName) {
         return SmsManager.isAppTrustedForSmsOtp(getContext(), packageName, uid);
@@ -1124,6 +1383,18 @@ public class SmsProvider extends ContentProvider {
 
     @Override
     public int delete(Uri url, String where, String[] whereArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = deleteInternal(url, where, whereArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, sURLMatcher.match(url),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int deleteInternal(Uri url, String where, String[] whereArgs) {
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final int callerUid = Binder.getCallingUid();
         final long token = Binder.clearCallingIdentity();
@@ -1373,6 +1644,18 @@ public class SmsProvider extends ContentProvider {
 
     @Override
     public int update(Uri url, ContentValues values, String where, String[] whereArgs) {
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            rows = updateInternal(url, values, where, whereArgs);
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_UPDATE, sURLMatcher.match(url),
+                    getCallingPackageUnchecked(), start, rows);
+        }
+    }
+
+    private int updateInternal(Uri url, ContentValues values, String where, String[] whereArgs) {
         final int callerUid = Binder.getCallingUid();
         final UserHandle callerUserHandle = Binder.getCallingUserHandle();
         final String callerPkg = getCallingPackage();
@@ -1391,6 +1674,10 @@ public class SmsProvider extends ContentProvider {
             // Apps are not allowed to update the CONTAINS_OTP column directly
             values.remove(Telephony.Sms.CONTAINS_OTP);
         }
+        if (callerUid != Process.myUid()) {
+            // Nor the expiry of a hidden OTP, which only the OTP classifier sets
+            values.remove(COLUMN_OTP_EXPIRY);
+        }
 
         switch (match) {
             case SMS_RAW_MESSAGE:
@@ -1502,15 +1789,38 @@ public class SmsProvider extends ContentProvider {
         return count;
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ProviderMetrics.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.call(getContext());
+        }
+        return super.call(method, arg, extras);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        mMetrics.dump(pw);
+        ThreadIdCache.getInstance().dump(pw);
+        MessagingChangeNotifier.getInstance().dump(pw);
+        mPersonEnricher.dump(pw);
+        mOtpClassifier.dump(pw);
+        synchronized (mBulkInsertStatsLock) {
+            pw.println("Bulk inserts: messages=" + mBulkInsertedMessages + " msgs/s="
+                    + mBulkInsertedMessages * TimeUnit.SECONDS.toNanos(1)
+                            / Math.max(mBulkInsertNanos, 1)
+                    + " last msgs/s=" + mLastBulkInsertRate);
+        }
+    }
+
     private void notifyChange(boolean notifyIfNotDefault, Uri uri, final String callingPackage) {
         final Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(Uri.parse("content://mms-sms/conversations/"), null, true,
-                UserHandle.USER_ALL);
+        MessagingChangeNotifier notifier = MessagingChangeNotifier.getInstance();
+        notifier.notifyChange(context, uri);
+        notifier.notifyChange(context, MmsSms.CONTENT_URI);
+        notifier.notifyChange(context, CONVERSATIONS_URI);
         if (notifyIfNotDefault) {
-            ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, context);
+            notifier.notifyDefaultSmsApp(context, uri, callingPackage);
         }
     }
 
@@ -1638,6 +1948,7 @@ public class SmsProvider extends ContentProvider {
                         deleteManagedProfileMessages(user);
                     }
                     mUsersRemovedBeforeUnlockList.clear();
+                    mOtpClassifier.start();
                     break;
                 }
             }
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Dumps database tables for dumpsys a page of rows at a time.
+ *
+ * Each page is read with its own short query keyed on {@code _id}, so a dump taken while the
+ * provider is busy never holds a database connection for long, and rows are printed as they are
+ * read instead of being collected first. No provider lock is taken: rows written during the dump
+ * may or may not show up in it.
+ *
+ * The dump can be narrowed with arguments:
+ * <pre>
+ *     dumpsys activity provider ... [table...] [--columns a,b] [--limit n] [--stats]
+ * </pre>
+ */
+public class TableDumper {
+    /** The number of rows read by each query. */
+    @VisibleForTesting
+    public static final int PAGE_SIZE = 100;
+
+    /** What to dump, from the dumpsys arguments. */
+    public static final class Options {
+        // Empty for every table.
+        final Set<String> tables = new ArraySet<>();
+        // Null for every column.
+        @Nullable
+        String[] columns;
+        // Negative for no limit.
+        int limit = -1;
+        // Only print the statistics, no rows.
+        boolean statsOnly;
+        // Set if the arguments could not be parsed.
+        @Nullable
+        String error;
+
+        /**
+         * @return whether the rows of {@code table} should be dumped.
+         */
+        public boolean includes(@NonNull String table) {
+            return !statsOnly && (tables.isEmpty() || tables.contains(table));
+        }
+
+        /**
+         * @return the reason the arguments could not be parsed, or {@code null}.
+         */
+        @Nullable
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Parse the dumpsys arguments.
+         */
+        @NonNull
+        public static Options parse(@Nullable String[] args) {
+            Options options = new Options();
+            if (args == null) {
+                return options;
+            }
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--columns":
+                        if (++i < args.length) {
+                            options.columns = args[i].split(",");
+                        } else {
+                            options.error = "--columns needs a comma separated list";
+                        }
+                        break;
+                    case "--limit":
+                        try {
+                            options.limit = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            options.error = "--limit needs a number of rows";
+                        }
+                        break;
+                    case "--stats":
+                        options.statsOnly = true;
+                        break;
+                    default:
+                        if (arg.startsWith("-")) {
+                            options.error = "unknown argument " + arg;
+                        } else {
+                            options.tables.add(arg);
+                        }
+                        break;
+                }
+            }
+            return options;
+        }
+    }
+
+    private TableDumper() {
+    }
+
+    /**
+     * Dump the rows of a table.
+     *
+     * @param db the database.
+     * @param table the table, which must have an {@code _id} column.
+     * @param options what to dump.
+     * @param redact applied to the string values of the columns in {@code redactedColumns}.
+     * @param redactedColumns the columns holding personal data.
+     * @param pw where to print.
+     */
+    public static void dump(@NonNull SQLiteDatabase db, @NonNull String table,
+            @NonNull Options options, @NonNull UnaryOperator<String> redact,
+            @NonNull Set<String> redactedColumns, @NonNull IndentingPrintWriter pw) {
+        long start = SystemClock.elapsedRealtime();
+        pw.println(table + " table:");
+        pw.increaseIndent();
+        try {
+            String[] columns = getColumns(db, table, options.columns, pw);
+            // The id is always read to page on, but only printed if asked for.
+            boolean printId = Arrays.asList(columns).contains(BaseColumns._ID);
+            String[] projection = columns;
+            if (!printId) {
+                projection = Arrays.copyOf(columns, columns.length + 1);
+                projection[columns.length] = BaseColumns._ID;
+            }
+            boolean[] redacted = new boolean[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                redacted[i] = redactedColumns.contains(columns[i]);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            long lastId = Long.MIN_VALUE;
+            int rows = 0;
+            int pages = 0;
+            boolean more = true;
+            while (more && (options.limit < 0 || rows < options.limit)) {
+                int pageSize = options.limit < 0
+                        ? PAGE_SIZE : Math.min(PAGE_SIZE, options.limit - rows);
+                try (Cursor c = db.query(table, projection, BaseColumns._ID + ">?",
+                        new String[] {Long.toString(lastId)}, null, null, BaseColumns._ID,
+                        Integer.toString(pageSize))) {
+                    pages++;
+                    int idIndex = c.getColumnIndexOrThrow(BaseColumns._ID);
+                    while (c.moveToNext()) {
+                        sb.setLength(0);
+                        appendRow(sb, c, columns, redacted, redact);
+                        pw.println(sb);
+                        lastId = c.getLong(idIndex);
+                        rows++;
+                    }
+                    more = c.getCount() == pageSize;
+                }
+            }
+            pw.println("(" + rows + " rows in " + pages + " pages, "
+                    + (SystemClock.elapsedRealtime() - start) + "ms)");
+        } catch (Exception e) {
+            pw.println("Exception while dumping the table " + table + ", ex=" + e);
+        }
+        pw.decreaseIndent();
+    }
+
+    /**
+     * @return the columns of {@code table} to dump: all of them, or those asked for which exist.
+     */
+    private static String[] getColumns(SQLiteDatabase db, String table,
+            @Nullable String[] requested, IndentingPrintWriter pw) {
+        String[] all;
+        // A limit of 0 reads the schema only.
+        try (Cursor c = db.query(table, null, null, null, null, null, null, "0")) {
+            all = c.getColumnNames();
+        }
+        if (requested == null) {
+            return all;
+        }
+        List<String> allList = Arrays.asList(all);
+        List<String> columns = new ArrayList<>();
+        for (String column : requested) {
+            // Only known column names end up in the query.
+            if (allList.contains(column)) {
+                columns.add(column);
+            } else {
+                pw.println("unknown column " + column);
+            }
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    private static void appendRow(StringBuilder sb, Cursor c, String[] columns,
+            boolean[] redacted, UnaryOperator<String> redact) {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(columns[i]).append('=');
+            try {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        sb.append("null");
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        sb.append(c.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        sb.append(c.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        sb.append(redacted[i] ? redact.apply(c.getString(i)) : c.getString(i));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        sb.append("[blob]");
+                        break;
+                    default:
+                        sb.append("unknown");
+                        break;
+                }
+            } catch (Exception e) {
+                sb.append("exception");
+            }
+        }
+    }
+}
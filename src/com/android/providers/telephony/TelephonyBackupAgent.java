@@ -50,11 +50,11 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.JsonReader;
 import android.util.JsonWriter;
+import android.util.LocalLog;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.PhoneFactory;
 
 import com.google.android.mms.ContentType;
 import com.google.android.mms.pdu.CharacterSets;
@@ -610,6 +610,17 @@ public class TelephonyBackupAgent extends BackupAgent {
         private static final String TAG = "DeferredSmsMmsRestoreService";
         private static boolean sSharedPrefsAddedToLocalLogs = false;
 
+        // Restore failures of single messages, which can be many, formatted only when dumped.
+        static final EventBuffer.Event EVENT_PUT_SMS_FAILED =
+                new EventBuffer.Event("putSmsMessagesToProvider: Exception", null, "msgCount");
+        static final EventBuffer.Event EVENT_PUT_MMS_FAILED =
+                new EventBuffer.Event("putMmsMessagesToProvider: Exception", null, "total");
+
+        /** The message events of the restore, dumped by {@link MmsSmsProvider}. */
+        static final EventBuffer EVENTS = new EventBuffer(32, TAG);
+        /** The lifecycle events of the restore, dumped by {@link MmsSmsProvider}. */
+        static final LocalLog LOCAL_LOG = new LocalLog(32);
+
         public static void addAllSharedPrefToLocalLog(Context context) {
             if (sSharedPrefsAddedToLocalLogs) return;
             localLog("addAllSharedPrefToLocalLog");
@@ -628,7 +639,7 @@ public class TelephonyBackupAgent extends BackupAgent {
 
         public static void localLog(String logMsg) {
             Log.d(TAG, logMsg);
-            PhoneFactory.localLog(TAG, logMsg);
+            LOCAL_LOG.log(logMsg);
         }
 
         private final Comparator<File> mFileComparator = new Comparator<File>() {
@@ -695,11 +706,6 @@ public class TelephonyBackupAgent extends BackupAgent {
         public void onCreate() {
             super.onCreate();
             Log.d(TAG, "onCreate");
-            try {
-                PhoneFactory.addLocalLog(TAG, 32);
-            } catch (IllegalArgumentException e) {
-                // ignore
-            }
 
             mTelephonyBackupAgent = new TelephonyBackupAgent(true);
             mTelephonyBackupAgent.attach(this);
@@ -723,11 +729,6 @@ public class TelephonyBackupAgent extends BackupAgent {
         }
 
         static void startIfFilesExist(Context context) {
-            try {
-                PhoneFactory.addLocalLog(TAG, 32);
-            } catch (IllegalArgumentException e) {
-                // ignore
-            }
             File[] files = getFilesToRestore(context);
             if (files == null || files.length == 0) {
                 Log.d(TAG, "startIfFilesExist: no files to restore");
@@ -791,7 +792,9 @@ public class TelephonyBackupAgent extends BackupAgent {
                 }
             } catch (RuntimeException e) {
                 Log.e(TAG, "putSmsMessagesToProvider", e);
-                DeferredSmsMmsRestoreService.localLog("putSmsMessagesToProvider: Exception " + e);
+                DeferredSmsMmsRestoreService.EVENTS.log(
+                        DeferredSmsMmsRestoreService.EVENT_PUT_SMS_FAILED,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID, 0, msgCount, e);
                 numExceptions++;
             }
         }
@@ -867,7 +870,9 @@ public class TelephonyBackupAgent extends BackupAgent {
             } catch (Exception e) {
                 Log.e(TAG, "putMmsMessagesToProvider", e);
                 numExceptions++;
-                DeferredSmsMmsRestoreService.localLog("putMmsMessagesToProvider: Exception " + e);
+                DeferredSmsMmsRestoreService.EVENTS.log(
+                        DeferredSmsMmsRestoreService.EVENT_PUT_MMS_FAILED,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID, 0, total, e);
             }
         }
         // notifying for any remaining messages
@@ -79,13 +79,18 @@ import static android.provider.Telephony.Carriers._ID;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.compat.CompatChanges;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
@@ -101,12 +106,14 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.IBinder;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Telephony;
@@ -145,6 +152,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -162,6 +170,9 @@ public class TelephonyProvider extends ContentProvider
 {
     private static final String DATABASE_NAME = "telephony.db";
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
+    // How long a query waits for the APN update of the first boot after an OTA before reading the
+    // APNs committed before it.
+    private static final long APN_DB_WARM_UP_QUERY_TIMEOUT_MS = 1000;
     private static final boolean DBG = true;
     private static final boolean VDBG = false; // STOPSHIP if true
 
@@ -206,12 +217,7 @@ public class TelephonyProvider extends ContentProvider
     private static final String SIMINFO_TABLE = "siminfo";
     private static final String SIMINFO_TABLE_TMP = "siminfo_tmp";
 
-    private static final String PREF_FILE_APN = "preferred-apn";
     private static final String COLUMN_APN_ID = "apn_id";
-    private static final String EXPLICIT_SET_CALLED = "explicit_set_called";
-
-    private static final String PREF_FILE_FULL_APN = "preferred-full-apn";
-    private static final String DB_VERSION_KEY = "version";
 
     private static final String BUILD_ID_FILE = "build-id";
     private static final String RO_BUILD_ID = "ro_build_id";
@@ -259,6 +265,67 @@ public class TelephonyProvider extends ContentProvider
     private static final String ORDER_BY_SUB_ID =
             Telephony.SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID + " ASC";
 
+    // Columns copied when the carriers table is recreated on upgrade.
+    private static final String[] APN_STRING_COLUMNS = {NAME, NUMERIC, MCC, MNC, APN, USER,
+            SERVER, PASSWORD, PROXY, PORT, MMSPROXY, MMSPORT, MMSC, TYPE, PROTOCOL,
+            ROAMING_PROTOCOL, MVNO_TYPE, MVNO_MATCH_DATA};
+    private static final String[] APN_INT_COLUMNS = {AUTH_TYPE, CURRENT, CARRIER_ENABLED, BEARER,
+            SUBSCRIPTION_ID, PROFILE_ID, MODEM_PERSIST, MAX_CONNECTIONS, WAIT_TIME_RETRY,
+            TIME_LIMIT_FOR_MAX_CONNECTIONS, MTU, MTU_V4, MTU_V6, NETWORK_TYPE_BITMASK,
+            LINGERING_NETWORK_TYPE_BITMASK, BEARER_BITMASK, EDITED_STATUS, USER_VISIBLE,
+            USER_EDITABLE, OWNED_BY, APN_SET_ID, SKIP_464XLAT, ALWAYS_ON, INFRASTRUCTURE_BITMASK,
+            ESIM_BOOTSTRAP_PROVISIONING};
+    private static final MigrationEngine.TableCopy CARRIERS_COPY =
+            new MigrationEngine.TableCopy(CARRIERS_TABLE, CARRIERS_TABLE_TMP)
+                    .strings(APN_STRING_COLUMNS)
+                    .ints(APN_INT_COLUMNS)
+                    .orderBy(_ID);
+
+    // Columns copied when the siminfo table is recreated on upgrade to version 25.
+    private static final String[] SIMINFO_V24_STRING_COLUMNS = {Telephony.SimInfo.COLUMN_ICC_ID,
+            Telephony.SimInfo.COLUMN_DISPLAY_NAME, Telephony.SimInfo.COLUMN_CARRIER_NAME,
+            Telephony.SimInfo.COLUMN_NUMBER};
+    private static final String[] SIMINFO_V24_INT_COLUMNS = {
+            Telephony.SimInfo.COLUMN_SIM_SLOT_INDEX,
+            Telephony.SimInfo.COLUMN_NAME_SOURCE,
+            Telephony.SimInfo.COLUMN_COLOR,
+            Telephony.SimInfo.COLUMN_DISPLAY_NUMBER_FORMAT,
+            Telephony.SimInfo.COLUMN_DATA_ROAMING,
+            Telephony.SimInfo.COLUMN_MCC,
+            Telephony.SimInfo.COLUMN_MNC,
+            Telephony.SimInfo.COLUMN_SIM_PROVISIONING_STATUS,
+            Telephony.SimInfo.COLUMN_IS_EMBEDDED,
+            Telephony.SimInfo.COLUMN_IS_REMOVABLE,
+            Telephony.SimInfo.COLUMN_CB_EXTREME_THREAT_ALERT,
+            Telephony.SimInfo.COLUMN_CB_SEVERE_THREAT_ALERT,
+            Telephony.SimInfo.COLUMN_CB_AMBER_ALERT,
+            Telephony.SimInfo.COLUMN_CB_EMERGENCY_ALERT,
+            Telephony.SimInfo.COLUMN_CB_ALERT_SOUND_DURATION,
+            Telephony.SimInfo.COLUMN_CB_ALERT_REMINDER_INTERVAL,
+            Telephony.SimInfo.COLUMN_CB_ALERT_VIBRATE,
+            Telephony.SimInfo.COLUMN_CB_ALERT_SPEECH,
+            Telephony.SimInfo.COLUMN_CB_ETWS_TEST_ALERT,
+            Telephony.SimInfo.COLUMN_CB_CHANNEL_50_ALERT,
+            Telephony.SimInfo.COLUMN_CB_CMAS_TEST_ALERT,
+            Telephony.SimInfo.COLUMN_CB_OPT_OUT_DIALOG,
+            Telephony.SimInfo.COLUMN_ENHANCED_4G_MODE_ENABLED,
+            Telephony.SimInfo.COLUMN_VT_IMS_ENABLED,
+            Telephony.SimInfo.COLUMN_WFC_IMS_ENABLED,
+            Telephony.SimInfo.COLUMN_WFC_IMS_MODE,
+            Telephony.SimInfo.COLUMN_WFC_IMS_ROAMING_MODE,
+            Telephony.SimInfo.COLUMN_WFC_IMS_ROAMING_ENABLED};
+    private static final String[] SIMINFO_V24_BLOB_COLUMNS = {
+            Telephony.SimInfo.COLUMN_ACCESS_RULES};
+    private static final MigrationEngine.TableCopy SIMINFO_COPY =
+            new MigrationEngine.TableCopy(SIMINFO_TABLE, SIMINFO_TABLE_TMP)
+                    .strings(SIMINFO_V24_STRING_COLUMNS)
+                    .ints(SIMINFO_V24_INT_COLUMNS)
+                    .blobs(SIMINFO_V24_BLOB_COLUMNS)
+                    // See copySimInfoDataToTmpTable().
+                    .nonEmptyString(Telephony.SimInfo.COLUMN_CARD_ID,
+                            Telephony.SimInfo.COLUMN_ICC_ID)
+                    .orderBy(ORDER_BY_SUB_ID);
+
     @VisibleForTesting
     static final String BACKED_UP_SIM_SPECIFIC_SETTINGS_FILE = "sim_specific_settings_file";
     // Holds names and value types of SimInfoDb columns to backup.
@@ -273,8 +340,14 @@ public class TelephonyProvider extends ContentProvider
     static final String KEY_PREVIOUSLY_RESTORED_SUB_IDS = "KEY_PREVIOUSLY_RESTORED_SUB_IDS";
 
     private static final int INVALID_APN_ID = -1;
-    private static final List<String> CARRIERS_UNIQUE_FIELDS = new ArrayList<String>();
+    // How long changes of carriers rows are collected before observers are notified.
+    private static final long CARRIERS_NOTIFICATION_WINDOW_MS = 100;
+    static final List<String> CARRIERS_UNIQUE_FIELDS = new ArrayList<String>();
     private static final Set<String> CARRIERS_BOOLEAN_FIELDS = new HashSet<String>();
+
+    // The siminfo columns not dumped in clear.
+    private static final Set<String> SIMINFO_REDACTED_COLUMNS = Set.of(
+            Telephony.SimInfo.COLUMN_ICC_ID, Telephony.SimInfo.COLUMN_CARD_ID);
     private static final Map<String, String> CARRIERS_UNIQUE_FIELDS_DEFAULTS = new HashMap();
     private static final String ALLOWED_NETWORK_TYPES_TEXT_ENABLE_2G = "enable_2g";
 
@@ -286,7 +359,22 @@ public class TelephonyProvider extends ContentProvider
     private IApnSourceService mIApnSourceService;
     private Injector mInjector;
 
-    private boolean mManagedApnEnforced;
+    private volatile boolean mManagedApnEnforced;
+
+    /**
+     * Guards the carriers table, the match index and the writes to the preferred APN store.
+     * Queries take the read lock so they don't serialize behind each other; writes take the
+     * write lock. Never acquire {@link #mSimInfoLock} while holding this lock or vice versa.
+     * Its write generation stamps the cached query results, see {@link ApnQueryCache}.
+     */
+    private final InstrumentedReadWriteLock mCarriersLock =
+            new InstrumentedReadWriteLock(CARRIERS_TABLE);
+
+    /**
+     * Guards the siminfo table and the SIM specific settings backup file.
+     */
+    private final InstrumentedReadWriteLock mSimInfoLock =
+            new InstrumentedReadWriteLock(SIMINFO_TABLE);
 
     /**
      * Lazy tracking SubscriptionManager#getDefaultSubscriptionId for db operation to prevent race
@@ -298,6 +386,64 @@ public class TelephonyProvider extends ContentProvider
 
     private final LocalLog mLocalLog = new LocalLog(128);
 
+    // Events of the preferred APN path, which are frequent, formatted only when dumped. The local
+    // log above keeps the rare events like database upgrades and restores, which are also always
+    // written to logcat.
+    private static final EventBuffer.Event EVENT_SET_PREFERRED_APN_ID =
+            new EventBuffer.Event("setPreferredApnId", "apnId", "explicit");
+    private static final EventBuffer.Event EVENT_SET_PREFERRED_APN =
+            new EventBuffer.Event("setPreferredApn", "_id", null);
+    private static final EventBuffer.Event EVENT_SAVED_PREFERRED_APN =
+            new EventBuffer.Event("setPreferredApn: saved", null, "version");
+
+    private final EventBuffer mEvents = new EventBuffer(128, TAG);
+
+    private final ProviderMetrics mMetrics = new ProviderMetrics(TAG);
+
+    /**
+     * Index of the carriers table columns used to match APNs against the SIM. Must be told about
+     * every write to the carriers table.
+     */
+    private final ApnMatchIndex mApnMatchIndex = new ApnMatchIndex();
+    private final MvnoMatcher mMvnoMatcher = new MvnoMatcher();
+    private final PreferredApnStore mPreferredApnStore =
+            new PreferredApnStore(this::getContext, CARRIERS_UNIQUE_FIELDS);
+    /**
+     * Results of the frequent APN queries, stamped with the write generation of
+     * {@link #mCarriersLock}.
+     */
+    private final ApnQueryCache mApnQueryCache = new ApnQueryCache();
+    /** Serves the siminfo queries simple enough to be answered without SQLite. */
+    private final SimInfoSnapshot.Cache mSimInfoSnapshot =
+            new SimInfoSnapshot.Cache(SIMINFO_TABLE, mSimInfoLock);
+    /** The parsed SIM specific settings backup, guarded by {@link #mSimInfoLock}. */
+    private final SimSettingsBackupStore mSimSettingsBackupStore = new SimSettingsBackupStore(
+            () -> new File(getContext().getFilesDir(), BACKED_UP_SIM_SPECIFIC_SETTINGS_FILE),
+            KEY_SIMINFO_DB_ROW_PREFIX);
+    /** Updates the APN DB in the background on the first boot after an OTA. */
+    private final ApnDbWarmUp mApnDbWarmUp = new ApnDbWarmUp(mLocalLog);
+
+    /** Carriers change notifications held back until the end of the batch being applied. */
+    private final ThreadLocal<ArraySet<Uri>> mPendingCarriersNotifications = new ThreadLocal<>();
+    /** Coalesces the notifications of changed carriers rows, sent off the main thread. */
+    private final CarriersChangeNotifier mCarriersNotifier = new CarriersChangeNotifier(
+            CONTENT_URI, NotificationThread.getHandler(), CARRIERS_NOTIFICATION_WINDOW_MS,
+            uri -> getContext().getContentResolver().notifyChange(uri, null, true,
+                    UserHandle.USER_ALL));
+
+    /**
+     * Drops the cached SIM records used for MVNO matching and the cached query results matched
+     * against the SIM whenever the SIM or its carrier identity changes.
+     */
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (VDBG) log("mSimStateReceiver: " + intent.getAction());
+            mMvnoMatcher.invalidate();
+            mApnQueryCache.onSimChanged();
+        }
+    };
+
     /**
      * Mobile country codes where there is a high likelyhood that the MNC has 3 digits
      * and need one more prefix zero to set correct mobile network code value.
@@ -332,55 +478,6 @@ public class TelephonyProvider extends ContentProvider
            ,"750" // Falkland Islands
             };
 
-    /**
-     * Available radio technologies for GSM, UMTS and CDMA.
-     * Duplicates the constants from hardware/radio/include/ril.h
-     * This should only be used by agents working with the ril.  Others
-     * should use the equivalent TelephonyManager.NETWORK_TYPE_*
-     */
-    private static final int RIL_RADIO_TECHNOLOGY_UNKNOWN = 0;
-    private static final int RIL_RADIO_TECHNOLOGY_GPRS = 1;
-    private static final int RIL_RADIO_TECHNOLOGY_EDGE = 2;
-    private static final int RIL_RADIO_TECHNOLOGY_UMTS = 3;
-    private static final int RIL_RADIO_TECHNOLOGY_IS95A = 4;
-    private static final int RIL_RADIO_TECHNOLOGY_IS95B = 5;
-    private static final int RIL_RADIO_TECHNOLOGY_1xRTT = 6;
-    private static final int RIL_RADIO_TECHNOLOGY_EVDO_0 = 7;
-    private static final int RIL_RADIO_TECHNOLOGY_EVDO_A = 8;
-    private static final int RIL_RADIO_TECHNOLOGY_HSDPA = 9;
-    private static final int RIL_RADIO_TECHNOLOGY_HSUPA = 10;
-    private static final int RIL_RADIO_TECHNOLOGY_HSPA = 11;
-    private static final int RIL_RADIO_TECHNOLOGY_EVDO_B = 12;
-    private static final int RIL_RADIO_TECHNOLOGY_EHRPD = 13;
-    private static final int RIL_RADIO_TECHNOLOGY_LTE = 14;
-    private static final int RIL_RADIO_TECHNOLOGY_HSPAP = 15;
-
-    /**
-     * GSM radio technology only supports voice. It does not support data.
-     */
-    private static final int RIL_RADIO_TECHNOLOGY_GSM = 16;
-    private static final int RIL_RADIO_TECHNOLOGY_TD_SCDMA = 17;
-
-    /**
-     * IWLAN
-     */
-    private static final int RIL_RADIO_TECHNOLOGY_IWLAN = 18;
-
-    /**
-     * LTE_CA
-     */
-    private static final int RIL_RADIO_TECHNOLOGY_LTE_CA = 19;
-
-    /**
-     * NR(New Radio) 5G.
-     */
-    private static final int  RIL_RADIO_TECHNOLOGY_NR = 20;
-
-    /**
-     * The number of the radio technologies.
-     */
-    private static final int NEXT_RIL_RADIO_TECHNOLOGY = 21;
-
     private static final Map<String, Integer> MVNO_TYPE_STRING_MAP;
 
     static {
@@ -564,6 +661,47 @@ public class TelephonyProvider extends ContentProvider
                 "UNIQUE (" + TextUtils.join(", ", CARRIERS_UNIQUE_FIELDS) + "));";
     }
 
+    /**
+     * @return the statements creating the indexes of the carriers table, each designed for a
+     * frequent query:
+     * <ul>
+     * <li>numeric: the APNs of an operator, used to restore the default APNs.
+     * <li>carrier_id: the APNs of a carrier, also used to restore the default APNs.
+     * <li>edited_status, owned_by: the unedited APNs compared with the xml on an update, and the
+     * deleted APNs dropped or kept after it.
+     * <li>current: the current APNs, which few rows are, so the index only has those.
+     * <li>owned_by: the APNs of the device policy controller, likewise.
+     * </ul>
+     * Rows matching a SIM are found with {@link ApnMatchIndex} and read back by row id.
+     */
+    @VisibleForTesting
+    public static String[] getStringsForCarrierIndexCreation() {
+        return new String[] {
+                "CREATE INDEX IF NOT EXISTS carriers_numeric_index ON " + CARRIERS_TABLE + " ("
+                        + NUMERIC + ", " + MVNO_TYPE + ", " + MVNO_MATCH_DATA + ");",
+                "CREATE INDEX IF NOT EXISTS carriers_carrier_id_index ON " + CARRIERS_TABLE
+                        + " (" + CARRIER_ID + ");",
+                "CREATE INDEX IF NOT EXISTS carriers_edited_status_index ON " + CARRIERS_TABLE
+                        + " (" + EDITED_STATUS + ", " + OWNED_BY + ");",
+                "CREATE INDEX IF NOT EXISTS carriers_current_index ON " + CARRIERS_TABLE + " ("
+                        + CURRENT + ") WHERE " + CURRENT + " IS NOT NULL;",
+                "CREATE INDEX IF NOT EXISTS carriers_dpc_index ON " + CARRIERS_TABLE + " ("
+                        + OWNED_BY + ") WHERE " + IS_OWNED_BY_DPC + ";"};
+    }
+
+    /**
+     * @return the statements creating the indexes of the siminfo table, for the lookups of a
+     * subscription by ICCID or card id.
+     */
+    @VisibleForTesting
+    public static String[] getStringsForSimInfoIndexCreation() {
+        return new String[] {
+                "CREATE INDEX IF NOT EXISTS siminfo_icc_id_index ON " + SIMINFO_TABLE + " ("
+                        + Telephony.SimInfo.COLUMN_ICC_ID + ");",
+                "CREATE INDEX IF NOT EXISTS siminfo_card_id_index ON " + SIMINFO_TABLE + " ("
+                        + Telephony.SimInfo.COLUMN_CARD_ID + ");"};
+    }
+
     @VisibleForTesting
     public static String getStringForSimInfoTableCreation(String tableName) {
         return "CREATE TABLE " + tableName + "("
@@ -734,6 +872,20 @@ public class TelephonyProvider extends ContentProvider
         }
     }
 
+    /**
+     * The APNs read from the xml file(s), before they are written to the database.
+     */
+    static final class ApnConf {
+        // The checksum of the xml file, stored once the APNs are written.
+        final long checksum;
+        final List<ContentValues> rows;
+
+        ApnConf(long checksum, List<ContentValues> rows) {
+            this.checksum = checksum;
+            this.rows = rows;
+        }
+    }
+
     public TelephonyProvider() {
         this(new Injector());
     }
@@ -792,6 +944,8 @@ public class TelephonyProvider extends ContentProvider
     public class DatabaseHelper extends SQLiteOpenHelper {
         // Context to access resources with
         private Context mContext;
+        // Compiled copy of the APN xml files
+        private final ApnSnapshot mApnSnapshot;
 
         /**
          * DatabaseHelper helper class for loading apns into a database.
@@ -801,9 +955,12 @@ public class TelephonyProvider extends ContentProvider
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, getVersion(context));
             mContext = context;
+            mApnSnapshot = new ApnSnapshot(context.getFilesDir());
             // Memory optimization - close idle connections after 30s of inactivity
             setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
-            setWriteAheadLoggingEnabled(false);
+            // Queries only take the read lock of their table, so they can run at the same time;
+            // write-ahead logging gives them connections of their own instead of one shared one.
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -811,6 +968,8 @@ public class TelephonyProvider extends ContentProvider
             if (DBG) log("dbh.onCreate:+ db=" + db);
             createSimInfoTable(db, SIMINFO_TABLE);
             createCarriersTable(db, CARRIERS_TABLE);
+            createIndexes(db);
+            ApnConfHashes.reset(db);
             // if CarrierSettings app is installed, we expect it to do the initializiation instead
             if (apnSourceServiceExists(mContext)) {
                 log("dbh.onCreate: Skipping apply APNs from xml.");
@@ -844,11 +1003,31 @@ public class TelephonyProvider extends ContentProvider
                 loge("Exception " + CARRIERS_TABLE + " e=" + e);
                 if (e.getMessage().startsWith("no such table")) {
                     createCarriersTable(db, CARRIERS_TABLE);
+                    ApnConfHashes.reset(db);
                 }
             }
+            // The indexes go with a table recreated on upgrade, and databases created before they
+            // were added don't have them.
+            createIndexes(db);
+            // Loaded while nothing else can use the database yet, so the preferred APN store
+            // doesn't read or migrate its table on the query path.
+            mPreferredApnStore.load(db);
             if (VDBG) log("dbh.onOpen:- db=" + db);
         }
 
+        private void createIndexes(SQLiteDatabase db) {
+            try {
+                for (String sql : getStringsForCarrierIndexCreation()) {
+                    db.execSQL(sql);
+                }
+                for (String sql : getStringsForSimInfoIndexCreation()) {
+                    db.execSQL(sql);
+                }
+            } catch (SQLiteException e) {
+                loge("dbh.createIndexes: " + e);
+            }
+        }
+
         private void createSimInfoTable(SQLiteDatabase db, String tableName) {
             if (DBG) log("dbh.createSimInfoTable:+ " + tableName);
             db.execSQL("DROP TABLE IF EXISTS " + tableName);
@@ -952,7 +1131,119 @@ public class TelephonyProvider extends ContentProvider
          *  with.
          */
         private void initDatabase(SQLiteDatabase db) {
-            if (VDBG) log("dbh.initDatabase:+ db=" + db);
+            loadApnConf(db, false);
+        }
+
+        /**
+         * Reloads the APNs after the xml file(s) changed. Only the entries added or changed since
+         * the previous load are written, and unedited rows no longer in the xml are deleted.
+         */
+        private void updateDatabase(SQLiteDatabase db) {
+            loadApnConf(db, true);
+        }
+
+        /**
+         * Like {@link #updateDatabase}, with APNs read beforehand.
+         */
+        private void updateDatabase(SQLiteDatabase db, ApnConf conf) {
+            applyApnConf(db, conf, true);
+        }
+
+        private void loadApnConf(SQLiteDatabase db, boolean deleteRemoved) {
+            applyApnConf(db, readApnConf(), deleteRemoved);
+        }
+
+        /**
+         * Reads the APNs from the snapshot, or the xml file(s) if they changed since it was
+         * taken. Doesn't touch the database.
+         */
+        private ApnConf readApnConf() {
+            File confFile = getApnConfFile();
+            long checksum = getChecksum(confFile);
+            // The overlay MCC/MNC formatting depends on the build, so include it in the key.
+            String fingerprint = confFile.getAbsolutePath() + ":" + checksum + ":"
+                    + Build.FINGERPRINT;
+
+            long startTime = SystemClock.elapsedRealtime();
+            List<ContentValues> rows = mApnSnapshot.load(fingerprint);
+            if (rows != null) {
+                mLocalLog.log("dbh.loadApnConf: loaded " + rows.size() + " apns from snapshot in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            } else {
+                rows = new ArrayList<>();
+                if (parseApnConf(confFile, rows)) {
+                    mApnSnapshot.save(fingerprint, rows);
+                }
+                mLocalLog.log("dbh.loadApnConf: parsed " + rows.size() + " apns from xml in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            }
+            return new ApnConf(checksum, rows);
+        }
+
+        /**
+         * Writes the APNs read by {@link #readApnConf} to the database.
+         */
+        private void applyApnConf(SQLiteDatabase db, ApnConf conf, boolean deleteRemoved) {
+            if (VDBG) log("dbh.loadApnConf:+ db=" + db + " deleteRemoved=" + deleteRemoved);
+            try {
+                // Write the entries which changed since the previous load.
+                long startTime = SystemClock.elapsedRealtime();
+                ApnBulkLoader loader = new ApnBulkLoader(mContext, CARRIERS_TABLE,
+                        this::insertAddingDefaults);
+                db.beginTransaction();
+                try {
+                    ApnConfHashes.Result result = ApnConfHashes.apply(db, CARRIERS_TABLE,
+                            IS_UNEDITED + " and " + IS_NOT_OWNED_BY_DPC, conf.rows,
+                            setDefaultValue(new ContentValues()), deleteRemoved,
+                            (d, row) -> loader.write(d, setDefaultValue(row)));
+                    db.setTransactionSuccessful();
+                    mLocalLog.log("dbh.loadApnConf: " + result + " deleteRemoved="
+                            + deleteRemoved + " took "
+                            + (SystemClock.elapsedRealtime() - startTime) + "ms");
+                    mLocalLog.log("dbh.loadApnConf: " + loader);
+                } catch (SQLException e) {
+                    loge("Got SQLException while loading apns." + e);
+                } finally {
+                    loader.close();
+                    db.endTransaction();
+                }
+
+                // Get rid of user/carrier deleted entries that are not present in apn xml file.
+                // Those entries have edited value USER_DELETED/CARRIER_DELETED.
+                if (VDBG) {
+                    log("initDatabase: deleting USER_DELETED and replacing "
+                            + "DELETED_BUT_PRESENT_IN_XML with DELETED");
+                }
+
+                // Delete USER_DELETED
+                db.delete(CARRIERS_TABLE, IS_USER_DELETED + " or " + IS_CARRIER_DELETED, null);
+
+                // Change USER_DELETED_BUT_PRESENT_IN_XML to USER_DELETED
+                ContentValues cv = new ContentValues();
+                cv.put(EDITED_STATUS, USER_DELETED);
+                db.update(CARRIERS_TABLE, cv, IS_USER_DELETED_BUT_PRESENT_IN_XML, null);
+
+                // Change CARRIER_DELETED_BUT_PRESENT_IN_XML to CARRIER_DELETED
+                cv = new ContentValues();
+                cv.put(EDITED_STATUS, CARRIER_DELETED);
+                db.update(CARRIERS_TABLE, cv, IS_CARRIER_DELETED_BUT_PRESENT_IN_XML, null);
+            } finally {
+                // Update the stored checksum
+                setApnConfChecksum(conf.checksum);
+            }
+            if (VDBG) log("dbh.loadApnConf:- db=" + db);
+
+        }
+
+        /**
+         * Parses the APNs from the internal resource and the partner-provided xml file.
+         *
+         * @return {@code false} if a source could not be parsed entirely, in which case the rows
+         * must not be cached.
+         */
+        private boolean parseApnConf(File confFile, List<ContentValues> rows) {
+            // Whether every source was parsed entirely
+            boolean complete;
             // Read internal APNS data
             Resources r = mContext.getResources();
             int publicversion = -1;
@@ -961,19 +1252,20 @@ public class TelephonyProvider extends ContentProvider
                 try {
                     XmlUtils.beginDocument(parser, "apns");
                     publicversion = Integer.parseInt(parser.getAttributeValue(null, "version"));
-                    loadApns(db, parser, true);
+                    complete = readApns(parser, true, rows);
                 } catch (Exception e) {
                     loge("Got exception while loading APN database." + e);
+                    complete = false;
                 } finally {
                     parser.close();
                 }
             } else {
                 loge("initDatabase: resources=null");
+                return false;
             }
 
             // Read external APNS data (partner-provided)
             XmlPullParser confparser = null;
-            File confFile = getApnConfFile();
 
             FileReader confreader = null;
             if (DBG) log("confFile = " + confFile);
@@ -991,34 +1283,15 @@ public class TelephonyProvider extends ContentProvider
                             + confFile.getAbsolutePath());
                 }
 
-                loadApns(db, confparser, false);
+                complete &= readApns(confparser, false, rows);
             } catch (FileNotFoundException e) {
                 // It's ok if the file isn't found. It means there isn't a confidential file
                 // Log.e(TAG, "File not found: '" + confFile.getAbsolutePath() + "'");
             } catch (Exception e) {
                 loge("initDatabase: Exception while parsing '" + confFile.getAbsolutePath() + "'" +
                         e);
+                complete = false;
             } finally {
-                // Get rid of user/carrier deleted entries that are not present in apn xml file.
-                // Those entries have edited value USER_DELETED/CARRIER_DELETED.
-                if (VDBG) {
-                    log("initDatabase: deleting USER_DELETED and replacing "
-                            + "DELETED_BUT_PRESENT_IN_XML with DELETED");
-                }
-
-                // Delete USER_DELETED
-                db.delete(CARRIERS_TABLE, IS_USER_DELETED + " or " + IS_CARRIER_DELETED, null);
-
-                // Change USER_DELETED_BUT_PRESENT_IN_XML to USER_DELETED
-                ContentValues cv = new ContentValues();
-                cv.put(EDITED_STATUS, USER_DELETED);
-                db.update(CARRIERS_TABLE, cv, IS_USER_DELETED_BUT_PRESENT_IN_XML, null);
-
-                // Change CARRIER_DELETED_BUT_PRESENT_IN_XML to CARRIER_DELETED
-                cv = new ContentValues();
-                cv.put(EDITED_STATUS, CARRIER_DELETED);
-                db.update(CARRIERS_TABLE, cv, IS_CARRIER_DELETED_BUT_PRESENT_IN_XML, null);
-
                 if (confreader != null) {
                     try {
                         confreader.close();
@@ -1026,14 +1299,11 @@ public class TelephonyProvider extends ContentProvider
                         // do nothing
                     }
                 }
-
-                // Update the stored checksum
-                setApnConfChecksum(getChecksum(confFile));
             }
-            if (VDBG) log("dbh.initDatabase:- db=" + db);
-
+            return complete;
         }
 
+
         private File pickSecondIfExists(File sysApnFile, File altApnFile) {
             if (altApnFile.exists()) {
                 if (DBG) log("Load APNs from " + altApnFile.getPath() +
@@ -1070,7 +1340,8 @@ public class TelephonyProvider extends ContentProvider
                 log("dbh.onUpgrade:+ db=" + db + " oldV=" + oldVersion + " newV=" + newVersion);
             }
 
-            deletePreferredApnId(mContext);
+            deletePreferredApnIds(db);
+            MigrationEngine migration = new MigrationEngine(oldVersion);
 
             if (oldVersion < (5 << 16 | 6)) {
                 // 5 << 16 is the Database version and 6 in the xml version.
@@ -1088,7 +1359,7 @@ public class TelephonyProvider extends ContentProvider
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN authtype INTEGER DEFAULT -1;");
 
-                oldVersion = 5 << 16 | 6;
+                oldVersion = migration.stepDone(5 << 16 | 6);
             }
             if (oldVersion < (6 << 16 | 6)) {
                 // Add protcol fields to the APN. The XML file does not change.
@@ -1096,7 +1367,7 @@ public class TelephonyProvider extends ContentProvider
                         " ADD COLUMN protocol TEXT DEFAULT IP;");
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN roaming_protocol TEXT DEFAULT IP;");
-                oldVersion = 6 << 16 | 6;
+                oldVersion = migration.stepDone(6 << 16 | 6);
             }
             if (oldVersion < (7 << 16 | 6)) {
                 // Add carrier_enabled, bearer fields to the APN. The XML file does not change.
@@ -1104,7 +1375,7 @@ public class TelephonyProvider extends ContentProvider
                         " ADD COLUMN carrier_enabled BOOLEAN DEFAULT 1;");
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN bearer INTEGER DEFAULT 0;");
-                oldVersion = 7 << 16 | 6;
+                oldVersion = migration.stepDone(7 << 16 | 6);
             }
             if (oldVersion < (8 << 16 | 6)) {
                 // Add mvno_type, mvno_match_data fields to the APN.
@@ -1113,13 +1384,13 @@ public class TelephonyProvider extends ContentProvider
                         " ADD COLUMN mvno_type TEXT DEFAULT '';");
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN mvno_match_data TEXT DEFAULT '';");
-                oldVersion = 8 << 16 | 6;
+                oldVersion = migration.stepDone(8 << 16 | 6);
             }
             if (oldVersion < (9 << 16 | 6)) {
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN sub_id INTEGER DEFAULT " +
                         SubscriptionManager.INVALID_SUBSCRIPTION_ID + ";");
-                oldVersion = 9 << 16 | 6;
+                oldVersion = migration.stepDone(9 << 16 | 6);
             }
             if (oldVersion < (10 << 16 | 6)) {
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
@@ -1132,12 +1403,12 @@ public class TelephonyProvider extends ContentProvider
                         " ADD COLUMN wait_time INTEGER DEFAULT 0;");
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN max_conns_time INTEGER DEFAULT 0;");
-                oldVersion = 10 << 16 | 6;
+                oldVersion = migration.stepDone(10 << 16 | 6);
             }
             if (oldVersion < (11 << 16 | 6)) {
                 db.execSQL("ALTER TABLE " + CARRIERS_TABLE +
                         " ADD COLUMN mtu INTEGER DEFAULT 0;");
-                oldVersion = 11 << 16 | 6;
+                oldVersion = migration.stepDone(11 << 16 | 6);
             }
             if (oldVersion < (12 << 16 | 6)) {
                 try {
@@ -1152,7 +1423,7 @@ public class TelephonyProvider extends ContentProvider
                                 " The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 12 << 16 | 6;
+                oldVersion = migration.stepDone(12 << 16 | 6);
             }
             if (oldVersion < (13 << 16 | 6)) {
                 try {
@@ -1165,7 +1436,7 @@ public class TelephonyProvider extends ContentProvider
                                 " The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 13 << 16 | 6;
+                oldVersion = migration.stepDone(13 << 16 | 6);
             }
             if (oldVersion < (14 << 16 | 6)) {
                 // Do nothing. This is to avoid recreating table twice. Table is anyway recreated
@@ -1233,7 +1504,7 @@ public class TelephonyProvider extends ContentProvider
                     c.close();
                 }
 
-                oldVersion = 15 << 16 | 6;
+                oldVersion = migration.stepDone(15 << 16 | 6);
             }
             if (oldVersion < (16 << 16 | 6)) {
                 try {
@@ -1274,7 +1545,7 @@ public class TelephonyProvider extends ContentProvider
                                 " The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 16 << 16 | 6;
+                oldVersion = migration.stepDone(16 << 16 | 6);
             }
             if (oldVersion < (17 << 16 | 6)) {
                 Cursor c = null;
@@ -1295,7 +1566,7 @@ public class TelephonyProvider extends ContentProvider
                         c.close();
                     }
                 }
-                oldVersion = 17 << 16 | 6;
+                oldVersion = migration.stepDone(17 << 16 | 6);
             }
             if (oldVersion < (18 << 16 | 6)) {
                 try {
@@ -1309,7 +1580,7 @@ public class TelephonyProvider extends ContentProvider
                                 " The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 18 << 16 | 6;
+                oldVersion = migration.stepDone(18 << 16 | 6);
             }
             if (oldVersion < (19 << 16 | 6)) {
                 // Do nothing. This is to avoid recreating table twice. Table is anyway recreated
@@ -1331,7 +1602,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 20 << 16 | 6;
+                oldVersion = migration.stepDone(20 << 16 | 6);
             }
             if (oldVersion < (21 << 16 | 6)) {
                 try {
@@ -1346,7 +1617,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 21 << 16 | 6;
+                oldVersion = migration.stepDone(21 << 16 | 6);
             }
             if (oldVersion < (22 << 16 | 6)) {
                 try {
@@ -1370,7 +1641,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 22 << 16 | 6;
+                oldVersion = migration.stepDone(22 << 16 | 6);
             }
             if (oldVersion < (23 << 16 | 6)) {
                 try {
@@ -1382,12 +1653,12 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 23 << 16 | 6;
+                oldVersion = migration.stepDone(23 << 16 | 6);
             }
             if (oldVersion < (24 << 16 | 6)) {
                 Cursor c = null;
                 String[] proj = {"_id"};
-                recreateDB(db, proj, /* version */24);
+                recreateDB(db, proj, /* version */24, migration);
                 if (VDBG) {
                     c = db.query(CARRIERS_TABLE, proj, null, null, null, null, null);
                     log("dbh.onUpgrade:- after upgrading total number of rows: " + c.getCount());
@@ -1398,7 +1669,7 @@ public class TelephonyProvider extends ContentProvider
                             + NETWORK_TYPE_BITMASK + ": " + c.getCount());
                     c.close();
                 }
-                oldVersion = 24 << 16 | 6;
+                oldVersion = migration.stepDone(24 << 16 | 6);
             }
             if (oldVersion < (25 << 16 | 6)) {
                 // Add a new column SubscriptionManager.CARD_ID into the database and set the value
@@ -1408,7 +1679,7 @@ public class TelephonyProvider extends ContentProvider
                 // the new table.
                 Cursor c = null;
                 String[] proj = {Telephony.SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID};
-                recreateSimInfoDB(c, db, proj);
+                recreateSimInfoDB(c, db, proj, migration);
                 if (VDBG) {
                     c = db.query(SIMINFO_TABLE, proj, null, null, null, null, null);
                     log("dbh.onUpgrade:- after upgrading " + SIMINFO_TABLE
@@ -1420,7 +1691,7 @@ public class TelephonyProvider extends ContentProvider
                             + Telephony.SimInfo.COLUMN_CARD_ID + ": " + c.getCount());
                     c.close();
                 }
-                oldVersion = 25 << 16 | 6;
+                oldVersion = migration.stepDone(25 << 16 | 6);
             }
             if (oldVersion < (26 << 16 | 6)) {
                 // Add a new column Carriers.APN_SET_ID into the database and set the value to
@@ -1434,7 +1705,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 26 << 16 | 6;
+                oldVersion = migration.stepDone(26 << 16 | 6);
             }
 
             if (oldVersion < (27 << 16 | 6)) {
@@ -1460,7 +1731,7 @@ public class TelephonyProvider extends ContentProvider
                         fillInMccMncStringAtCursor(mContext, db, c);
                     }
                 }
-                oldVersion = 27 << 16 | 6;
+                oldVersion = migration.stepDone(27 << 16 | 6);
             }
 
             if (oldVersion < (28 << 16 | 6)) {
@@ -1474,7 +1745,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 28 << 16 | 6;
+                oldVersion = migration.stepDone(28 << 16 | 6);
             }
 
             if (oldVersion < (29 << 16 | 6)) {
@@ -1483,14 +1754,14 @@ public class TelephonyProvider extends ContentProvider
                     // constraint into table. However, sqlite cannot add constraints to an existing
                     // table, so recreate the table.
                     String[] proj = {"_id"};
-                    recreateDB(db, proj,  /* version */29);
+                    recreateDB(db, proj,  /* version */29, migration);
                 } catch (SQLiteException e) {
                     if (DBG) {
                         log("onUpgrade skipping " + CARRIERS_TABLE + " upgrade. " +
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 29 << 16 | 6;
+                oldVersion = migration.stepDone(29 << 16 | 6);
             }
 
             if (oldVersion < (30 << 16 | 6)) {
@@ -1504,7 +1775,7 @@ public class TelephonyProvider extends ContentProvider
                             "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 30 << 16 | 6;
+                oldVersion = migration.stepDone(30 << 16 | 6);
             }
 
             if (oldVersion < (31 << 16 | 6)) {
@@ -1518,7 +1789,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 31 << 16 | 6;
+                oldVersion = migration.stepDone(31 << 16 | 6);
             }
 
             if (oldVersion < (32 << 16 | 6)) {
@@ -1532,7 +1803,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 32 << 16 | 6;
+                oldVersion = migration.stepDone(32 << 16 | 6);
             }
 
             if (oldVersion < (33 << 16 | 6)) {
@@ -1546,7 +1817,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 33 << 16 | 6;
+                oldVersion = migration.stepDone(33 << 16 | 6);
             }
 
             if (oldVersion < (34 << 16 | 6)) {
@@ -1561,7 +1832,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 34 << 16 | 6;
+                oldVersion = migration.stepDone(34 << 16 | 6);
             }
 
             if (oldVersion < (35 << 16 | 6)) {
@@ -1576,7 +1847,7 @@ public class TelephonyProvider extends ContentProvider
                             "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 35 << 16 | 6;
+                oldVersion = migration.stepDone(35 << 16 | 6);
             }
 
             if (oldVersion < (36 << 16 | 6)) {
@@ -1591,7 +1862,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 36 << 16 | 6;
+                oldVersion = migration.stepDone(36 << 16 | 6);
             }
 
             if (oldVersion < (37 << 16 | 6)) {
@@ -1608,7 +1879,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 37 << 16 | 6;
+                oldVersion = migration.stepDone(37 << 16 | 6);
             }
 
             if (oldVersion < (39 << 16 | 6)) {
@@ -1622,7 +1893,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 39 << 16 | 6;
+                oldVersion = migration.stepDone(39 << 16 | 6);
             }
 
             if (oldVersion < (40 << 16 | 6)) {
@@ -1636,7 +1907,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 40 << 16 | 6;
+                oldVersion = migration.stepDone(40 << 16 | 6);
             }
 
             if (oldVersion < (41 << 16 | 6)) {
@@ -1650,7 +1921,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 41 << 16 | 6;
+                oldVersion = migration.stepDone(41 << 16 | 6);
             }
 
             if (oldVersion < (44 << 16 | 6)) {
@@ -1690,7 +1961,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 44 << 16 | 6;
+                oldVersion = migration.stepDone(44 << 16 | 6);
             }
 
             if (oldVersion < (45 << 16 | 6)) {
@@ -1705,7 +1976,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 45 << 16 | 6;
+                oldVersion = migration.stepDone(45 << 16 | 6);
             }
 
             if (oldVersion < (46 << 16 | 6)) {
@@ -1720,7 +1991,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 46 << 16 | 6;
+                oldVersion = migration.stepDone(46 << 16 | 6);
             }
 
             if (oldVersion < (47 << 16 | 6)) {
@@ -1735,7 +2006,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 47 << 16 | 6;
+                oldVersion = migration.stepDone(47 << 16 | 6);
             }
 
             if (oldVersion < (48 << 16 | 6)) {
@@ -1766,7 +2037,7 @@ public class TelephonyProvider extends ContentProvider
                                 + "COLUMN_ALLOWED_NETWORK_TYPES_ALL_REASON");
                     }
                 }
-                oldVersion = 48 << 16 | 6;
+                oldVersion = migration.stepDone(48 << 16 | 6);
             }
 
             if (oldVersion < (49 << 16 | 6)) {
@@ -1795,7 +2066,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 50 << 16 | 6;
+                oldVersion = migration.stepDone(50 << 16 | 6);
             }
 
             if (oldVersion < (51 << 16 | 6)) {
@@ -1810,7 +2081,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add d2d status sharing contacts. ");
                     }
                 }
-                oldVersion = 51 << 16 | 6;
+                oldVersion = migration.stepDone(51 << 16 | 6);
             }
 
             if (oldVersion < (52 << 16 | 6)) {
@@ -1825,7 +2096,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 52 << 16 | 6;
+                oldVersion = migration.stepDone(52 << 16 | 6);
             }
 
             if (oldVersion < (53 << 16 | 6)) {
@@ -1840,7 +2111,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add d2d status sharing contacts. ");
                     }
                 }
-                oldVersion = 53 << 16 | 6;
+                oldVersion = migration.stepDone(53 << 16 | 6);
             }
 
             if (oldVersion < (54 << 16 | 6)) {
@@ -1858,7 +2129,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add phone numbers. ");
                     }
                 }
-                oldVersion = 54 << 16 | 6;
+                oldVersion = migration.stepDone(54 << 16 | 6);
             }
 
             if (oldVersion < (55 << 16 | 6)) {
@@ -1883,7 +2154,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " and MTU v4 and v6 values.");
                     }
                 }
-                oldVersion = 55 << 16 | 6;
+                oldVersion = migration.stepDone(55 << 16 | 6);
             }
 
             if (oldVersion < (56 << 16 | 6)) {
@@ -1898,7 +2169,7 @@ public class TelephonyProvider extends ContentProvider
                                 "The table will get created in onOpen.");
                     }
                 }
-                oldVersion = 56 << 16 | 6;
+                oldVersion = migration.stepDone(56 << 16 | 6);
             }
 
             if (oldVersion < (57 << 16 | 6)) {
@@ -1914,7 +2185,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add preferred usage setting");
                     }
                 }
-                oldVersion = 57 << 16 | 6;
+                oldVersion = migration.stepDone(57 << 16 | 6);
             }
 
             if (oldVersion < (58 << 16 | 6)) {
@@ -1929,7 +2200,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add message Reference. ");
                     }
                 }
-                oldVersion = 58 << 16 | 6;
+                oldVersion = migration.stepDone(58 << 16 | 6);
             }
 
             if (oldVersion < (59 << 16 | 6)) {
@@ -1944,7 +2215,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add message Reference. ");
                     }
                 }
-                oldVersion = 59 << 16 | 6;
+                oldVersion = migration.stepDone(59 << 16 | 6);
             }
             if (oldVersion < (60 << 16 | 6)) {
                 // Update the siminfo table with new column enabled_data_mobile_policies
@@ -1973,7 +2244,7 @@ public class TelephonyProvider extends ContentProvider
                                 + "COLUMN_ENABLED_MOBILE_DATA_POLICIES");
                     }
                 }
-                oldVersion = 60 << 16 | 6;
+                oldVersion = migration.stepDone(60 << 16 | 6);
             }
 
             if (oldVersion < (61 << 16 | 6)) {
@@ -1988,7 +2259,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add message Reference. ");
                     }
                 }
-                oldVersion = 61 << 16 | 6;
+                oldVersion = migration.stepDone(61 << 16 | 6);
             }
 
             if (oldVersion < (62 << 16 | 6)) {
@@ -2003,7 +2274,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add satellite enabled. ");
                     }
                 }
-                oldVersion = 62 << 16 | 6;
+                oldVersion = migration.stepDone(62 << 16 | 6);
             }
 
             if (oldVersion < (63 << 16 | 6)) {
@@ -2018,7 +2289,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add satellite attach for carrier enabled by user. ");
                     }
                 }
-                oldVersion = 63 << 16 | 6;
+                oldVersion = migration.stepDone(63 << 16 | 6);
             }
 
             if (oldVersion < (64 << 16 | 6)) {
@@ -2046,7 +2317,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add satellite is ntn. ");
                     }
                 }
-                oldVersion = 64 << 16 | 6;
+                oldVersion = migration.stepDone(64 << 16 | 6);
             }
 
             if (oldVersion < (65 << 16 | 6)) {
@@ -2059,7 +2330,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add infrastructure bitmask value.");
                     }
                 }
-                oldVersion = 65 << 16 | 6;
+                oldVersion = migration.stepDone(65 << 16 | 6);
             }
 
             if (oldVersion < (66 << 16 | 6)) {
@@ -2074,7 +2345,7 @@ public class TelephonyProvider extends ContentProvider
                     }
 
                 }
-                oldVersion = 66 << 16 | 6;
+                oldVersion = migration.stepDone(66 << 16 | 6);
             }
 
             if (oldVersion < (67 << 16 | 6)) {
@@ -2089,7 +2360,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add infrastructure bitmask value.");
                     }
                 }
-                oldVersion = 67 << 16 | 6;
+                oldVersion = migration.stepDone(67 << 16 | 6);
             }
 
             if (oldVersion < (68 << 16 | 6)) {
@@ -2104,7 +2375,7 @@ public class TelephonyProvider extends ContentProvider
                     }
 
                 }
-                oldVersion = 68 << 16 | 6;
+                oldVersion = migration.stepDone(68 << 16 | 6);
             }
 
             if (oldVersion < (69 << 16 | 6)) {
@@ -2122,7 +2393,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add cellular service capabilities");
                     }
                 }
-                oldVersion = 69 << 16 | 6;
+                oldVersion = migration.stepDone(69 << 16 | 6);
             }
             if (oldVersion < (70 << 16 | 6)) {
                 try {
@@ -2136,7 +2407,7 @@ public class TelephonyProvider extends ContentProvider
                     }
 
                 }
-                oldVersion = 70 << 16 | 6;
+                oldVersion = migration.stepDone(70 << 16 | 6);
             }
 
             if (oldVersion < (71 << 16 | 6)) {
@@ -2154,7 +2425,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add satellite entitlement status and plmns");
                     }
                 }
-                oldVersion = 71 << 16 | 6;
+                oldVersion = migration.stepDone(71 << 16 | 6);
             }
 
             if (oldVersion < (72 << 16 | 6)) {
@@ -2202,7 +2473,7 @@ public class TelephonyProvider extends ContentProvider
                         log("onUpgrade failed to update " + SIMINFO_TABLE + " to version 72: " + e);
                     }
                 }
-                oldVersion = 72 << 16 | 6;
+                oldVersion = migration.stepDone(72 << 16 | 6);
             }
 
             if (oldVersion < (73 << 16 | 6)) {
@@ -2217,7 +2488,7 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add satellite is provisioned");
                     }
                 }
-                oldVersion = 73 << 16 | 6;
+                oldVersion = migration.stepDone(73 << 16 | 6);
             }
 
             if (oldVersion < (74 << 16 | 6)) {
@@ -2244,16 +2515,22 @@ public class TelephonyProvider extends ContentProvider
                                 + " to add satellite entitlement data");
                     }
                 }
-                oldVersion = 74 << 16 | 6;
+                oldVersion = migration.stepDone(74 << 16 | 6);
             }
+            // The carriers rows may have been copied to new row ids, load every APN again on the
+            // next update.
+            ApnConfHashes.reset(db);
+            mLocalLog.log("dbh.onUpgrade: " + migration.summary());
             if (DBG) {
                 log("dbh.onUpgrade:- db=" + db + " oldV=" + oldVersion + " newV=" + newVersion);
             }
             // when adding fields to onUpgrade, also add a unit test to TelephonyDatabaseHelperTest
-            // and update the DATABASE_VERSION field and add a column in copyAllApnValues
+            // and update the DATABASE_VERSION field and add the column to APN_STRING_COLUMNS or
+            // APN_INT_COLUMNS
         }
 
-        private void recreateSimInfoDB(Cursor c, SQLiteDatabase db, String[] proj) {
+        private void recreateSimInfoDB(Cursor c, SQLiteDatabase db, String[] proj,
+                MigrationEngine migration) {
             if (VDBG) {
                 c = db.query(SIMINFO_TABLE, proj, null, null, null, null, null);
                 log("dbh.onUpgrade:+ before upgrading " + SIMINFO_TABLE +
@@ -2261,17 +2538,18 @@ public class TelephonyProvider extends ContentProvider
                 c.close();
             }
 
-            // Sort in ascending order by subscription id to make sure the rows do not get flipped
-            // during the query and added in the new sim info table in another order (sub id is
-            // stored in settings between migrations).
-            c = db.query(SIMINFO_TABLE, null, null, null, null, null, ORDER_BY_SUB_ID);
-
             db.execSQL("DROP TABLE IF EXISTS " + SIMINFO_TABLE_TMP);
 
             createSimInfoTable(db, SIMINFO_TABLE_TMP);
 
-            copySimInfoDataToTmpTable(db, c);
-            c.close();
+            if (!migration.copy(db, SIMINFO_COPY)) {
+                // Sort in ascending order by subscription id to make sure the rows do not get
+                // flipped during the query and added in the new sim info table in another order
+                // (sub id is stored in settings between migrations).
+                c = db.query(SIMINFO_TABLE, null, null, null, null, null, ORDER_BY_SUB_ID);
+                copySimInfoDataToTmpTable(db, c);
+                c.close();
+            }
 
             db.execSQL("DROP TABLE IF EXISTS " + SIMINFO_TABLE);
 
@@ -2308,44 +2586,15 @@ public class TelephonyProvider extends ContentProvider
         }
 
         private void copySimInfoValuesV24(ContentValues cv, Cursor c) {
-            // String vals
-            getStringValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_ICC_ID);
-            getStringValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_DISPLAY_NAME);
-            getStringValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CARRIER_NAME);
-            getStringValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_NUMBER);
-
-            // bool/int vals
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_SIM_SLOT_INDEX);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_NAME_SOURCE);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_COLOR);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_DISPLAY_NUMBER_FORMAT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_DATA_ROAMING);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_MCC);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_MNC);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_SIM_PROVISIONING_STATUS);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_IS_EMBEDDED);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_IS_REMOVABLE);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_EXTREME_THREAT_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_SEVERE_THREAT_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_AMBER_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_EMERGENCY_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_ALERT_SOUND_DURATION);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_ALERT_REMINDER_INTERVAL);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_ALERT_VIBRATE);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_ALERT_SPEECH);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_ETWS_TEST_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_CHANNEL_50_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_CMAS_TEST_ALERT);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_CB_OPT_OUT_DIALOG);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_ENHANCED_4G_MODE_ENABLED);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_VT_IMS_ENABLED);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_WFC_IMS_ENABLED);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_WFC_IMS_MODE);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_WFC_IMS_ROAMING_MODE);
-            getIntValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_WFC_IMS_ROAMING_ENABLED);
-
-            // Blob vals
-            getBlobValueFromCursor(cv, c, Telephony.SimInfo.COLUMN_ACCESS_RULES);
+            for (String column : SIMINFO_V24_STRING_COLUMNS) {
+                getStringValueFromCursor(cv, c, column);
+            }
+            for (String column : SIMINFO_V24_INT_COLUMNS) {
+                getIntValueFromCursor(cv, c, column);
+            }
+            for (String column : SIMINFO_V24_BLOB_COLUMNS) {
+                getBlobValueFromCursor(cv, c, column);
+            }
         }
 
         private void getCardIdfromIccid(ContentValues cv, Cursor c) {
@@ -2358,10 +2607,12 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
-        private void recreateDB(SQLiteDatabase db, String[] proj, int version) {
+        private void recreateDB(SQLiteDatabase db, String[] proj, int version,
+                MigrationEngine migration) {
             // Upgrade steps are:
             // 1. Create a temp table- done in createCarriersTable()
-            // 2. copy over APNs from old table to new table - done in copyDataToTmpTable()
+            // 2. copy over APNs from old table to new table - done in one statement by the
+            //    migration engine, or row by row in copyDataToTmpTable()
             // 3. Drop the existing table.
             // 4. Copy over the tmp table.
             Cursor c;
@@ -2371,19 +2622,28 @@ public class TelephonyProvider extends ContentProvider
                 c.close();
             }
 
-            c = db.query(CARRIERS_TABLE, null, null, null, null, null, null);
-
-            if (VDBG) {
-                log("dbh.onUpgrade:- starting data copy of existing rows: " +
-                        + ((c == null) ? 0 : c.getCount()));
-            }
-
             db.execSQL("DROP TABLE IF EXISTS " + CARRIERS_TABLE_TMP);
 
             createCarriersTable(db, CARRIERS_TABLE_TMP);
 
-            copyDataToTmpTable(db, c, version);
-            c.close();
+            boolean copied = false;
+            if (version == 24) {
+                // The bearer and network type bitmasks are converted in Java.
+                migration.noteJavaCopy(CARRIERS_COPY);
+            } else {
+                copied = migration.copy(db, CARRIERS_COPY);
+            }
+            if (!copied) {
+                c = db.query(CARRIERS_TABLE, null, null, null, null, null, null);
+
+                if (VDBG) {
+                    log("dbh.onUpgrade:- starting data copy of existing rows: " +
+                            + ((c == null) ? 0 : c.getCount()));
+                }
+
+                copyDataToTmpTable(db, c, version);
+                c.close();
+            }
 
             db.execSQL("DROP TABLE IF EXISTS " + CARRIERS_TABLE);
 
@@ -2650,52 +2910,12 @@ public class TelephonyProvider extends ContentProvider
         }
 
         private void copyAllApnValues(ContentValues cv, Cursor c) {
-            // String vals
-            getStringValueFromCursor(cv, c, NAME);
-            getStringValueFromCursor(cv, c, NUMERIC);
-            getStringValueFromCursor(cv, c, MCC);
-            getStringValueFromCursor(cv, c, MNC);
-            getStringValueFromCursor(cv, c, APN);
-            getStringValueFromCursor(cv, c, USER);
-            getStringValueFromCursor(cv, c, SERVER);
-            getStringValueFromCursor(cv, c, PASSWORD);
-            getStringValueFromCursor(cv, c, PROXY);
-            getStringValueFromCursor(cv, c, PORT);
-            getStringValueFromCursor(cv, c, MMSPROXY);
-            getStringValueFromCursor(cv, c, MMSPORT);
-            getStringValueFromCursor(cv, c, MMSC);
-            getStringValueFromCursor(cv, c, TYPE);
-            getStringValueFromCursor(cv, c, PROTOCOL);
-            getStringValueFromCursor(cv, c, ROAMING_PROTOCOL);
-            getStringValueFromCursor(cv, c, MVNO_TYPE);
-            getStringValueFromCursor(cv, c, MVNO_MATCH_DATA);
-
-            // bool/int vals
-            getIntValueFromCursor(cv, c, AUTH_TYPE);
-            getIntValueFromCursor(cv, c, CURRENT);
-            getIntValueFromCursor(cv, c, CARRIER_ENABLED);
-            getIntValueFromCursor(cv, c, BEARER);
-            getIntValueFromCursor(cv, c, SUBSCRIPTION_ID);
-            getIntValueFromCursor(cv, c, PROFILE_ID);
-            getIntValueFromCursor(cv, c, MODEM_PERSIST);
-            getIntValueFromCursor(cv, c, MAX_CONNECTIONS);
-            getIntValueFromCursor(cv, c, WAIT_TIME_RETRY);
-            getIntValueFromCursor(cv, c, TIME_LIMIT_FOR_MAX_CONNECTIONS);
-            getIntValueFromCursor(cv, c, MTU);
-            getIntValueFromCursor(cv, c, MTU_V4);
-            getIntValueFromCursor(cv, c, MTU_V6);
-            getIntValueFromCursor(cv, c, NETWORK_TYPE_BITMASK);
-            getIntValueFromCursor(cv, c, LINGERING_NETWORK_TYPE_BITMASK);
-            getIntValueFromCursor(cv, c, BEARER_BITMASK);
-            getIntValueFromCursor(cv, c, EDITED_STATUS);
-            getIntValueFromCursor(cv, c, USER_VISIBLE);
-            getIntValueFromCursor(cv, c, USER_EDITABLE);
-            getIntValueFromCursor(cv, c, OWNED_BY);
-            getIntValueFromCursor(cv, c, APN_SET_ID);
-            getIntValueFromCursor(cv, c, SKIP_464XLAT);
-            getIntValueFromCursor(cv, c, ALWAYS_ON);
-            getIntValueFromCursor(cv, c, INFRASTRUCTURE_BITMASK);
-            getIntValueFromCursor(cv, c, ESIM_BOOTSTRAP_PROVISIONING);
+            for (String column : APN_STRING_COLUMNS) {
+                getStringValueFromCursor(cv, c, column);
+            }
+            for (String column : APN_INT_COLUMNS) {
+                getIntValueFromCursor(cv, c, column);
+            }
         }
 
         private void copyPreservedApnsToNewTable(SQLiteDatabase db, Cursor c) {
@@ -2714,11 +2934,13 @@ public class TelephonyProvider extends ContentProvider
                         // Change bearer to a bitmask
                         String bearerStr = c.getString(c.getColumnIndex(BEARER));
                         if (!TextUtils.isEmpty(bearerStr)) {
-                            int bearer_bitmask = getBitmaskForTech(Integer.parseInt(bearerStr));
+                            int bearer_bitmask =
+                                    ApnFieldCodec.getBitmaskForTech(Integer.parseInt(bearerStr));
                             cv.put(BEARER_BITMASK, bearer_bitmask);
 
-                            int networkTypeBitmask = rilRadioTechnologyToNetworkTypeBitmask(
-                                    Integer.parseInt(bearerStr));
+                            int networkTypeBitmask =
+                                    ApnFieldCodec.rilRadioTechnologyToNetworkTypeBitmask(
+                                            Integer.parseInt(bearerStr));
                             cv.put(NETWORK_TYPE_BITMASK, networkTypeBitmask);
                         }
 
@@ -2806,7 +3028,8 @@ public class TelephonyProvider extends ContentProvider
                 String fromCursor = c.getString(columnIndex);
                 if (!TextUtils.isEmpty(fromCursor) && fromCursor.matches("\\d+")) {
                     int networkBitmask = Integer.valueOf(fromCursor);
-                    int bearerBitmask = convertNetworkTypeBitmaskToBearerBitmask(networkBitmask);
+                    int bearerBitmask =
+                            ApnFieldCodec.convertNetworkTypeBitmaskToBearerBitmask(networkBitmask);
                     cv.put(BEARER_BITMASK, String.valueOf(bearerBitmask));
                 }
                 return;
@@ -2816,7 +3039,8 @@ public class TelephonyProvider extends ContentProvider
                 String fromCursor = c.getString(columnIndex);
                 if (!TextUtils.isEmpty(fromCursor) && fromCursor.matches("\\d+")) {
                     int bearerBitmask = Integer.valueOf(fromCursor);
-                    int networkBitmask = convertBearerBitmaskToNetworkTypeBitmask(bearerBitmask);
+                    int networkBitmask =
+                            ApnFieldCodec.convertBearerBitmaskToNetworkTypeBitmask(bearerBitmask);
                     cv.put(NETWORK_TYPE_BITMASK, String.valueOf(networkBitmask));
                 }
             }
@@ -2927,14 +3151,15 @@ public class TelephonyProvider extends ContentProvider
                     ApnSetting.INFRASTRUCTURE_CELLULAR | ApnSetting.INFRASTRUCTURE_SATELLITE;
             String infrastructureList = parser.getAttributeValue(null, "infrastructure_bitmask");
             if (infrastructureList != null) {
-                infrastructureBitmask = getInfrastructureListFromString(infrastructureList);
+                infrastructureBitmask =
+                        ApnFieldCodec.parseInfrastructureBitmask(infrastructureList);
             }
             map.put(INFRASTRUCTURE_BITMASK, infrastructureBitmask);
 
             int networkTypeBitmask = 0;
             String networkTypeList = parser.getAttributeValue(null, "network_type_bitmask");
             if (networkTypeList != null) {
-                networkTypeBitmask = getBitmaskFromString(networkTypeList);
+                networkTypeBitmask = ApnFieldCodec.parseBitmask(networkTypeList);
             }
             map.put(NETWORK_TYPE_BITMASK, networkTypeBitmask);
 
@@ -2942,20 +3167,23 @@ public class TelephonyProvider extends ContentProvider
             String lingeringNetworkTypeList =
                     parser.getAttributeValue(null, "lingering_network_type_bitmask");
             if (lingeringNetworkTypeList != null) {
-                lingeringNetworkTypeBitmask = getBitmaskFromString(lingeringNetworkTypeList);
+                lingeringNetworkTypeBitmask =
+                        ApnFieldCodec.parseBitmask(lingeringNetworkTypeList);
             }
             map.put(LINGERING_NETWORK_TYPE_BITMASK, lingeringNetworkTypeBitmask);
 
             int bearerBitmask = 0;
             if (networkTypeList != null) {
-                bearerBitmask = convertNetworkTypeBitmaskToBearerBitmask(networkTypeBitmask);
+                bearerBitmask =
+                        ApnFieldCodec.convertNetworkTypeBitmaskToBearerBitmask(networkTypeBitmask);
             } else {
                 String bearerList = parser.getAttributeValue(null, "bearer_bitmask");
                 if (bearerList != null) {
-                    bearerBitmask = getBitmaskFromString(bearerList);
+                    bearerBitmask = ApnFieldCodec.parseBitmask(bearerList);
                 }
                 // Update the network type bitmask to keep them sync.
-                networkTypeBitmask = convertBearerBitmaskToNetworkTypeBitmask(bearerBitmask);
+                networkTypeBitmask =
+                        ApnFieldCodec.convertBearerBitmaskToNetworkTypeBitmask(bearerBitmask);
                 map.put(NETWORK_TYPE_BITMASK, networkTypeBitmask);
             }
             map.put(BEARER_BITMASK, bearerBitmask);
@@ -2996,83 +3224,111 @@ public class TelephonyProvider extends ContentProvider
         }
 
         /*
-         * Loads apns from xml file into the database
+         * Reads apns from xml file
          *
-         * @param db the sqlite database to write to
          * @param parser the xml parser
          * @param isOverlay, if we are parsing an xml in an overlay
+         * @param rows the list to add the apns to. Nothing is added if the file can't be parsed
+         *             entirely.
+         * @return {@code false} if the file can't be parsed entirely.
          */
-        private void loadApns(SQLiteDatabase db, XmlPullParser parser, boolean isOverlay) {
+        private boolean readApns(XmlPullParser parser, boolean isOverlay,
+                List<ContentValues> rows) {
             if (parser != null) {
+                List<ContentValues> fileRows = new ArrayList<>();
                 try {
-                    db.beginTransaction();
                     XmlUtils.nextElement(parser);
                     while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
                         ContentValues row = getRow(parser, isOverlay);
                         if (row == null) {
                             throw new XmlPullParserException("Expected 'apn' tag", parser, null);
                         }
-                        insertAddingDefaults(db, row);
+                        fileRows.add(row);
                         XmlUtils.nextElement(parser);
                     }
-                    db.setTransactionSuccessful();
+                    rows.addAll(fileRows);
                 } catch (XmlPullParserException e) {
                     loge("Got XmlPullParserException while loading apns." + e);
+                    return false;
                 } catch (IOException e) {
                     loge("Got IOException while loading apns." + e);
-                } catch (SQLException e) {
-                    loge("Got SQLException while loading apns." + e);
-                } finally {
-                    db.endTransaction();
+                    return false;
                 }
             }
+            return true;
         }
 
-        private void insertAddingDefaults(SQLiteDatabase db, ContentValues row) {
+        /**
+         * Insert a row loaded from xml, merging it into a conflicting row if there is one.
+         *
+         * @return the id of the row the values ended up in, or -1 if that is not a single row.
+         */
+        private long insertAddingDefaults(SQLiteDatabase db, ContentValues row) {
             row = setDefaultValue(row);
+            long rowId = -1;
             try {
-                db.insertWithOnConflict(CARRIERS_TABLE, null, row, SQLiteDatabase.CONFLICT_ABORT);
+                rowId = db.insertWithOnConflict(CARRIERS_TABLE, null, row,
+                        SQLiteDatabase.CONFLICT_ABORT);
                 if (VDBG) log("dbh.insertAddingDefaults: db.insert returned >= 0; insert " +
                         "successful for cv " + row);
             } catch (SQLException e) {
                 if (VDBG) log("dbh.insertAddingDefaults: exception " + e);
                 // Insertion failed which could be due to a conflict. Check if that is the case and
                 // update edited field accordingly.
-                // Search for the exact same entry and update edited field.
-                // If it is USER_EDITED/CARRIER_EDITED change it to UNEDITED,
-                // and if USER/CARRIER_DELETED change it to USER/CARRIER_DELETED_BUT_PRESENT_IN_XML.
                 Cursor oldRow = selectConflictingRow(db, CARRIERS_TABLE, row);
                 if (oldRow != null) {
-                    // Update the row
-                    ContentValues mergedValues = new ContentValues();
-                    int edited = oldRow.getInt(oldRow.getColumnIndex(EDITED_STATUS));
-                    int old_edited = edited;
-                    if (edited != UNEDITED) {
-                        if (edited == USER_DELETED) {
-                            // USER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
-                            // by user but present in apn xml file.
-                            edited = USER_DELETED_BUT_PRESENT_IN_XML;
-                        } else if (edited == CARRIER_DELETED) {
-                            // CARRIER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
-                            // by user but present in apn xml file.
-                            edited = CARRIER_DELETED_BUT_PRESENT_IN_XML;
-                        }
-                        mergedValues.put(EDITED_STATUS, edited);
+                    if (mergeXmlRowIntoConflictingRow(db, oldRow, row, mContext) != null) {
+                        rowId = oldRow.getLong(oldRow.getColumnIndex(_ID));
                     }
-
-                    mergeFieldsAndUpdateDb(db, CARRIERS_TABLE, oldRow, row, mergedValues, false,
-                            mContext);
-
-                    if (VDBG) log("dbh.insertAddingDefaults: old edited = " + old_edited
-                            + " new edited = " + edited);
-
                     oldRow.close();
                 }
             }
+            return rowId;
         }
     }
 
-    public static void mergeFieldsAndUpdateDb(SQLiteDatabase db, String table, Cursor oldRow,
+    /**
+     * Merge a row loaded from xml into the conflicting {@code oldRow}.
+     *
+     * Search for the exact same entry and update edited field.
+     * If it is USER_EDITED/CARRIER_EDITED change it to UNEDITED,
+     * and if USER/CARRIER_DELETED change it to USER/CARRIER_DELETED_BUT_PRESENT_IN_XML.
+     *
+     * @return the values written to the old row, or {@code null} if the new row was kept as a
+     * separate row instead.
+     */
+    static ContentValues mergeXmlRowIntoConflictingRow(SQLiteDatabase db, Cursor oldRow,
+            ContentValues row, Context context) {
+        ContentValues mergedValues = new ContentValues();
+        int edited = oldRow.getInt(oldRow.getColumnIndex(EDITED_STATUS));
+        int old_edited = edited;
+        if (edited != UNEDITED) {
+            if (edited == USER_DELETED) {
+                // USER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
+                // by user but present in apn xml file.
+                edited = USER_DELETED_BUT_PRESENT_IN_XML;
+            } else if (edited == CARRIER_DELETED) {
+                // CARRIER_DELETED_BUT_PRESENT_IN_XML indicates entry has been deleted
+                // by user but present in apn xml file.
+                edited = CARRIER_DELETED_BUT_PRESENT_IN_XML;
+            }
+            mergedValues.put(EDITED_STATUS, edited);
+        }
+
+        boolean merged = mergeFieldsAndUpdateDb(db, CARRIERS_TABLE, oldRow, row, mergedValues,
+                false, context);
+        if (VDBG) log("mergeXmlRowIntoConflictingRow: old edited = " + old_edited
+                + " new edited = " + edited);
+        return merged ? mergedValues : null;
+    }
+
+    /**
+     * Merge {@code newRow} into the conflicting {@code oldRow}.
+     *
+     * @return {@code true} if the new values were merged into the old row, {@code false} if the
+     * new row was kept as a separate row instead.
+     */
+    public static boolean mergeFieldsAndUpdateDb(SQLiteDatabase db, String table, Cursor oldRow,
             ContentValues newRow, ContentValues mergedValues,
             boolean onUpgrade, Context context) {
         if (newRow.containsKey(TYPE)) {
@@ -3101,7 +3357,7 @@ public class TelephonyProvider extends ContentProvider
                             newTypes)) {
                         if (VDBG) log("mergeFieldsAndUpdateDb: separateRowsNeeded() returned " +
                                 "true");
-                        return;
+                        return false;
                     }
 
                     // Merge the 2 types
@@ -3150,7 +3406,7 @@ public class TelephonyProvider extends ContentProvider
 
         if (newRow.containsKey(BEARER_BITMASK)
                 && newRow.containsKey(NETWORK_TYPE_BITMASK)) {
-            syncBearerBitmaskAndNetworkTypeBitmask(mergedValues);
+            ApnFieldCodec.syncBearerBitmaskAndNetworkTypeBitmask(mergedValues);
         }
 
         if (!onUpgrade) {
@@ -3174,6 +3430,7 @@ public class TelephonyProvider extends ContentProvider
             db.update(table, mergedValues, "_id=" + oldRow.getInt(oldRow.getColumnIndex("_id")),
                     null);
         }
+        return true;
     }
 
     private static boolean separateRowsNeeded(SQLiteDatabase db, String table, Cursor oldRow,
@@ -3290,21 +3547,7 @@ public class TelephonyProvider extends ContentProvider
                 NETWORK_TYPE_BITMASK,
                 PROFILE_ID };
         String selection = TextUtils.join("=? AND ", CARRIERS_UNIQUE_FIELDS) + "=?";
-        int i = 0;
-        String[] selectionArgs = new String[CARRIERS_UNIQUE_FIELDS.size()];
-        for (String field : CARRIERS_UNIQUE_FIELDS) {
-            if (!row.containsKey(field)) {
-                selectionArgs[i++] = CARRIERS_UNIQUE_FIELDS_DEFAULTS.get(field);
-            } else {
-                if (CARRIERS_BOOLEAN_FIELDS.contains(field)) {
-                    // for boolean fields we overwrite the strings "true" and "false" with "1"
-                    // and "0"
-                    selectionArgs[i++] = convertStringToIntString(row.getAsString(field));
-                } else {
-                    selectionArgs[i++] = row.getAsString(field);
-                }
-            }
-        }
+        String[] selectionArgs = getUniqueFieldValues(row);
 
         Cursor c = db.query(table, columns, selection, selectionArgs, null, null, null);
 
@@ -3331,17 +3574,40 @@ public class TelephonyProvider extends ContentProvider
     }
 
     /**
-     * Convert "true" and "false" to "1" and "0".
-     * If the passed in string is already "1" or "0" returns the passed in string.
+     * @return the values of {@link #CARRIERS_UNIQUE_FIELDS} in {@code row} as they compare in
+     * the carriers table, using the defaults for missing fields.
      */
-    private static String convertStringToIntString(String boolString) {
-        if ("0".equals(boolString) || "false".equalsIgnoreCase(boolString)) return "0";
-        return "1";
-    }
-
-    /**
-     * Convert "1" and "0" to "true" and "false".
-     * If the passed in string is already "true" or "false" returns the passed in string.
+    static String[] getUniqueFieldValues(ContentValues row) {
+        int i = 0;
+        String[] values = new String[CARRIERS_UNIQUE_FIELDS.size()];
+        for (String field : CARRIERS_UNIQUE_FIELDS) {
+            if (!row.containsKey(field)) {
+                values[i++] = CARRIERS_UNIQUE_FIELDS_DEFAULTS.get(field);
+            } else {
+                if (CARRIERS_BOOLEAN_FIELDS.contains(field)) {
+                    // for boolean fields we overwrite the strings "true" and "false" with "1"
+                    // and "0"
+                    values[i++] = convertStringToIntString(row.getAsString(field));
+                } else {
+                    values[i++] = row.getAsString(field);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Convert "true" and "false" to "1" and "0".
+     * If the passed in string is already "1" or "0" returns the passed in string.
+     */
+    private static String convertStringToIntString(String boolString) {
+        if ("0".equals(boolString) || "false".equalsIgnoreCase(boolString)) return "0";
+        return "1";
+    }
+
+    /**
+     * Convert "1" and "0" to "true" and "false".
+     * If the passed in string is already "true" or "false" returns the passed in string.
      */
     private static String convertStringToBoolString(String intString) {
         if ("0".equals(intString) || "false".equalsIgnoreCase(intString)) return "false";
@@ -3361,6 +3627,15 @@ public class TelephonyProvider extends ContentProvider
     void initDatabaseWithDatabaseHelper(SQLiteDatabase db) {
         mOpenHelper.initDatabase(db);
     }
+    void updateDatabaseWithDatabaseHelper(SQLiteDatabase db) {
+        mOpenHelper.updateDatabase(db);
+    }
+    ApnConf readApnConfWithDatabaseHelper() {
+        return mOpenHelper.readApnConf();
+    }
+    void updateDatabaseWithDatabaseHelper(SQLiteDatabase db, ApnConf conf) {
+        mOpenHelper.updateDatabase(db, conf);
+    }
     boolean needApnDbUpdate() {
         return mOpenHelper.apnDbUpdateNeeded();
     }
@@ -3450,9 +3725,9 @@ public class TelephonyProvider extends ContentProvider
                     try {
                         ContentValues[] values = mIApnSourceService.getApns(subId);
                         if (values != null) {
-                            // we use the unsynchronized insert because this function is called
-                            // within the syncrhonized function delete()
-                            unsynchronizedBulkInsert(CONTENT_URI, values);
+                            // we use the locked insert because this function is called
+                            // within delete() which already holds the carriers write lock
+                            bulkInsertLocked(CONTENT_URI, values);
                             log("restoreApnsWithService: restored");
                         }
                     } catch (RemoteException e) {
@@ -3496,55 +3771,53 @@ public class TelephonyProvider extends ContentProvider
             if (VDBG) log("onCreate: newBuildId is empty");
         }
 
-        if (isNewBuild) {
-            if (!apnSourceServiceExists(getContext())) {
-                // Update APN DB
-                updateApnDb();
-            }
+        if (isNewBuild && !apnSourceServiceExists(getContext())) {
+            // Update APN DB in the background. The build id is written once that is done, so an
+            // update cut short by the process dying is done again on the next start.
+            mApnDbWarmUp.start(runnable -> new Thread(runnable, "ApnDbWarmUp").start(),
+                    warmUp -> {
+                        warmUpApnDb(warmUp);
 
-            // Add all APN related shared prefs to local log for dumpsys
-            if (DBG) addAllApnSharedPrefToLocalLog();
-        }
+                        // Add the preferred APNs to local log for dumpsys
+                        if (DBG) addAllPreferredApnsToLocalLog();
 
-        // Write build id to SharedPreferences after APNs have been updated above by updateApnDb()
-        if (!TextUtils.isEmpty(newBuildId)) {
-            if (isNewBuild) log("onCreate: updating build id to " + newBuildId);
-            sp.edit().putString(RO_BUILD_ID, newBuildId).apply();
+                        log("onCreate: updating build id to " + newBuildId);
+                        sp.edit().putString(RO_BUILD_ID, newBuildId).apply();
+                    });
+        } else {
+            // Add the preferred APNs to local log for dumpsys
+            if (isNewBuild && DBG) addAllPreferredApnsToLocalLog();
+
+            if (!TextUtils.isEmpty(newBuildId)) {
+                if (isNewBuild) log("onCreate: updating build id to " + newBuildId);
+                sp.edit().putString(RO_BUILD_ID, newBuildId).apply();
+            }
         }
 
         SharedPreferences spEnforcedFile = getContext().getSharedPreferences(ENFORCED_FILE,
                 Context.MODE_PRIVATE);
         mManagedApnEnforced = spEnforcedFile.getBoolean(ENFORCED_KEY, false);
 
+        IntentFilter simStateFilter = new IntentFilter();
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_SERVICE_PROVIDERS_UPDATED);
+        simStateFilter.addAction(
+                TelephonyManager.ACTION_SUBSCRIPTION_SPECIFIC_CARRIER_IDENTITY_CHANGED);
+        getContext().registerReceiver(mSimStateReceiver, simStateFilter,
+                Context.RECEIVER_NOT_EXPORTED);
+
         ProviderUtil.logRunningTelephonyProviderProcesses(getContext());
         if (VDBG) log("onCreate:- ret true");
         return true;
     }
 
-    private void addAllApnSharedPrefToLocalLog() {
-        localLog("addAllApnSharedPrefToLocalLog");
-        SharedPreferences spApn = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-
-        Map<String, ?> allPrefApnId = spApn.getAll();
-        for (String key : allPrefApnId.keySet()) {
-            try {
-                localLog(key + ":" + allPrefApnId.get(key).toString());
-            } catch (Exception e) {
-                localLog("Skipping over key " + key + " due to exception " + e);
-            }
-        }
-
-        SharedPreferences spFullApn = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
-
-        Map<String, ?> allPrefFullApn = spFullApn.getAll();
-        for (String key : allPrefFullApn.keySet()) {
-            try {
-                localLog(key + ":" + allPrefFullApn.get(key).toString());
-            } catch (Exception e) {
-                localLog("Skipping over key " + key + " due to exception " + e);
-            }
+    private void addAllPreferredApnsToLocalLog() {
+        localLog("addAllPreferredApnsToLocalLog");
+        StringWriter sw = new StringWriter();
+        mPreferredApnStore.dump(getWritableDatabase(), new IndentingPrintWriter(sw, "  "));
+        for (String line : sw.toString().split("\n")) {
+            localLog(line);
         }
     }
 
@@ -3553,7 +3826,7 @@ public class TelephonyProvider extends ContentProvider
         mLocalLog.log(logMsg);
     }
 
-    private synchronized boolean isManagedApnEnforced() {
+    private boolean isManagedApnEnforced() {
         return mManagedApnEnforced;
     }
 
@@ -3563,67 +3836,64 @@ public class TelephonyProvider extends ContentProvider
         SharedPreferences.Editor editor = sp.edit();
         editor.putBoolean(ENFORCED_KEY, enforced);
         editor.apply();
-        synchronized (this) {
-            mManagedApnEnforced = enforced;
-        }
+        mManagedApnEnforced = enforced;
     }
 
     private void setPreferredApnId(Long id, int subId, boolean saveApn) {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putLong(COLUMN_APN_ID + subId, id != null ? id : INVALID_APN_ID);
-        localLog("setPreferredApnId: " + COLUMN_APN_ID + subId + ":"
-                + (id != null ? id : INVALID_APN_ID));
-        // This is for debug purposes. It indicates if this APN was set by DcTracker or user (true)
-        // or if this was restored from APN saved in PREF_FILE_FULL_APN (false).
-        editor.putBoolean(EXPLICIT_SET_CALLED + subId, saveApn);
-        localLog("setPreferredApnId: " + EXPLICIT_SET_CALLED + subId + ":" + saveApn);
-        editor.apply();
-        if (id == null || id.longValue() == INVALID_APN_ID) {
+        long apnId = id != null ? id : INVALID_APN_ID;
+        // saveApn is for debug purposes. It indicates if this APN was set by DcTracker or user
+        // (true) or if this was restored from the saved APN (false).
+        mPreferredApnStore.setApnId(getWritableDatabase(), subId, apnId, saveApn);
+        mEvents.log(EVENT_SET_PREFERRED_APN_ID, subId, apnId, saveApn ? 1 : 0);
+        if (apnId == INVALID_APN_ID) {
             deletePreferredApn(subId);
         } else {
-            // If id is not invalid, and saveApn is true, save the actual APN in PREF_FILE_FULL_APN
-            // too.
+            // If id is not invalid, and saveApn is true, save the actual APN too.
             if (saveApn) {
-                setPreferredApn(id, subId);
+                setPreferredApn(apnId, subId);
             }
         }
     }
 
     private long getPreferredApnId(int subId, boolean checkApnSp) {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        long apnId = sp.getLong(COLUMN_APN_ID + subId, INVALID_APN_ID);
+        long apnId = mPreferredApnStore.getApnId(getWritableDatabase(), subId);
         if (apnId == INVALID_APN_ID && checkApnSp) {
             apnId = getPreferredApnIdFromApn(subId);
             if (apnId != INVALID_APN_ID) {
-                setPreferredApnId(apnId, subId, false);
+                // Saved like any other write, under the write lock. Only queries look the id up,
+                // and they don't hold the carriers lock yet.
+                mCarriersLock.lockWrite();
+                try {
+                    long savedApnId = mPreferredApnStore.getApnId(getWritableDatabase(), subId);
+                    if (savedApnId == INVALID_APN_ID) {
+                        setPreferredApnId(apnId, subId, false);
+                    } else {
+                        // Set while the id was looked up.
+                        apnId = savedApnId;
+                    }
+                } finally {
+                    mCarriersLock.unlockWrite();
+                }
             }
         }
         return apnId;
     }
 
     private int getPreferredApnSetId(int subId) {
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
+        Map<String, String> apn = mPreferredApnStore.getApn(getWritableDatabase(), subId);
         try {
-            return Integer.parseInt(sp.getString(APN_SET_ID + subId, null));
+            return Integer.parseInt(apn != null ? apn.get(APN_SET_ID) : null);
         } catch (NumberFormatException e) {
             return NO_APN_SET_ID;
         }
     }
 
-    private void deletePreferredApnId(Context context) {
-        SharedPreferences sp = context.getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.clear();
-        editor.apply();
+    private void deletePreferredApnIds(SQLiteDatabase db) {
+        mPreferredApnStore.clearApnIds(db);
     }
 
     private void setPreferredApn(Long id, int subId) {
-        localLog("setPreferredApn: _id " + id + " subId " + subId);
+        mEvents.log(EVENT_SET_PREFERRED_APN, subId, id != null ? id : INVALID_APN_ID, 0);
         SQLiteDatabase db = getWritableDatabase();
         // query all unique fields from id
         String[] proj = CARRIERS_UNIQUE_FIELDS.toArray(new String[CARRIERS_UNIQUE_FIELDS.size()]);
@@ -3632,19 +3902,15 @@ public class TelephonyProvider extends ContentProvider
         if (c != null) {
             if (c.getCount() == 1) {
                 c.moveToFirst();
-                SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                        Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = sp.edit();
-                // store values of all unique fields to SP
+                // store values of all unique fields
+                Map<String, String> apn = new ArrayMap<>();
                 for (String key : CARRIERS_UNIQUE_FIELDS) {
-                    editor.putString(key + subId, c.getString(c.getColumnIndex(key)));
-                    localLog("setPreferredApn: " + key + subId + ":"
-                            + c.getString(c.getColumnIndex(key)));
+                    apn.put(key, c.getString(c.getColumnIndex(key)));
                 }
                 // also store the version number
-                editor.putString(DB_VERSION_KEY + subId, "" + DATABASE_VERSION);
-                localLog("setPreferredApn: " + DB_VERSION_KEY + subId + ":" + DATABASE_VERSION);
-                editor.apply();
+                mPreferredApnStore.setApn(db, subId, apn, DATABASE_VERSION);
+                // The map is not changed after this, so it is only formatted when dumped.
+                mEvents.log(EVENT_SAVED_PREFERRED_APN, subId, 0, DATABASE_VERSION, apn);
             } else {
                 log("setPreferredApn: # matching APNs found " + c.getCount());
             }
@@ -3660,10 +3926,10 @@ public class TelephonyProvider extends ContentProvider
 
         List<String> whereList = new ArrayList<>();
         List<String> whereArgsList = new ArrayList<>();
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
+        Map<String, String> apn = mPreferredApnStore.getApn(getWritableDatabase(), subId);
+        if (apn == null) return INVALID_APN_ID;
         for (String key : CARRIERS_UNIQUE_FIELDS) {
-            String value = sp.getString(key + subId, null);
+            String value = apn.get(key);
             if (value == null) {
                 continue;
             } else {
@@ -3697,17 +3963,7 @@ public class TelephonyProvider extends ContentProvider
 
     private void deletePreferredApn(int subId) {
         log("deletePreferredApn: for subId " + subId);
-        SharedPreferences sp = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
-        if (sp.contains(DB_VERSION_KEY + subId)) {
-            log("deletePreferredApn: apn is stored. Deleting it now for subId " + subId);
-            SharedPreferences.Editor editor = sp.edit();
-            editor.remove(DB_VERSION_KEY + subId);
-            for (String key : CARRIERS_UNIQUE_FIELDS) {
-                editor.remove(key + subId);
-            }
-            editor.apply();
-        }
+        mPreferredApnStore.deleteApn(getWritableDatabase(), subId);
     }
 
     boolean isCallingFromSystemOrPhoneUid() {
@@ -3724,7 +3980,31 @@ public class TelephonyProvider extends ContentProvider
     }
 
     @Override
-    public synchronized Bundle call(String method, @Nullable String args, @Nullable Bundle bundle) {
+    public Bundle call(String method, @Nullable String args, @Nullable Bundle bundle) {
+        if (ProviderMetrics.METHOD_GET_METRICS.equals(method)) {
+            // Recorded without any lock, so read without one.
+            return mMetrics.call(getContext());
+        }
+        if (!SubscriptionManager.RESTORE_SIM_SPECIFIC_SETTINGS_METHOD_NAME.equals(method)) {
+            // Only reads siminfo, so it doesn't hold back the other readers.
+            mSimInfoLock.lockRead();
+            try {
+                return callLocked(method, args, bundle);
+            } finally {
+                mSimInfoLock.unlockRead();
+            }
+        }
+        // Restoring reads and updates siminfo through query() and update(), which take the
+        // siminfo lock again; that is fine since the write lock is reentrant.
+        lockWrite(mSimInfoLock);
+        try {
+            return callLocked(method, args, bundle);
+        } finally {
+            mSimInfoLock.unlockWrite();
+        }
+    }
+
+    private Bundle callLocked(String method, @Nullable String args, @Nullable Bundle bundle) {
         if (SubscriptionManager.GET_SIM_SPECIFIC_SETTINGS_METHOD_NAME.equals(method)) {
             getContext().enforceCallingOrSelfPermission(
                     android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE, TAG);
@@ -3797,6 +4077,7 @@ public class TelephonyProvider extends ContentProvider
 
     @VisibleForTesting
     boolean writeSimSettingsToInternalStorage(byte[] data) {
+        mSimSettingsBackupStore.invalidate();
         AtomicFile atomicFile = new AtomicFile(
                 new File(getContext().getFilesDir(), BACKED_UP_SIM_SPECIFIC_SETTINGS_FILE));
         FileOutputStream fos = null;
@@ -3828,21 +4109,9 @@ public class TelephonyProvider extends ContentProvider
      * @return {@code true} if the restoration changed the subscription database.
      */
     private boolean mergeBackedUpDataToSimInfoDb(int restoreCase, @Nullable String iccId) {
-        // Get data stored in internal file
-        File file = new File(getContext().getFilesDir(), BACKED_UP_SIM_SPECIFIC_SETTINGS_FILE);
-        if (!file.exists()) {
-            loge("internal sim-specific settings backup data file does not exist. "
-                + "Aborting restore");
-            return false;
-        }
-
-        AtomicFile atomicFile = new AtomicFile(file);
-        PersistableBundle bundle = null;
-        try (FileInputStream fis = atomicFile.openRead()) {
-            bundle = PersistableBundle.readFromStream(fis);
-        } catch (IOException e) {
-            loge("Failed to convert backed up per-sim configs to bundle. Stopping restore. "
-                + "Failed with error " + e);
+        // Get data stored in internal file, only parsed again if it changed.
+        SimSettingsBackupStore.Backup backup = mSimSettingsBackupStore.get();
+        if (backup == null) {
             return false;
         }
 
@@ -3865,23 +4134,24 @@ public class TelephonyProvider extends ContentProvider
                 selection,
                 selectionArgs,
                 ORDER_BY_SUB_ID)) {
-            return findAndRestoreAllMatches(bundle.deepCopy(), cursor, restoreCase);
+            return findAndRestoreAllMatches(backup, cursor, restoreCase);
         }
     }
 
     /**
      * Find the matched subscription and restore SIM specific settings to them.
      *
-     * @param backedUpDataBundle The backed-up data to be restored.
+     * @param backup The backed-up data to be restored.
      * @param cursor The database cursor.
      * @param restoreCase one of the SimSpecificSettingsRestoreMatchingCriteria values defined in
      * frameworks/proto_logging/stats/enums/telephony/enums.proto
      *
      * @return {@code true} if the restoration changed the subscription database.
      */
-    private boolean findAndRestoreAllMatches(PersistableBundle backedUpDataBundle, Cursor cursor,
+    private boolean findAndRestoreAllMatches(SimSettingsBackupStore.Backup backup, Cursor cursor,
             int restoreCase) {
         boolean changed = false;
+        PersistableBundle backedUpDataBundle = backup.getBundle();
         int[] previouslyRestoredSubIdsArray =
                 backedUpDataBundle.getIntArray(KEY_PREVIOUSLY_RESTORED_SUB_IDS);
         List<Integer> previouslyRestoredSubIdsList = previouslyRestoredSubIdsArray != null
@@ -3924,14 +4194,10 @@ public class TelephonyProvider extends ContentProvider
             String allowedNetworkTypesForReasonsFromDb =
                     cursor.getString(allowedNetworkTypesForReasonsIndex);
 
-            // Find the best match from backed up data.
+            // Find the best match from backed up data, only among the rows which may match.
             SimRestoreMatch bestRestoreMatch = null;
-            for (int rowNum = 0; true; rowNum++) {
-                PersistableBundle currRow = backedUpDataBundle.getPersistableBundle(
-                        KEY_SIMINFO_DB_ROW_PREFIX + rowNum);
-                if (currRow == null) {
-                    break;
-                }
+            for (int rowNum : backup.getCandidateRows(currIccIdFromDb, currCarrierIdFromDb)) {
+                PersistableBundle currRow = backup.getRow(rowNum);
 
                 SimRestoreMatch currSimRestoreMatch = new SimRestoreMatch(
                         currIccIdFromDb, currCarrierIdFromDb, currPhoneNumberFromDb,
@@ -4011,18 +4277,29 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
+        if (newlyRestoredSubIds.isEmpty()) {
+            // Nothing new to remember, leave the file and the parsed backup as they are.
+            return changed;
+        }
         // Update the internal file with subIds that we just restored.
         previouslyRestoredSubIdsList.addAll(newlyRestoredSubIds);
         backedUpDataBundle.putIntArray(
                 KEY_PREVIOUSLY_RESTORED_SUB_IDS,
                 previouslyRestoredSubIdsList.stream().mapToInt(i -> i).toArray());
+        boolean written = false;
         try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
             backedUpDataBundle.writeToStream(outputStream);
-            writeSimSettingsToInternalStorage(outputStream.toByteArray());
+            written = writeSimSettingsToInternalStorage(outputStream.toByteArray());
         } catch (IOException e) {
             loge("Not able to convert SimInfoDB to byte array. Not storing which subIds were "
                     + "restored");
         }
+        if (written) {
+            mSimSettingsBackupStore.written(backup);
+        } else {
+            // The parsed backup now differs from the file.
+            mSimSettingsBackupStore.invalidate();
+        }
         return changed;
     }
 
@@ -4459,16 +4736,30 @@ public class TelephonyProvider extends ContentProvider
         int match = s_urlMatcher.match(url);
         checkPermissionCompat(match, projectionIn);
 
+        if (getTableLockForMatch(match) == mCarriersLock) {
+            // Give the APN update of the first boot after an OTA a chance to finish first.
+            mApnDbWarmUp.awaitForQuery(APN_DB_WARM_UP_QUERY_TIMEOUT_MS);
+        }
+
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return queryInternal(url, projectionIn, selection, selectionArgs, sort);
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        try {
+            Cursor c = queryInternal(url, projectionIn, selection, selectionArgs, sort);
+            rows = ProviderMetrics.count(c);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY, match, getCallingPackageUnchecked(), start,
+                    rows);
+        }
     }
 
     /**
      * Internally queries the database.
      *
      * Things to keep in mind when writing code for this function:
-     *   - Must be wrapped in synchronized before quering database.
-     *   - Please call external APIs, that use locks, outside of synchronized.
+     *   - Must hold the read lock of the queried table before quering database.
+     *   - Please call external APIs, that use locks, outside of the table locks.
      */
     private Cursor queryInternal(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
@@ -4479,6 +4770,8 @@ public class TelephonyProvider extends ContentProvider
         qb.setTables(CARRIERS_TABLE);
 
         List<String> constraints = new ArrayList<String>();
+        // Set for the queries whose results are cached.
+        String cacheKey = null;
 
         int match = s_urlMatcher.match(url);
         switch (match) {
@@ -4493,7 +4786,8 @@ public class TelephonyProvider extends ContentProvider
                 }
                 qb.appendWhereStandalone(IS_NOT_OWNED_BY_DPC);
                 return getSubscriptionMatchingAPNList(qb, projectionIn, selection, selectionArgs,
-                        sort, subId);
+                        sort, subId, ApnQueryCache.key(match, subId, projectionIn, selection,
+                                selectionArgs, sort, 0));
 
                 // TODO b/74213956 turn this back on once insertion includes correct sub id
                 // constraints.add(SUBSCRIPTION_ID + "=" + subIdString);
@@ -4520,6 +4814,8 @@ public class TelephonyProvider extends ContentProvider
                 constraints.add(IS_NOT_OWNED_BY_DPC);
                 // do not ignore the selection since MMS may use it.
                 //selection = null;
+                cacheKey = ApnQueryCache.key(match, subId, projectionIn, selection, selectionArgs,
+                        sort, 0);
                 break;
             }
 
@@ -4544,7 +4840,11 @@ public class TelephonyProvider extends ContentProvider
             //intentional fall through from above case
             case URL_PREFERAPN:
             case URL_PREFERAPN_NO_UPDATE: {
-                constraints.add("_id = " + getPreferredApnId(subId, true));
+                long preferredApnId = getPreferredApnId(subId, true);
+                constraints.add("_id = " + preferredApnId);
+                // The preferred APN id is part of the key, so setting it needs no invalidation.
+                cacheKey = ApnQueryCache.key(match, subId, projectionIn, selection, selectionArgs,
+                        sort, preferredApnId);
                 break;
             }
 
@@ -4568,7 +4868,7 @@ public class TelephonyProvider extends ContentProvider
                 constraints.add(APN_SET_ID + "=" + set);
                 qb.appendWhere(TextUtils.join(" AND ", constraints));
                 return getSubscriptionMatchingAPNList(qb, projectionIn, selection, selectionArgs,
-                        sort, subId);
+                        sort, subId, null /* cacheKey */);
             }
 
             case URL_DPC: {
@@ -4623,6 +4923,12 @@ public class TelephonyProvider extends ContentProvider
             }
 
             case URL_SIMINFO: {
+                Cursor snapshot = mSimInfoSnapshot.query(this::getReadableDatabase, projectionIn,
+                        selection, selectionArgs, sort);
+                if (snapshot != null) {
+                    snapshot.setNotificationUri(getContext().getContentResolver(), url);
+                    return snapshot;
+                }
                 qb.setTables(SIMINFO_TABLE);
                 break;
             }
@@ -4639,7 +4945,8 @@ public class TelephonyProvider extends ContentProvider
             case URL_SIM_APN_LIST: {
                 qb.appendWhere(IS_NOT_OWNED_BY_DPC);
                 return getSubscriptionMatchingAPNList(qb, projectionIn, selection, selectionArgs,
-                        sort, subId);
+                        sort, subId, ApnQueryCache.key(match, subId, projectionIn, selection,
+                                selectionArgs, sort, 0));
             }
 
             case URL_SIM_APN_LIST_FILTERED_ID: {
@@ -4661,7 +4968,7 @@ public class TelephonyProvider extends ContentProvider
                     qb.appendWhereStandalone(IS_NOT_OWNED_BY_DPC);
                 }
                 return getSubscriptionMatchingAPNList(qb, projectionIn, selection, selectionArgs,
-                        sort, subId);
+                        sort, subId, null /* cacheKey */);
             }
 
             default: {
@@ -4674,7 +4981,17 @@ public class TelephonyProvider extends ContentProvider
             qb.appendWhere(TextUtils.join(" AND ", constraints));
         }
 
-        synchronized (this) {
+        InstrumentedReadWriteLock lock = getTableLock(qb.getTables());
+        lock.lockRead();
+        try {
+            long generation = lock.getWriteGeneration();
+            if (cacheKey != null) {
+                Cursor cached = mApnQueryCache.get(cacheKey, generation);
+                if (cached != null) {
+                    cached.setNotificationUri(getContext().getContentResolver(), url);
+                    return cached;
+                }
+            }
             SQLiteDatabase db = getReadableDatabase();
             Cursor ret = null;
             try {
@@ -4692,6 +5009,9 @@ public class TelephonyProvider extends ContentProvider
                     if (VDBG) log("query: selection modified to " + selection);
                 }
                 ret = qb.query(db, projectionIn, selection, selectionArgs, null, null, sort);
+                if (cacheKey != null) {
+                    ret = mApnQueryCache.put(cacheKey, generation, null /* simGeneration */, ret);
+                }
             } catch (SQLException e) {
                 loge("got exception when querying: " + e);
             }
@@ -4699,30 +5019,54 @@ public class TelephonyProvider extends ContentProvider
                 ret.setNotificationUri(getContext().getContentResolver(), url);
             }
             return ret;
+        } finally {
+            lock.unlockRead();
         }
     }
 
     /**
-     * This method syncs PREF_FILE_FULL_APN with the db based on the current preferred apn ids.
+     * @return the lock guarding {@code table}.
      */
-    private void updatePreferredApns() {
-        SharedPreferences spApn = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
+    private InstrumentedReadWriteLock getTableLock(String table) {
+        return SIMINFO_TABLE.equals(table) ? mSimInfoLock : mCarriersLock;
+    }
 
-        Map<String, ?> allPrefApnId = spApn.getAll();
-        for (String key : allPrefApnId.keySet()) {
-            if (key.startsWith(COLUMN_APN_ID)) {
-                int subId;
-                try {
-                    subId = Integer.parseInt(key.substring(COLUMN_APN_ID.length()));
-                } catch (NumberFormatException e) {
-                    loge("updatePreferredApns: NumberFormatException for key=" + key);
-                    continue;
-                }
-                long preferredApnId = getPreferredApnId(subId, false);
-                if (preferredApnId != INVALID_APN_ID) {
-                    setPreferredApn(preferredApnId, subId);
-                }
+    /**
+     * @return the lock guarding the table behind the URI match code {@code match}.
+     */
+    private InstrumentedReadWriteLock getTableLockForMatch(int match) {
+        switch (match) {
+            case URL_SIMINFO:
+            case URL_SIMINFO_USING_SUBID:
+            case URL_SIMINFO_SUW_RESTORE:
+            case URL_SIMINFO_SIM_INSERTED_RESTORE:
+                return mSimInfoLock;
+            default:
+                return mCarriersLock;
+        }
+    }
+
+    /**
+     * Take the write lock of a table, dropping the siminfo snapshot if the table is siminfo.
+     */
+    private void lockWrite(InstrumentedReadWriteLock lock) {
+        lock.lockWrite();
+        if (lock == mSimInfoLock) {
+            // Dropped before the write rather than after, since the change is notified, and may
+            // be queried, before the lock is released.
+            mSimInfoSnapshot.invalidate();
+        }
+    }
+
+    /**
+     * This method syncs the saved preferred APNs with the db based on the current preferred apn
+     * ids.
+     */
+    private void updatePreferredApns() {
+        for (int subId : mPreferredApnStore.getSubIdsWithApnId(getWritableDatabase())) {
+            long preferredApnId = getPreferredApnId(subId, false);
+            if (preferredApnId != INVALID_APN_ID) {
+                setPreferredApn(preferredApnId, subId);
             }
         }
     }
@@ -4737,25 +5081,42 @@ public class TelephonyProvider extends ContentProvider
      * 3. Append the result with the APN that query based on { Carrier_ID }
      */
     private Cursor getSubscriptionMatchingAPNList(SQLiteQueryBuilder qb, String[] projectionIn,
-            String selection, String[] selectionArgs, String sort, int subId) {
+            String selection, String[] selectionArgs, String sort, int subId,
+            @Nullable String cacheKey) {
         Context context = getContext();
 
         // The SubscriptionManager can use the lock to query tables such as sim_info again, so
-        // calling subscriptionManager should be performed outside of synchronized.
+        // calling subscriptionManager should be performed outside of the table locks.
         final SubscriptionManager subscriptionManager = (SubscriptionManager) context
                 .getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
         if (!subscriptionManager.isActiveSubscriptionId(subId)) {
             return null;
         }
 
-        return getSubscriptionMatchingAPNListSynchronized(qb, projectionIn, selection,
-                selectionArgs, sort, subId);
+        mCarriersLock.lockRead();
+        try {
+            if (cacheKey == null) {
+                return getSubscriptionMatchingAPNListLocked(qb, projectionIn, selection,
+                        selectionArgs, sort, subId);
+            }
+            long generation = mCarriersLock.getWriteGeneration();
+            Cursor cached = mApnQueryCache.get(cacheKey, generation);
+            if (cached != null) {
+                return cached;
+            }
+            // Read before the SIM so a SIM change racing with the query invalidates the result.
+            long simGeneration = mApnQueryCache.getSimGeneration();
+            return mApnQueryCache.put(cacheKey, generation, simGeneration,
+                    getSubscriptionMatchingAPNListLocked(qb, projectionIn, selection,
+                            selectionArgs, sort, subId));
+        } finally {
+            mCarriersLock.unlockRead();
+        }
     }
 
-    private synchronized Cursor getSubscriptionMatchingAPNListSynchronized(
+    private Cursor getSubscriptionMatchingAPNListLocked(
             SQLiteQueryBuilder qb, String[] projectionIn, String selection, String[] selectionArgs,
             String sort, int subId) {
-        Cursor ret;
         Context context = getContext();
         final TelephonyManager tm = ((TelephonyManager) context
                 .getSystemService(Context.TELEPHONY_SERVICE))
@@ -4763,6 +5124,7 @@ public class TelephonyProvider extends ContentProvider
         SQLiteDatabase db = getReadableDatabase();
         String mccmnc = tm.getSimOperator();
         int carrierId = tm.getSimSpecificCarrierId();
+        MvnoMatcher.SimSnapshot sim = mMvnoMatcher.getSnapshot(tm, subId, mccmnc);
 
         qb.appendWhereStandalone(IS_NOT_USER_DELETED + " and " +
                 IS_NOT_USER_DELETED_BUT_PRESENT_IN_XML + " and " +
@@ -4770,120 +5132,112 @@ public class TelephonyProvider extends ContentProvider
                 IS_NOT_CARRIER_DELETED_BUT_PRESENT_IN_XML);
 
         // For query db one time, append all conditions in one selection and separate results after
-        // the query is completed. IMSI has special match rule, so just query the MCC / MNC and
-        // filter the MVNO by ourselves
-        qb.appendWhereStandalone(NUMERIC + " = '" + mccmnc + "' OR " +
-                CARRIER_ID + " = '" + carrierId + "'");
-
-        ret = qb.query(db, null, selection, selectionArgs, null, null, sort);
-        if (ret == null) {
+        // the query is completed. The index gives the rows matching the MCC / MNC or the carrier
+        // id so the table doesn't need to be scanned. IMSI has special match rule, so just query
+        // the MCC / MNC and filter the MVNO by ourselves
+        List<ApnMatchIndex.Entry> candidates =
+                mApnMatchIndex.getCandidates(db, mccmnc, carrierId);
+        StringBuilder candidateIds = new StringBuilder();
+        for (ApnMatchIndex.Entry entry : candidates) {
+            appendId(candidateIds, entry.id);
+        }
+        qb.appendWhereStandalone(_ID + " IN (" + candidateIds + ")");
+
+        // Only read the row ids here. The rows are classified with the index and the winning
+        // rows are read back with a single query, so column types are kept and nothing is copied.
+        Cursor ids = qb.query(db, new String[] {_ID}, selection, selectionArgs, null, null, sort);
+        if (ids == null) {
             loge("subId:" + subId + " query current APN but cursor is null.");
             return null;
         }
 
         if (DBG) log("subId:" + subId + " mccmnc=" + mccmnc + " carrierId=" + carrierId +
-                ", match current APN size:  " + ret.getCount());
+                ", match current APN size:  " + ids.getCount());
 
-        String[] columnNames = projectionIn != null ? projectionIn : ret.getColumnNames();
-        MatrixCursor currentCursor = new MatrixCursor(columnNames);
-        MatrixCursor parentCursor = new MatrixCursor(columnNames);
-        MatrixCursor carrierIdCursor = new MatrixCursor(columnNames);
-        MatrixCursor carrierIdNonMatchingMNOCursor = new MatrixCursor(columnNames);
+        StringBuilder mvnoIds = new StringBuilder();
+        StringBuilder mnoIds = new StringBuilder();
+        StringBuilder carrierIdIds = new StringBuilder();
+        StringBuilder carrierIdNonMatchingMnoIds = new StringBuilder();
 
-        int numericIndex = ret.getColumnIndex(NUMERIC);
-        int mvnoIndex = ret.getColumnIndex(MVNO_TYPE);
-        int mvnoDataIndex = ret.getColumnIndex(MVNO_MATCH_DATA);
-        int carrierIdIndex = ret.getColumnIndex(CARRIER_ID);
-
-        // Separate the result into MatrixCursor
-        while (ret.moveToNext()) {
-            List<String> data = new ArrayList<>();
-            for (String column : columnNames) {
-                data.add(ret.getString(ret.getColumnIndex(column)));
-            }
+        // Separate the result into the match tiers
+        try {
+            while (ids.moveToNext()) {
+                long id = ids.getLong(0);
+                ApnMatchIndex.Entry entry = mApnMatchIndex.getEntry(db, id);
+                if (entry == null) {
+                    // Should not happen since every write keeps the index current.
+                    loge("subId:" + subId + " row " + id + " missing in index");
+                    continue;
+                }
 
-            boolean isCurrentSimOperator = false;
-            if (!TextUtils.isEmpty(ret.getString(numericIndex))) {
-                final long identity = Binder.clearCallingIdentity();
-                try {
-                    isCurrentSimOperator = tm.matchesCurrentSimOperator(
-                            ret.getString(numericIndex),
-                            getMvnoTypeIntFromString(ret.getString(mvnoIndex)),
-                            ret.getString(mvnoDataIndex));
-                } finally {
-                    Binder.restoreCallingIdentity(identity);
-                }
-            }
-
-            boolean isMVNOAPN = !TextUtils.isEmpty(ret.getString(numericIndex))
-                    && isCurrentSimOperator;
-            boolean isMNOAPN = !TextUtils.isEmpty(ret.getString(numericIndex))
-                    && ret.getString(numericIndex).equals(mccmnc)
-                    && TextUtils.isEmpty(ret.getString(mvnoIndex));
-            boolean isCarrierIdAPN = !TextUtils.isEmpty(ret.getString(carrierIdIndex))
-                    && ret.getString(carrierIdIndex).equals(String.valueOf(carrierId))
-                    && carrierId != TelephonyManager.UNKNOWN_CARRIER_ID;
-
-            if (isMVNOAPN) {
-                // 1. The APN that query based on legacy SIM MCC/MCC and MVNO
-                currentCursor.addRow(data);
-            } else if (isMNOAPN) {
-                // 2. The APN that query based on SIM MCC/MNC
-                parentCursor.addRow(data);
-            } else if (isCarrierIdAPN) {
-                // The APN that query based on carrier Id (not include the MVNO or MNO APN)
-                if (TextUtils.isEmpty(ret.getString(numericIndex))) {
-                    carrierIdCursor.addRow(data);
-                } else {
-                    carrierIdNonMatchingMNOCursor.addRow(data);
+                boolean isMVNOAPN = MvnoMatcher.matches(sim, entry.numeric,
+                        getMvnoTypeIntFromString(entry.mvnoType), entry.mvnoMatchData);
+                boolean isMNOAPN = entry.isMno(mccmnc);
+                boolean isCarrierIdAPN = entry.hasCarrierId(carrierId);
+
+                if (isMVNOAPN) {
+                    // 1. The APN that query based on legacy SIM MCC/MCC and MVNO
+                    appendId(mvnoIds, id);
+                } else if (isMNOAPN) {
+                    // 2. The APN that query based on SIM MCC/MNC
+                    appendId(mnoIds, id);
+                } else if (isCarrierIdAPN) {
+                    // The APN that query based on carrier Id (not include the MVNO or MNO APN)
+                    if (entry.numeric.isEmpty()) {
+                        appendId(carrierIdIds, id);
+                    } else {
+                        appendId(carrierIdNonMatchingMnoIds, id);
+                    }
                 }
             }
+        } finally {
+            ids.close();
         }
-        ret.close();
 
-        MatrixCursor result;
-        if (currentCursor.getCount() > 0) {
-            if (DBG) log("match MVNO APN: " + currentCursor.getCount());
-            result = currentCursor;
-        } else if (parentCursor.getCount() > 0) {
-            if (DBG) log("match MNO APN: " + parentCursor.getCount());
-            result = parentCursor;
+        StringBuilder result;
+        if (mvnoIds.length() > 0) {
+            if (DBG) log("match MVNO APN: " + mvnoIds);
+            result = mvnoIds;
+        } else if (mnoIds.length() > 0) {
+            if (DBG) log("match MNO APN: " + mnoIds);
+            result = mnoIds;
         } else {
             if (DBG) {
                 log("No MVNO, MNO and no MCC/MNC match, but we have match/matches with the " +
-                        "same carrier id, count: " + carrierIdNonMatchingMNOCursor.getCount());
+                        "same carrier id: " + carrierIdNonMatchingMnoIds);
             }
-            result = carrierIdNonMatchingMNOCursor;
+            result = carrierIdNonMatchingMnoIds;
         }
 
-        if (DBG) log("match carrier id APN: " + carrierIdCursor.getCount());
-        appendCursorData(result, carrierIdCursor);
-        return result;
+        if (DBG) log("match carrier id APN: " + carrierIdIds);
+        return queryApnsInTierOrder(db, projectionIn, result, carrierIdIds, sort);
     }
 
-    private static void appendCursorData(@NonNull MatrixCursor from, @NonNull MatrixCursor to) {
-        while (to.moveToNext()) {
-            List<Object> data = new ArrayList<>();
-            for (String column : to.getColumnNames()) {
-                int index = to.getColumnIndex(column);
-                switch (to.getType(index)) {
-                    case Cursor.FIELD_TYPE_INTEGER:
-                        data.add(to.getInt(index));
-                        break;
-                    case Cursor.FIELD_TYPE_FLOAT:
-                        data.add(to.getFloat(index));
-                        break;
-                    case Cursor.FIELD_TYPE_BLOB:
-                        data.add(to.getBlob(index));
-                        break;
-                    case Cursor.FIELD_TYPE_STRING:
-                    case Cursor.FIELD_TYPE_NULL:
-                        data.add(to.getString(index));
-                        break;
-                }
-            }
-            from.addRow(data);
+    private static void appendId(@NonNull StringBuilder ids, long id) {
+        if (ids.length() > 0) ids.append(',');
+        ids.append(id);
+    }
+
+    /**
+     * Read the rows of two tiers of matching APNs with a single query. The rows of
+     * {@code firstIds} come before the rows of {@code secondIds} and each tier keeps
+     * {@code sort}, so the result is the same as the two tiers appended one after the other.
+     */
+    private static Cursor queryApnsInTierOrder(@NonNull SQLiteDatabase db, String[] projectionIn,
+            @NonNull CharSequence firstIds, @NonNull CharSequence secondIds, String sort) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setStrict(true);
+        qb.setTables(CARRIERS_TABLE);
+        String order = TextUtils.isEmpty(sort) ? _ID : sort;
+        if (secondIds.length() == 0) {
+            qb.appendWhereStandalone(_ID + " IN (" + firstIds + ")");
+        } else if (firstIds.length() == 0) {
+            qb.appendWhereStandalone(_ID + " IN (" + secondIds + ")");
+        } else {
+            qb.appendWhereStandalone(_ID + " IN (" + firstIds + "," + secondIds + ")");
+            order = "(" + _ID + " IN (" + secondIds + ")), " + order;
         }
+        return qb.query(db, projectionIn, null, null, null, null, order);
     }
 
     @Override
@@ -4913,50 +5267,248 @@ public class TelephonyProvider extends ContentProvider
     }
 
     /**
-     * Insert an array of ContentValues and call notifyChange at the end.
+     * Insert an array of ContentValues in one transaction and call notifyChange at the end.
      */
     @Override
     public int bulkInsert(Uri url, ContentValues[] values) {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        synchronized (this) {
-            return unsynchronizedBulkInsert(url, values);
+        int match = s_urlMatcher.match(url);
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        InstrumentedReadWriteLock lock = getTableLockForMatch(match);
+        lockWrite(lock);
+        try {
+            rows = bulkInsertLocked(url, values);
+            return rows;
+        } finally {
+            lock.unlockWrite();
+            mMetrics.record(ProviderMetrics.OP_BULK_INSERT, match, getCallingPackageUnchecked(),
+                    start, rows);
         }
     }
 
     /**
-     * Do a bulk insert while inside a synchronized function. This is typically not safe and should
-     * only be done when you are sure there will be no conflict.
+     * Do a bulk insert while holding the write lock of the table.
      */
-    private int unsynchronizedBulkInsert(Uri url, ContentValues[] values) {
+    private int bulkInsertLocked(Uri url, ContentValues[] values) {
         int count = 0;
-        boolean notify = false;
-        for (ContentValues value : values) {
-            Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, value);
-            if (rowAndNotify.first != null) {
-                count++;
+        SQLiteDatabase db = getWritableDatabase();
+        boolean batchStarted = beginCarriersNotificationBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, value);
+                if (rowAndNotify.first != null) {
+                    count++;
+                }
+                if (rowAndNotify.second == true) {
+                    notifyCarriersRowInserted(url, value, rowAndNotify.first);
+                }
             }
-            if (rowAndNotify.second == true) {
-                notify = true;
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (!successful && getTableLockForMatch(s_urlMatcher.match(url)) == mCarriersLock) {
+                onCarriersTransactionRolledBack(db);
+            }
+            if (batchStarted) {
+                endCarriersNotificationBatch();
             }
-        }
-        if (notify) {
-            getContext().getContentResolver().notifyChange(CONTENT_URI, null,
-                    true, UserHandle.USER_ALL);
         }
         return count;
     }
 
+    /**
+     * Forget what was kept in memory about the carriers rows written by a transaction which was
+     * rolled back. Must hold the carriers write lock.
+     */
+    private void onCarriersTransactionRolledBack(SQLiteDatabase db) {
+        mApnMatchIndex.invalidate();
+        mPreferredApnStore.reload(db);
+    }
+
+    /**
+     * Apply a batch of operations on the carriers table in one transaction, with one change
+     * notification per URI at the end instead of one per operation. The result of each operation
+     * is the same as when applied on its own. If an operation fails, none of the batch is
+     * applied. Batches which also touch other tables are applied one operation at a time.
+     */
+    @Override
+    public @NonNull ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        for (ContentProviderOperation operation : operations) {
+            if (getTableLockForMatch(s_urlMatcher.match(operation.getUri())) != mCarriersLock) {
+                return super.applyBatch(operations);
+            }
+        }
+
+        mCarriersLock.lockWrite();
+        boolean batchStarted = beginCarriersNotificationBatch();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            boolean successful = false;
+            db.beginTransaction();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+                successful = true;
+                return results;
+            } finally {
+                db.endTransaction();
+                if (!successful) {
+                    onCarriersTransactionRolledBack(db);
+                }
+            }
+        } finally {
+            mCarriersLock.unlockWrite();
+            if (batchStarted) {
+                endCarriersNotificationBatch();
+            }
+        }
+    }
+
+    /**
+     * Hold back the carriers change notifications of this thread until
+     * {@link #endCarriersNotificationBatch()}.
+     *
+     * @return {@code false} if a batch was already started, in which case the caller must not end
+     * it.
+     */
+    private boolean beginCarriersNotificationBatch() {
+        if (mPendingCarriersNotifications.get() != null) {
+            return false;
+        }
+        mPendingCarriersNotifications.set(new ArraySet<>());
+        return true;
+    }
+
+    /**
+     * Send the carriers change notifications held back since
+     * {@link #beginCarriersNotificationBatch()}.
+     */
+    private void endCarriersNotificationBatch() {
+        ArraySet<Uri> pendingNotifications = mPendingCarriersNotifications.get();
+        mPendingCarriersNotifications.remove();
+        mCarriersNotifier.flush();
+        for (Uri uri : pendingNotifications) {
+            notifyCarriersChange(uri);
+        }
+    }
+
+    /**
+     * Notify a change of the carriers table, or remember it until the end of the batch being
+     * applied by this thread.
+     */
+    private void notifyCarriersChange(Uri uri) {
+        ArraySet<Uri> pendingNotifications = mPendingCarriersNotifications.get();
+        if (pendingNotifications != null) {
+            pendingNotifications.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null, true, UserHandle.USER_ALL);
+    }
+
+    /**
+     * Notify a change of rows of the carriers table, coalesced with other changes.
+     *
+     * @param rowId the changed row, or -1 if not known.
+     * @param subId the subscription the change is for, or INVALID_SUBSCRIPTION_ID if not known.
+     */
+    private void notifyCarriersRowChange(long rowId, int subId) {
+        if (mPendingCarriersNotifications.get() != null) {
+            mCarriersNotifier.onChangeDeferred(rowId, subId);
+        } else {
+            mCarriersNotifier.onChange(rowId, subId);
+        }
+    }
+
+    /**
+     * Change how long changes of carriers rows are collected before notifying, 0 to notify right
+     * away.
+     */
+    @VisibleForTesting
+    void setCarriersNotificationWindowMs(long windowMs) {
+        mCarriersNotifier.setWindowMs(windowMs);
+    }
+
+    private void notifyCarriersRowInserted(Uri url, ContentValues initialValues, Uri result) {
+        int subId = getSubIdForCarriersUri(url);
+        if (result == null) {
+            // Merged into an existing row, or a preferred APN change.
+            notifyCarriersRowChange(-1, subId);
+            return;
+        }
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            // The row gets the default subId unless one is given, see setDefaultValue().
+            Integer rowSubId = initialValues != null
+                    ? initialValues.getAsInteger(SUBSCRIPTION_ID) : null;
+            subId = rowSubId != null ? rowSubId : mDefaultSubId;
+        }
+        notifyCarriersRowChange(ContentUris.parseId(result), subId);
+    }
+
+    /**
+     * @return the carriers row a URI points to, or -1 if it doesn't point to a single row.
+     */
+    private static long getRowIdForCarriersUri(Uri url) {
+        switch (s_urlMatcher.match(url)) {
+            case URL_ID:
+            case URL_DPC_ID:
+                try {
+                    return Long.parseLong(url.getLastPathSegment());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the subscription a carriers URI is for, or INVALID_SUBSCRIPTION_ID if it doesn't
+     * name one.
+     */
+    private static int getSubIdForCarriersUri(Uri url) {
+        switch (s_urlMatcher.match(url)) {
+            case URL_PREFERAPN_USING_SUBID:
+            case URL_PREFERAPN_NO_UPDATE_USING_SUBID:
+            case URL_RESTOREAPN_USING_SUBID:
+                try {
+                    return Integer.parseInt(url.getLastPathSegment());
+                } catch (NumberFormatException e) {
+                    return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+                }
+            default:
+                return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+    }
+
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return insertSynchronized(url, initialValues);
+        int match = s_urlMatcher.match(url);
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        InstrumentedReadWriteLock lock = getTableLockForMatch(match);
+        lockWrite(lock);
+        try {
+            Uri uri = insertLocked(url, initialValues);
+            rows = uri != null ? 1 : 0;
+            return uri;
+        } finally {
+            lock.unlockWrite();
+            mMetrics.record(ProviderMetrics.OP_INSERT, match, getCallingPackageUnchecked(), start,
+                    rows);
+        }
     }
 
-    private synchronized Uri insertSynchronized(Uri url, ContentValues initialValues) {
+    private Uri insertLocked(Uri url, ContentValues initialValues) {
         Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, initialValues);
         if (rowAndNotify.second) {
-            getContext().getContentResolver().notifyChange(CONTENT_URI, null,
-                    true, UserHandle.USER_ALL);
+            notifyCarriersRowInserted(url, initialValues, rowAndNotify.first);
         }
         return rowAndNotify.first;
     }
@@ -4980,6 +5532,7 @@ public class TelephonyProvider extends ContentProvider
             if (rowID >= 0) {
                 result = ContentUris.withAppendedId(CONTENT_URI, rowID);
                 notify = true;
+                mApnMatchIndex.onRowInserted(rowID, values);
             }
             if (DBG) log("insert: inserted " + values + ", rowID = " + rowID);
         } catch (SQLException e) {
@@ -4993,6 +5546,8 @@ public class TelephonyProvider extends ContentProvider
                         mergedValues, false, getContext());
                 oldRow.close();
                 notify = true;
+                // The merge may have updated the old row or added a separate one.
+                mApnMatchIndex.invalidate();
             }
         }
         return Pair.create(result, notify);
@@ -5004,7 +5559,7 @@ public class TelephonyProvider extends ContentProvider
 
         int match = s_urlMatcher.match(url);
         checkPermission(match);
-        syncBearerBitmaskAndNetworkTypeBitmask(initialValues);
+        ApnFieldCodec.syncBearerBitmaskAndNetworkTypeBitmask(initialValues);
 
         boolean notify = false;
         SQLiteDatabase db = getWritableDatabase();
@@ -5109,6 +5664,7 @@ public class TelephonyProvider extends ContentProvider
                 if (rowID >= 0) {
                     result = ContentUris.withAppendedId(CONTENT_URI, rowID);
                     notify = true;
+                    mApnMatchIndex.onRowInserted(rowID, values);
                 }
                 if (VDBG) log("insert: inserted " + values.toString() + " rowID = " + rowID);
 
@@ -5128,10 +5684,22 @@ public class TelephonyProvider extends ContentProvider
     @Override
     public int delete(Uri url, String where, String[] whereArgs) {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return deleteSynchronized(url, where, whereArgs);
+        int match = s_urlMatcher.match(url);
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        InstrumentedReadWriteLock lock = getTableLockForMatch(match);
+        lockWrite(lock);
+        try {
+            rows = deleteLocked(url, where, whereArgs);
+            return rows;
+        } finally {
+            lock.unlockWrite();
+            mMetrics.record(ProviderMetrics.OP_DELETE, match, getCallingPackageUnchecked(), start,
+                    rows);
+        }
     }
 
-    private synchronized int deleteSynchronized(Uri url, String where, String[] whereArgs) {
+    private int deleteLocked(Uri url, String where, String[] whereArgs) {
         int count = 0;
         int subId = mDefaultSubId;
         String userOrCarrierEdited = ") and (" +
@@ -5153,7 +5721,7 @@ public class TelephonyProvider extends ContentProvider
             case URL_DELETE:
             {
                 // Delete preferred APN for all subIds
-                deletePreferredApnId(getContext());
+                deletePreferredApnIds(db);
                 // Delete unedited entries
                 count = db.delete(CARRIERS_TABLE, "(" + where + unedited + " and " +
                         IS_NOT_OWNED_BY_DPC, whereArgs);
@@ -5222,9 +5790,7 @@ public class TelephonyProvider extends ContentProvider
             case URL_RESTOREAPN: {
                 count = 1;
                 restoreDefaultAPN(subId);
-                getContext().getContentResolver().notifyChange(
-                        Uri.withAppendedPath(CONTENT_URI, "restore/subId/" + subId), null,
-                        true, UserHandle.USER_ALL);
+                notifyCarriersChange(Uri.withAppendedPath(CONTENT_URI, "restore/subId/" + subId));
                 break;
             }
 
@@ -5273,9 +5839,23 @@ public class TelephonyProvider extends ContentProvider
             }
         }
 
+        switch (match) {
+            case URL_ID:
+            case URL_DPC_ID:
+                mApnMatchIndex.onRowChanged(db, Long.parseLong(url.getLastPathSegment()));
+                break;
+            case URL_PREFERAPN_USING_SUBID:
+            case URL_PREFERAPN_NO_UPDATE_USING_SUBID:
+            case URL_PREFERAPN:
+            case URL_PREFERAPN_NO_UPDATE:
+            case URL_SIMINFO:
+                break;
+            default:
+                mApnMatchIndex.invalidate();
+        }
+
         if (count > 0) {
-            getContext().getContentResolver().notifyChange(CONTENT_URI, null,
-                    true, UserHandle.USER_ALL);
+            notifyCarriersRowChange(getRowIdForCarriersUri(url), getSubIdForCarriersUri(url));
         }
 
         return count;
@@ -5285,10 +5865,22 @@ public class TelephonyProvider extends ContentProvider
     public int update(Uri url, ContentValues values, String where, String[] whereArgs)
     {
         mDefaultSubId = SubscriptionManager.getDefaultSubscriptionId();
-        return updateSynchronized(url, values, where, whereArgs);
+        int match = s_urlMatcher.match(url);
+        long start = mMetrics.start();
+        int rows = ProviderMetrics.FAILED;
+        InstrumentedReadWriteLock lock = getTableLockForMatch(match);
+        lockWrite(lock);
+        try {
+            rows = updateLocked(url, values, where, whereArgs);
+            return rows;
+        } finally {
+            lock.unlockWrite();
+            mMetrics.record(ProviderMetrics.OP_UPDATE, match, getCallingPackageUnchecked(), start,
+                    rows);
+        }
     }
 
-    private synchronized int updateSynchronized(Uri url, ContentValues values, String where,
+    private int updateLocked(Uri url, ContentValues values, String where,
             String[] whereArgs) {
         int count = 0;
         int uriType = URL_UNKNOWN;
@@ -5296,7 +5888,7 @@ public class TelephonyProvider extends ContentProvider
 
         int match = s_urlMatcher.match(url);
         checkPermission(match);
-        syncBearerBitmaskAndNetworkTypeBitmask(values);
+        ApnFieldCodec.syncBearerBitmaskAndNetworkTypeBitmask(values);
 
         SQLiteDatabase db = getWritableDatabase();
         switch (match)
@@ -5319,6 +5911,7 @@ public class TelephonyProvider extends ContentProvider
                 count = db.updateWithOnConflict(CARRIERS_TABLE, values, where +
                                 " and " + IS_NOT_OWNED_BY_DPC, whereArgs,
                         SQLiteDatabase.CONFLICT_REPLACE);
+                mApnMatchIndex.invalidate();
                 break;
             }
 
@@ -5339,6 +5932,7 @@ public class TelephonyProvider extends ContentProvider
                 count = db.updateWithOnConflict(CARRIERS_TABLE, values, where +
                                 " and " + IS_NOT_OWNED_BY_DPC,
                         whereArgs, SQLiteDatabase.CONFLICT_REPLACE);
+                mApnMatchIndex.invalidate();
                 break;
             }
 
@@ -5357,6 +5951,7 @@ public class TelephonyProvider extends ContentProvider
                     count = db.updateWithOnConflict(CARRIERS_TABLE, values, _ID + "=?" + " and " +
                                     IS_NOT_OWNED_BY_DPC, new String[] { rowID },
                             SQLiteDatabase.CONFLICT_ABORT);
+                    mApnMatchIndex.onRowChanged(db, Long.parseLong(rowID));
                 } catch (SQLException e) {
                     // Update failed which could be due to a conflict. Check if that is
                     // the case and merge the entries
@@ -5370,6 +5965,7 @@ public class TelephonyProvider extends ContentProvider
                         db.delete(CARRIERS_TABLE, _ID + "=?" + " and " + IS_NOT_OWNED_BY_DPC,
                                 new String[] { rowID });
                     }
+                    mApnMatchIndex.invalidate();
                 }
                 break;
             }
@@ -5412,6 +6008,7 @@ public class TelephonyProvider extends ContentProvider
                 count = db.updateWithOnConflict(CARRIERS_TABLE, values,
                         _ID + "=?" + " and " + IS_OWNED_BY_DPC,
                         new String[] { url.getLastPathSegment() }, SQLiteDatabase.CONFLICT_IGNORE);
+                mApnMatchIndex.onRowChanged(db, Long.parseLong(url.getLastPathSegment()));
                 break;
             }
 
@@ -5582,8 +6179,8 @@ public class TelephonyProvider extends ContentProvider
                     }
                     break;
                 default:
-                    getContext().getContentResolver().notifyChange(
-                            CONTENT_URI, null, true, UserHandle.USER_ALL);
+                    notifyCarriersRowChange(getRowIdForCarriersUri(url),
+                            getSubIdForCarriersUri(url));
             }
         }
 
@@ -5719,19 +6316,8 @@ public class TelephonyProvider extends ContentProvider
             loge("got exception when deleting to restore: " + e);
         }
 
-        // delete preferred apn ids and preferred apns (both stored in diff SharedPref) for all
-        // subIds
-        SharedPreferences spApnId = getContext().getSharedPreferences(PREF_FILE_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editorApnId = spApnId.edit();
-        editorApnId.clear();
-        editorApnId.apply();
-
-        SharedPreferences spApn = getContext().getSharedPreferences(PREF_FILE_FULL_APN,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editorApn = spApn.edit();
-        editorApn.clear();
-        editorApn.apply();
+        // delete preferred apn ids and preferred apns for all subIds
+        mPreferredApnStore.clearAll(db);
 
         if (apnSourceServiceExists(getContext())) {
             restoreApnsWithService(subId);
@@ -5745,6 +6331,8 @@ public class TelephonyProvider extends ContentProvider
             getContext().getSystemService(TelephonyManager.class).createForSubscriptionId(subId);
         String simOperator = telephonyManager.getSimOperator();
         int simCarrierId = telephonyManager.getSimSpecificCarrierId();
+        MvnoMatcher.SimSnapshot sim = mMvnoMatcher.getSnapshot(telephonyManager, subId,
+                simOperator);
         Cursor cursor = db.query(CARRIERS_TABLE, new String[] {MVNO_TYPE, MVNO_MATCH_DATA},
                 NUMERIC + "='" + simOperator + "'", null, null, null, DEFAULT_SORT_ORDER);
         String where = null;
@@ -5755,7 +6343,7 @@ public class TelephonyProvider extends ContentProvider
                 String mvnoType = cursor.getString(0 /* MVNO_TYPE index */);
                 String mvnoMatchData = cursor.getString(1 /* MVNO_MATCH_DATA index */);
                 if (!TextUtils.isEmpty(mvnoType) && !TextUtils.isEmpty(mvnoMatchData)
-                        && telephonyManager.matchesCurrentSimOperator(simOperator,
+                        && MvnoMatcher.matches(sim, simOperator,
                             getMvnoTypeIntFromString(mvnoType), mvnoMatchData)) {
                     where = NUMERIC + "='" + simOperator + "'"
                             + " AND " + MVNO_TYPE + "='" + mvnoType + "'"
@@ -5782,7 +6370,16 @@ public class TelephonyProvider extends ContentProvider
         return where;
     }
 
-    private synchronized void updateApnDb() {
+    private void updateApnDb() {
+        mCarriersLock.lockWrite();
+        try {
+            updateApnDbLocked();
+        } finally {
+            mCarriersLock.unlockWrite();
+        }
+    }
+
+    private void updateApnDbLocked() {
         if (apnSourceServiceExists(getContext())) {
             loge("called updateApnDb when apn source service exists");
             return;
@@ -5798,18 +6395,53 @@ public class TelephonyProvider extends ContentProvider
             return;
         }
 
-        // Delete preferred APN for all subIds
-        deletePreferredApnId(getContext());
+        // Write the changed entries and delete the edited=UNEDITED entries no longer in xml
+        updateDatabaseWithDatabaseHelper(db);
+        onApnDbUpdatedLocked(db);
+    }
 
-        // Delete entries in db
+    /**
+     * Like {@link #updateApnDb}, but only holds the carriers lock while opening the database and
+     * while writing the APNs, so queries can read the APNs committed before while the new ones
+     * are read.
+     */
+    private void warmUpApnDb(ApnDbWarmUp warmUp) {
+        warmUp.phase("open");
+        SQLiteDatabase db;
+        mCarriersLock.lockWrite();
         try {
-            if (VDBG) log("updateApnDb: deleting edited=UNEDITED entries");
-            db.delete(CARRIERS_TABLE, IS_UNEDITED + " and " + IS_NOT_OWNED_BY_DPC, null);
-        } catch (SQLException e) {
-            loge("got exception when deleting to update: " + e);
+            // On first boot getWritableDatabase() triggers DatabaseHelper.onCreate(), which
+            // loads the APNs, see updateApnDbLocked().
+            db = getWritableDatabase();
+        } finally {
+            mCarriersLock.unlockWrite();
+        }
+
+        if (!needApnDbUpdate()) {
+            log("Skipping apn db update since apn-conf has not changed.");
+            return;
+        }
+
+        warmUp.phase("read");
+        ApnConf conf = readApnConfWithDatabaseHelper();
+
+        warmUp.phase("write");
+        mCarriersLock.lockWrite();
+        try {
+            updateDatabaseWithDatabaseHelper(db, conf);
+            onApnDbUpdatedLocked(db);
+        } finally {
+            mCarriersLock.unlockWrite();
         }
+    }
+
+    private void onApnDbUpdatedLocked(SQLiteDatabase db) {
+        mApnMatchIndex.invalidate();
 
-        initDatabaseWithDatabaseHelper(db);
+        // Unchanged rows keep their ids, only forget the preferred APNs whose row changed. Those
+        // are found again from their saved values on the next query.
+        int invalidated = mPreferredApnStore.verifyApnIds(db, CARRIERS_TABLE);
+        localLog("updateApnDb: forgot " + invalidated + " preferred apn ids");
 
         // Notify listeners of DB change since DB has been updated
         getContext().getContentResolver().notifyChange(
@@ -5838,6 +6470,7 @@ public class TelephonyProvider extends ContentProvider
         db.update(SIMINFO_TABLE, cv,
                 Telephony.SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
                 new String[]{subId});
+        SimInfoSnapshot.noteDirectWrite();
     }
 
     /*
@@ -5879,31 +6512,6 @@ public class TelephonyProvider extends ContentProvider
         }
     }
 
-    /**
-     * Sync the bearer bitmask and network type bitmask when inserting and updating.
-     * Since bearerBitmask is deprecating, map the networkTypeBitmask to bearerBitmask if
-     * networkTypeBitmask was provided. But if networkTypeBitmask was not provided, map the
-     * bearerBitmask to networkTypeBitmask.
-     */
-    private static void syncBearerBitmaskAndNetworkTypeBitmask(ContentValues values) {
-        if (values.containsKey(NETWORK_TYPE_BITMASK)) {
-            int convertedBitmask = convertNetworkTypeBitmaskToBearerBitmask(
-                    values.getAsInteger(NETWORK_TYPE_BITMASK));
-            if (values.containsKey(BEARER_BITMASK)
-                    && convertedBitmask != values.getAsInteger(BEARER_BITMASK)) {
-                loge("Network type bitmask and bearer bitmask are not compatible.");
-            }
-            values.put(BEARER_BITMASK, convertNetworkTypeBitmaskToBearerBitmask(
-                    values.getAsInteger(NETWORK_TYPE_BITMASK)));
-        } else {
-            if (values.containsKey(BEARER_BITMASK)) {
-                int convertedBitmask = convertBearerBitmaskToNetworkTypeBitmask(
-                        values.getAsInteger(BEARER_BITMASK));
-                values.put(NETWORK_TYPE_BITMASK, convertedBitmask);
-            }
-        }
-    }
-
     /**
      * Log with debug
      *
@@ -5923,161 +6531,6 @@ public class TelephonyProvider extends ContentProvider
         return  mvnoTypeInt == null ? ApnSetting.MVNO_TYPE_UNKNOWN : mvnoTypeInt;
     }
 
-    private static int getBitmaskFromString(String bearerList) {
-        String[] bearers = bearerList.split("\\|");
-        int bearerBitmask = 0;
-        for (String bearer : bearers) {
-            int bearerInt = 0;
-            try {
-                bearerInt = Integer.parseInt(bearer.trim());
-            } catch (NumberFormatException nfe) {
-                return 0;
-            }
-
-            if (bearerInt == 0) {
-                return 0;
-            }
-            bearerBitmask |= getBitmaskForTech(bearerInt);
-        }
-        return bearerBitmask;
-    }
-
-    /**
-     * Get the infrastructure bitmask from string
-     *
-     * @param infrastructureString The infrastructure list in string format. For example
-     * {@code "cellular|satellite"}.
-     *
-     * @return The infrastructure bitmask.
-     */
-    private static int getInfrastructureListFromString(@NonNull String infrastructureString) {
-        String[] infras = infrastructureString.split("\\|");
-        int infrastructureBitmask = 0;
-        for (String infrastructure : infras) {
-            switch (infrastructure.toLowerCase(Locale.ROOT)) {
-                case "cellular":
-                    infrastructureBitmask |= ApnSetting.INFRASTRUCTURE_CELLULAR;
-                    break;
-                case "satellite":
-                    infrastructureBitmask |= ApnSetting.INFRASTRUCTURE_SATELLITE;
-                    break;
-            }
-        }
-        return infrastructureBitmask;
-    }
-
-    /**
-     * Transform RIL radio technology value to Network
-     * type bitmask{@link android.telephony.TelephonyManager.NetworkTypeBitMask}.
-     *
-     * @param rat The RIL radio technology.
-     * @return The network type
-     * bitmask{@link android.telephony.TelephonyManager.NetworkTypeBitMask}.
-     */
-    private static int rilRadioTechnologyToNetworkTypeBitmask(int rat) {
-        switch (rat) {
-            case RIL_RADIO_TECHNOLOGY_GPRS:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_GPRS;
-            case RIL_RADIO_TECHNOLOGY_EDGE:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EDGE;
-            case RIL_RADIO_TECHNOLOGY_UMTS:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_UMTS;
-            case RIL_RADIO_TECHNOLOGY_HSDPA:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSDPA;
-            case RIL_RADIO_TECHNOLOGY_HSUPA:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSUPA;
-            case RIL_RADIO_TECHNOLOGY_HSPA:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSPA;
-            case RIL_RADIO_TECHNOLOGY_IS95A:
-            case RIL_RADIO_TECHNOLOGY_IS95B:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_CDMA;
-            case RIL_RADIO_TECHNOLOGY_1xRTT:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_1xRTT;
-            case RIL_RADIO_TECHNOLOGY_EVDO_0:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EVDO_0;
-            case RIL_RADIO_TECHNOLOGY_EVDO_A:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EVDO_A;
-            case RIL_RADIO_TECHNOLOGY_EVDO_B:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EVDO_B;
-            case RIL_RADIO_TECHNOLOGY_EHRPD:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_EHRPD;
-            case RIL_RADIO_TECHNOLOGY_LTE:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_LTE;
-            case RIL_RADIO_TECHNOLOGY_HSPAP:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_HSPAP;
-            case RIL_RADIO_TECHNOLOGY_GSM:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_GSM;
-            case RIL_RADIO_TECHNOLOGY_TD_SCDMA:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_TD_SCDMA;
-            case RIL_RADIO_TECHNOLOGY_IWLAN:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_IWLAN;
-            case RIL_RADIO_TECHNOLOGY_LTE_CA:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_LTE_CA;
-            case RIL_RADIO_TECHNOLOGY_NR:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_NR;
-            default:
-                return (int) TelephonyManager.NETWORK_TYPE_BITMASK_UNKNOWN;
-        }
-    }
-
-    /**
-     * Convert network type bitmask to bearer bitmask.
-     *
-     * @param networkTypeBitmask The network type bitmask value
-     * @return The bearer bitmask value.
-     */
-    private static int convertNetworkTypeBitmaskToBearerBitmask(int networkTypeBitmask) {
-        if (networkTypeBitmask == 0) {
-            return 0;
-        }
-
-        int bearerBitmask = 0;
-        for (int bearerInt = 0; bearerInt < NEXT_RIL_RADIO_TECHNOLOGY; bearerInt++) {
-            if (bitmaskHasTarget(networkTypeBitmask,
-                    rilRadioTechnologyToNetworkTypeBitmask(bearerInt))) {
-                bearerBitmask |= getBitmaskForTech(bearerInt);
-            }
-        }
-        return bearerBitmask;
-    }
-
-    /**
-     * Convert bearer bitmask to network type bitmask.
-     *
-     * @param bearerBitmask The bearer bitmask value.
-     * @return The network type bitmask value.
-     */
-    private static int convertBearerBitmaskToNetworkTypeBitmask(int bearerBitmask) {
-        if (bearerBitmask == 0) {
-            return 0;
-        }
-
-        int networkTypeBitmask = 0;
-        for (int bearerUnitInt = 0; bearerUnitInt < NEXT_RIL_RADIO_TECHNOLOGY; bearerUnitInt++) {
-            int bearerUnitBitmask = getBitmaskForTech(bearerUnitInt);
-            if (bitmaskHasTarget(bearerBitmask, bearerUnitBitmask)) {
-                networkTypeBitmask |= rilRadioTechnologyToNetworkTypeBitmask(bearerUnitInt);
-            }
-        }
-        return networkTypeBitmask;
-    }
-
-    private static boolean bitmaskHasTarget(int bearerBitmask, int targetBitmask) {
-        if (bearerBitmask == 0) {
-            return true;
-        } else if (targetBitmask != 0) {
-            return ((bearerBitmask & targetBitmask) != 0);
-        }
-        return false;
-    }
-
-    private static int getBitmaskForTech(int radioTech) {
-        if (radioTech >= 1) {
-            return (1 << (radioTech - 1));
-        }
-        return 0;
-    }
-
     /**
      * Migrate the old Long values{@link Telephony.SimInfo.COLUMN_ALLOWED_NETWORK_TYPES} over to
      * String{@link Telephony.SimInfo.COLUMN_ALLOWED_NETWORK_TYPES_ALL_REASON}
@@ -6107,6 +6560,7 @@ public class TelephonyProvider extends ContentProvider
             db.update(SIMINFO_TABLE, cv,
                     Telephony.SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
                     new String[]{subId});
+            SimInfoSnapshot.noteDirectWrite();
         }
     }
 
@@ -6141,6 +6595,7 @@ public class TelephonyProvider extends ContentProvider
             db.update(SIMINFO_TABLE, cv,
                     Telephony.SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
                     new String[]{subId});
+            SimInfoSnapshot.noteDirectWrite();
         }
     }
 
@@ -6172,79 +6627,66 @@ public class TelephonyProvider extends ContentProvider
     }
 
     /**
-     * Dump the database table.
+     * Dump the database table, a page at a time and without taking the table lock.
      *
      * @param tableName Table name.
+     * @param options What to dump, from the dumpsys arguments.
      * @param pw Print writer.
      */
-    private void dumpTable(@NonNull String tableName, @NonNull IndentingPrintWriter pw) {
-        try (Cursor cursor = getReadableDatabase().query(false, tableName, null,
-                null, null, null, null, null, null)) {
-            pw.println(tableName + " table:");
-            pw.increaseIndent();
-            while (cursor != null && cursor.moveToNext()) {
-                List<String> columnStrings = new ArrayList<>();
-                String str = "";
-                for (int i = 0; i < cursor.getColumnCount(); i++) {
-                    str = cursor.getColumnName(i) + "=";
-                    int type = cursor.getType(i);
-                    try {
-                        switch (type) {
-                            case 0 /*FIELD_TYPE_NULL*/:
-                                str += "null";
-                                break;
-                            case 1 /*FIELD_TYPE_INTEGER*/:
-                                str += cursor.getInt(i);
-                                break;
-                            case 2 /*FIELD_TYPE_FLOAT*/:
-                                str += cursor.getFloat(i);
-                                break;
-                            case 3 /*FIELD_TYPE_STRING*/:
-                                String columnValue = cursor.getString(i);
-                                // Redact icc_id and card_id
-                                if (SIMINFO_TABLE.equals(tableName)
-                                        && (Telephony.SimInfo.COLUMN_ICC_ID.equals(
-                                                cursor.getColumnName(i))
-                                        || Telephony.SimInfo.COLUMN_CARD_ID.equals(
-                                                cursor.getColumnName(i)))) {
-                                    columnValue = SubscriptionInfo.getPrintableId(columnValue);
-                                }
-                                str += columnValue;
-                                break;
-                            case 4 /*FIELD_TYPE_BLOB*/:
-                                str += "[blob]";
-                                break;
-                            default:
-                                str += "unknown";
-                                break;
-                        }
-                    } catch (Exception e) {
-                        str += "exception";
-                    }
-                    columnStrings.add(str);
-                }
-                pw.println(TextUtils.join(", ", columnStrings));
-            }
-            pw.decreaseIndent();
+    private void dumpTable(@NonNull String tableName, @NonNull TableDumper.Options options,
+            @NonNull IndentingPrintWriter pw) {
+        if (!options.includes(tableName)) return;
+        SQLiteDatabase db;
+        try {
+            db = getReadableDatabase();
         } catch (Exception ex) {
             pw.println("Exception while dumping the table " + tableName + ", ex=" + ex);
+            return;
         }
+        // Redact icc_id and card_id
+        TableDumper.dump(db, tableName, options, SubscriptionInfo::getPrintableId,
+                SIMINFO_TABLE.equals(tableName) ? SIMINFO_REDACTED_COLUMNS : Set.of(), pw);
     }
 
     @Override
     public void dump(FileDescriptor fd, PrintWriter printWriter, String[] args) {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        long start = SystemClock.elapsedRealtime();
+        TableDumper.Options options = TableDumper.Options.parse(args);
         pw.println(TAG + ":");
         pw.increaseIndent();
+        if (options.getError() != null) {
+            pw.println(options.getError() + ", usage: [" + SIMINFO_TABLE + "] ["
+                    + CARRIERS_TABLE + "] [--columns a,b] [--limit n] [--stats]");
+        }
         pw.println("Database:");
         pw.increaseIndent();
-        dumpTable(SIMINFO_TABLE, pw);
-        dumpTable(CARRIERS_TABLE, pw);
+        dumpTable(SIMINFO_TABLE, options, pw);
+        dumpTable(CARRIERS_TABLE, options, pw);
+        pw.decreaseIndent();
+        mApnMatchIndex.dump(pw);
+        mMvnoMatcher.dump(pw);
+        mPreferredApnStore.dump(getWritableDatabase(), pw);
+        mApnQueryCache.dump(pw);
+        mSimInfoSnapshot.dump(pw);
+        mSimSettingsBackupStore.dump(pw);
+        mApnDbWarmUp.dump(pw);
+        mCarriersNotifier.dump(pw);
+        mMetrics.dump(pw);
+        pw.println("Locks:");
+        pw.increaseIndent();
+        mCarriersLock.dump(pw);
+        mSimInfoLock.dump(pw);
         pw.decreaseIndent();
         pw.println("Local log:");
         pw.increaseIndent();
         mLocalLog.dump(pw);
         pw.decreaseIndent();
+        pw.println("Events:");
+        pw.increaseIndent();
+        mEvents.dump(pw);
+        pw.decreaseIndent();
+        pw.println("Dumped in " + (SystemClock.elapsedRealtime() - start) + "ms");
         pw.decreaseIndent();
     }
 }
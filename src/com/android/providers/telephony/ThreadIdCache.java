@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.annotation.NonNull;
+import android.provider.Telephony.Mms;
+import android.util.IndentingPrintWriter;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Locale;
+import java.util.function.ToLongFunction;
+
+/**
+ * Caches the thread id of single recipient addresses, so the messages of a sender don't each go
+ * through {@code content://mms-sms/threadID} to find their thread.
+ *
+ * An address keeps its thread until the thread or its canonical address is deleted, or the
+ * canonical address is changed, so those must call {@link #invalidate}. Creating threads and
+ * canonical addresses doesn't change the thread of an address already resolved.
+ *
+ * There is one cache per process, shared by the providers of the mms-sms database.
+ */
+public class ThreadIdCache {
+    private static final int MAX_ENTRIES = 256;
+
+    private static final ThreadIdCache sInstance = new ThreadIdCache(MAX_ENTRIES);
+
+    private final LruCache<String, Long> mThreadIds;
+
+    private final Object mLock = new Object();
+    // Bumped by each invalidation, so a thread id resolved across one isn't cached.
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    // Statistics, for dumpsys only.
+    @GuardedBy("mLock")
+    private long mHitCount;
+    @GuardedBy("mLock")
+    private long mMissCount;
+    @GuardedBy("mLock")
+    private long mInvalidationCount;
+
+    @VisibleForTesting
+    public ThreadIdCache(int maxEntries) {
+        mThreadIds = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * @return the cache of the process.
+     */
+    @NonNull
+    public static ThreadIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the key of {@code address}. Email addresses are lowercased, like MmsSmsProvider
+     * does before looking up their canonical address; anything else is kept as it is.
+     */
+    private static String normalize(String address) {
+        return Mms.isEmailAddress(address) ? address.toLowerCase(Locale.ROOT) : address;
+    }
+
+    /**
+     * @param address a single recipient address.
+     * @param resolver finds or creates the thread of an address when it is not cached, and
+     * throws if it fails.
+     * @return the thread id of {@code address}.
+     */
+    public long getOrCreateThreadId(@NonNull String address,
+            @NonNull ToLongFunction<String> resolver) {
+        String key = normalize(address);
+        long generation;
+        synchronized (mLock) {
+            Long threadId = mThreadIds.get(key);
+            if (threadId != null) {
+                mHitCount++;
+                return threadId;
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+        // Resolved without the lock, which must not be held across the provider call.
+        long threadId = resolver.applyAsLong(address);
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mThreadIds.put(key, threadId);
+            }
+        }
+        return threadId;
+    }
+
+    /**
+     * Forget every address, because threads or canonical addresses were deleted or changed.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mInvalidationCount++;
+            mThreadIds.evictAll();
+        }
+    }
+
+    /**
+     * Dump the cache statistics.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("ThreadIdCache: size=" + mThreadIds.size() + " hits=" + mHitCount
+                    + " misses=" + mMissCount + " invalidations=" + mInvalidationCount);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.Carriers;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that {@link ApnBulkLoader} resolves conflicts in memory the same way the row by row
+ * insert does.
+ */
+@RunWith(JUnit4.class)
+public final class ApnBulkLoaderTest {
+    private static final String CARRIERS_TABLE = "carriers";
+
+    private SQLiteDatabase mDb;
+    private ApnBulkLoader mLoader;
+    private int mFallbackCount;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(TelephonyProvider.getStringForCarrierTableCreation(CARRIERS_TABLE));
+        mLoader = new ApnBulkLoader(InstrumentationRegistry.getTargetContext(), CARRIERS_TABLE,
+                (db, row) -> {
+                    mFallbackCount++;
+                    return -1;
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mLoader.close();
+        mDb.close();
+    }
+
+    private static ContentValues apn(String apn, String type) {
+        ContentValues values = new ContentValues();
+        values.put(Carriers.NUMERIC, "310260");
+        values.put(Carriers.MCC, "310");
+        values.put(Carriers.MNC, "260");
+        values.put(Carriers.APN, apn);
+        values.put(Carriers.TYPE, type);
+        return values;
+    }
+
+    private String queryString(long id, String column) {
+        try (Cursor c = mDb.query(CARRIERS_TABLE, new String[] {column},
+                Carriers._ID + "=" + id, null, null, null, null)) {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        }
+    }
+
+    @Test
+    public void testInsertAndMerge() {
+        long first = mLoader.write(mDb, apn("a", "default"));
+        long second = mLoader.write(mDb, apn("b", "mms"));
+        assertNotEquals(first, second);
+
+        // Same unique key, the types are merged into the existing row.
+        assertEquals(first, mLoader.write(mDb, apn("a", "supl")));
+        assertEquals("default,supl", queryString(first, Carriers.TYPE));
+        // The in-memory copy of the row was updated as well.
+        assertEquals(first, mLoader.write(mDb, apn("a", "dun")));
+        assertEquals("default,supl,dun", queryString(first, Carriers.TYPE));
+
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE));
+        assertEquals(0, mFallbackCount);
+    }
+
+    @Test
+    public void testDefaultsArePartOfTheKey() {
+        long id = mLoader.write(mDb, apn("a", "default"));
+        ContentValues explicit = apn("a", "mms");
+        explicit.put(Carriers.PROTOCOL, "IP");
+        explicit.put(Carriers.CARRIER_ENABLED, true);
+        assertEquals(id, mLoader.write(mDb, explicit));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE));
+    }
+
+    @Test
+    public void testDeletedRowIsMarkedPresentInXml() {
+        ContentValues deleted = apn("a", "default");
+        deleted.put(Carriers.EDITED_STATUS, Carriers.USER_DELETED);
+        long id = mDb.insert(CARRIERS_TABLE, null, deleted);
+
+        assertEquals(id, mLoader.write(mDb, apn("a", "default")));
+        assertEquals(String.valueOf(Carriers.USER_DELETED_BUT_PRESENT_IN_XML),
+                queryString(id, Carriers.EDITED_STATUS));
+        assertEquals(0, mFallbackCount);
+    }
+
+    @Test
+    public void testConflictOnlySQLiteSeesFallsBack() {
+        ContentValues row = apn("a", "default");
+        row.put(Carriers.PROFILE_ID, 1);
+        mLoader.write(mDb, row);
+
+        // "01" is stored as 1 by the INTEGER column but is a different string.
+        ContentValues other = apn("a", "mms");
+        other.put(Carriers.PROFILE_ID, "01");
+        mLoader.write(mDb, other);
+        assertEquals(1, mFallbackCount);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE));
+    }
+
+    @Test
+    public void testReportsThroughput() {
+        mLoader.write(mDb, apn("a", "default"));
+        mLoader.write(mDb, apn("b", "default"));
+        String stats = mLoader.toString();
+        assertTrue(stats, stats.contains("rows=2"));
+        assertTrue(stats, stats.contains("rows/s"));
+        // Both rows have the same columns and share a statement.
+        assertTrue(stats, stats.contains("statements=1"));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.Carriers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that reloading the APN xml only writes the entries which changed.
+ */
+@RunWith(JUnit4.class)
+public final class ApnConfHashesTest {
+    private static final String CARRIERS_TABLE = "carriers";
+    private static final String REUSABLE = Carriers.EDITED_STATUS + "=" + Carriers.UNEDITED
+            + " and " + Carriers.OWNED_BY + "!=" + Carriers.OWNED_BY_DPC;
+
+    private SQLiteDatabase mDb;
+    private int mWriteCount;
+    private final ContentValues mDefaults = new ContentValues();
+
+    private final ApnConfHashes.RowWriter mWriter = (db, row) -> {
+        mWriteCount++;
+        for (String key : mDefaults.keySet()) {
+            if (!row.containsKey(key)) {
+                row.put(key, mDefaults.getAsInteger(key));
+            }
+        }
+        return db.insert(CARRIERS_TABLE, null, row);
+    };
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(TelephonyProvider.getStringForCarrierTableCreation(CARRIERS_TABLE));
+        ApnConfHashes.reset(mDb);
+        mDefaults.put(Carriers.SUBSCRIPTION_ID, 1);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private static ContentValues apn(String numeric, String apn, String type) {
+        ContentValues values = new ContentValues();
+        values.put(Carriers.NUMERIC, numeric);
+        values.put(Carriers.MCC, numeric.substring(0, 3));
+        values.put(Carriers.MNC, numeric.substring(3));
+        values.put(Carriers.APN, apn);
+        values.put(Carriers.TYPE, type);
+        return values;
+    }
+
+    private ApnConfHashes.Result apply(boolean deleteRemoved, ContentValues... rows) {
+        List<ContentValues> list = new ArrayList<>();
+        for (ContentValues row : rows) {
+            list.add(new ContentValues(row));
+        }
+        return ApnConfHashes.apply(mDb, CARRIERS_TABLE, REUSABLE, list, mDefaults, deleteRemoved,
+                mWriter);
+    }
+
+    private long rowCount() {
+        return DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE);
+    }
+
+    @Test
+    public void testUnchangedEntriesAreNotWritten() {
+        ContentValues a = apn("310260", "a", "default");
+        ContentValues b = apn("310260", "b", "mms");
+
+        ApnConfHashes.Result result = apply(true, a, b);
+        assertEquals(2, result.written);
+        assertEquals(2, mWriteCount);
+
+        mWriteCount = 0;
+        result = apply(true, a, b);
+        assertEquals(2, result.unchanged);
+        assertEquals(0, result.written);
+        assertEquals(0, result.deleted);
+        assertEquals(0, mWriteCount);
+        assertEquals(2, rowCount());
+    }
+
+    @Test
+    public void testChangedAndRemovedEntries() {
+        ContentValues a = apn("310260", "a", "default");
+        ContentValues b = apn("310260", "b", "mms");
+        ContentValues c = apn("310260", "c", "ims");
+        apply(true, a, b, c);
+
+        // b changed, c removed
+        ContentValues newB = apn("310260", "b", "mms,xcap");
+        ApnConfHashes.Result result = apply(true, a, newB);
+        assertEquals(1, result.unchanged);
+        assertEquals(1, result.written);
+        assertEquals(2, result.deleted);
+        assertEquals(2, rowCount());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE,
+                Carriers.TYPE + "='mms,xcap'"));
+    }
+
+    @Test
+    public void testEditedRowsAreNotReused() {
+        ContentValues a = apn("310260", "a", "default");
+        apply(true, a);
+
+        // An edited row is left alone and the entry is written again.
+        ContentValues edited = new ContentValues();
+        edited.put(Carriers.EDITED_STATUS, Carriers.USER_EDITED);
+        mDb.update(CARRIERS_TABLE, edited, null, null);
+
+        ApnConfHashes.Result result = apply(true, a);
+        assertEquals(0, result.unchanged);
+        assertEquals(1, result.written);
+        assertEquals(0, result.deleted);
+    }
+
+    @Test
+    public void testDeletedRowIsWrittenAgain() {
+        ContentValues a = apn("310260", "a", "default");
+        apply(false, a);
+        mDb.delete(CARRIERS_TABLE, null, null);
+
+        ApnConfHashes.Result result = apply(false, a);
+        assertEquals(1, result.written);
+        assertEquals(1, rowCount());
+    }
+
+    @Test
+    public void testDefaultsUpdatedInUnchangedRows() {
+        ContentValues a = apn("310260", "a", "default");
+        ContentValues b = apn("310260", "b", "mms");
+        b.put(Carriers.SUBSCRIPTION_ID, 3);
+        apply(true, a, b);
+
+        // The default subscription changed since the previous load.
+        mDefaults.put(Carriers.SUBSCRIPTION_ID, 2);
+        ApnConfHashes.Result result = apply(true, a, b);
+        assertEquals(2, result.unchanged);
+        assertEquals(0, result.written);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE,
+                Carriers.APN + "='a' and " + Carriers.SUBSCRIPTION_ID + "=2"));
+        // An entry setting its own subscription keeps it.
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, CARRIERS_TABLE,
+                Carriers.APN + "='b' and " + Carriers.SUBSCRIPTION_ID + "=3"));
+    }
+
+    @Test
+    public void testResetWritesEverything() {
+        ContentValues a = apn("310260", "a", "default");
+        apply(true, a);
+        ApnConfHashes.reset(mDb);
+
+        ApnConfHashes.Result result = apply(true, a);
+        assertEquals(0, result.unchanged);
+        assertEquals(1, result.deleted);
+        assertEquals(1, result.written);
+        assertEquals(1, rowCount());
+    }
+
+    @Test
+    public void testComputeHash() {
+        ContentValues a = apn("310260", "a", "default");
+        assertEquals(ApnConfHashes.computeHash(a),
+                ApnConfHashes.computeHash(new ContentValues(a)));
+        for (ContentValues other : Arrays.asList(apn("310260", "a", "mms"),
+                apn("310261", "a", "default"))) {
+            assertNotEquals(ApnConfHashes.computeHash(a), ApnConfHashes.computeHash(other));
+        }
+        ContentValues typed = new ContentValues(a);
+        typed.put(Carriers.PROFILE_ID, 1);
+        ContentValues string = new ContentValues(a);
+        string.put(Carriers.PROFILE_ID, "1");
+        assertNotEquals(ApnConfHashes.computeHash(typed), ApnConfHashes.computeHash(string));
+    }
+}
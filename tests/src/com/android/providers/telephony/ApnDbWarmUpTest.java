@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class ApnDbWarmUpTest {
+    private final LocalLog mLocalLog = new LocalLog(16);
+    private final ApnDbWarmUp mWarmUp = new ApnDbWarmUp(mLocalLog);
+
+    private static void runInThread(Runnable runnable) {
+        new Thread(runnable).start();
+    }
+
+    private String localLog() {
+        StringWriter sw = new StringWriter();
+        mLocalLog.dump(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    @Test
+    public void awaitForQuery_notStarted() {
+        assertThat(mWarmUp.isRunning()).isFalse();
+        assertThat(mWarmUp.awaitForQuery(0)).isTrue();
+    }
+
+    @Test
+    public void awaitForQuery_timesOutWhileRunning() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        mWarmUp.start(ApnDbWarmUpTest::runInThread, warmUp -> {
+            warmUp.phase("read");
+            release.await();
+            finished.countDown();
+        });
+
+        assertThat(mWarmUp.isRunning()).isTrue();
+        assertThat(mWarmUp.awaitForQuery(10)).isFalse();
+
+        release.countDown();
+        assertThat(mWarmUp.awaitForQuery(5000)).isTrue();
+        assertThat(finished.await(0, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(mWarmUp.isRunning()).isFalse();
+
+        StringWriter sw = new StringWriter();
+        mWarmUp.dump(new IndentingPrintWriter(sw, "  "));
+        assertThat(sw.toString()).contains("phase=done");
+        assertThat(sw.toString()).contains("waitedQueries=2 timedOutQueries=1");
+    }
+
+    @Test
+    public void phases_loggedWhenDone() throws Exception {
+        mWarmUp.start(Runnable::run, warmUp -> {
+            warmUp.phase("open");
+            warmUp.phase("read");
+            warmUp.phase("write");
+        });
+
+        assertThat(mWarmUp.isRunning()).isFalse();
+        String log = localLog();
+        assertThat(log).contains("ApnDbWarmUp: done in ");
+        assertThat(log).contains(" queued=");
+        assertThat(log).contains(" open=");
+        assertThat(log).contains(" read=");
+        assertThat(log).contains(" write=");
+    }
+
+    @Test
+    public void failure_loggedAndReleasesQueries() {
+        mWarmUp.start(Runnable::run, warmUp -> {
+            warmUp.phase("read");
+            throw new IllegalStateException("bad xml");
+        });
+
+        assertThat(mWarmUp.awaitForQuery(0)).isTrue();
+        assertThat(localLog()).contains("failed in phase read");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_onlyOnce() {
+        mWarmUp.start(Runnable::run, warmUp -> { });
+        mWarmUp.start(Runnable::run, warmUp -> { });
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.provider.Telephony.Carriers;
+import android.telephony.data.ApnSetting;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tests that {@link ApnFieldCodec} gives the same results as the string splitting and per bit
+ * loops it replaced, kept here as the reference, and logs how much faster it is.
+ */
+@RunWith(JUnit4.class)
+public final class ApnFieldCodecTest {
+    private static final String TAG = "ApnFieldCodecTest";
+    private static final int NEXT_RIL_RADIO_TECHNOLOGY = 21;
+
+    private static final String[] LISTS = {
+            "1|2|14", "14", " 3 | 9 |20", "1|2|", "1|2| |", "|1", "", "|", "||", "0", "1|0",
+            "a", "1|x", "+5", "-1", "33", "2147483647", "2147483648", "1||2", "\t18\n",
+            "1|2|3|4|5|6|7|8|9|10|11|12|13|14|15|16|17|18|19|20"};
+    private static final String[] INFRASTRUCTURE_LISTS = {
+            "cellular", "satellite", "cellular|satellite", "CELLULAR|Satellite", "", "|",
+            "cellular|", " cellular", "sat", "satellite|unknown|cellular", "satellıte"};
+
+    @Test
+    public void testParseBitmask() {
+        for (String list : LISTS) {
+            assertEquals(list, Reference.getBitmaskFromString(list),
+                    ApnFieldCodec.parseBitmask(list));
+        }
+        assertEquals((1 << 0) | (1 << 1) | (1 << 13), ApnFieldCodec.parseBitmask("1|2|14"));
+    }
+
+    @Test
+    public void testParseInfrastructureBitmask() {
+        for (String list : INFRASTRUCTURE_LISTS) {
+            assertEquals(list, Reference.getInfrastructureListFromString(list),
+                    ApnFieldCodec.parseInfrastructureBitmask(list));
+        }
+        assertEquals(ApnSetting.INFRASTRUCTURE_CELLULAR | ApnSetting.INFRASTRUCTURE_SATELLITE,
+                ApnFieldCodec.parseInfrastructureBitmask("Cellular|SATELLITE"));
+    }
+
+    @Test
+    public void testRadioTechnologies() {
+        for (int rat = -1; rat <= NEXT_RIL_RADIO_TECHNOLOGY + 1; rat++) {
+            assertEquals(Reference.rilRadioTechnologyToNetworkTypeBitmask(rat),
+                    ApnFieldCodec.rilRadioTechnologyToNetworkTypeBitmask(rat));
+            assertEquals(Reference.getBitmaskForTech(rat), ApnFieldCodec.getBitmaskForTech(rat));
+        }
+    }
+
+    @Test
+    public void testConversions() {
+        assertConversions(0);
+        assertConversions(-1);
+        for (int bit = 0; bit < Integer.SIZE; bit++) {
+            assertConversions(1 << bit);
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 10_000; i++) {
+            assertConversions(random.nextInt());
+        }
+    }
+
+    private static void assertConversions(int bitmask) {
+        assertEquals(Integer.toHexString(bitmask),
+                Reference.convertBearerBitmaskToNetworkTypeBitmask(bitmask),
+                ApnFieldCodec.convertBearerBitmaskToNetworkTypeBitmask(bitmask));
+        assertEquals(Integer.toHexString(bitmask),
+                Reference.convertNetworkTypeBitmaskToBearerBitmask(bitmask),
+                ApnFieldCodec.convertNetworkTypeBitmaskToBearerBitmask(bitmask));
+    }
+
+    @Test
+    public void testSyncBitmasks() {
+        ContentValues values = new ContentValues();
+        values.put(Carriers.BEARER_BITMASK, 1 << 13);
+        ApnFieldCodec.syncBearerBitmaskAndNetworkTypeBitmask(values);
+        assertEquals(Reference.convertBearerBitmaskToNetworkTypeBitmask(1 << 13),
+                (int) values.getAsInteger(Carriers.NETWORK_TYPE_BITMASK));
+
+        // The network type bitmask wins over the bearer bitmask.
+        values.put(Carriers.NETWORK_TYPE_BITMASK, 1 << 19);
+        ApnFieldCodec.syncBearerBitmaskAndNetworkTypeBitmask(values);
+        assertEquals(Reference.convertNetworkTypeBitmaskToBearerBitmask(1 << 19),
+                (int) values.getAsInteger(Carriers.BEARER_BITMASK));
+    }
+
+    /**
+     * Microbenchmark of what loading one APN does: parse the network type list and convert it to
+     * a bearer bitmask, then convert a bearer bitmask back as an insert does.
+     */
+    @Test
+    public void benchmarkCodecAgainstReference() {
+        final int iterations = 200_000;
+        // Warm up both so neither is measured while interpreted.
+        runReference(iterations);
+        runCodec(iterations);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int referenceResult = runReference(iterations);
+        long referenceNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        int codecResult = runCodec(iterations);
+        long codecNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "reference " + referenceNanos / iterations + " ns/apn, codec "
+                + codecNanos / iterations + " ns/apn, speedup "
+                + String.format(Locale.ROOT, "%.1fx", (double) referenceNanos / codecNanos));
+        // Only logged, the timings depend too much on the device and its load to assert on.
+        assertEquals(referenceResult, codecResult);
+    }
+
+    private static int runReference(int iterations) {
+        int result = 0;
+        for (int i = 0; i < iterations; i++) {
+            String list = LISTS[i % LISTS.length];
+            int networkTypeBitmask = Reference.getBitmaskFromString(list);
+            result += Reference.convertNetworkTypeBitmaskToBearerBitmask(networkTypeBitmask);
+            result += Reference.convertBearerBitmaskToNetworkTypeBitmask(i);
+            result += Reference.getInfrastructureListFromString(
+                    INFRASTRUCTURE_LISTS[i % INFRASTRUCTURE_LISTS.length]);
+        }
+        return result;
+    }
+
+    private static int runCodec(int iterations) {
+        int result = 0;
+        for (int i = 0; i < iterations; i++) {
+            String list = LISTS[i % LISTS.length];
+            int networkTypeBitmask = ApnFieldCodec.parseBitmask(list);
+            result += ApnFieldCodec.convertNetworkTypeBitmaskToBearerBitmask(networkTypeBitmask);
+            result += ApnFieldCodec.convertBearerBitmaskToNetworkTypeBitmask(i);
+            result += ApnFieldCodec.parseInfrastructureBitmask(
+                    INFRASTRUCTURE_LISTS[i % INFRASTRUCTURE_LISTS.length]);
+        }
+        return result;
+    }
+
+    /** The implementation {@link ApnFieldCodec} replaced. */
+    private static final class Reference {
+        static int getBitmaskFromString(String bearerList) {
+            String[] bearers = bearerList.split("\\|");
+            int bearerBitmask = 0;
+            for (String bearer : bearers) {
+                int bearerInt = 0;
+                try {
+                    bearerInt = Integer.parseInt(bearer.trim());
+                } catch (NumberFormatException nfe) {
+                    return 0;
+                }
+
+                if (bearerInt == 0) {
+                    return 0;
+                }
+                bearerBitmask |= getBitmaskForTech(bearerInt);
+            }
+            return bearerBitmask;
+        }
+
+        static int getInfrastructureListFromString(String infrastructureString) {
+            String[] infras = infrastructureString.split("\\|");
+            int infrastructureBitmask = 0;
+            for (String infrastructure : infras) {
+                switch (infrastructure.toLowerCase(Locale.ROOT)) {
+                    case "cellular":
+                        infrastructureBitmask |= ApnSetting.INFRASTRUCTURE_CELLULAR;
+                        break;
+                    case "satellite":
+                        infrastructureBitmask |= ApnSetting.INFRASTRUCTURE_SATELLITE;
+                        break;
+                }
+            }
+            return infrastructureBitmask;
+        }
+
+        // The network type bitmask of each RIL radio technology, from the old switch.
+        private static final int[] NETWORK_TYPES = {
+                0 /* UNKNOWN */, 1 << 0 /* GPRS */, 1 << 1 /* EDGE */, 1 << 2 /* UMTS */,
+                1 << 3 /* IS95A, CDMA */, 1 << 3 /* IS95B, CDMA */, 1 << 6 /* 1xRTT */,
+                1 << 4 /* EVDO_0 */, 1 << 5 /* EVDO_A */, 1 << 7 /* HSDPA */, 1 << 8 /* HSUPA */,
+                1 << 9 /* HSPA */, 1 << 11 /* EVDO_B */, 1 << 13 /* EHRPD */, 1 << 12 /* LTE */,
+                1 << 14 /* HSPAP */, 1 << 15 /* GSM */, 1 << 16 /* TD_SCDMA */,
+                1 << 17 /* IWLAN */, 1 << 18 /* LTE_CA */, 1 << 19 /* NR */};
+
+        static int rilRadioTechnologyToNetworkTypeBitmask(int rat) {
+            return rat >= 0 && rat < NETWORK_TYPES.length ? NETWORK_TYPES[rat] : 0;
+        }
+
+        static int convertNetworkTypeBitmaskToBearerBitmask(int networkTypeBitmask) {
+            if (networkTypeBitmask == 0) {
+                return 0;
+            }
+
+            int bearerBitmask = 0;
+            for (int bearerInt = 0; bearerInt < NEXT_RIL_RADIO_TECHNOLOGY; bearerInt++) {
+                if (bitmaskHasTarget(networkTypeBitmask,
+                        rilRadioTechnologyToNetworkTypeBitmask(bearerInt))) {
+                    bearerBitmask |= getBitmaskForTech(bearerInt);
+                }
+            }
+            return bearerBitmask;
+        }
+
+        static int convertBearerBitmaskToNetworkTypeBitmask(int bearerBitmask) {
+            if (bearerBitmask == 0) {
+                return 0;
+            }
+
+            int networkTypeBitmask = 0;
+            for (int bearerUnitInt = 0; bearerUnitInt < NEXT_RIL_RADIO_TECHNOLOGY;
+                    bearerUnitInt++) {
+                int bearerUnitBitmask = getBitmaskForTech(bearerUnitInt);
+                if (bitmaskHasTarget(bearerBitmask, bearerUnitBitmask)) {
+                    networkTypeBitmask |= rilRadioTechnologyToNetworkTypeBitmask(bearerUnitInt);
+                }
+            }
+            return networkTypeBitmask;
+        }
+
+        static boolean bitmaskHasTarget(int bearerBitmask, int targetBitmask) {
+            if (bearerBitmask == 0) {
+                return true;
+            } else if (targetBitmask != 0) {
+                return ((bearerBitmask & targetBitmask) != 0);
+            }
+            return false;
+        }
+
+        static int getBitmaskForTech(int radioTech) {
+            if (radioTech >= 1) {
+                return (1 << (radioTech - 1));
+            }
+            return 0;
+        }
+    }
+}
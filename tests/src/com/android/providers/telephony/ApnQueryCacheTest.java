@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+@RunWith(JUnit4.class)
+public class ApnQueryCacheTest {
+    private static final String[] PROJECTION = {"apn", "carrier_id"};
+    private static final int MATCH = 1;
+    private static final int SUB_ID = 1;
+
+    private final ApnQueryCache mCache = new ApnQueryCache();
+
+    private static Cursor result(int rows) {
+        MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[] {"apn" + i, 1L});
+        }
+        return cursor;
+    }
+
+    private static String key(long extra) {
+        return ApnQueryCache.key(MATCH, SUB_ID, PROJECTION, null, null, null, extra);
+    }
+
+    @Test
+    public void put_returnsCopyAndLaterHits() {
+        Cursor first = mCache.put(key(0), 1, null, result(2));
+        assertThat(first.getCount()).isEqualTo(2);
+        first.moveToFirst();
+        assertThat(first.getString(0)).isEqualTo("apn0");
+
+        Cursor second = mCache.get(key(0), 1);
+        assertThat(second).isNotNull();
+        assertThat(second.getColumnNames()).isEqualTo(PROJECTION);
+        second.moveToLast();
+        assertThat(second.getString(0)).isEqualTo("apn1");
+        assertThat(second.getType(1)).isEqualTo(Cursor.FIELD_TYPE_INTEGER);
+    }
+
+    @Test
+    public void get_staleAfterCarriersWrite() {
+        mCache.put(key(0), 1, null, result(1));
+        assertThat(mCache.get(key(0), 2)).isNull();
+        // The stale result is dropped, not just skipped.
+        assertThat(mCache.get(key(0), 1)).isNull();
+    }
+
+    @Test
+    public void get_staleAfterSimChangeOnlyIfSimDependent() {
+        mCache.put(key(0), 1, mCache.getSimGeneration(), result(1));
+        mCache.put(key(1), 1, null, result(1));
+
+        mCache.onSimChanged();
+        assertThat(mCache.get(key(0), 1)).isNull();
+        assertThat(mCache.get(key(1), 1)).isNotNull();
+    }
+
+    @Test
+    public void put_simChangeDuringQueryInvalidatesResult() {
+        long simGeneration = mCache.getSimGeneration();
+        mCache.onSimChanged();
+        mCache.put(key(0), 1, simGeneration, result(1));
+        assertThat(mCache.get(key(0), 1)).isNull();
+    }
+
+    @Test
+    public void key_distinguishesArguments() {
+        assertThat(key(0)).isNotEqualTo(key(1));
+        assertThat(ApnQueryCache.key(MATCH, SUB_ID, null, "a", null, null, 0))
+                .isNotEqualTo(ApnQueryCache.key(MATCH, SUB_ID, null, null, new String[] {"a"},
+                        null, 0));
+        assertThat(ApnQueryCache.key(MATCH, SUB_ID, new String[] {"a,b"}, null, null, null, 0))
+                .isNotEqualTo(ApnQueryCache.key(MATCH, SUB_ID, new String[] {"a", "b"}, null,
+                        null, null, 0));
+        assertThat(ApnQueryCache.key(MATCH, SUB_ID, null, null, null, null, 0))
+                .isNotEqualTo(ApnQueryCache.key(MATCH, SUB_ID, null, "null", null, null, 0));
+    }
+
+    @Test
+    public void put_largeResultNotCached() {
+        Cursor large = result(ApnQueryCache.MAX_ROWS + 1);
+        assertThat(mCache.put(key(0), 1, null, large)).isSameInstanceAs(large);
+        assertThat(mCache.get(key(0), 1)).isNull();
+    }
+
+    @Test
+    public void dump_reportsHitsAndMisses() {
+        mCache.get(key(0), 1);
+        mCache.put(key(0), 1, null, result(1));
+        mCache.get(key(0), 1);
+        mCache.get(key(0), 1);
+
+        StringWriter sw = new StringWriter();
+        mCache.dump(new IndentingPrintWriter(sw, "  "));
+        assertThat(sw.toString()).contains("entries=1 hits=2 misses=1 stale=0 hitRate=66%");
+    }
+}
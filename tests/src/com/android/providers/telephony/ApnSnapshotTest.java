@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.provider.Telephony.Carriers;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public final class ApnSnapshotTest {
+    private static final String FINGERPRINT = "/system/etc/apns-conf.xml:1234:build";
+
+    private File mDir;
+    private ApnSnapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ApnSnapshotTest");
+        mDir.mkdirs();
+        mSnapshot = new ApnSnapshot(mDir);
+        mSnapshot.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mSnapshot.delete();
+        mDir.delete();
+    }
+
+    private static List<ContentValues> rows() {
+        ContentValues first = new ContentValues();
+        first.put(Carriers.NUMERIC, "310260");
+        first.put(Carriers.NAME, "T-Mobile US");
+        first.put(Carriers.APN, "fast.t-mobile.com");
+        first.put(Carriers.CARRIER_ID, 1);
+        first.put(Carriers.CARRIER_ENABLED, true);
+        first.putNull(Carriers.USER);
+
+        ContentValues second = new ContentValues();
+        second.put(Carriers.NUMERIC, "");
+        second.put(Carriers.NAME, "été");
+        second.put(Carriers.CARRIER_ID, 1839);
+        second.put(Carriers.USER_VISIBLE, false);
+        return Arrays.asList(first, second);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        List<ContentValues> rows = rows();
+        assertTrue(mSnapshot.save(FINGERPRINT, rows));
+
+        List<ContentValues> loaded = new ApnSnapshot(mDir).load(FINGERPRINT);
+        assertEquals(rows, loaded);
+        // Types are kept.
+        assertEquals(Integer.valueOf(1), loaded.get(0).getAsInteger(Carriers.CARRIER_ID));
+        assertTrue(loaded.get(0).get(Carriers.CARRIER_ENABLED) instanceof Boolean);
+        assertTrue(loaded.get(0).containsKey(Carriers.USER));
+        assertNull(loaded.get(0).get(Carriers.USER));
+    }
+
+    @Test
+    public void testFingerprintMismatch() {
+        assertTrue(mSnapshot.save(FINGERPRINT, rows()));
+        assertNull(mSnapshot.load(FINGERPRINT + "changed"));
+    }
+
+    @Test
+    public void testMissingSnapshot() {
+        assertNull(mSnapshot.load(FINGERPRINT));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        assertTrue(mSnapshot.save(FINGERPRINT, rows()));
+        File file = new File(mDir, ApnSnapshot.FILE_NAME);
+        long length = file.length();
+        // Keep the header but cut the rows short.
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.getChannel().truncate(length - 8);
+        }
+        assertNull(mSnapshot.load(FINGERPRINT));
+    }
+}
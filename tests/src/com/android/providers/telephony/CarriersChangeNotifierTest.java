@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Telephony.Carriers;
+import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class CarriersChangeNotifierTest {
+    private final List<Uri> mSent = new ArrayList<>();
+    private CarriersChangeNotifier mNotifier;
+
+    @Before
+    public void setUp() {
+        mNotifier = new CarriersChangeNotifier(Carriers.CONTENT_URI,
+                new Handler(Looper.getMainLooper()), 0, mSent::add);
+    }
+
+    @Test
+    public void onChange_notifiesRightAwayWithoutWindow() {
+        mNotifier.onChange(5, 1);
+        assertThat(mSent).hasSize(1);
+        Uri uri = mSent.get(0);
+        assertThat(uri.getPath()).isEqualTo(Carriers.CONTENT_URI.getPath());
+        assertThat(uri.getQueryParameter(CarriersChangeNotifier.QUERY_PARAMETER_ROW_IDS))
+                .isEqualTo("5");
+        assertThat(uri.getQueryParameter(CarriersChangeNotifier.QUERY_PARAMETER_SUB_IDS))
+                .isEqualTo("1");
+    }
+
+    @Test
+    public void onChangeDeferred_coalescedUntilFlush() {
+        mNotifier.onChangeDeferred(7, 1);
+        mNotifier.onChangeDeferred(3, 2);
+        mNotifier.onChangeDeferred(7, 1);
+        assertThat(mSent).isEmpty();
+
+        mNotifier.flush();
+        assertThat(mSent).hasSize(1);
+        assertThat(mSent.get(0).getQueryParameter(CarriersChangeNotifier.QUERY_PARAMETER_ROW_IDS))
+                .isEqualTo("3,7");
+        assertThat(mSent.get(0).getQueryParameter(CarriersChangeNotifier.QUERY_PARAMETER_SUB_IDS))
+                .isEqualTo("1,2");
+
+        // Nothing left to send.
+        mNotifier.flush();
+        assertThat(mSent).hasSize(1);
+
+        StringWriter sw = new StringWriter();
+        mNotifier.dump(new IndentingPrintWriter(sw, "  "));
+        assertThat(sw.toString()).contains("changes=3 sent=1 coalesced=2");
+    }
+
+    @Test
+    public void onChange_unknownRowOrSubLeavesParameterOut() {
+        mNotifier.onChangeDeferred(7, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        mNotifier.onChangeDeferred(-1, 1);
+        mNotifier.flush();
+        assertThat(mSent.get(0)).isEqualTo(Carriers.CONTENT_URI);
+    }
+
+    @Test
+    public void onChange_tooManyRows() {
+        for (int i = 0; i <= CarriersChangeNotifier.MAX_ROW_IDS; i++) {
+            mNotifier.onChangeDeferred(i, 1);
+        }
+        mNotifier.flush();
+        assertThat(mSent.get(0).getQueryParameter(CarriersChangeNotifier.QUERY_PARAMETER_ROW_IDS))
+                .isNull();
+    }
+
+    @Test
+    public void onChange_collectedDuringWindow() {
+        mNotifier.setWindowMs(60_000);
+        mNotifier.onChange(1, 1);
+        mNotifier.onChange(2, 1);
+        assertThat(mSent).isEmpty();
+
+        // A flush, e.g. at the end of a transaction, sends the changes early.
+        mNotifier.flush();
+        assertThat(mSent).hasSize(1);
+        assertThat(mSent.get(0).getQueryParameter(CarriersChangeNotifier.QUERY_PARAMETER_ROW_IDS))
+                .isEqualTo("1,2");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+@RunWith(JUnit4.class)
+public class EventBufferTest {
+    private static final EventBuffer.Event EVENT_SET =
+            new EventBuffer.Event("set", "apnId", "explicit");
+    private static final EventBuffer.Event EVENT_DONE = new EventBuffer.Event("done");
+
+    private final EventBuffer mEvents = new EventBuffer(3, "EventBufferTest");
+
+    private String dump() {
+        StringWriter sw = new StringWriter();
+        mEvents.dump(new IndentingPrintWriter(sw, "  "));
+        return sw.toString();
+    }
+
+    @Test
+    public void dump_formatsEvents() {
+        mEvents.log(EVENT_SET, 2, 5, 1);
+        mEvents.log(EVENT_DONE, "detail");
+
+        String dump = dump();
+        assertThat(dump).contains(" - set subId=2 apnId=5 explicit=1\n");
+        assertThat(dump).contains(" - done detail\n");
+        assertThat(dump.indexOf("set")).isLessThan(dump.indexOf("done"));
+    }
+
+    @Test
+    public void log_keepsTheNewestEvents() {
+        for (int i = 0; i < 5; i++) {
+            mEvents.log(EVENT_SET, SubscriptionManager.INVALID_SUBSCRIPTION_ID, i, 0);
+        }
+
+        assertThat(mEvents.size()).isEqualTo(3);
+        String dump = dump();
+        assertThat(dump).contains("(2 older events dropped)");
+        assertThat(dump).doesNotContain("apnId=1 ");
+        assertThat(dump).contains(" - set apnId=2 explicit=0\n");
+        assertThat(dump.indexOf("apnId=2")).isLessThan(dump.indexOf("apnId=4"));
+    }
+
+    @Test
+    public void log_formatsDetailOnlyWhenDumped() {
+        int[] formatted = new int[1];
+        Object detail = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "lazy";
+            }
+        };
+
+        mEvents.log(EVENT_DONE, detail);
+        assertThat(formatted[0]).isEqualTo(0);
+
+        assertThat(dump()).contains("done lazy");
+        assertThat(formatted[0]).isEqualTo(1);
+    }
+
+    @Test
+    public void dump_survivesBrokenDetail() {
+        mEvents.log(EVENT_DONE, new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        mEvents.log(EVENT_SET, 1, 2, 3);
+
+        assertThat(dump()).contains("set subId=1");
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Sms;
+import android.util.IndentingPrintWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class MessagingChangeNotifierTest {
+    private static final Uri SMS_1 = Uri.withAppendedPath(Sms.CONTENT_URI, "1");
+    private static final Uri SMS_2 = Uri.withAppendedPath(Sms.CONTENT_URI, "2");
+
+    private final Context mContext = mock(Context.class);
+    private final List<Uri> mNotified = new ArrayList<>();
+    private final List<Uri> mBroadcastUris = new ArrayList<>();
+    private final List<Collection<String>> mBroadcastPackages = new ArrayList<>();
+    private MessagingChangeNotifier mNotifier;
+
+    @Before
+    public void setUp() {
+        mNotifier = new MessagingChangeNotifier(new Handler(Looper.getMainLooper()), 0,
+                new MessagingChangeNotifier.Sender() {
+                    @Override
+                    public void notifyChange(Context context, Uri uri) {
+                        mNotified.add(uri);
+                    }
+
+                    @Override
+                    public void notifyDefaultSmsApp(Context context, Uri uri,
+                            Collection<String> callingPackages) {
+                        mBroadcastUris.add(uri);
+                        mBroadcastPackages.add(new ArrayList<>(callingPackages));
+                    }
+                });
+    }
+
+    private void notifySmsChange(Uri uri, String callingPackage) {
+        mNotifier.notifyChange(mContext, uri);
+        mNotifier.notifyChange(mContext, MmsSms.CONTENT_URI);
+        mNotifier.notifyDefaultSmsApp(mContext, uri, callingPackage);
+    }
+
+    @Test
+    public void notifyChange_sentRightAwayWithoutWindow() {
+        notifySmsChange(SMS_1, "foo");
+
+        assertThat(mNotified).containsExactly(SMS_1, MmsSms.CONTENT_URI).inOrder();
+        assertThat(mBroadcastUris).containsExactly(SMS_1);
+        assertThat(mBroadcastPackages.get(0)).containsExactly("foo");
+    }
+
+    @Test
+    public void notifyChange_coalescedUntilEndOfBatch() {
+        assertThat(mNotifier.beginBatch()).isTrue();
+        // Nested batches are ended by the outer one.
+        assertThat(mNotifier.beginBatch()).isFalse();
+        notifySmsChange(SMS_1, "foo");
+        notifySmsChange(SMS_1, "bar");
+        assertThat(mNotified).isEmpty();
+
+        mNotifier.endBatch();
+        assertThat(mNotified).containsExactly(SMS_1, MmsSms.CONTENT_URI).inOrder();
+        assertThat(mBroadcastUris).containsExactly(SMS_1);
+        assertThat(mBroadcastPackages.get(0)).containsExactly("foo", "bar");
+
+        StringWriter sw = new StringWriter();
+        mNotifier.dump(new IndentingPrintWriter(sw, "  "));
+        assertThat(sw.toString()).contains("changes=4 sent=2 suppressed=2 broadcastRequests=2"
+                + " broadcasts=1 broadcastsSuppressed=1");
+    }
+
+    @Test
+    public void notifyChange_batchKeptFromOtherThreads() throws Exception {
+        mNotifier.beginBatch();
+        notifySmsChange(SMS_1, "foo");
+
+        // Another thread, whose change is sent right away.
+        Thread other = new Thread(() -> notifySmsChange(SMS_2, "bar"));
+        other.start();
+        other.join();
+        assertThat(mNotified).containsExactly(SMS_2, MmsSms.CONTENT_URI).inOrder();
+        assertThat(mBroadcastUris).containsExactly(SMS_2);
+        // Nor is the batch sent by the end of a window.
+        mNotifier.flush();
+        assertThat(mNotified).doesNotContain(SMS_1);
+
+        mNotifier.endBatch();
+        assertThat(mNotified).containsExactly(SMS_2, MmsSms.CONTENT_URI, SMS_1,
+                MmsSms.CONTENT_URI).inOrder();
+        assertThat(mBroadcastUris).containsExactly(SMS_2, SMS_1).inOrder();
+        assertThat(mBroadcastPackages.get(1)).containsExactly("foo");
+    }
+
+    @Test
+    public void notifyDefaultSmsApp_mixedUrisLeaveUriOut() {
+        mNotifier.beginBatch();
+        notifySmsChange(SMS_1, "foo");
+        notifySmsChange(SMS_2, "foo");
+        mNotifier.endBatch();
+
+        assertThat(mNotified).containsExactly(SMS_1, MmsSms.CONTENT_URI, SMS_2).inOrder();
+        assertThat(mBroadcastUris).hasSize(1);
+        assertThat(mBroadcastUris.get(0)).isNull();
+    }
+
+    @Test
+    public void notifyChange_collectedDuringWindow() {
+        mNotifier.setWindowMs(60_000);
+        notifySmsChange(SMS_1, "foo");
+        notifySmsChange(SMS_1, "foo");
+        assertThat(mNotified).isEmpty();
+
+        mNotifier.flush();
+        assertThat(mNotified).containsExactly(SMS_1, MmsSms.CONTENT_URI).inOrder();
+        assertThat(mBroadcastUris).hasSize(1);
+
+        // Nothing left to send.
+        mNotifier.flush();
+        assertThat(mNotified).hasSize(2);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MigrationEngineTest {
+    private static final MigrationEngine.TableCopy COPY =
+            new MigrationEngine.TableCopy("old", "new")
+                    .strings("name", "missing")
+                    .ints("count")
+                    .blobs("rules")
+                    .nonEmptyString("card", "icc")
+                    .orderBy("_id");
+
+    private SQLiteDatabase mDb;
+    private MigrationEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE old (_id INTEGER PRIMARY KEY, name TEXT, count INTEGER,"
+                + " rules BLOB, icc TEXT)");
+        mDb.execSQL("CREATE TABLE new (_id INTEGER PRIMARY KEY, name TEXT DEFAULT IP,"
+                + " count INTEGER DEFAULT 7, rules BLOB, card TEXT NOT NULL, missing TEXT,"
+                + " extra INTEGER DEFAULT -1, UNIQUE (name, count))");
+        mEngine = new MigrationEngine(4 << 16);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void copy_appliesDefaultsLikeTheRowByRowCopy() {
+        mDb.execSQL("INSERT INTO old (_id, name, count, rules, icc) VALUES"
+                + " (5, 'a', 1, x'01', 'icc1'),"
+                + " (3, NULL, '', NULL, 'icc2'),"
+                + " (9, 'b', NULL, NULL, '')");
+
+        assertThat(mEngine.copy(mDb, COPY)).isTrue();
+
+        try (Cursor c = mDb.rawQuery(
+                "SELECT _id, name, count, rules, card, extra FROM new ORDER BY _id", null)) {
+            // The row with an empty icc has no card id and is skipped, like a failed insert.
+            assertThat(c.getCount()).isEqualTo(2);
+            c.moveToNext();
+            // Rows get new ids in the order given.
+            assertThat(c.getLong(0)).isEqualTo(1);
+            assertThat(c.getString(1)).isEqualTo("IP");
+            assertThat(c.getType(2)).isEqualTo(Cursor.FIELD_TYPE_INTEGER);
+            assertThat(c.getInt(2)).isEqualTo(7);
+            assertThat(c.isNull(3)).isTrue();
+            assertThat(c.getString(4)).isEqualTo("icc2");
+            assertThat(c.getInt(5)).isEqualTo(-1);
+            c.moveToNext();
+            assertThat(c.getString(1)).isEqualTo("a");
+            assertThat(c.getInt(2)).isEqualTo(1);
+            assertThat(c.getBlob(3)).isEqualTo(new byte[] {1});
+            assertThat(c.getString(4)).isEqualTo("icc1");
+        }
+    }
+
+    @Test
+    public void copy_skipsConflictingRows() {
+        mDb.execSQL("INSERT INTO old (name, count, icc) VALUES ('a', 1, 'icc1'), ('a', 1, 'icc2')");
+
+        assertThat(mEngine.copy(mDb, COPY)).isTrue();
+
+        assertThat(DatabaseUtils.queryNumEntries(mDb, "new")).isEqualTo(1);
+    }
+
+    @Test
+    public void copy_fallsBackOnValuesOnlyJavaConverts() {
+        mDb.execSQL("INSERT INTO old (name, count, icc) VALUES ('a', 'not a number', 'icc1')");
+        assertThat(mEngine.copy(mDb, COPY)).isFalse();
+
+        mDb.execSQL("UPDATE old SET count = 4294967296");
+        assertThat(mEngine.copy(mDb, COPY)).isFalse();
+
+        mDb.execSQL("UPDATE old SET count = 1, rules = 'text'");
+        assertThat(mEngine.copy(mDb, COPY)).isFalse();
+
+        assertThat(DatabaseUtils.queryNumEntries(mDb, "new")).isEqualTo(0);
+    }
+
+    @Test
+    public void copy_fallsBackIfTargetLacksAColumn() {
+        mDb.execSQL("CREATE TABLE narrow (_id INTEGER PRIMARY KEY, name TEXT)");
+        assertThat(mEngine.copy(mDb, new MigrationEngine.TableCopy("old", "narrow")
+                .strings("name").ints("count"))).isFalse();
+    }
+
+    @Test
+    public void defaultValue() {
+        assertThat(MigrationEngine.defaultValue(null)).isEqualTo("NULL");
+        assertThat(MigrationEngine.defaultValue("IP")).isEqualTo("'IP'");
+        assertThat(MigrationEngine.defaultValue("NULL")).isEqualTo("(NULL)");
+        assertThat(MigrationEngine.defaultValue("-1")).isEqualTo("(-1)");
+        assertThat(MigrationEngine.defaultValue("''")).isEqualTo("('')");
+    }
+
+    @Test
+    public void summary_listsStepsAndCopies() {
+        mDb.execSQL("INSERT INTO old (name, count, icc) VALUES ('a', 1, 'icc1')");
+        mEngine.copy(mDb, COPY);
+        assertThat(mEngine.stepDone(5 << 16 | 6)).isEqualTo(5 << 16 | 6);
+        mEngine.noteJavaCopy(COPY);
+        mEngine.stepDone(6 << 16 | 6);
+
+        String summary = mEngine.summary();
+        assertThat(summary).contains("4->5 ");
+        assertThat(summary).contains("old->new=sql(");
+        assertThat(summary).contains("5->6 ");
+        assertThat(summary).contains("old->new=java");
+    }
+}
@@ -35,6 +35,7 @@ public class MmsProviderTestable extends MmsProvider {
     public boolean onCreate() {
         Log.d(TAG, "onCreate called: mDbHelper = new InMemoryMmsProviderDbHelper()");
         mOpenHelper = new InMemoryMmsProviderDbHelper();
+        MessagingChangeNotifier.getInstance().setWindowMs(0);
         return true;
     }
 
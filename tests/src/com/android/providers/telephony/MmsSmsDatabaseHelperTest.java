@@ -157,6 +157,15 @@ public class MmsSmsDatabaseHelperTest {
                     + " columns: " + Arrays.toString(upgradedColumns));
             assertTrue(Arrays.asList(upgradedColumns).contains("sub_id"));
         }
+
+        try (Cursor cursor = db.query(SmsProvider.TABLE_SMS, null, null, null,
+                null, null, null)) {
+            assertNotNull(cursor);
+            upgradedColumns = cursor.getColumnNames();
+            Log.d(TAG, "Table: " + SmsProvider.TABLE_SMS
+                    + " columns: " + Arrays.toString(upgradedColumns));
+            assertTrue(Arrays.asList(upgradedColumns).contains(SmsProvider.COLUMN_OTP_EXPIRY));
+        }
     }
 
     /**
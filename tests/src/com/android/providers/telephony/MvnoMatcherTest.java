@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.telephony.TelephonyManager;
+import android.telephony.data.ApnSetting;
+
+import com.android.internal.telephony.uicc.IccRecords;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Tests that {@link MvnoMatcher} gives the same answers as
+ * {@link TelephonyManager#matchesCurrentSimOperator(String, int, String)} does in the phone
+ * process for each MVNO type, by comparing each result with {@link IccRecords#isMvnoMatched}.
+ */
+public class MvnoMatcherTest {
+    private static final String MCCMNC = "310260";
+    private static final String SPN = "TestSpn";
+    private static final String IMSI = "310260123456789";
+    private static final String GID1 = "A1B2C3";
+    private static final String ICCID = "8901260123456789012";
+    private static final int SUB_ID = 1;
+
+    private static final MvnoMatcher.SimSnapshot SIM =
+            new MvnoMatcher.SimSnapshot(MCCMNC, SPN, IMSI, GID1, ICCID);
+
+    @Mock
+    private TelephonyManager mTelephonyManager;
+
+    private MvnoMatcher mMvnoMatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        doReturn(SPN).when(mTelephonyManager).getSimOperatorName();
+        doReturn(IMSI).when(mTelephonyManager).getSubscriberId();
+        doReturn(GID1).when(mTelephonyManager).getGroupIdLevel1();
+        doReturn(ICCID).when(mTelephonyManager).getSimSerialNumber();
+        mMvnoMatcher = new MvnoMatcher();
+    }
+
+    /**
+     * @return whether {@link MvnoMatcher} matches, after checking that the framework gives the
+     * same answer: {@link TelephonyManager#matchesCurrentSimOperator} compares the SIM operator,
+     * then asks the SIM records in the phone process.
+     */
+    private static boolean matches(MvnoMatcher.SimSnapshot sim, String numeric, int mvnoType,
+            String mvnoMatchData) {
+        boolean matches = MvnoMatcher.matches(sim, numeric, mvnoType, mvnoMatchData);
+        boolean frameworkMatches = sim.mccmnc.equals(numeric)
+                && iccRecords(sim).isMvnoMatched(mvnoType, mvnoMatchData);
+        assertWithMessage("numeric=" + numeric + " type=" + mvnoType + " data=" + mvnoMatchData)
+                .that(matches).isEqualTo(frameworkMatches);
+        return matches;
+    }
+
+    /**
+     * @return SIM records of the framework holding the records of {@code sim}.
+     */
+    private static IccRecords iccRecords(MvnoMatcher.SimSnapshot sim) {
+        IccRecords records = mock(IccRecords.class, CALLS_REAL_METHODS);
+        doReturn(sim.spn).when(records).getServiceProviderName();
+        doReturn(sim.spn).when(records).getServiceProviderNameWithBrandOverride();
+        doReturn(sim.imsi).when(records).getIMSI();
+        doReturn(sim.gid1).when(records).getGid1();
+        doReturn(sim.iccid).when(records).getIccId();
+        doReturn(sim.iccid).when(records).getFullIccId();
+        return records;
+    }
+
+    @Test
+    public void matches_differentNumeric() {
+        assertThat(matches(SIM, "310410", ApnSetting.MVNO_TYPE_SPN, SPN)).isFalse();
+        assertThat(matches(SIM, "", ApnSetting.MVNO_TYPE_SPN, SPN)).isFalse();
+        assertThat(matches(SIM, null, ApnSetting.MVNO_TYPE_SPN, SPN)).isFalse();
+    }
+
+    @Test
+    public void matches_unknownType() {
+        // MNO APNs have no MVNO type and never match as MVNO.
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_UNKNOWN, ""))
+                .isFalse();
+    }
+
+    @Test
+    public void matches_spn() {
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_SPN, SPN)).isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_SPN, "testspn"))
+                .isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_SPN, "TestSp"))
+                .isFalse();
+    }
+
+    @Test
+    public void matches_imsi() {
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, IMSI)).isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, "3102601"))
+                .isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, "310260x23xxxxxx"))
+                .isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, "310260X2"))
+                .isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, "310260x33"))
+                .isFalse();
+        // Longer than the IMSI.
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, IMSI + "x"))
+                .isFalse();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, "")).isFalse();
+    }
+
+    @Test
+    public void matches_gid() {
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_GID, "A1")).isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_GID, "a1b2")).isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_GID, GID1)).isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_GID, "B2")).isFalse();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_GID, GID1 + "00"))
+                .isFalse();
+    }
+
+    @Test
+    public void matches_iccid() {
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_ICCID, "890126"))
+                .isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_ICCID,
+                "8944,890126")).isTrue();
+        assertThat(matches(SIM, MCCMNC, ApnSetting.MVNO_TYPE_ICCID, "8944,8945"))
+                .isFalse();
+    }
+
+    @Test
+    public void matches_missingSimRecords() {
+        MvnoMatcher.SimSnapshot sim = new MvnoMatcher.SimSnapshot(MCCMNC, null, null, null, null);
+        assertThat(matches(sim, MCCMNC, ApnSetting.MVNO_TYPE_SPN, SPN)).isFalse();
+        assertThat(matches(sim, MCCMNC, ApnSetting.MVNO_TYPE_IMSI, "310260"))
+                .isFalse();
+        assertThat(matches(sim, MCCMNC, ApnSetting.MVNO_TYPE_GID, "A1")).isFalse();
+        assertThat(matches(sim, MCCMNC, ApnSetting.MVNO_TYPE_ICCID, "89"))
+                .isFalse();
+    }
+
+    @Test
+    public void getSnapshot_cachedUntilInvalidated() {
+        MvnoMatcher.SimSnapshot sim = mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, MCCMNC);
+        assertThat(sim.spn).isEqualTo(SPN);
+        assertThat(sim.imsi).isEqualTo(IMSI);
+        assertThat(sim.gid1).isEqualTo(GID1);
+        assertThat(sim.iccid).isEqualTo(ICCID);
+        assertThat(mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, MCCMNC))
+                .isSameInstanceAs(sim);
+        verify(mTelephonyManager, times(1)).getSubscriberId();
+
+        mMvnoMatcher.invalidate();
+        mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, MCCMNC);
+        verify(mTelephonyManager, times(2)).getSubscriberId();
+    }
+
+    @Test
+    public void getSnapshot_reloadedWhenOperatorChanges() {
+        mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, MCCMNC);
+        MvnoMatcher.SimSnapshot sim = mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, "310410");
+        assertThat(sim.mccmnc).isEqualTo("310410");
+        verify(mTelephonyManager, times(2)).getSubscriberId();
+    }
+
+    @Test
+    public void getSnapshot_invalidatedWhileReadingIsNotCached() {
+        doAnswer(invocation -> {
+            // The SIM changes while its records are read.
+            mMvnoMatcher.invalidate();
+            return IMSI;
+        }).when(mTelephonyManager).getSubscriberId();
+        mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, MCCMNC);
+
+        doReturn(IMSI).when(mTelephonyManager).getSubscriberId();
+        mMvnoMatcher.getSnapshot(mTelephonyManager, SUB_ID, MCCMNC);
+        verify(mTelephonyManager, times(2)).getSubscriberId();
+    }
+}
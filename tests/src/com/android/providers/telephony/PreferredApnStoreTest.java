@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.Carriers;
+import android.util.ArrayMap;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(JUnit4.class)
+public final class PreferredApnStoreTest {
+    private static final String CARRIERS_TABLE = "carriers";
+    private static final List<String> UNIQUE_FIELDS = Arrays.asList(Carriers.NUMERIC,
+            Carriers.APN);
+    private static final int SUB_ID = 1;
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        clearSharedPreferences();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(TelephonyProvider.getStringForCarrierTableCreation(CARRIERS_TABLE));
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        clearSharedPreferences();
+    }
+
+    private void clearSharedPreferences() {
+        mContext.getSharedPreferences(PreferredApnStore.PREF_FILE_APN, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mContext.getSharedPreferences(PreferredApnStore.PREF_FILE_FULL_APN,
+                Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    private PreferredApnStore newStore() {
+        return new PreferredApnStore(() -> mContext, UNIQUE_FIELDS);
+    }
+
+    private long insertApn(String apn) {
+        ContentValues values = new ContentValues();
+        values.put(Carriers.NUMERIC, "310260");
+        values.put(Carriers.MCC, "310");
+        values.put(Carriers.MNC, "260");
+        values.put(Carriers.APN, apn);
+        return mDb.insert(CARRIERS_TABLE, null, values);
+    }
+
+    private static Map<String, String> apn(String apn) {
+        Map<String, String> values = new ArrayMap<>();
+        values.put(Carriers.NUMERIC, "310260");
+        values.put(Carriers.APN, apn);
+        return values;
+    }
+
+    @Test
+    public void testPersistedAcrossInstances() {
+        PreferredApnStore store = newStore();
+        assertEquals(PreferredApnStore.INVALID_APN_ID, store.getApnId(mDb, SUB_ID));
+        store.setApnId(mDb, SUB_ID, 7, true);
+        store.setApn(mDb, SUB_ID, apn("a"), 1);
+
+        PreferredApnStore reloaded = newStore();
+        assertEquals(7, reloaded.getApnId(mDb, SUB_ID));
+        assertEquals(apn("a"), reloaded.getApn(mDb, SUB_ID));
+        assertArrayEquals(new int[] {SUB_ID}, reloaded.getSubIdsWithApnId(mDb));
+    }
+
+    @Test
+    public void testClearApnIdsKeepsApn() {
+        PreferredApnStore store = newStore();
+        store.setApnId(mDb, SUB_ID, 7, true);
+        store.setApn(mDb, SUB_ID, apn("a"), 1);
+        store.setApnId(mDb, SUB_ID + 1, 8, true);
+
+        store.clearApnIds(mDb);
+        assertEquals(PreferredApnStore.INVALID_APN_ID, store.getApnId(mDb, SUB_ID));
+        assertEquals(apn("a"), store.getApn(mDb, SUB_ID));
+        assertEquals(0, store.getSubIdsWithApnId(mDb).length);
+        assertEquals(apn("a"), newStore().getApn(mDb, SUB_ID));
+
+        store.clearAll(mDb);
+        assertNull(newStore().getApn(mDb, SUB_ID));
+    }
+
+    @Test
+    public void testVerifyApnIds() {
+        long unchanged = insertApn("a");
+        long changed = insertApn("b");
+        PreferredApnStore store = newStore();
+        store.setApnId(mDb, SUB_ID, unchanged, true);
+        store.setApn(mDb, SUB_ID, apn("a"), 1);
+        store.setApnId(mDb, SUB_ID + 1, changed, true);
+        store.setApn(mDb, SUB_ID + 1, apn("b"), 1);
+
+        ContentValues values = new ContentValues();
+        values.put(Carriers.APN, "c");
+        mDb.update(CARRIERS_TABLE, values, Carriers._ID + "=" + changed, null);
+
+        assertEquals(1, store.verifyApnIds(mDb, CARRIERS_TABLE));
+        assertEquals(unchanged, store.getApnId(mDb, SUB_ID));
+        assertEquals(PreferredApnStore.INVALID_APN_ID, store.getApnId(mDb, SUB_ID + 1));
+        // The saved values are kept to find the APN again.
+        assertEquals(apn("b"), store.getApn(mDb, SUB_ID + 1));
+    }
+
+    @Test
+    public void testMigrateFromSharedPreferences() {
+        mContext.getSharedPreferences(PreferredApnStore.PREF_FILE_APN, Context.MODE_PRIVATE)
+                .edit().putLong(PreferredApnStore.PREF_KEY_APN_ID + SUB_ID, 5).commit();
+        SharedPreferences fullApn = mContext.getSharedPreferences(
+                PreferredApnStore.PREF_FILE_FULL_APN, Context.MODE_PRIVATE);
+        fullApn.edit()
+                .putString(Carriers.NUMERIC + SUB_ID, "310260")
+                .putString(Carriers.APN + SUB_ID, "a")
+                .putString("version" + SUB_ID, "1")
+                .commit();
+
+        PreferredApnStore store = newStore();
+        assertEquals(5, store.getApnId(mDb, SUB_ID));
+        assertEquals(apn("a"), store.getApn(mDb, SUB_ID));
+        assertTrue(fullApn.getAll().isEmpty());
+        assertEquals(5, newStore().getApnId(mDb, SUB_ID));
+    }
+}
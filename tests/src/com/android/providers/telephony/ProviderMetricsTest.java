@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+@RunWith(JUnit4.class)
+public class ProviderMetricsTest {
+    @Test
+    public void histogram_bucketsHoldTheirValues() {
+        for (long us = 0; us < 100_000; us++) {
+            int bucket = ProviderMetrics.Histogram.bucketOf(us);
+            assertThat(us).isAtMost(ProviderMetrics.Histogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                assertThat(us).isGreaterThan(ProviderMetrics.Histogram.upperBoundOf(bucket - 1));
+            }
+        }
+        assertThat(ProviderMetrics.Histogram.bucketOf(Long.MAX_VALUE))
+                .isEqualTo(ProviderMetrics.Histogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void histogram_percentiles() {
+        ProviderMetrics.Histogram histogram = new ProviderMetrics.Histogram();
+        assertThat(histogram.percentile(50)).isEqualTo(0L);
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+
+        // Within the 25% of a bucket.
+        assertThat(histogram.percentile(50)).isAtLeast(500L);
+        assertThat(histogram.percentile(50)).isAtMost(625L);
+        assertThat(histogram.percentile(99)).isAtLeast(990L);
+        // Capped by the longest value recorded.
+        assertThat(histogram.percentile(99)).isAtMost(1000L);
+        assertThat(histogram.percentile(100)).isEqualTo(1000L);
+        assertThat(histogram.getMax()).isEqualTo(1000L);
+    }
+
+    @Test
+    public void dump_perOperationAndCaller() {
+        ProviderMetrics metrics = new ProviderMetrics("TestProvider");
+        metrics.record(ProviderMetrics.OP_QUERY, 7, "com.example", metrics.start(), 3);
+        metrics.record(ProviderMetrics.OP_QUERY, 7, "com.example", metrics.start(), 2);
+        metrics.record(ProviderMetrics.OP_DELETE, 2, null, metrics.start(),
+                ProviderMetrics.FAILED);
+
+        StringWriter sw = new StringWriter();
+        metrics.dump(new IndentingPrintWriter(sw, "  "));
+        String dump = sw.toString();
+        assertThat(dump).contains("TestProvider metrics");
+        assertThat(dump).contains("query/7: calls=2 errors=0 rows=5 ");
+        assertThat(dump).contains("delete/2: calls=1 errors=1 rows=0 ");
+        assertThat(dump).contains("com.example: calls=2 ");
+        assertThat(dump).contains("unknown: calls=1 ");
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class SimInfoSnapshotTest {
+    private static final String TABLE = "siminfo";
+
+    private SQLiteDatabase mDb;
+    private SimInfoSnapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "icc_id TEXT NOT NULL, sim_id INTEGER DEFAULT -1, mcc_string TEXT,"
+                + "display_name TEXT, card_id BLOB)");
+        mDb.execSQL("INSERT INTO " + TABLE + " (icc_id, sim_id, mcc_string, display_name)"
+                + " VALUES ('8901', 0, '310', 'Work')");
+        mDb.execSQL("INSERT INTO " + TABLE + " (icc_id, sim_id, mcc_string, display_name)"
+                + " VALUES ('8902', -1, '001', NULL)");
+        mDb.execSQL("INSERT INTO " + TABLE + " (icc_id, sim_id, mcc_string, display_name)"
+                + " VALUES ('8903', 1, '310', 'it''s me')");
+        mSnapshot = SimInfoSnapshot.load(mDb, TABLE);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private static List<String> iccIds(Cursor c) {
+        List<String> ids = new ArrayList<>();
+        try (c) {
+            int column = c.getColumnIndexOrThrow("icc_id");
+            while (c.moveToNext()) {
+                ids.add(c.getString(column));
+            }
+        }
+        return ids;
+    }
+
+    /** Check the snapshot answers like SQLite. */
+    private void assertSameAsSql(String selection, String[] args, String sort) {
+        Cursor snapshot = mSnapshot.query(null, selection, args, sort);
+        assertThat(snapshot).isNotNull();
+        assertThat(iccIds(snapshot))
+                .containsExactlyElementsIn(iccIds(mDb.query(TABLE, null, selection, args,
+                        null, null, sort)))
+                .inOrder();
+    }
+
+    @Test
+    public void query_matchesSql() {
+        assertSameAsSql(null, null, null);
+        assertSameAsSql("sim_id>=?", new String[] {"0"}, "sim_id DESC");
+        // Numeric text compared with an INTEGER column, a number with a TEXT column.
+        assertSameAsSql("sim_id = ? AND mcc_string=310", new String[] {"1"}, null);
+        assertSameAsSql("mcc_string = 1", null, null);
+        assertSameAsSql("mcc_string = '001'", null, null);
+        assertSameAsSql("display_name IS NULL", null, null);
+        assertSameAsSql("display_name IS NOT NULL and display_name != 'Work'", null, null);
+        assertSameAsSql("display_name = 'it''s me'", null, null);
+        assertSameAsSql("sim_id <> -1", null, "mcc_string, _id desc");
+        // Comparisons with NULL never hold.
+        assertSameAsSql("display_name != ?", new String[] {"Work"}, null);
+    }
+
+    @Test
+    public void query_projection() {
+        try (Cursor c = mSnapshot.query(new String[] {"SIM_ID", "display_name"}, "_id=?",
+                new String[] {"1"}, null)) {
+            assertThat(c.getColumnNames()).asList().containsExactly("SIM_ID", "display_name")
+                    .inOrder();
+            assertThat(c.moveToFirst()).isTrue();
+            assertThat(c.getInt(0)).isEqualTo(0);
+            // Converted like a SQLite cursor does.
+            assertThat(c.getString(0)).isEqualTo("0");
+            assertThat(c.getType(1)).isEqualTo(Cursor.FIELD_TYPE_STRING);
+            assertThat(c.getCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void query_complexQueriesGoToSql() {
+        assertThat(mSnapshot.query(new String[] {"count(*)"}, null, null, null)).isNull();
+        assertThat(mSnapshot.query(new String[] {"unknown"}, null, null, null)).isNull();
+        assertThat(mSnapshot.query(null, "sim_id = 0 OR sim_id = 1", null, null)).isNull();
+        assertThat(mSnapshot.query(null, "icc_id LIKE '89%'", null, null)).isNull();
+        assertThat(mSnapshot.query(null, "sim_id IN (0, 1)", null, null)).isNull();
+        assertThat(mSnapshot.query(null, "(sim_id = 0)", null, null)).isNull();
+        assertThat(mSnapshot.query(null, "sim_id = _id", null, null)).isNull();
+        assertThat(mSnapshot.query(null, "unknown = 1", null, null)).isNull();
+        assertThat(mSnapshot.query(null, "sim_id = ?", new String[] {"0", "1"}, null)).isNull();
+        assertThat(mSnapshot.query(null, "sim_id = ?", null, null)).isNull();
+        assertThat(mSnapshot.query(null, null, null, "sim_id COLLATE NOCASE")).isNull();
+        assertThat(mSnapshot.query(null, null, null, "length(icc_id)")).isNull();
+    }
+
+    @Test
+    public void noteDirectWrite_makesSnapshotStale() {
+        InstrumentedReadWriteLock lock = new InstrumentedReadWriteLock(TABLE);
+        SimInfoSnapshot.Cache cache = new SimInfoSnapshot.Cache(TABLE, lock);
+        assertThat(iccIds(cache.query(() -> mDb, null, "sim_id=1", null, null)))
+                .containsExactly("8903");
+
+        mDb.execSQL("UPDATE " + TABLE + " SET sim_id=1 WHERE _id=1");
+        // Still served from the snapshot.
+        assertThat(iccIds(cache.query(() -> mDb, null, "sim_id=1", null, null)))
+                .containsExactly("8903");
+
+        SimInfoSnapshot.noteDirectWrite();
+        assertThat(iccIds(cache.query(() -> mDb, null, "sim_id=1", null, null)))
+                .containsExactly("8901", "8903").inOrder();
+    }
+
+    @Test
+    public void invalidate_reloadsOnNextQuery() {
+        InstrumentedReadWriteLock lock = new InstrumentedReadWriteLock(TABLE);
+        SimInfoSnapshot.Cache cache = new SimInfoSnapshot.Cache(TABLE, lock);
+        assertThat(iccIds(cache.query(() -> mDb, null, null, null, null))).hasSize(3);
+
+        lock.lockWrite();
+        try {
+            cache.invalidate();
+            mDb.execSQL("DELETE FROM " + TABLE + " WHERE _id=2");
+            // The writer reads its own writes from SQLite.
+            assertThat(cache.query(() -> mDb, null, null, null, null)).isNull();
+        } finally {
+            lock.unlockWrite();
+        }
+
+        assertThat(iccIds(cache.query(() -> mDb, null, null, null, null)))
+                .containsExactly("8901", "8903").inOrder();
+    }
+}
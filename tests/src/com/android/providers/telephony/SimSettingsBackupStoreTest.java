@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.provider.Telephony;
+import android.telephony.TelephonyManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class SimSettingsBackupStoreTest {
+    private static final String ROW_PREFIX = "ROW_";
+
+    private File mFile;
+    private SimSettingsBackupStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("sim_specific_settings", null);
+        mStore = new SimSettingsBackupStore(() -> mFile, ROW_PREFIX);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static PersistableBundle row(String iccId, int carrierId) {
+        PersistableBundle row = new PersistableBundle();
+        row.putString(Telephony.SimInfo.COLUMN_ICC_ID, iccId);
+        row.putInt(Telephony.SimInfo.COLUMN_CARRIER_ID, carrierId);
+        return row;
+    }
+
+    private static PersistableBundle backup(PersistableBundle... rows) {
+        PersistableBundle bundle = new PersistableBundle();
+        for (int i = 0; i < rows.length; i++) {
+            bundle.putPersistableBundle(ROW_PREFIX + i, rows[i]);
+        }
+        return bundle;
+    }
+
+    private void write(PersistableBundle bundle) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(mFile)) {
+            bundle.writeToStream(fos);
+        }
+    }
+
+    @Test
+    public void getCandidateRows_iccIdAndCarrierIdMatches() {
+        SimSettingsBackupStore.Backup backup = new SimSettingsBackupStore.Backup(backup(
+                row("8901", 1), row("8902", 2), row("", 1), row("8901", 3),
+                row("8904", TelephonyManager.UNKNOWN_CARRIER_ID)), ROW_PREFIX);
+
+        assertThat(backup.getRowCount()).isEqualTo(5);
+        assertThat(backup.getCandidateRows("8901", 2)).asList().containsExactly(0, 1, 3)
+                .inOrder();
+        assertThat(backup.getCandidateRows("8905", 1)).asList().containsExactly(0, 2)
+                .inOrder();
+        // The first row always is a candidate.
+        assertThat(backup.getCandidateRows(null, TelephonyManager.UNKNOWN_CARRIER_ID)).asList()
+                .containsExactly(0);
+        // Empty iccids and unknown carrier ids never match.
+        assertThat(backup.getCandidateRows("", TelephonyManager.UNKNOWN_CARRIER_ID)).asList()
+                .containsExactly(0);
+    }
+
+    @Test
+    public void getCandidateRows_emptyBackup() {
+        SimSettingsBackupStore.Backup backup =
+                new SimSettingsBackupStore.Backup(backup(), ROW_PREFIX);
+
+        assertThat(backup.getCandidateRows("8901", 1)).isEmpty();
+    }
+
+    @Test
+    public void get_parsesOnlyWhenFileChanges() throws IOException {
+        write(backup(row("8901", 1)));
+
+        SimSettingsBackupStore.Backup first = mStore.get();
+        assertThat(first).isNotNull();
+        assertThat(mStore.get()).isSameInstanceAs(first);
+
+        write(backup(row("8901", 1), row("8902", 2)));
+        // Make sure the change is seen even within the modification time granularity.
+        mFile.setLastModified(mFile.lastModified() + 1000);
+        SimSettingsBackupStore.Backup second = mStore.get();
+        assertThat(second).isNotSameInstanceAs(first);
+        assertThat(second.getRowCount()).isEqualTo(2);
+
+        mStore.invalidate();
+        assertThat(mStore.get()).isNotSameInstanceAs(second);
+    }
+
+    @Test
+    public void get_missingFile() {
+        mFile.delete();
+
+        assertThat(mStore.get()).isNull();
+    }
+}
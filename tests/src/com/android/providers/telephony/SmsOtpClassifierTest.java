@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Telephony.Sms;
+import android.view.textclassifier.TextClassifier;
+import android.view.textclassifier.TextLinks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class SmsOtpClassifierTest {
+    private static final long HIDING_TIME_MS = TimeUnit.HOURS.toMillis(3);
+    private static final String OTP = "123456";
+
+    private SQLiteDatabase mDb;
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final List<String> mClassifiedTexts = new ArrayList<>();
+    private int mMaxTextLength = 1000;
+    private int mUpdates;
+    private boolean mClassifierUnavailable;
+    // Text the classifier takes for an OTP, wherever it is found.
+    private String mFakeOtp;
+    private SmsOtpClassifier mClassifier;
+
+    // Finds the OTP in the text given.
+    private final TextClassifier mTextClassifier = new TextClassifier() {
+        @Override
+        public TextLinks generateLinks(TextLinks.Request request) {
+            String text = request.getText().toString();
+            mClassifiedTexts.add(text);
+            TextLinks.Builder links = new TextLinks.Builder(text);
+            for (int i = text.indexOf(OTP); i >= 0; i = text.indexOf(OTP, i + 1)) {
+                links.addLink(i, i + OTP.length(),
+                        Map.of(TextClassifier.TYPE_SMS_RETRIEVER_OTP, 1f));
+            }
+            if (mFakeOtp != null && text.contains(mFakeOtp)) {
+                int start = text.indexOf(mFakeOtp);
+                links.addLink(start, start + mFakeOtp.length(),
+                        Map.of(TextClassifier.TYPE_SMS_RETRIEVER_OTP, 1f));
+            }
+            return links.build();
+        }
+
+        @Override
+        public int getMaxGenerateLinksTextLength() {
+            return mMaxTextLength;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, contains_otp INTEGER, "
+                + SmsProvider.COLUMN_OTP_EXPIRY + " INTEGER)");
+        for (int i = 1; i <= 4; i++) {
+            mDb.execSQL("INSERT INTO sms (_id, contains_otp) VALUES (" + i + ", "
+                    + Sms.OTP_TYPE_PENDING + ")");
+        }
+        mClassifier = new SmsOtpClassifier(() -> mDb, () -> {
+            if (mClassifierUnavailable) {
+                throw new IllegalStateException("text classifier unavailable");
+            }
+            return mTextClassifier;
+        }, mTasks::add, new Handler(Looper.getMainLooper()), HIDING_TIME_MS, () -> mUpdates++);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+
+    private int containsOtp(long rowId) {
+        try (Cursor c = mDb.rawQuery("SELECT contains_otp FROM sms WHERE _id=" + rowId, null)) {
+            c.moveToFirst();
+            return c.getInt(0);
+        }
+    }
+
+    private Long expiry(long rowId) {
+        try (Cursor c = mDb.rawQuery("SELECT " + SmsProvider.COLUMN_OTP_EXPIRY
+                + " FROM sms WHERE _id=" + rowId, null)) {
+            c.moveToFirst();
+            return c.isNull(0) ? null : c.getLong(0);
+        }
+    }
+
+    @Test
+    public void enqueue_classifiesInOneCall() {
+        long before = System.currentTimeMillis();
+        mClassifier.enqueue(1, "Your code is " + OTP);
+        mClassifier.enqueue(2, "See you at 6");
+        mClassifier.enqueue(3, OTP + " is your code");
+        assertThat(mTasks).hasSize(1);
+
+        runTasks();
+
+        assertThat(mClassifiedTexts).hasSize(1);
+        assertThat(containsOtp(1)).isEqualTo(Sms.OTP_TYPE_CONTAINS_OTP);
+        assertThat(containsOtp(2)).isEqualTo(Sms.OTP_TYPE_NONE);
+        assertThat(containsOtp(3)).isEqualTo(Sms.OTP_TYPE_CONTAINS_OTP);
+        assertThat(containsOtp(4)).isEqualTo(Sms.OTP_TYPE_PENDING);
+        assertThat(expiry(1)).isAtLeast(before + HIDING_TIME_MS);
+        assertThat(expiry(2)).isNull();
+        assertThat(mUpdates).isEqualTo(1);
+    }
+
+    @Test
+    public void enqueue_splitsBatchesAtMaxTextLength() {
+        mMaxTextLength = 20;
+        mClassifier.enqueue(1, "Your code is " + OTP);
+        mClassifier.enqueue(2, "See you at 6");
+
+        runTasks();
+
+        assertThat(mClassifiedTexts).containsExactly("Your code is " + OTP, "See you at 6")
+                .inOrder();
+        assertThat(containsOtp(1)).isEqualTo(Sms.OTP_TYPE_CONTAINS_OTP);
+        assertThat(containsOtp(2)).isEqualTo(Sms.OTP_TYPE_NONE);
+    }
+
+    @Test
+    public void enqueue_ignoresLinkAcrossMessages() {
+        mFakeOtp = "123\n\n456";
+        mClassifier.enqueue(1, "Call me at 123");
+        mClassifier.enqueue(2, "456 is my room");
+
+        runTasks();
+
+        assertThat(mClassifiedTexts).hasSize(1);
+        assertThat(containsOtp(1)).isEqualTo(Sms.OTP_TYPE_NONE);
+        assertThat(containsOtp(2)).isEqualTo(Sms.OTP_TYPE_NONE);
+        assertThat(expiry(1)).isNull();
+        assertThat(expiry(2)).isNull();
+    }
+
+    @Test
+    public void enqueue_retriesAfterClassifierUnavailable() {
+        mClassifierUnavailable = true;
+        mClassifier.enqueue(1, "Your code is " + OTP);
+        runTasks();
+        assertThat(containsOtp(1)).isEqualTo(Sms.OTP_TYPE_PENDING);
+
+        mClassifierUnavailable = false;
+        mClassifier.enqueue(2, "See you at 6");
+        assertThat(mTasks).hasSize(1);
+        runTasks();
+
+        assertThat(containsOtp(1)).isEqualTo(Sms.OTP_TYPE_CONTAINS_OTP);
+        assertThat(containsOtp(2)).isEqualTo(Sms.OTP_TYPE_NONE);
+    }
+
+    @Test
+    public void sweep_clearsExpiredOtps() {
+        long now = System.currentTimeMillis();
+        mDb.execSQL("UPDATE sms SET contains_otp=" + Sms.OTP_TYPE_CONTAINS_OTP + ", "
+                + SmsProvider.COLUMN_OTP_EXPIRY + "=" + (now - 1) + " WHERE _id=1");
+        mDb.execSQL("UPDATE sms SET contains_otp=" + Sms.OTP_TYPE_CONTAINS_OTP + ", "
+                + SmsProvider.COLUMN_OTP_EXPIRY + "=" + (now + HIDING_TIME_MS) + " WHERE _id=2");
+
+        mClassifier.start();
+        runTasks();
+
+        assertThat(containsOtp(1)).isEqualTo(Sms.OTP_TYPE_NONE);
+        assertThat(expiry(1)).isNull();
+        assertThat(containsOtp(2)).isEqualTo(Sms.OTP_TYPE_CONTAINS_OTP);
+        assertThat(expiry(2)).isEqualTo(now + HIDING_TIME_MS);
+        assertThat(mUpdates).isEqualTo(1);
+    }
+}
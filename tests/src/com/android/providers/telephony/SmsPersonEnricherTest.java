@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(JUnit4.class)
+public class SmsPersonEnricherTest {
+    private SQLiteDatabase mDb;
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final Map<String, Long> mContacts = new HashMap<>();
+    private final List<String> mLookups = new ArrayList<>();
+    private int mUpdates;
+    private boolean mContactsUnavailable;
+    private SmsPersonEnricher mEnricher;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, person INTEGER)");
+        for (int i = 1; i <= 4; i++) {
+            mDb.execSQL("INSERT INTO sms (_id) VALUES (" + i + ")");
+        }
+        mContacts.put("+15551234", 7L);
+        mEnricher = new SmsPersonEnricher(() -> mDb, address -> {
+            mLookups.add(address);
+            if (mContactsUnavailable) {
+                throw new IllegalStateException("contacts unavailable");
+            }
+            return mContacts.get(address);
+        }, mTasks::add, () -> mUpdates++);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private void runTasks() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        tasks.forEach(Runnable::run);
+    }
+
+    private Long person(long rowId) {
+        try (Cursor c = mDb.rawQuery("SELECT person FROM sms WHERE _id=" + rowId, null)) {
+            c.moveToFirst();
+            return c.isNull(0) ? null : c.getLong(0);
+        }
+    }
+
+    @Test
+    public void enqueue_updatesInOneBatch() {
+        mEnricher.enqueue(1, "+15551234");
+        mEnricher.enqueue(2, "+15559999");
+        mEnricher.enqueue(3, "+15551234");
+        assertThat(mTasks).hasSize(1);
+        assertThat(person(1)).isNull();
+
+        runTasks();
+
+        assertThat(person(1)).isEqualTo(7L);
+        assertThat(person(2)).isNull();
+        assertThat(person(3)).isEqualTo(7L);
+        assertThat(mLookups).containsExactly("+15551234", "+15559999");
+        assertThat(mUpdates).isEqualTo(1);
+    }
+
+    @Test
+    public void enqueue_cachesUntilContactsChange() {
+        mEnricher.enqueue(1, "+15551234");
+        runTasks();
+        mEnricher.enqueue(2, "+15551234");
+        runTasks();
+        assertThat(mLookups).hasSize(1);
+        assertThat(person(2)).isEqualTo(7L);
+
+        mContacts.put("+15551234", 8L);
+        mEnricher.onContactsChanged();
+        mEnricher.enqueue(3, "+15551234");
+        runTasks();
+        assertThat(mLookups).hasSize(2);
+        assertThat(person(3)).isEqualTo(8L);
+    }
+
+    @Test
+    public void enqueue_failedLookupIsNotCached() {
+        mContactsUnavailable = true;
+        mEnricher.enqueue(1, "+15551234");
+        runTasks();
+        assertThat(person(1)).isNull();
+
+        mContactsUnavailable = false;
+        mEnricher.enqueue(2, "+15551234");
+        runTasks();
+        assertThat(mLookups).hasSize(2);
+        assertThat(person(2)).isEqualTo(7L);
+    }
+
+    @Test
+    public void enqueue_keepsPersonAlreadySet() {
+        mDb.execSQL("UPDATE sms SET person=3 WHERE _id=4");
+
+        mEnricher.enqueue(4, "+15551234");
+        runTasks();
+
+        assertThat(person(4)).isEqualTo(3L);
+        assertThat(mUpdates).isEqualTo(0);
+    }
+}
@@ -205,6 +205,68 @@ public class SmsProviderTest extends TestCase {
                 mContentResolver.insert(Uri.parse("content://sms/attachments"), values));
     }
 
+    @Test
+    @SmallTest
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Telephony.Sms.ADDRESS, "12345");
+            values[i].put(Telephony.Sms.BODY, "test " + i);
+            values[i].put(Telephony.Sms.THREAD_ID, 1);
+            values[i].put(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_SENT);
+        }
+        // A draft replaces the other drafts of its thread, also within a batch.
+        ContentValues draft = new ContentValues(values[0]);
+        draft.put(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_DRAFT);
+
+        assertEquals(3, mContentResolver.bulkInsert(Uri.parse("content://sms"), values));
+        assertEquals(2, mContentResolver.bulkInsert(Uri.parse("content://sms"),
+                new ContentValues[] {draft, draft}));
+        assertTrue(notifyChangeCount > 0);
+
+        try (Cursor cursor = mContentResolver.query(Uri.parse("content://sms"), null, null,
+                null, "_id")) {
+            assertEquals(4, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("test 0", cursor.getString(cursor.getColumnIndex(Telephony.Sms.BODY)));
+            // Non-inbox messages are marked read, as for single inserts.
+            assertEquals(1, cursor.getInt(cursor.getColumnIndex(Telephony.Sms.READ)));
+        }
+        try (Cursor cursor = mContentResolver.query(Uri.parse("content://sms/draft"), null,
+                null, null, null)) {
+            assertEquals(1, cursor.getCount());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsert_rolledBackWhenARowFails() {
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Telephony.Sms.ADDRESS, "12345");
+            values[i].put(Telephony.Sms.BODY, "Your code is 123456");
+            values[i].put(Telephony.Sms.THREAD_ID, 1);
+            values[i].put(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_INBOX);
+        }
+        // A subscription id which isn't a number makes the insert of the last row throw.
+        values[2].put(Telephony.Sms.SUBSCRIPTION_ID, "not a number");
+
+        try {
+            mContentResolver.bulkInsert(Uri.parse("content://sms"), values);
+            fail("bulkInsert should have thrown");
+        } catch (RuntimeException expected) {
+        }
+
+        try (Cursor cursor = mContentResolver.query(Uri.parse("content://sms"), null, null,
+                null, null)) {
+            assertEquals(0, cursor.getCount());
+        }
+        // Nor is the person lookup or OTP classification of the rolled back rows queued.
+        assertTrue(mSmsProviderTestable.mBackgroundWorkRowIds.isEmpty());
+    }
+
     @Test
     @SmallTest
     public void testRawTableInsert() {
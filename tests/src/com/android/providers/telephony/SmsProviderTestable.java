@@ -19,17 +19,24 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A subclass of SmsProvider used for testing on an in-memory database
  */
 public class SmsProviderTestable extends SmsProvider {
     private static final String TAG = "SmsProviderTestable";
 
+    // The rows whose background work was queued.
+    final List<Long> mBackgroundWorkRowIds = new ArrayList<>();
+
     @Override
     public boolean onCreate() {
         Log.d(TAG, "onCreate called: mDbHelper = new InMemorySmsProviderDbHelper()");
         mCeOpenHelper = new InMemorySmsProviderDbHelper();
         mDeOpenHelper = new InMemorySmsProviderDbHelper();
+        MessagingChangeNotifier.getInstance().setWindowMs(0);
         return true;
     }
 
@@ -43,6 +50,12 @@ public class SmsProviderTestable extends SmsProvider {
         }
     }
 
+    @Override
+    void enqueueBackgroundWork(long rowId, String personAddress, String possibleOtpMessage) {
+        mBackgroundWorkRowIds.add(rowId);
+        super.enqueueBackgroundWork(rowId, personAddress, possibleOtpMessage);
+    }
+
     // Testable SmsProvider doesn't enforce OTP restrictions, as doing so requires elevated
     // permissions the test version of the provider doesn't have.
     @Override
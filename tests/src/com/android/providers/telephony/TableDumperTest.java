@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.IndentingPrintWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class TableDumperTest {
+    private static final int ROWS = TableDumper.PAGE_SIZE * 2 + 5;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE t (_id INTEGER PRIMARY KEY, name TEXT, icc TEXT, data BLOB,"
+                + " big INTEGER)");
+        for (int i = 1; i <= ROWS; i++) {
+            ContentValues values = new ContentValues();
+            values.put("name", "name" + i);
+            values.put("icc", "icc" + i);
+            values.put("data", new byte[] {1});
+            values.put("big", 1L << 40);
+            mDb.insert("t", null, values);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private String dump(String... args) {
+        StringWriter sw = new StringWriter();
+        TableDumper.dump(mDb, "t", TableDumper.Options.parse(args), value -> "***",
+                Set.of("icc"), new IndentingPrintWriter(sw, "  "));
+        return sw.toString();
+    }
+
+    @Test
+    public void dump_pagesThroughAllRows() {
+        String dump = dump();
+
+        assertThat(dump).contains("_id=1, name=name1, icc=***, data=[blob], big=1099511627776\n");
+        assertThat(dump).contains("_id=" + ROWS + ", name=name" + ROWS + ",");
+        assertThat(dump).doesNotContain("icc" + ROWS);
+        assertThat(dump).contains("(" + ROWS + " rows in 3 pages, ");
+    }
+
+    @Test
+    public void dump_limit() {
+        String dump = dump("--limit", "2");
+
+        assertThat(dump).contains("_id=2,");
+        assertThat(dump).doesNotContain("_id=3,");
+        assertThat(dump).contains("(2 rows in 1 pages, ");
+    }
+
+    @Test
+    public void dump_columns() {
+        String dump = dump("--columns", "name,nope", "--limit", "1");
+
+        assertThat(dump).contains("unknown column nope");
+        assertThat(dump).contains("  name=name1\n");
+        assertThat(dump).doesNotContain("_id=");
+    }
+
+    @Test
+    public void options_parse() {
+        TableDumper.Options options = TableDumper.Options.parse(new String[] {"carriers"});
+        assertThat(options.includes("carriers")).isTrue();
+        assertThat(options.includes("siminfo")).isFalse();
+        assertThat(options.getError()).isNull();
+
+        assertThat(TableDumper.Options.parse(null).includes("siminfo")).isTrue();
+        assertThat(TableDumper.Options.parse(new String[] {"--stats"}).includes("siminfo"))
+                .isFalse();
+        assertThat(TableDumper.Options.parse(new String[] {"--limit", "x"}).getError())
+                .isNotNull();
+        assertThat(TableDumper.Options.parse(new String[] {"--bogus"}).getError()).isNotNull();
+    }
+}
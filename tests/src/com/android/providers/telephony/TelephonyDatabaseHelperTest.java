@@ -189,6 +189,28 @@ public final class TelephonyDatabaseHelperTest extends TelephonyTestBase {
                 fullColumns, upgradedColumns);
     }
 
+    @Test
+    public void databaseHelperOnOpen_createsIndexesAfterUpgrade() {
+        Log.d(TAG, "databaseHelperOnOpen_createsIndexesAfterUpgrade");
+        SQLiteDatabase db = mInMemoryDbHelper.getWritableDatabase();
+        mHelper.onUpgrade(db, (4 << 16), TelephonyProvider.getVersion(mContext));
+        // The upgrade recreates the tables, their indexes are created again on open.
+        mHelper.onOpen(db);
+
+        List<String> indexes = new ArrayList<>();
+        try (Cursor cursor = db.query("sqlite_master", new String[] {"name"}, "type='index'",
+                null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                indexes.add(cursor.getString(0));
+            }
+        }
+        Log.d(TAG, "indexes: " + indexes);
+        assertTrue(indexes.containsAll(Arrays.asList("carriers_numeric_index",
+                "carriers_carrier_id_index", "carriers_edited_status_index",
+                "carriers_current_index", "carriers_dpc_index", "siminfo_icc_id_index",
+                "siminfo_card_id_index")));
+    }
+
     @Test
     public void databaseHelperOnUpgrade_hasSubscriptionTypeField() {
         Log.d(TAG, "databaseHelperOnUpgrade_hasSubscriptionTypeField");
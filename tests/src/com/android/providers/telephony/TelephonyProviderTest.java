@@ -26,14 +26,19 @@ import static junit.framework.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.Manifest;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
@@ -75,6 +80,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -501,6 +507,81 @@ public class TelephonyProviderTest {
         assertEquals(insertCurrent, resultCurrent);
     }
 
+    /**
+     * Test applying a batch of carriers operations;
+     * Verify that each operation has its own result and that observers are notified once.
+     */
+    @Test
+    @SmallTest
+    public void testApplyBatchCarriers() throws Exception {
+        setUpMockContext(true);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            operations.add(ContentProviderOperation.newInsert(Carriers.CONTENT_URI)
+                    .withValue(Carriers.APN, "batchApn" + i)
+                    .withValue(Carriers.NAME, "batchName" + i)
+                    .withValue(Carriers.NUMERIC, TEST_OPERATOR)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newUpdate(Carriers.CONTENT_URI)
+                .withValue(Carriers.NAME, "updatedName")
+                .withSelection(Carriers.APN + "=?", new String[] {"batchApn1"})
+                .build());
+
+        ContentProviderResult[] results = mContentResolver.applyBatch("telephony", operations);
+        assertEquals(4, results.length);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(results[i].uri);
+        }
+        assertEquals(Integer.valueOf(1), results[3].count);
+        assertEquals(1, notifyChangeCount);
+
+        Cursor cursor = mContentResolver.query(Carriers.CONTENT_URI,
+                new String[] {Carriers.NAME}, Carriers.APN + "=?", new String[] {"batchApn1"},
+                null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("updatedName", cursor.getString(0));
+        cursor.close();
+    }
+
+    /**
+     * Test applying a batch of carriers operations with a failing operation;
+     * Verify that none of the batch is applied.
+     */
+    @Test
+    @SmallTest
+    public void testApplyBatchCarriersRolledBackOnFailure() throws Exception {
+        setUpMockContext(true);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(Carriers.CONTENT_URI)
+                .withValue(Carriers.APN, "batchApn")
+                .withValue(Carriers.NAME, "batchName")
+                .withValue(Carriers.NUMERIC, TEST_OPERATOR)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(Carriers.CONTENT_URI)
+                .withValue(Carriers.NAME, "updatedName")
+                .withSelection(Carriers.APN + "=?", new String[] {"noSuchApn"})
+                .withExpectedCount(1)
+                .build());
+
+        try {
+            mContentResolver.applyBatch("telephony", operations);
+            fail("Expected OperationApplicationException");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+
+        Cursor cursor = mContentResolver.query(Carriers.CONTENT_URI,
+                new String[] {Carriers.NAME}, Carriers.APN + "=?", new String[] {"batchApn"},
+                null);
+        assertNotNull(cursor);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
     /**
      * Test inserting, querying, and deleting values in carriers table.
      * Verify that the inserted values match the result of the query and are deleted.
@@ -1179,6 +1260,34 @@ public class TelephonyProviderTest {
         assertRestoredSubIdIsRemembered();
     }
 
+    @Test
+    public void testRestoreAfterFailedWriteOfRestoredSubIds() {
+        backupForAllowedNetworkTypesForReasons();
+        String valueBeforeRestore;
+        try (Cursor cursor = mContentResolver.query(SubscriptionManager.CONTENT_URI,
+                null, null, null, null)) {
+            cursor.moveToFirst();
+            valueBeforeRestore = getStringValueFromCursor(cursor,
+                    SimInfo.COLUMN_ALLOWED_NETWORK_TYPES_FOR_REASONS);
+        }
+
+        // The restored sub id can't be remembered in the backup file.
+        mTelephonyProviderTestable.failSimSettingsWrites(true);
+        restoreForAllowedNetworkTypesForReasons().close();
+        mTelephonyProviderTestable.failSimSettingsWrites(false);
+        ContentValues values = new ContentValues();
+        values.put(SimInfo.COLUMN_ALLOWED_NETWORK_TYPES_FOR_REASONS, valueBeforeRestore);
+        mContentResolver.update(SubscriptionManager.CONTENT_URI, values, null, null);
+
+        // So the SIM is restored again, as the file on disk says.
+        Cursor cursor = restoreForAllowedNetworkTypesForReasons();
+        cursor.moveToFirst();
+        assertEquals(ARBITRARY_ALLOWED_NETWORK_TYPES_BACKUP_STRING_VALUE,
+                getStringValueFromCursor(cursor,
+                        SimInfo.COLUMN_ALLOWED_NETWORK_TYPES_FOR_REASONS));
+        assertRestoredSubIdIsRemembered();
+    }
+
     private void assertRestoredSubIdIsRemembered() {
         PersistableBundle bundle = getPersistableBundleFromInternalStorageFile();
         int[] previouslyRestoredSubIds =
@@ -2032,10 +2141,7 @@ public class TelephonyProviderTest {
         otherValues.put(Carriers.MVNO_TYPE, otherMvnoTyp);
         otherValues.put(Carriers.MVNO_MATCH_DATA, otherMvnoMatchData);
 
-        doReturn(true).when(telephonyManager).matchesCurrentSimOperator(
-            anyString(), anyInt(), eq(TelephonyProviderTestable.TEST_SPN));
-        doReturn(false).when(telephonyManager).matchesCurrentSimOperator(
-            anyString(), anyInt(), eq(otherMvnoMatchData));
+        doReturn(TelephonyProviderTestable.TEST_SPN).when(telephonyManager).getSimOperatorName();
 
         // insert APNs
         Log.d(TAG, "testRestoreDefaultApn: Bulk inserting contentValues=" + targetValues + ", "
@@ -2179,10 +2285,7 @@ public class TelephonyProviderTest {
 
         TelephonyManager telephonyManager =
             (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-        doReturn(true).when(telephonyManager).matchesCurrentSimOperator(
-            anyString(), anyInt(), eq(mvnoData));
-        doReturn(false).when(telephonyManager).matchesCurrentSimOperator(
-            anyString(), anyInt(), eq(""));
+        doReturn(mvnoData).when(telephonyManager).getSimOperatorName();
 
         // Query DB
         final String[] testProjection =
@@ -2205,6 +2308,44 @@ public class TelephonyProviderTest {
         assertEquals(mvnoData, cursor.getString(3));
     }
 
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_MvnoMatchReadsSimRecordsOnce() {
+        setUpMockContext(true);
+
+        final String imsi = TEST_OPERATOR + "0123456789";
+        TelephonyManager telephonyManager =
+                (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        doReturn(imsi).when(telephonyManager).getSubscriberId();
+
+        // Insert an IMSI MVNO APN using a wildcard and a non matching one
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "apnName");
+        contentValues.put(Carriers.NAME, "imsiMvno");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        contentValues.put(Carriers.MVNO_TYPE, "imsi");
+        contentValues.put(Carriers.MVNO_MATCH_DATA, TEST_OPERATOR + "x12");
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        contentValues.put(Carriers.NAME, "otherImsiMvno");
+        contentValues.put(Carriers.MVNO_MATCH_DATA, TEST_OPERATOR + "x99");
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+
+        final String[] testProjection = {Carriers.NAME};
+        for (int i = 0; i < 3; i++) {
+            Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST,
+                    testProjection, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("imsiMvno", cursor.getString(0));
+            cursor.close();
+        }
+
+        // The SIM records are read once and no per row binder call is made
+        verify(telephonyManager, times(1)).getSubscriberId();
+        verify(telephonyManager, never()).matchesCurrentSimOperator(
+                anyString(), anyInt(), anyString());
+    }
+
     @Test
     @SmallTest
     public void testSIMAPNLIST_MatchTheMNOAPN() {
@@ -2239,6 +2380,50 @@ public class TelephonyProviderTest {
         assertEquals(numeric, cursor.getString(2));
     }
 
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_ReflectsCarriersTableWrites() {
+        setUpMockContext(true);
+
+        final String apnName = "apnName";
+        final String carrierName = "name";
+        final String[] testProjection = {Carriers.APN, Carriers.NUMERIC};
+
+        // Insert the MNO APN and make sure the match index picks it up.
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, apnName);
+        contentValues.put(Carriers.NAME, carrierName);
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        Uri row = mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Move the APN to another operator; it must no longer match the SIM.
+        contentValues = new ContentValues();
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR_SECOND_MCCMNC);
+        assertEquals(1, mContentResolver.update(row, contentValues, null, null));
+        cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Insert a second MNO APN, then delete it by id.
+        contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, apnName + "2");
+        contentValues.put(Carriers.NAME, carrierName);
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        row = mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        assertEquals(1, mContentResolver.delete(row, null, null));
+        cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
     @Test
     @SmallTest
     public void testSIMAPNLIST_MatchTheCarrierIDANDMNOAPN() {
@@ -2278,6 +2463,53 @@ public class TelephonyProviderTest {
         assertEquals(cursor.getCount(), 2);
     }
 
+    @Test
+    @SmallTest
+    public void testSIMAPNLIST_KeepsColumnTypesAndTierOrder() {
+        setUpMockContext(true);
+
+        // Add the APN that only have carrier id first so it has the lowest row id
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "carrierIdApn");
+        contentValues.put(Carriers.NAME, "name");
+        contentValues.put(Carriers.CARRIER_ID, TEST_CARRIERID);
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+
+        // Add two MNO APNs
+        contentValues = new ContentValues();
+        contentValues.put(Carriers.APN, "mnoApn2");
+        contentValues.put(Carriers.NAME, "name");
+        contentValues.put(Carriers.NUMERIC, TEST_OPERATOR);
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+        contentValues.put(Carriers.APN, "mnoApn1");
+        mContentResolver.insert(Carriers.CONTENT_URI, contentValues);
+
+        final String[] testProjection = {Carriers.APN, Carriers.CARRIER_ID};
+
+        // The MNO APNs come first in the requested order, then the carrier id APN
+        Cursor cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null,
+                Carriers.APN + " ASC");
+        assertEquals(3, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("mnoApn1", cursor.getString(0));
+        cursor.moveToNext();
+        assertEquals("mnoApn2", cursor.getString(0));
+        cursor.moveToNext();
+        assertEquals("carrierIdApn", cursor.getString(0));
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(1));
+        assertEquals(TEST_CARRIERID, cursor.getInt(1));
+        cursor.close();
+
+        // Without a sort order each tier is in row id order
+        cursor = mContentResolver.query(URL_SIM_APN_LIST, testProjection, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("mnoApn2", cursor.getString(0));
+        cursor.moveToLast();
+        assertEquals("carrierIdApn", cursor.getString(0));
+        cursor.close();
+    }
+
     @Test
     @SmallTest
     public void testSIMAPNLIST_MatchTheCarrierAPNAndMVNOAPN() {
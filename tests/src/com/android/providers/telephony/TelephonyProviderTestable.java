@@ -34,6 +34,8 @@ public class TelephonyProviderTestable extends TelephonyProvider {
 
     private InMemoryTelephonyProviderDbHelper mDbHelper;
     private MockInjector mMockInjector;
+    // Whether writing the SIM specific settings backup file fails.
+    private boolean mFailSimSettingsWrites;
 
     public TelephonyProviderTestable() {
         this(new MockInjector());
@@ -49,6 +51,8 @@ public class TelephonyProviderTestable extends TelephonyProvider {
         Log.d(TAG, "onCreate called: mDbHelper = new InMemoryTelephonyProviderDbHelper()");
         mDbHelper = new InMemoryTelephonyProviderDbHelper();
         s_apnSourceServiceExists = false;
+        // Notify observers synchronously so tests can check them right after a write.
+        setCarriersNotificationWindowMs(0);
         return true;
     }
 
@@ -84,6 +88,19 @@ public class TelephonyProviderTestable extends TelephonyProvider {
         mMockInjector.fakeCallingUid(uid);
     }
 
+    public void failSimSettingsWrites(boolean fail) {
+        mFailSimSettingsWrites = fail;
+    }
+
+    @Override
+    boolean writeSimSettingsToInternalStorage(byte[] data) {
+        if (mFailSimSettingsWrites) {
+            Log.d(TAG, "writeSimSettingsToInternalStorage called; failing");
+            return false;
+        }
+        return super.writeSimSettingsToInternalStorage(data);
+    }
+
     /**
      * An in memory DB for TelephonyProviderTestable to use
      */
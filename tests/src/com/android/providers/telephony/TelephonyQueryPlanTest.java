@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static android.provider.Telephony.Carriers;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Checks with {@code EXPLAIN QUERY PLAN} that the frequent queries of the telephony database use
+ * an index, so a schema change can't bring back full table scans unnoticed.
+ */
+@RunWith(JUnit4.class)
+public final class TelephonyQueryPlanTest {
+    // A full scan of a table or of one of its indexes.
+    private static final Pattern FULL_SCAN = Pattern.compile("^SCAN (TABLE )?\\w+");
+
+    private static final String NOT_OWNED_BY_DPC = Carriers.OWNED_BY + "!=" + Carriers.OWNED_BY_DPC;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(TelephonyProvider.getStringForCarrierTableCreation("carriers"));
+        mDb.execSQL(TelephonyProvider.getStringForSimInfoTableCreation("siminfo"));
+        for (String sql : TelephonyProvider.getStringsForCarrierIndexCreation()) {
+            mDb.execSQL(sql);
+        }
+        for (String sql : TelephonyProvider.getStringsForSimInfoIndexCreation()) {
+            mDb.execSQL(sql);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private List<String> getPlan(String sql, String... args) {
+        List<String> plan = new ArrayList<>();
+        try (Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detail));
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Assert that {@code sql} reads no table in full and searches with every index of
+     * {@code indexes}.
+     */
+    private void assertSearches(String sql, String... indexes) {
+        List<String> plan = getPlan(sql);
+        for (String step : plan) {
+            assertFalse(sql + " scans: " + plan, FULL_SCAN.matcher(step).find());
+        }
+        String joined = String.join("\n", plan);
+        for (String index : indexes) {
+            assertTrue(sql + " doesn't use " + index + ": " + plan, joined.contains(index));
+        }
+    }
+
+    @Test
+    public void restoreDefaultApn_operatorApns() {
+        // getWhereClauseForRestoreDefaultApn()
+        assertSearches("SELECT " + Carriers.MVNO_TYPE + ", " + Carriers.MVNO_MATCH_DATA
+                + " FROM carriers WHERE " + Carriers.NUMERIC + "='310260' ORDER BY "
+                + Carriers.DEFAULT_SORT_ORDER, "carriers_numeric_index");
+    }
+
+    @Test
+    public void restoreDefaultApn_deleteMnoAndCarrierIdApns() {
+        assertSearches("SELECT _id FROM carriers WHERE " + Carriers.NUMERIC + "='310260' AND ("
+                + Carriers.MVNO_TYPE + "='' OR " + Carriers.MVNO_MATCH_DATA + "='') AND "
+                + NOT_OWNED_BY_DPC + " OR " + Carriers.CARRIER_ID + " = '1' AND "
+                + NOT_OWNED_BY_DPC, "carriers_numeric_index", "carriers_carrier_id_index");
+    }
+
+    @Test
+    public void restoreDefaultApn_deleteMvnoAndCarrierIdApns() {
+        assertSearches("SELECT _id FROM carriers WHERE " + Carriers.NUMERIC + "='310260' AND "
+                + Carriers.MVNO_TYPE + "='spn' AND " + Carriers.MVNO_MATCH_DATA + "='mvno' AND "
+                + NOT_OWNED_BY_DPC + " OR " + Carriers.CARRIER_ID + " = '1' AND "
+                + NOT_OWNED_BY_DPC, "carriers_numeric_index", "carriers_carrier_id_index");
+    }
+
+    @Test
+    public void apnUpdate_uneditedApns() {
+        // ApnConfHashes.apply()
+        assertSearches("SELECT _id, " + Carriers.NUMERIC + ", " + Carriers.APN
+                + " FROM carriers WHERE " + Carriers.EDITED_STATUS + "=" + Carriers.UNEDITED
+                + " and " + NOT_OWNED_BY_DPC, "carriers_edited_status_index");
+    }
+
+    @Test
+    public void apnUpdate_deletedApns() {
+        assertSearches("SELECT _id FROM carriers WHERE " + Carriers.EDITED_STATUS + "="
+                + Carriers.USER_DELETED + " or " + Carriers.EDITED_STATUS + "="
+                + Carriers.CARRIER_DELETED, "carriers_edited_status_index");
+        assertSearches("SELECT _id FROM carriers WHERE " + Carriers.EDITED_STATUS + "="
+                + Carriers.USER_DELETED_BUT_PRESENT_IN_XML, "carriers_edited_status_index");
+    }
+
+    @Test
+    public void query_currentApns() {
+        // URL_CURRENT
+        assertSearches("SELECT * FROM carriers WHERE (current IS NOT NULL) AND ("
+                + NOT_OWNED_BY_DPC + ")", "carriers_current_index");
+    }
+
+    @Test
+    public void query_dpcApns() {
+        // URL_DPC
+        assertSearches("SELECT * FROM carriers WHERE (" + Carriers.OWNED_BY + "="
+                + Carriers.OWNED_BY_DPC + ")", "carriers_dpc_index");
+    }
+
+    @Test
+    public void query_byId() {
+        // URL_ID, URL_PREFERAPN and the matching APNs read back with _id IN.
+        assertSearches("SELECT * FROM carriers WHERE (_id = 3) AND (" + NOT_OWNED_BY_DPC + ")",
+                "PRIMARY KEY");
+        assertSearches("SELECT _id FROM carriers WHERE (" + Carriers.EDITED_STATUS + "!="
+                + Carriers.USER_DELETED + ") AND (_id IN (1,2,3))", "PRIMARY KEY");
+    }
+
+    @Test
+    public void simInfo_byIccIdAndCardId() {
+        // mergeBackedUpDataToSimInfoDb() and the subscription lookups.
+        assertSearches("SELECT * FROM siminfo WHERE " + Telephony.SimInfo.COLUMN_ICC_ID
+                + "='89010'", "siminfo_icc_id_index");
+        assertSearches("SELECT * FROM siminfo WHERE " + Telephony.SimInfo.COLUMN_CARD_ID
+                + "='89010'", "siminfo_card_id_index");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ThreadIdCacheTest {
+    private final ThreadIdCache mCache = new ThreadIdCache(2);
+    private final List<String> mResolved = new ArrayList<>();
+
+    private long resolve(String address) {
+        mResolved.add(address);
+        return mResolved.size();
+    }
+
+    @Test
+    public void getOrCreateThreadId_resolvesEachAddressOnce() {
+        assertThat(mCache.getOrCreateThreadId("+15551234", this::resolve)).isEqualTo(1L);
+        assertThat(mCache.getOrCreateThreadId("+15551234", this::resolve)).isEqualTo(1L);
+        // Email addresses are case insensitive.
+        assertThat(mCache.getOrCreateThreadId("Foo@Example.com", this::resolve)).isEqualTo(2L);
+        assertThat(mCache.getOrCreateThreadId("foo@example.com", this::resolve)).isEqualTo(2L);
+        // Other addresses are not.
+        assertThat(mCache.getOrCreateThreadId("My Carrier", this::resolve)).isEqualTo(3L);
+        assertThat(mCache.getOrCreateThreadId("my carrier", this::resolve)).isEqualTo(4L);
+
+        assertThat(mResolved).containsExactly("+15551234", "Foo@Example.com", "My Carrier",
+                "my carrier").inOrder();
+    }
+
+    @Test
+    public void invalidate_forgetsAddresses() {
+        mCache.getOrCreateThreadId("+15551234", this::resolve);
+        mCache.invalidate();
+
+        assertThat(mCache.getOrCreateThreadId("+15551234", this::resolve)).isEqualTo(2L);
+    }
+
+    @Test
+    public void invalidate_duringResolutionIsNotCached() {
+        mCache.getOrCreateThreadId("+15551234", address -> {
+            mCache.invalidate();
+            return resolve(address);
+        });
+
+        assertThat(mCache.getOrCreateThreadId("+15551234", this::resolve)).isEqualTo(2L);
+    }
+
+    @Test
+    public void getOrCreateThreadId_failureIsNotCached() {
+        assertThrows(IllegalArgumentException.class,
+                () -> mCache.getOrCreateThreadId("+15551234", address -> {
+                    throw new IllegalArgumentException();
+                }));
+
+        assertThat(mCache.getOrCreateThreadId("+15551234", this::resolve)).isEqualTo(1L);
+    }
+}